@@ -43,13 +43,13 @@ import org.openremote.model.attribute.*;
 import org.openremote.model.value.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.container.concurrent.GlobalLock.withLock;
-import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
 
 /**
  * Thread-safe base implementation for protocols.
@@ -71,6 +71,11 @@ import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
  * All <code>abstract</code> methods are always called within lock scope. An implementation can rely on this lock
  * and safely modify internal, protocol-specific shared state. However, if a protocol implementation schedules
  * an asynchronous task, this task must obtain the lock to call any protocol operations.
+ * <p>
+ * The linked attribute state of this base class is held in concurrent maps which are only modified while holding
+ * the lock, in linking and unlinking operations. Publishing sensor values with {@link #updateLinkedAttribute} and
+ * reading linked attributes and protocol configurations does not obtain the lock, so sensor ingestion of one
+ * protocol does not contend with other protocols or asset processing.
  */
 public abstract class AbstractProtocol implements Protocol {
 
@@ -78,7 +83,7 @@ public abstract class AbstractProtocol implements Protocol {
 
         final AssetAttribute protocolConfiguration;
         final Consumer<ConnectionStatus> connectionStatusConsumer;
-        ConnectionStatus currentConnectionStatus;
+        volatile ConnectionStatus currentConnectionStatus;
 
         protected LinkedProtocolInfo(
             AssetAttribute protocolConfiguration,
@@ -109,10 +114,10 @@ public abstract class AbstractProtocol implements Protocol {
 
     private static final Logger LOG = Logger.getLogger(AbstractProtocol.class.getName());
 
-    protected final Map<AttributeRef, AssetAttribute> linkedAttributes = new HashMap<>();
-    protected final Map<AttributeRef, LinkedProtocolInfo> linkedProtocolConfigurations = new HashMap<>();
-    protected final Map<AttributeRef, List<MessageFilter>> linkedAttributeFilters = new HashMap<>();
-    protected final List<AttributeRef> locationLinkedAttributes = new ArrayList<>();
+    protected final Map<AttributeRef, AssetAttribute> linkedAttributes = new ConcurrentHashMap<>();
+    protected final Map<AttributeRef, LinkedProtocolInfo> linkedProtocolConfigurations = new ConcurrentHashMap<>();
+    protected final Map<AttributeRef, List<MessageFilter>> linkedAttributeFilters = new ConcurrentHashMap<>();
+    protected final Set<AttributeRef> locationLinkedAttributes = ConcurrentHashMap.newKeySet();
     protected MessageBrokerContext messageBrokerContext;
     protected ProducerTemplate producerTemplate;
     protected TimerService timerService;
@@ -200,19 +205,21 @@ public abstract class AbstractProtocol implements Protocol {
             attributes.forEach(attribute -> {
                 LOG.fine("Linking attribute to '" + getProtocolName() + "': " + attribute);
                 AttributeRef attributeRef = attribute.getReferenceOrThrow();
-                // Need to add to map before actual linking as protocols may want to update the value as part of
-                // linking process and without entry in the map any update would be blocked
-                linkedAttributes.put(attributeRef, attribute);
 
+                // Filters and location link must be visible before the attribute, sensor updates don't lock
                 Optional<List<MessageFilter>> messageFilters = Protocol.getLinkedAttributeMessageFilters(attribute);
                 messageFilters.ifPresent(mFilters -> {
-                    linkedAttributeFilters.put(attributeRef, mFilters);
+                    linkedAttributeFilters.put(attributeRef, Collections.unmodifiableList(new ArrayList<>(mFilters)));
                 });
 
                 attribute.getMetaItem(AssetMeta.LOCATION_LINK).ifPresent(metaItem -> {
                     locationLinkedAttributes.add(attribute.getReferenceOrThrow());
                 });
 
+                // Need to add to map before actual linking as protocols may want to update the value as part of
+                // linking process and without entry in the map any update would be blocked
+                linkedAttributes.put(attributeRef, attribute);
+
                 try {
                     doLinkAttribute(attribute, protocolConfiguration);
                 } catch (Exception e) {
@@ -243,7 +250,7 @@ public abstract class AbstractProtocol implements Protocol {
      * Gets a linked attribute by its attribute ref
      */
     protected AssetAttribute getLinkedAttribute(AttributeRef attributeRef) {
-        return withLockReturning(getProtocolName()  + "::getLinkedAttribute", () -> linkedAttributes.get(attributeRef));
+        return linkedAttributes.get(attributeRef);
     }
 
     /**
@@ -255,12 +262,10 @@ public abstract class AbstractProtocol implements Protocol {
     }
 
     protected AssetAttribute getLinkedProtocolConfiguration(AttributeRef protocolConfigurationRef) {
-        return withLockReturning(getProtocolName() + "::getLinkedProtocolConfigurations", () -> {
-            LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfigurationRef);
-            // Don't bother with null check if someone calls here with an attribute not linked to this protocol
-            // then they're doing something wrong so fail hard and fast
-            return linkedProtocolInfo.getProtocolConfiguration();
-        });
+        LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfigurationRef);
+        // Don't bother with null check if someone calls here with an attribute not linked to this protocol
+        // then they're doing something wrong so fail hard and fast
+        return linkedProtocolInfo.getProtocolConfiguration();
     }
 
     final protected void processLinkedAttributeWrite(AttributeEvent event) {
@@ -290,118 +295,114 @@ public abstract class AbstractProtocol implements Protocol {
      * publish new sensor values, which performs additional verification and uses a different messaging queue.
      */
     final protected void sendAttributeEvent(AttributeEvent event) {
-        withLock(getProtocolName() + "::sendAttributeEvent", () -> {
-            // Don't allow updating linked attributes with this mechanism as it could cause an infinite loop
-            if (linkedAttributes.containsKey(event.getAttributeRef())) {
-                LOG.warning("Cannot update an attribute linked to the same protocol; use updateLinkedAttribute for that: " + event);
-                return;
-            }
-            assetService.sendAttributeEvent(event);
-        });
+        // Don't allow updating linked attributes with this mechanism as it could cause an infinite loop
+        if (linkedAttributes.containsKey(event.getAttributeRef())) {
+            LOG.warning("Cannot update an attribute linked to the same protocol; use updateLinkedAttribute for that: " + event);
+            return;
+        }
+        assetService.sendAttributeEvent(event);
     }
 
     /**
      * Update the value of a linked attribute. Call this to publish new sensor values. This will apply any
      * {@link MessageFilter}s that have been set for the {@link Attribute} against the {@link AttributeState#value}
-     * before sending on the sensor queue.
+     * before sending on the sensor queue. Does not obtain the lock, can be called from any protocol thread.
      */
     @SuppressWarnings("unchecked")
     final protected void updateLinkedAttribute(final AttributeState finalState, long timestamp) {
-        withLock(getProtocolName() + "::updateLinkedAttribute", () -> {
-            AttributeState state = finalState;
-            AssetAttribute attribute = linkedAttributes.get(state.getAttributeRef());
-
-            if (attribute == null) {
-                LOG.severe("Update linked attribute called for un-linked attribute: " + state);
-                return;
-            }
+        AttributeState state = finalState;
+        AssetAttribute attribute = linkedAttributes.get(state.getAttributeRef());
 
-            if (state.getValue().isPresent()) {
-                List<MessageFilter> filters;
-                Value value = state.getValue().get();
-
-                filters = linkedAttributeFilters.get(state.getAttributeRef());
-
-                if (filters != null) {
-                    LOG.fine("Applying message filters to sensor value...");
+        if (attribute == null) {
+            LOG.severe("Update linked attribute called for un-linked attribute: " + state);
+            return;
+        }
 
-                    for (MessageFilter filter : filters) {
-                        if (filter.getMessageType() != value.getType().getModelType()) {
-                            LOG.fine("Message filter type '" + filter.getMessageType().getName()
-                                + "' is not compatible with actual message type '" + value.getType().getModelType().getName()
-                                + "': " + filter.getClass().getName());
+        if (state.getValue().isPresent()) {
+            List<MessageFilter> filters;
+            Value value = state.getValue().get();
+
+            filters = linkedAttributeFilters.get(state.getAttributeRef());
+
+            if (filters != null) {
+                LOG.fine("Applying message filters to sensor value...");
+
+                for (MessageFilter filter : filters) {
+                    if (filter.getMessageType() != value.getType().getModelType()) {
+                        LOG.fine("Message filter type '" + filter.getMessageType().getName()
+                            + "' is not compatible with actual message type '" + value.getType().getModelType().getName()
+                            + "': " + filter.getClass().getName());
+                        value = null;
+                    } else {
+                        try {
+                            LOG.finest("Applying message filter: " + filter.getClass().getName());
+                            value = filter.process(value);
+                        } catch (Exception e) {
+                            LOG.log(
+                                Level.SEVERE,
+                                "Message filter threw and exception during processing of message: "
+                                    + filter.getClass().getName(),
+                                e);
                             value = null;
-                        } else {
-                            try {
-                                LOG.finest("Applying message filter: " + filter.getClass().getName());
-                                value = filter.process(value);
-                            } catch (Exception e) {
-                                LOG.log(
-                                    Level.SEVERE,
-                                    "Message filter threw and exception during processing of message: "
-                                        + filter.getClass().getName(),
-                                    e);
-                                value = null;
-                            }
                         }
+                    }
 
-                        if (value == null) {
-                            break;
-                        }
+                    if (value == null) {
+                        break;
                     }
                 }
+            }
 
-                // Do basic value conversion
-                Optional<ValueType> attributeValueType = attribute.getType().map(AttributeType::getValueType);
-
-                if (value != null && attributeValueType.isPresent()) {
-                    if (attributeValueType.get() != value.getType()) {
-                        LOG.fine("Converting value: " + value.getType() + " -> " + attributeValueType.get());
-                        Optional<Value> convertedValue = Values.convert(value, attributeValueType.get());
-                        if (!convertedValue.isPresent()) {
-                            LOG.warning("Failed to convert value: " + value.getType() + " -> " + attributeValueType.get());
-                        } else {
-                            value = convertedValue.get();
-                        }
+            // Do basic value conversion
+            Optional<ValueType> attributeValueType = attribute.getType().map(AttributeType::getValueType);
+
+            if (value != null && attributeValueType.isPresent()) {
+                if (attributeValueType.get() != value.getType()) {
+                    LOG.fine("Converting value: " + value.getType() + " -> " + attributeValueType.get());
+                    Optional<Value> convertedValue = Values.convert(value, attributeValueType.get());
+                    if (!convertedValue.isPresent()) {
+                        LOG.warning("Failed to convert value: " + value.getType() + " -> " + attributeValueType.get());
+                    } else {
+                        value = convertedValue.get();
                     }
                 }
-
-                state = new AttributeState(state.getAttributeRef(), value);
             }
-            AttributeEvent attributeEvent = new AttributeEvent(state, timestamp);
-            LOG.fine("Sending on sensor queue: " + attributeEvent);
-            producerTemplate.sendBodyAndHeader(SENSOR_QUEUE, attributeEvent, Protocol.SENSOR_QUEUE_SOURCE_PROTOCOL, getProtocolName());
 
-            if (locationLinkedAttributes.contains(state.getAttributeRef())) {
+            state = new AttributeState(state.getAttributeRef(), value);
+        }
+        AttributeEvent attributeEvent = new AttributeEvent(state, timestamp);
+        LOG.fine("Sending on sensor queue: " + attributeEvent);
+        producerTemplate.sendBodyAndHeader(SENSOR_QUEUE, attributeEvent, Protocol.SENSOR_QUEUE_SOURCE_PROTOCOL, getProtocolName());
 
-                // Check value type is compatible
-                Point location = state.getValue().map(value -> {
-                    if (value.getType() != ValueType.ARRAY) {
-                        LOG.warning("Location linked attribute type is not an array");
-                        return null;
-                    }
+        if (locationLinkedAttributes.contains(state.getAttributeRef())) {
 
-                    Optional<List<NumberValue>> coordinates = Values.getArrayElements((ArrayValue) value, NumberValue.class, false, false);
-                    if (!coordinates.isPresent()
-                        || coordinates.get().size() != 2
-                        || Math.abs(coordinates.get().get(0).getNumber()) > 180
-                        || Math.abs(coordinates.get().get(1).getNumber()) > 90) {
-                        LOG.warning("Location linked attribute value must contain longitude then latitude in a 2 value number array");
-                        return null;
-                    }
+            // Check value type is compatible
+            Point location = state.getValue().map(value -> {
+                if (value.getType() != ValueType.ARRAY) {
+                    LOG.warning("Location linked attribute type is not an array");
+                    return null;
+                }
 
-                    try {
-                        return new GeometryFactory().createPoint(
-                            new Coordinate(coordinates.get().get(0).getNumber(), coordinates.get().get(1).getNumber())
-                        );
-                    } catch (Exception e) {
-                        return null;
-                    }
-                }).orElse(null);
+                Optional<List<NumberValue>> coordinates = Values.getArrayElements((ArrayValue) value, NumberValue.class, false, false);
+                if (!coordinates.isPresent()
+                    || coordinates.get().size() != 2
+                    || Math.abs(coordinates.get().get(0).getNumber()) > 180
+                    || Math.abs(coordinates.get().get(1).getNumber()) > 90) {
+                    LOG.warning("Location linked attribute value must contain longitude then latitude in a 2 value number array");
+                    return null;
+                }
 
-                updateAssetLocation(state.getAttributeRef().getEntityId(), location);
-            }
-        });
+                try {
+                    return new GeometryFactory().createPoint(
+                        new Coordinate(coordinates.get().get(0).getNumber(), coordinates.get().get(1).getNumber())
+                    );
+                } catch (Exception e) {
+                    return null;
+                }
+            }).orElse(null);
+
+            updateAssetLocation(state.getAttributeRef().getEntityId(), location);
+        }
     }
 
     /**
@@ -413,7 +414,7 @@ public abstract class AbstractProtocol implements Protocol {
     }
 
     final protected void updateAssetLocation(String assetId, Point location) {
-        withLock(getProtocolName(), () -> assetService.updateAssetLocation(assetId, location));
+        assetService.updateAssetLocation(assetId, location);
     }
 
     /**
@@ -448,10 +449,8 @@ public abstract class AbstractProtocol implements Protocol {
      * Gets the current runtime status of a protocol configuration.
      */
     final protected ConnectionStatus getStatus(AssetAttribute protocolConfiguration) {
-        return withLockReturning(getProtocolName() + "::getStatus", () -> {
-            LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfiguration.getReferenceOrThrow());
-            return linkedProtocolInfo.getCurrentConnectionStatus();
-        });
+        LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfiguration.getReferenceOrThrow());
+        return linkedProtocolInfo.getCurrentConnectionStatus();
     }
 
     @Override
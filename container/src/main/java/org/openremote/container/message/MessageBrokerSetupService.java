@@ -37,6 +37,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.container.util.MapAccess.getString;
 
 @SuppressWarnings("deprecation")
@@ -47,6 +48,19 @@ public class MessageBrokerSetupService implements ContainerService {
     public static final String MESSAGE_SESSION_ALLOWED_ORIGIN = "MESSAGE_SESSION_ALLOWED_ORIGIN";
     public static final String MESSAGE_SESSION_ALLOWED_ORIGIN_DEFAULT = null;
 
+    /**
+     * Maximum number of outbound messages waiting for a slow websocket session, the session is closed when exceeded.
+     * Pending attribute events of the same attribute are coalesced and only count once.
+     */
+    public static final String MESSAGE_SESSION_MAX_PENDING_MESSAGES = "MESSAGE_SESSION_MAX_PENDING_MESSAGES";
+    public static final int MESSAGE_SESSION_MAX_PENDING_MESSAGES_DEFAULT = 1000;
+
+    /**
+     * Maximum time a websocket session may take to accept an outbound message, the session is closed when exceeded.
+     */
+    public static final String MESSAGE_SESSION_MAX_LAG_MILLIS = "MESSAGE_SESSION_MAX_LAG_MILLIS";
+    public static final int MESSAGE_SESSION_MAX_LAG_MILLIS_DEFAULT = 30000;
+
     protected MessageBrokerContext context;
 
     @Override
@@ -128,6 +142,12 @@ public class MessageBrokerSetupService implements ContainerService {
             container.getService(WebService.class),
             allowedOrigin
         );
+        websocketComponent.setSessionMaxPendingMessages(
+            getInteger(container.getConfig(), MESSAGE_SESSION_MAX_PENDING_MESSAGES, MESSAGE_SESSION_MAX_PENDING_MESSAGES_DEFAULT)
+        );
+        websocketComponent.setSessionMaxLagMillis(
+            getInteger(container.getConfig(), MESSAGE_SESSION_MAX_LAG_MILLIS, MESSAGE_SESSION_MAX_LAG_MILLIS_DEFAULT)
+        );
 
         context.addComponent(WebsocketComponent.NAME, websocketComponent);
     }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.container.persistence;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Collects items per transaction and passes them to a consumer when the transaction commits, the items of a
+ * transaction which rolls back are discarded.
+ * <p>
+ * A caller rolling back to a savepoint gets a mark with {@link #getMark} before the savepoint and forgets
+ * the items added since with {@link #rollbackToMark}.
+ */
+public class AfterCommitBuffer<T> {
+
+    protected class TransactionItems implements Synchronization {
+        final protected Transaction transaction;
+        final protected List<T> items = new ArrayList<>();
+
+        public TransactionItems(Transaction transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            transactions.remove(transaction);
+            if (status == Status.STATUS_COMMITTED && !items.isEmpty()) {
+                committed.accept(items);
+            }
+        }
+    }
+
+    final protected Consumer<List<T>> committed;
+    final protected Map<Transaction, TransactionItems> transactions = new ConcurrentHashMap<>();
+
+    /**
+     * @param committed Called with the items of a committed transaction, in the order they were added.
+     */
+    public AfterCommitBuffer(Consumer<List<T>> committed) {
+        this.committed = committed;
+    }
+
+    public void add(EntityManager em, T item) {
+        Transaction transaction = em.unwrap(Session.class).getTransaction();
+        transactions.computeIfAbsent(transaction, tx -> {
+            TransactionItems transactionItems = new TransactionItems(tx);
+            tx.registerSynchronization(transactionItems);
+            return transactionItems;
+        }).items.add(item);
+    }
+
+    /**
+     * @return The number of items added in the transaction of the entity manager.
+     */
+    public int getMark(EntityManager em) {
+        TransactionItems transactionItems = transactions.get(em.unwrap(Session.class).getTransaction());
+        return transactionItems != null ? transactionItems.items.size() : 0;
+    }
+
+    /**
+     * Forget the items added in the transaction of the entity manager after the mark.
+     */
+    public void rollbackToMark(EntityManager em, int mark) {
+        TransactionItems transactionItems = transactions.get(em.unwrap(Session.class).getTransaction());
+        if (transactionItems != null && transactionItems.items.size() > mark) {
+            transactionItems.items.subList(mark, transactionItems.items.size()).clear();
+        }
+    }
+
+    /**
+     * @return The number of transactions with buffered items.
+     */
+    public int getTransactionCount() {
+        return transactions.size();
+    }
+}
@@ -46,6 +46,10 @@ public class WebsocketAdapter extends Endpoint {
         // TODO We never expire idle websocket sessions, the assumption is that only authenticate clients can
         // open a session and if their SSO (managed by Keycloak) expires, they are logged out
         session.setMaxIdleTimeout(0);
+        session.getUserProperties().put(
+            WebsocketConstants.SESSION_SENDER,
+            consumer.getEndpoint().getComponent().createSessionSender(session)
+        );
         consumer.getEndpoint().getWebsocketSessions().add(session);
         this.consumer.sendMessage(session.getId(), getHandshakeAuth(session), null, exchange -> {
             exchange.getIn().setHeader(WebsocketConstants.SESSION, session);
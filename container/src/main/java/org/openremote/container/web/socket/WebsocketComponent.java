@@ -23,6 +23,7 @@ import org.apache.camel.Endpoint;
 import org.apache.camel.impl.DefaultComponent;
 import org.apache.camel.util.ServiceHelper;
 
+import javax.websocket.Session;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -35,6 +36,8 @@ public abstract class WebsocketComponent extends DefaultComponent {
 
     final protected Map<String, WebsocketConsumer> consumers = new HashMap<>();
     final protected WebsocketSessions websocketSessions;
+    protected int sessionMaxPendingMessages = 1000;
+    protected long sessionMaxLagMillis = 30000;
 
     public WebsocketComponent() {
         this.websocketSessions = new MemoryWebsocketSessions();
@@ -64,6 +67,26 @@ public abstract class WebsocketComponent extends DefaultComponent {
         return websocketSessions;
     }
 
+    public int getSessionMaxPendingMessages() {
+        return sessionMaxPendingMessages;
+    }
+
+    public void setSessionMaxPendingMessages(int sessionMaxPendingMessages) {
+        this.sessionMaxPendingMessages = sessionMaxPendingMessages;
+    }
+
+    public long getSessionMaxLagMillis() {
+        return sessionMaxLagMillis;
+    }
+
+    public void setSessionMaxLagMillis(long sessionMaxLagMillis) {
+        this.sessionMaxLagMillis = sessionMaxLagMillis;
+    }
+
+    public WebsocketSessionSender createSessionSender(Session session) {
+        return new WebsocketSessionSender(session, sessionMaxPendingMessages, sessionMaxLagMillis);
+    }
+
     public Map<String, WebsocketConsumer> getConsumers() {
         return consumers;
     }
@@ -28,5 +28,7 @@ public interface WebsocketConstants {
     String SESSION_OPEN = "websocket.sessionOpen";
     String SESSION_CLOSE = "websocket.sessionClose";
     String SESSION_CLOSE_ERROR = "websocket.sessionCloseError";
+    String SESSION_SENDER = "websocket.sessionSender";
+    String COALESCE_KEY = "websocket.coalesceKey";
 
 }
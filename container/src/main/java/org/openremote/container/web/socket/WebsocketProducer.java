@@ -25,7 +25,6 @@ import org.apache.camel.Message;
 import org.apache.camel.impl.DefaultProducer;
 
 import javax.websocket.Session;
-import java.io.IOException;
 import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -56,7 +55,7 @@ public class WebsocketProducer extends DefaultProducer {
             String sessionKey = in.getHeader(WebsocketConstants.SESSION_KEY, String.class);
             if (sessionKey != null) {
                 Session websocket = getEndpoint().getComponent().getWebsocketSessions().get(sessionKey);
-                sendMessage(websocket, message);
+                sendMessage(websocket, message, in.getHeader(WebsocketConstants.COALESCE_KEY));
             } else {
                 throw new IllegalArgumentException("Failed to send message to Websocket session; session key not set.");
             }
@@ -80,7 +79,7 @@ public class WebsocketProducer extends DefaultProducer {
         Exception exception = null;
         for (Session session : sessions) {
             try {
-                sendMessage(session, message);
+                sendMessage(session, message, null);
             } catch (Exception e) {
                 if (exception == null) {
                     exception = new CamelExchangeException("Failed to deliver message to one or more recipients.", exchange, e);
@@ -92,12 +91,19 @@ public class WebsocketProducer extends DefaultProducer {
         }
     }
 
-    protected void sendMessage(Session session, Object message) throws IOException {
+    /**
+     * Queues the message on the {@link WebsocketSessionSender} of the session, the message is sent asynchronously.
+     */
+    protected void sendMessage(Session session, Object message, Object coalesceKey) {
         if (session != null && session.isOpen()) {
             if (message instanceof String) {
-                if (LOG.isLoggable(Level.FINE))
-                    LOG.fine("Sending to session " + session.getId() + ": " + message);
-                session.getBasicRemote().sendText((String) message);
+                WebsocketSessionSender sender =
+                    (WebsocketSessionSender) session.getUserProperties().get(WebsocketConstants.SESSION_SENDER);
+                if (sender == null) {
+                    LOG.fine("Session " + session.getId() + " not ready, dropping message: " + message);
+                    return;
+                }
+                sender.send((String) message, coalesceKey);
             }
         }
     }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.container.web.socket;
+
+import javax.websocket.CloseReason;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends text messages to a websocket session asynchronously, one message in flight at a time, so a slow client
+ * does not block the thread producing messages for all sessions.
+ * <p>
+ * Messages waiting for the message in flight are queued in order. A message with a coalescing key replaces the
+ * queued message with the same key, so a lagging client only receives the latest state. The session is closed
+ * if more than the maximum number of messages are waiting, or if the message in flight has not been sent
+ * within the maximum lag time, which is also the send timeout of the session. A session is closed when a send
+ * fails.
+ */
+public class WebsocketSessionSender {
+
+    private static final Logger LOG = Logger.getLogger(WebsocketSessionSender.class.getName());
+
+    final protected Session session;
+    final protected int maxPendingMessages;
+    final protected long maxLagMillis;
+    final protected Map<Object, String> pending = new LinkedHashMap<>();
+    protected boolean sending;
+    protected long sendStartedMillis;
+    protected boolean closed;
+
+    public WebsocketSessionSender(Session session, int maxPendingMessages, long maxLagMillis) {
+        this.session = session;
+        this.maxPendingMessages = maxPendingMessages;
+        this.maxLagMillis = maxLagMillis;
+        // A send which hangs fails after the lag time, even if no further message is sent to check the lag
+        session.getAsyncRemote().setSendTimeout(maxLagMillis);
+    }
+
+    /**
+     * @param coalesceKey Optional, a queued message with the same key is replaced.
+     */
+    public void send(String message, Object coalesceKey) {
+        synchronized (this) {
+            if (closed)
+                return;
+            if (sending) {
+                long lagMillis = System.currentTimeMillis() - sendStartedMillis;
+                if (lagMillis > maxLagMillis) {
+                    closeLagging("message in flight for " + lagMillis + "ms");
+                    return;
+                }
+                Object key = coalesceKey != null ? coalesceKey : new Object();
+                if (pending.size() >= maxPendingMessages && !pending.containsKey(key)) {
+                    closeLagging(pending.size() + " messages pending");
+                    return;
+                }
+                pending.put(key, message);
+                return;
+            }
+            sending = true;
+            sendStartedMillis = System.currentTimeMillis();
+        }
+        sendAsync(message);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    protected void sendAsync(String message) {
+        if (LOG.isLoggable(Level.FINE))
+            LOG.fine("Sending to session " + session.getId() + ": " + message);
+        try {
+            session.getAsyncRemote().sendText(message, this::onResult);
+        } catch (RuntimeException ex) {
+            onResult(new SendResult(ex));
+        }
+    }
+
+    protected void onResult(SendResult result) {
+        if (!result.isOK()) {
+            LOG.log(Level.FINE, "Sending to session " + session.getId() + " failed, closing session", result.getException());
+            synchronized (this) {
+                sending = false;
+                if (!closed) {
+                    close(new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Sending failed"));
+                }
+            }
+            return;
+        }
+        String next;
+        synchronized (this) {
+            Iterator<String> it = pending.values().iterator();
+            if (closed || !it.hasNext()) {
+                sending = false;
+                return;
+            }
+            next = it.next();
+            it.remove();
+            sendStartedMillis = System.currentTimeMillis();
+        }
+        sendAsync(next);
+    }
+
+    /**
+     * Must be called while holding the lock of this sender.
+     */
+    protected void closeLagging(String reason) {
+        LOG.warning("Closing lagging websocket session " + session.getId() + ", " + reason);
+        close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Session is lagging"));
+    }
+
+    /**
+     * Must be called while holding the lock of this sender, discards pending messages.
+     */
+    protected void close(CloseReason closeReason) {
+        closed = true;
+        pending.clear();
+        try {
+            session.close(closeReason);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Error closing websocket session " + session.getId(), ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "session=" + session.getId() +
+            ", pending=" + getPendingCount() +
+            '}';
+    }
+}
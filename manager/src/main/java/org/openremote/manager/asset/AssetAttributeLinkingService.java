@@ -21,6 +21,7 @@ package org.openremote.manager.asset;
 
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
+import org.openremote.container.persistence.AfterCommitBuffer;
 import org.openremote.manager.asset.AssetProcessingException.Reason;
 import org.openremote.model.asset.AssetAttribute;
 import org.openremote.model.asset.AssetMeta;
@@ -88,6 +89,9 @@ public class AssetAttributeLinkingService implements ContainerService, AssetUpda
     private static final Logger LOG = Logger.getLogger(AssetAttributeLinkingService.class.getName());
     protected AssetProcessingService assetProcessingService;
     protected AssetStorageService assetStorageService;
+    // Events for linked attributes, sent when the transaction of the update commits
+    final protected AfterCommitBuffer<AttributeEvent> uncommittedEvents =
+        new AfterCommitBuffer<>(attributeEvents -> attributeEvents.forEach(this::sendAttributeEvent));
 
     @Override
     public void init(Container container) throws Exception {
@@ -120,6 +124,21 @@ public class AssetAttributeLinkingService implements ContainerService, AssetUpda
         return false;
     }
 
+    /**
+     * @return The mark of the events for linked attributes in the transaction, pass it to {@link #rollbackToMark}
+     * when rolling back to a savepoint.
+     */
+    public int getTransactionMark(EntityManager em) {
+        return uncommittedEvents.getMark(em);
+    }
+
+    /**
+     * Forget the events for linked attributes in the transaction after the mark.
+     */
+    public void rollbackToMark(EntityManager em, int mark) {
+        uncommittedEvents.rollbackToMark(em, mark);
+    }
+
     protected void sendAttributeEvent(AttributeEvent attributeEvent) {
         LOG.fine("Sending attribute event for linked attribute: " + attributeEvent);
         assetProcessingService.sendAttributeEvent(attributeEvent, ATTRIBUTE_LINKING_SERVICE);
@@ -148,7 +167,7 @@ public class AssetAttributeLinkingService implements ContainerService, AssetUpda
             return;
         }
 
-        sendAttributeEvent(new AttributeEvent(attributeLink.get().getAttributeRef(), sendConvertedValue.value));
+        uncommittedEvents.add(em, new AttributeEvent(attributeLink.get().getAttributeRef(), sendConvertedValue.value));
     }
 
     protected static Pair<Boolean, Value> convertValueForLinkedAttribute(EntityManager em,
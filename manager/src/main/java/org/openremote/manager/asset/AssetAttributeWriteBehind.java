@@ -0,0 +1,322 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.AfterCommitBuffer;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.asset.AssetAttribute;
+import org.openremote.model.value.Value;
+import org.postgresql.util.PGobject;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces attribute value writes in memory and stores them in batches.
+ * <p>
+ * Values written in a transaction are only queued when the transaction commits, see {@link #write}. Only the
+ * latest value and timestamp of each asset attribute is kept. A flush writes all pending attributes of an
+ * asset with a single JSONB merge on the asset row, and the updates of all assets are sent as one JDBC
+ * batch. Flushed values remain pending until the flush transaction commits, and are queued again if it rolls
+ * back. Pending values are visible to readers through {@link #applyPending}, so the committed state of an
+ * asset always appears up to date even before it has been flushed.
+ */
+public class AssetAttributeWriteBehind {
+
+    private static final Logger LOG = Logger.getLogger(AssetAttributeWriteBehind.class.getName());
+
+    /**
+     * Merges a JSON object of attribute name to partial attribute (value and timestamp) into the existing
+     * attributes of an asset, attributes that no longer exist are ignored.
+     */
+    public static final String MERGE_ATTRIBUTE_VALUES_SQL =
+        "update ASSET A set ATTRIBUTES = coalesce((" +
+            "select jsonb_object_agg(AX.KEY, case when U.VALUE is null then AX.VALUE else AX.VALUE || U.VALUE end)" +
+            " from jsonb_each(A.ATTRIBUTES) as AX left outer join jsonb_each(?) as U on U.KEY = AX.KEY" +
+            "), A.ATTRIBUTES) where A.ID = ?";
+
+    protected static class PendingValue {
+        final protected Value value;
+        final protected long timestamp;
+
+        public PendingValue(Value value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    protected static class UncommittedValue {
+        final protected String assetId;
+        final protected String attributeName;
+        final protected PendingValue pendingValue;
+
+        public UncommittedValue(String assetId, String attributeName, PendingValue pendingValue) {
+            this.assetId = assetId;
+            this.attributeName = attributeName;
+            this.pendingValue = pendingValue;
+        }
+    }
+
+    final protected PersistenceService persistenceService;
+    final protected int maxPending;
+    final protected Runnable flushRequest;
+    // Asset ID -> attribute name -> latest value, inner maps are only mutated inside compute() of the outer map
+    final protected Map<String, Map<String, PendingValue>> pending = new ConcurrentHashMap<>();
+    final protected AtomicInteger pendingCount = new AtomicInteger();
+    final protected AtomicBoolean flushRequested = new AtomicBoolean();
+    final protected AtomicLong coalescedCount = new AtomicLong();
+    final protected AtomicLong flushedCount = new AtomicLong();
+    final protected AtomicLong flushCount = new AtomicLong();
+    final protected AfterCommitBuffer<UncommittedValue> uncommitted = new AfterCommitBuffer<>(values -> {
+        for (UncommittedValue value : values) {
+            put(value.assetId, value.attributeName, value.pendingValue.value, value.pendingValue.timestamp);
+        }
+    });
+
+    /**
+     * @param maxPending   When this number of attribute values is pending, the <code>flushRequest</code> is called.
+     * @param flushRequest Should trigger an asynchronous {@link #flush}.
+     */
+    public AssetAttributeWriteBehind(PersistenceService persistenceService, int maxPending, Runnable flushRequest) {
+        this.persistenceService = persistenceService;
+        this.maxPending = maxPending;
+        this.flushRequest = flushRequest;
+    }
+
+    /**
+     * Queue the value when the transaction of the entity manager commits.
+     */
+    public void write(EntityManager em, String assetId, String attributeName, Value value, long timestamp) {
+        uncommitted.add(em, new UncommittedValue(assetId, attributeName, new PendingValue(value, timestamp)));
+    }
+
+    /**
+     * @return The number of values written in the transaction of the entity manager, pass it to
+     * {@link #rollbackToMark} when rolling back to a savepoint.
+     */
+    public int getTransactionMark(EntityManager em) {
+        return uncommitted.getMark(em);
+    }
+
+    /**
+     * Forget the values written in the transaction of the entity manager after the mark.
+     */
+    public void rollbackToMark(EntityManager em, int mark) {
+        uncommitted.rollbackToMark(em, mark);
+    }
+
+    /**
+     * Queue a committed value.
+     */
+    public void put(String assetId, String attributeName, Value value, long timestamp) {
+        pending.compute(assetId, (id, attributes) -> {
+            if (attributes == null) {
+                attributes = new ConcurrentHashMap<>();
+            }
+            PendingValue previous = attributes.get(attributeName);
+            if (previous != null && previous.timestamp > timestamp) {
+                // An out-of-sequence write, keep the newer value
+                coalescedCount.incrementAndGet();
+                return attributes;
+            }
+            if (attributes.put(attributeName, new PendingValue(value, timestamp)) == null) {
+                pendingCount.incrementAndGet();
+            } else {
+                coalescedCount.incrementAndGet();
+            }
+            return attributes;
+        });
+        if (pendingCount.get() >= maxPending && flushRequested.compareAndSet(false, true)) {
+            flushRequest.run();
+        }
+    }
+
+    /**
+     * Replace the values of attributes loaded from the database with pending values.
+     */
+    public void applyPending(ServerAsset asset) {
+        if (asset == null || asset.getId() == null || asset.getAttributes() == null)
+            return;
+        Map<String, PendingValue> attributes = pending.get(asset.getId());
+        if (attributes == null)
+            return;
+        attributes.forEach((attributeName, pendingValue) ->
+            asset.getAttribute(attributeName).ifPresent(attribute -> {
+                attribute.setValue(pendingValue.value, pendingValue.timestamp);
+                asset.replaceAttribute(attribute);
+            })
+        );
+    }
+
+    /**
+     * Write pending values of all assets in a new transaction.
+     */
+    public void flush() {
+        flushRequested.set(false);
+        if (pending.isEmpty())
+            return;
+        try {
+            persistenceService.doTransaction(em -> flush(em, new ArrayList<>(pending.keySet())));
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Flushing pending attribute values failed", ex);
+        }
+    }
+
+    /**
+     * Write pending values of a single asset in the given transaction, call this before the asset row is
+     * modified by other means.
+     */
+    public void flush(EntityManager em, String assetId) {
+        if (assetId == null || !pending.containsKey(assetId))
+            return;
+        List<String> assetIds = new ArrayList<>();
+        assetIds.add(assetId);
+        flush(em, assetIds);
+    }
+
+    /**
+     * Drop pending values of an asset, call this when the asset is deleted.
+     */
+    public void discard(String assetId) {
+        Map<String, PendingValue> attributes = pending.remove(assetId);
+        if (attributes != null) {
+            pendingCount.addAndGet(-attributes.size());
+        }
+    }
+
+    protected void flush(EntityManager em, List<String> assetIds) {
+        // Values stay pending and visible to readers until the update is committed
+        Map<String, Map<String, PendingValue>> drained = new HashMap<>();
+        for (String assetId : assetIds) {
+            Map<String, PendingValue> attributes = pending.get(assetId);
+            if (attributes != null && !attributes.isEmpty()) {
+                drained.put(assetId, new HashMap<>(attributes));
+            }
+        }
+        if (drained.isEmpty())
+            return;
+
+        long startTime = System.currentTimeMillis();
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(MERGE_ATTRIBUTE_VALUES_SQL)) {
+                for (Map.Entry<String, Map<String, PendingValue>> assetEntry : drained.entrySet()) {
+                    PGobject pgJsonValue = new PGobject();
+                    pgJsonValue.setType("jsonb");
+                    pgJsonValue.setValue(toPartialAttributesJson(assetEntry.getValue()));
+                    statement.setObject(1, pgJsonValue);
+                    statement.setString(2, assetEntry.getKey());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+
+        // If the transaction rolls back, the values are still pending and flushed again later
+        em.unwrap(Session.class).getTransaction().registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    removeFlushed(drained);
+                }
+            }
+        });
+
+        int attributeCount = drained.values().stream().mapToInt(Map::size).sum();
+        flushedCount.addAndGet(attributeCount);
+        flushCount.incrementAndGet();
+        LOG.fine("Flushed " + attributeCount + " pending attribute values of " + drained.size()
+            + " assets in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * Remove the flushed values which have not been superseded while the flush was committed.
+     */
+    protected void removeFlushed(Map<String, Map<String, PendingValue>> flushed) {
+        flushed.forEach((assetId, flushedAttributes) -> pending.computeIfPresent(assetId, (id, attributes) -> {
+            flushedAttributes.forEach((attributeName, pendingValue) -> {
+                if (attributes.remove(attributeName, pendingValue)) {
+                    pendingCount.decrementAndGet();
+                }
+            });
+            return attributes.isEmpty() ? null : attributes;
+        }));
+    }
+
+    /**
+     * Attribute names have been validated with {@link AssetAttribute#ATTRIBUTE_NAME_VALIDATOR} and don't
+     * need escaping.
+     */
+    protected static String toPartialAttributesJson(Map<String, PendingValue> attributes) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, PendingValue> entry : attributes.entrySet()) {
+            if (sb.length() > 1)
+                sb.append(",");
+            sb.append("\"").append(entry.getKey()).append("\":{");
+            // Careful, do not use Java null (as returned by value.toJson()) here
+            sb.append("\"value\":").append(entry.getValue().value == null ? "null" : entry.getValue().value.toJson());
+            sb.append(",\"").append(AssetAttribute.VALUE_TIMESTAMP_FIELD_NAME).append("\":").append(entry.getValue().timestamp);
+            sb.append("}");
+        }
+        return sb.append("}").toString();
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "pending=" + getPendingCount() +
+            ", coalesced=" + getCoalescedCount() +
+            ", flushed=" + getFlushedCount() +
+            ", flushes=" + getFlushCount() +
+            '}';
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import org.openremote.container.concurrent.ContainerExecutor;
+import org.openremote.container.concurrent.ContainerThreadFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A fixed number of ordered processing lanes, each backed by a single thread and a bounded queue.
+ * <p>
+ * Work is assigned to a lane by hashing a partition key (the asset identifier), so all work for
+ * the same key is executed in submission order while work for different keys can run in parallel
+ * on other lanes. When a lane's queue is full, the submitting thread blocks until there is space,
+ * this applies back pressure to the producer instead of discarding or reordering work. Work submitted
+ * after shutdown is rejected, its future is cancelled.
+ */
+public class AssetProcessingLanes {
+
+    private static final Logger LOG = Logger.getLogger(AssetProcessingLanes.class.getName());
+
+    // Seconds to wait for queued work to complete on shutdown
+    public static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    protected static final RejectedExecutionHandler BLOCKING_REJECTED_EXECUTION_HANDLER = (runnable, executor) -> {
+        try {
+            // Check for shutdown while waiting, the lane might never take queued work again
+            while (!executor.isShutdown()) {
+                if (executor.getQueue().offer(runnable, 1, TimeUnit.SECONDS)) {
+                    if (!executor.isShutdown() || !executor.getQueue().remove(runnable))
+                        return;
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            reject(runnable, "Interrupted while waiting for space in processing lane");
+        }
+        reject(runnable, "Processing lane is shut down");
+    };
+
+    protected static void reject(Runnable runnable, String message) {
+        // Waiting callers of the future must not block forever
+        if (runnable instanceof Future) {
+            ((Future<?>) runnable).cancel(false);
+        }
+        throw new RejectedExecutionException(message);
+    }
+
+    final protected ContainerExecutor[] lanes;
+    final protected AtomicLong[] completed;
+    final protected int queueCapacity;
+
+    public AssetProcessingLanes(String name, int laneCount, int queueCapacity) {
+        if (laneCount < 1)
+            throw new IllegalArgumentException("At least one processing lane is required");
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("Processing lane queue capacity must be positive");
+        this.queueCapacity = queueCapacity;
+        this.lanes = new ContainerExecutor[laneCount];
+        this.completed = new AtomicLong[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            AtomicLong laneCompleted = new AtomicLong();
+            completed[i] = laneCompleted;
+            lanes[i] = new ContainerExecutor(
+                new ContainerThreadFactory(name + " lane " + i),
+                BLOCKING_REJECTED_EXECUTION_HANDLER,
+                1,
+                1,
+                60L,
+                new ArrayBlockingQueue<>(queueCapacity)
+            ) {
+                @Override
+                protected void afterExecute(Runnable runnable, Throwable throwable) {
+                    super.afterExecute(runnable, throwable);
+                    laneCompleted.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    /**
+     * Execute the task on the lane owning the given partition key, tasks with the same key are
+     * executed in the order they have been submitted.
+     */
+    public <T> Future<T> submit(String partitionKey, Callable<T> task) {
+        return lanes[getLane(partitionKey)].submit(task);
+    }
+
+    public int getLane(String partitionKey) {
+        if (partitionKey == null)
+            return 0;
+        // Spread the hash bits, String hashes of similar identifiers are otherwise poorly distributed
+        int hash = partitionKey.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % lanes.length;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return The number of tasks waiting in the queue of each lane.
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].getQueue().size();
+        }
+        return depths;
+    }
+
+    /**
+     * @return The number of tasks completed by each lane.
+     */
+    public long[] getCompletedCounts() {
+        long[] counts = new long[completed.length];
+        for (int i = 0; i < completed.length; i++) {
+            counts[i] = completed[i].get();
+        }
+        return counts;
+    }
+
+    /**
+     * Stops accepting work and waits for the queued work of all lanes to complete, work still queued
+     * after {@link #SHUTDOWN_TIMEOUT_SECONDS} is discarded.
+     */
+    public void shutdown() {
+        for (ContainerExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SECONDS);
+        for (ContainerExecutor lane : lanes) {
+            try {
+                if (!lane.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS)) {
+                    LOG.warning("Processing lane did not complete queued work in time, discarding: " + lane.getQueue().size());
+                    lane.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                lane.shutdownNow();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int[] depths = getQueueDepths();
+        for (int i = 0; i < depths.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(depths[i]);
+        }
+        return getClass().getSimpleName() + "{" +
+            "lanes=" + lanes.length +
+            ", queueCapacity=" + queueCapacity +
+            ", queueDepths=[" + sb + "]" +
+            '}';
+    }
+}
@@ -22,6 +22,7 @@ package org.openremote.manager.asset;
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
+import org.hibernate.Session;
 import org.openremote.agent.protocol.Protocol;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
@@ -44,20 +45,28 @@ import org.openremote.model.asset.AssetType;
 import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.attribute.AttributeEvent.Source;
 import org.openremote.model.attribute.AttributeExecuteStatus;
+import org.openremote.model.attribute.AttributeWriteFailure;
+import org.openremote.model.attribute.AttributeWriteResult;
+import org.openremote.model.event.shared.SharedEvent;
 import org.openremote.model.security.ClientRole;
 import org.openremote.model.value.Value;
 import org.openremote.model.value.Values;
 
 import javax.persistence.EntityManager;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Optional;
+import javax.persistence.PersistenceException;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import static org.openremote.container.concurrent.GlobalLock.withLock;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.manager.asset.AssetProcessingException.Reason.*;
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_TOPIC;
 import static org.openremote.model.asset.agent.AgentLink.getAgentLink;
@@ -69,7 +78,7 @@ import static org.openremote.model.attribute.AttributeEvent.Source.*;
  * <dl>
  * <dt>{@link Source#CLIENT}</dt>
  * <dd><p>Client events published through event bus or sent by web service. These exchanges must contain an {@link AuthContext}
- * header named {@link Constants#AUTH_CONTEXT}.</dd>
+ * header named {@link Constants#AUTH_CONTEXT}. Batches of client events are processed with {@link #processAttributeEvents}.</dd>
  * <dt>{@link Source#INTERNAL}</dt>
  * <dd><p>Events sent to {@link #ASSET_QUEUE} or through {@link #sendAttributeEvent} convenience method by processors.</dd>
  * <dt>{@link Source#SENSOR}</dt>
@@ -83,6 +92,11 @@ import static org.openremote.model.attribute.AttributeEvent.Source.*;
  * at any point then an {@link AssetProcessingException} will be logged as a warning with an
  * {@link AssetProcessingException.Reason}.
  * <p>
+ * Events are consumed from the {@link #ASSET_QUEUE} and assigned to one of {@link #ASSET_PROCESSING_LANES} ordered
+ * {@link AssetProcessingLanes} by asset identifier. Events of the same asset are processed in the order they have
+ * been received, events of different assets are processed concurrently. No global lock is held while processing,
+ * {@link AssetUpdateProcessor}s synchronize access to their own shared state.
+ * <p>
  * Once successfully validated a chain of {@link AssetUpdateProcessor}s is handling the update message:
  * <ul>
  * <li>{@link AgentService}</li>
@@ -109,7 +123,8 @@ import static org.openremote.model.attribute.AttributeEvent.Source.*;
  * <h2>Rules Service processing logic</h2>
  * <p>
  * Checks if attribute is {@link AssetAttribute#isRuleState} and/or {@link AssetAttribute#isRuleEvent}, and if
- * so the message is passed through the rule engines that are in scope for the asset.
+ * so the message is passed through the rule engines that are in scope for the asset, once the update has been
+ * committed.
  * <p>
  * <h2>Asset Storage Service processing logic</h2>
  * <p>
@@ -126,7 +141,21 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
 
     // TODO: Some of these options should be configurable depending on expected load etc.
     // Message topic for communicating individual asset attribute changes
-    public static final String ASSET_QUEUE = "seda://AssetQueue?waitForTaskToComplete=IfReplyExpected&timeout=10000&purgeWhenStopping=true&discardIfNoConsumers=false&size=25000";
+    public static final int ASSET_QUEUE_TIMEOUT_MILLIS = 10000;
+    public static final String ASSET_QUEUE = "seda://AssetQueue?waitForTaskToComplete=IfReplyExpected&timeout=" + ASSET_QUEUE_TIMEOUT_MILLIS + "&purgeWhenStopping=true&discardIfNoConsumers=false&size=25000";
+
+    /**
+     * Number of ordered lanes processing {@link AttributeEvent}s concurrently, events are assigned
+     * to a lane by asset identifier so updates of the same asset are always processed in order.
+     */
+    public static final String ASSET_PROCESSING_LANES = "ASSET_PROCESSING_LANES";
+    public static final int ASSET_PROCESSING_LANES_DEFAULT = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+
+    /**
+     * Maximum number of events waiting in each lane, the {@link #ASSET_QUEUE} consumer blocks when a lane is full.
+     */
+    public static final String ASSET_PROCESSING_LANE_QUEUE_SIZE = "ASSET_PROCESSING_LANE_QUEUE_SIZE";
+    public static final int ASSET_PROCESSING_LANE_QUEUE_SIZE_DEFAULT = 1000;
 
     protected TimerService timerService;
     protected ManagerIdentityService identityService;
@@ -138,8 +167,9 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
     protected AssetAttributeLinkingService assetAttributeLinkingService;
     protected MessageBrokerService messageBrokerService;
     protected ClientEventService clientEventService;
+    protected AssetProcessingLanes processingLanes;
     // Used in testing to detect if initial/startup processing has completed
-    protected long lastProcessedEventTimestamp = System.currentTimeMillis();
+    protected volatile long lastProcessedEventTimestamp = System.currentTimeMillis();
 
     final protected List<AssetUpdateProcessor> processors = new ArrayList<>();
 
@@ -156,6 +186,12 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         messageBrokerService = container.getService(MessageBrokerService.class);
         clientEventService = container.getService(ClientEventService.class);
 
+        processingLanes = new AssetProcessingLanes(
+            "Asset processing",
+            getInteger(container.getConfig(), ASSET_PROCESSING_LANES, ASSET_PROCESSING_LANES_DEFAULT),
+            getInteger(container.getConfig(), ASSET_PROCESSING_LANE_QUEUE_SIZE, ASSET_PROCESSING_LANE_QUEUE_SIZE_DEFAULT)
+        );
+
         clientEventService.addSubscriptionAuthorizer((auth, subscription) -> {
             if (!subscription.isEventType(AttributeEvent.class)) {
                 return false;
@@ -213,7 +249,9 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
 
     @Override
     public void stop(Container container) throws Exception {
-
+        if (processingLanes != null) {
+            processingLanes.shutdown();
+        }
     }
 
     @Override
@@ -226,6 +264,24 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
             .setHeader(HEADER_SOURCE, () -> CLIENT)
             .to(ASSET_QUEUE);
 
+        // A client wants to write several attribute states through event bus, reply with the results
+        from(CLIENT_EVENT_TOPIC)
+            .routeId("FromClientBatchUpdates")
+            .filter(body().isInstanceOf(SharedEvent[].class))
+            .process(exchange -> {
+                List<AttributeEvent> events = Arrays.stream(exchange.getIn().getBody(SharedEvent[].class))
+                    .filter(event -> event instanceof AttributeEvent)
+                    .map(event -> (AttributeEvent) event)
+                    .collect(Collectors.toList());
+                if (events.isEmpty())
+                    return;
+                String sessionKey = ClientEventService.getSessionKey(exchange);
+                AuthContext authContext = exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class);
+                processAttributeEvents(events, CLIENT, authContext).thenAccept(
+                    results -> clientEventService.sendToSession(sessionKey, results)
+                );
+            });
+
         // Process attribute events
         /* TODO This message consumer should be transactionally consistent with the database, this is currently not the case
 
@@ -245,146 +301,325 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         from(ASSET_QUEUE)
             .routeId("AssetQueueProcessor")
             .filter(body().isInstanceOf(AttributeEvent.class))
-            .doTry()
-            // Lock the global context, we can only process attribute events when the
-            // context isn't locked. Agent- and RulesService lock the context while protocols
-            // or rulesets are modified.
-            .process(exchange -> withLock(getClass().getSimpleName() + "::processFromAssetQueue", () -> {
-
-                AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
-                LOG.finest("Processing: " + event);
-                if (event.getEntityId() == null || event.getEntityId().isEmpty())
-                    return;
-                if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
-                    return;
-                Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
-                if (source == null) {
-                    throw new AssetProcessingException(MISSING_SOURCE);
+            .process(exchange -> {
+                // Hand the exchange over to the ordered lane of the asset, events of different
+                // assets are processed concurrently. Only wait for completion if the sender
+                // expects a reply, otherwise continue consuming the queue.
+                boolean replyExpected = exchange.getPattern().isOutCapable();
+                Exchange laneExchange = replyExpected ? exchange : exchange.copy();
+                AttributeEvent event = laneExchange.getIn().getBody(AttributeEvent.class);
+                Future<Void> result = processingLanes.submit(event.getEntityId(), () -> {
+                    processFromAssetQueue(laneExchange);
+                    return null;
+                });
+                if (replyExpected) {
+                    // Same as the timeout of the queue, the lane might be shut down or stuck
+                    result.get(ASSET_QUEUE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
                 }
+            });
+    }
 
-                // Process the asset update in a database transaction, this ensures that processors
-                // will see consistent database state and we only commit if no processor failed. This
-                // still won't make this procedure consistent with the message queue from which we consume!
-                persistenceService.doTransaction(em -> {
-                    ServerAsset asset = assetStorageService.find(em, event.getEntityId(), true);
-                    if (asset == null)
-                        throw new AssetProcessingException(ASSET_NOT_FOUND);
-
-                    AssetAttribute oldAttribute = asset.getAttribute(event.getAttributeName()).orElse(null);
-                    if (oldAttribute == null)
-                        throw new AssetProcessingException(ATTRIBUTE_NOT_FOUND);
+    /**
+     * Processes an exchange from the {@link #ASSET_QUEUE} on the current processing lane thread, any
+     * exception is logged and, if the MEP is InOut, returned as the body of the exchange.
+     */
+    protected void processFromAssetQueue(Exchange exchange) throws Exception {
+        try {
+            processAttributeEvent(exchange);
+        } catch (Exception ex) {
+            // The transaction might have been rolled back after the attribute value was stored
+            if (!(ex instanceof AssetProcessingException)
+                || ((AssetProcessingException) ex).getReason() == STATE_STORAGE_FAILED) {
+                AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+                assetStorageService.invalidateCachedAsset(event.getEntityId());
+            }
+            exchange.setProperty(Exchange.EXCEPTION_CAUGHT, ex);
+            handleAssetProcessingException(LOG).process(exchange);
+        }
+    }
 
-                    // Agent attributes can't be updated with events
-                    if (asset.getWellKnownType() == AssetType.AGENT) {
-                        throw new AssetProcessingException(ILLEGAL_AGENT_UPDATE);
-                    }
+    protected void processAttributeEvent(Exchange exchange) throws AssetProcessingException {
+        AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+        LOG.finest("Processing: " + event);
+        if (event.getEntityId() == null || event.getEntityId().isEmpty())
+            return;
+        if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
+            return;
+        Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
+        if (source == null) {
+            throw new AssetProcessingException(MISSING_SOURCE);
+        }
+        ClientWriteAccess clientWriteAccess = source == CLIENT
+            ? new ClientWriteAccess(exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class))
+            : null;
+
+        // Process the asset update in a database transaction, this ensures that processors
+        // will see consistent database state and we only commit if no processor failed. This
+        // still won't make this procedure consistent with the message queue from which we consume!
+        persistenceService.doTransaction(em -> {
+            ServerAsset asset = assetStorageService.find(em, event.getEntityId(), true);
+            if (asset == null)
+                throw new AssetProcessingException(ASSET_NOT_FOUND);
+
+            AssetAttribute updatedAttribute = prepareAttributeUpdate(asset, event, source, clientWriteAccess);
+
+            // Push through all processors
+            boolean consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source);
+
+            // Publish a new event for clients if no processor consumed the update completely
+            if (!consumedCompletely) {
+                publishClientEvent(asset, updatedAttribute);
+            }
+        });
+    }
 
-                    // For executable attributes, non-sensor sources can set a writable attribute execute status
-                    if (oldAttribute.isExecutable() && source != SENSOR) {
-                        Optional<AttributeExecuteStatus> status = event.getValue()
-                            .flatMap(Values::getString)
-                            .flatMap(AttributeExecuteStatus::fromString);
+    /**
+     * Processes several {@link AttributeEvent}s, events are grouped by asset and each group is processed on the
+     * ordered lane of its asset in a single database transaction, with the asset loaded and the client authorized
+     * only once. An event that fails is rolled back to a savepoint, other events of the group are still applied.
+     * The rules facts, linked attribute events and datapoints of a failed event are discarded with it, they are
+     * only passed on when the transaction commits. An actuator write sent by the {@link AgentService} can't be
+     * undone, it completely consumes the event and nothing which could fail follows it.
+     * If the transaction of a group can't be committed, its events are processed again, each in its own
+     * transaction. Client events are published after the transaction of the group has been committed.
+     *
+     * @param authContext Required if the source is {@link Source#CLIENT}.
+     * @return The results in the order of the given events, completed when all groups have been processed.
+     */
+    public CompletableFuture<AttributeWriteResult[]> processAttributeEvents(List<AttributeEvent> events,
+                                                                            Source source,
+                                                                            AuthContext authContext) {
+        AttributeWriteResult[] results = new AttributeWriteResult[events.size()];
+        CompletableFuture<AttributeWriteResult[]> future = new CompletableFuture<>();
+
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < events.size(); i++) {
+            AttributeEvent event = events.get(i);
+            if (event == null || event.getEntityId() == null || event.getEntityId().isEmpty()) {
+                results[i] = new AttributeWriteResult(event != null ? event.getAttributeRef() : null, AttributeWriteFailure.ASSET_NOT_FOUND);
+            } else if (event.getAttributeName() == null || event.getAttributeName().isEmpty()) {
+                results[i] = new AttributeWriteResult(event.getAttributeRef(), AttributeWriteFailure.ATTRIBUTE_NOT_FOUND);
+            } else {
+                groups.computeIfAbsent(event.getEntityId(), assetId -> new ArrayList<>()).add(i);
+            }
+        }
+        if (groups.isEmpty()) {
+            future.complete(results);
+            return future;
+        }
 
-                        if (status.isPresent() && !status.get().isWrite()) {
-                            throw new AssetProcessingException(INVALID_ATTRIBUTE_EXECUTE_STATUS);
+        AtomicInteger remainingGroups = new AtomicInteger(groups.size());
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            Runnable completion = () -> {
+                if (remainingGroups.decrementAndGet() == 0) {
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i] == null) {
+                            results[i] = new AttributeWriteResult(events.get(i).getAttributeRef(), AttributeWriteFailure.PROCESSOR_FAILURE);
                         }
                     }
-
-                    switch (source) {
-                        case CLIENT:
-                            AuthContext authContext = exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class);
-                            if (authContext == null) {
-                                throw new AssetProcessingException(NO_AUTH_CONTEXT);
-                            }
-
-                            // Check realm, must be accessible
-                            if (!identityService.getIdentityProvider().isTenantActiveAndAccessible(authContext, asset)) {
-                                throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                            }
-
-                            // Check read-only
-                            if (oldAttribute.isReadOnly() && !authContext.isSuperUser()) {
-                                throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                            }
-
-                            // Regular user must have write assets role
-                            if (!authContext.hasResourceRoleOrIsSuperUser(ClientRole.WRITE_ASSETS.getValue(), Constants.KEYCLOAK_CLIENT_ID)) {
-                                throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                            }
-
-                            // Check restricted user
-                            if (identityService.getIdentityProvider().isRestrictedUser(authContext.getUserId())) {
-                                // Must be asset linked to user
-                                if (!assetStorageService.isUserAsset(authContext.getUserId(), event.getEntityId())) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-                                // Must be writable by restricted client
-                                if (!oldAttribute.isAccessRestrictedWrite()) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-                            }
-                            break;
-
-                        case SENSOR:
-                            Optional<AssetAttribute> protocolConfiguration =
-                                getAgentLink(oldAttribute).flatMap(agentService::getProtocolConfiguration);
-
-                            // Sensor event must be for an attribute linked to a protocol configuration
-                            if (!protocolConfiguration.isPresent()) {
-                                throw new AssetProcessingException(INVALID_AGENT_LINK);
-                            }
-                            break;
+                    future.complete(results);
+                }
+            };
+            try {
+                processingLanes.submit(group.getKey(), () -> {
+                    try {
+                        processAttributeEventGroup(group.getKey(), group.getValue(), events, results, source, authContext);
+                    } catch (Exception ex) {
+                        LOG.log(Level.WARNING, "Error processing " + group.getValue().size() + " events of asset: " + group.getKey(), ex);
+                    } finally {
+                        completion.run();
                     }
+                    return null;
+                });
+            } catch (RejectedExecutionException ex) {
+                LOG.warning("Processing lanes not accepting events of asset: " + group.getKey());
+                completion.run();
+            }
+        }
+        return future;
+    }
+
+    protected void processAttributeEventGroup(String assetId,
+                                              List<Integer> indexes,
+                                              List<AttributeEvent> events,
+                                              AttributeWriteResult[] results,
+                                              Source source,
+                                              AuthContext authContext) {
+        ClientWriteAccess clientWriteAccess = source == CLIENT ? new ClientWriteAccess(authContext) : null;
+        List<AssetAttribute> publishAttributes = new ArrayList<>();
+        ServerAsset[] processedAsset = new ServerAsset[1];
+
+        try {
+            persistenceService.doTransaction(em -> {
+                ServerAsset asset = assetStorageService.find(em, assetId, true);
+                processedAsset[0] = asset;
+                for (int index : indexes) {
+                    AttributeEvent event = events.get(index);
+                    LOG.finest("Processing: " + event);
+                    try {
+                        if (asset == null)
+                            throw new AssetProcessingException(ASSET_NOT_FOUND);
+
+                        AssetAttribute updatedAttribute = prepareAttributeUpdate(asset, event, source, clientWriteAccess);
+
+                        // Undo only the work of this event if a processor or the storage fails, the work of
+                        // previous events must be written before the savepoint
+                        em.flush();
+                        Savepoint savepoint = em.unwrap(Session.class).doReturningWork(Connection::setSavepoint);
+                        int writeBehindMark = assetStorageService.getTransactionMark(em);
+                        int rollupsMark = assetDatapointService.getTransactionMark(em);
+                        int datapointsMark = assetDatapointService.getDatapointStore().getTransactionMark(em);
+                        int rulesMark = rulesService.getTransactionMark(em);
+                        int linkingMark = assetAttributeLinkingService.getTransactionMark(em);
+                        boolean consumedCompletely;
+                        try {
+                            consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source);
+                            em.flush();
+                            em.unwrap(Session.class).doWork(connection -> connection.releaseSavepoint(savepoint));
+                        } catch (AssetProcessingException | PersistenceException ex) {
+                            em.unwrap(Session.class).doWork(connection -> connection.rollback(savepoint));
+                            // Entities persisted by this event must not be written with the next flush
+                            em.clear();
+                            assetStorageService.rollbackToMark(em, writeBehindMark);
+                            assetDatapointService.rollbackToMark(em, rollupsMark);
+                            assetDatapointService.getDatapointStore().rollbackToMark(em, datapointsMark);
+                            rulesService.rollbackToMark(em, rulesMark);
+                            assetAttributeLinkingService.rollbackToMark(em, linkingMark);
+                            assetStorageService.invalidateCachedAsset(assetId);
+                            if (ex instanceof AssetProcessingException)
+                                throw (AssetProcessingException) ex;
+                            // The transaction can't be committed after a persistence error, fail the group
+                            if (em.getTransaction().getRollbackOnly())
+                                throw ex;
+                            throw new AssetProcessingException(STATE_STORAGE_FAILED, ex.getMessage());
+                        }
+                        if (!consumedCompletely) {
+                            publishAttributes.add(updatedAttribute);
+                        }
 
-                    // Either use the timestamp of the event or set event time to processing time
-                    long processingTime = timerService.getCurrentTimeMillis();
-                    long eventTime = event.getTimestamp() > 0 ? event.getTimestamp() : processingTime;
-
-                    // Ensure timestamp of event is not in the future as that would essentially block access to
-                    // the attribute until after that time (maybe that is desirable behaviour)
-                    if (eventTime - processingTime > 0) {
-                        // TODO: Decide how to handle update events in the future - ignore or change timestamp
-                        throw new AssetProcessingException(
-                            EVENT_IN_FUTURE,
-                            "current time: " + new Date(processingTime) + "/" + processingTime
-                                + ", event time: " + new Date(eventTime) + "/" + eventTime
+                        // Following events of the same attribute see this update
+                        asset.replaceAttribute(updatedAttribute);
+                        results[index] = new AttributeWriteResult(event.getAttributeRef(), null);
+                    } catch (AssetProcessingException ex) {
+                        LOG.warning("Error processing from " + source + " - " + ex.getReasonPhrase() + ": " + event);
+                        results[index] = new AttributeWriteResult(
+                            event.getAttributeRef(), AttributeWriteFailure.valueOf(ex.getReason().name())
                         );
                     }
+                }
+            });
+        } catch (Exception ex) {
+            // The transaction was rolled back, none of the events of the group have been stored
+            assetStorageService.invalidateCachedAsset(assetId);
+            if (indexes.size() > 1) {
+                LOG.log(Level.INFO, "Error committing " + indexes.size() + " events of asset, processing each event on its own: " + assetId, ex);
+                for (int index : indexes) {
+                    processAttributeEventGroup(assetId, Collections.singletonList(index), events, results, source, authContext);
+                }
+                return;
+            }
+            LOG.log(Level.WARNING, "Error committing " + indexes.size() + " events of asset: " + assetId, ex);
+            for (int index : indexes) {
+                results[index] = new AttributeWriteResult(
+                    events.get(index).getAttributeRef(), AttributeWriteFailure.STATE_STORAGE_FAILED
+                );
+            }
+            return;
+        }
 
-                    // Check the last update timestamp of the attribute, ignoring any event that is older than last update
-                    // TODO This means we drop out-of-sequence events but accept events with the same source timestamp
-                    // TODO Several attribute events can occur in the same millisecond, then order of application is undefined
-                    oldAttribute.getValueTimestamp().filter(t -> t >= 0 && eventTime < t).ifPresent(
-                        lastStateTime -> {
-                            throw new AssetProcessingException(
-                                EVENT_OUTDATED,
-                                "last asset state time: " + new Date(lastStateTime) + "/" + lastStateTime
-                                    + ", event time: " + new Date(eventTime) + "/" + eventTime);
-                        }
-                    );
+        for (AssetAttribute attribute : publishAttributes) {
+            publishClientEvent(processedAsset[0], attribute);
+        }
+    }
 
-                    // Create a copy of the attribute and set the new value and timestamp
-                    AssetAttribute updatedAttribute = oldAttribute.deepCopy();
-                    updatedAttribute.setValue(event.getValue().orElse(null), eventTime);
+    /**
+     * Validates the event against the current state of the asset and, for {@link Source#CLIENT}, authorizes the
+     * write.
+     *
+     * @return A copy of the attribute with the new value and timestamp of the event.
+     */
+    protected AssetAttribute prepareAttributeUpdate(ServerAsset asset,
+                                                    AttributeEvent event,
+                                                    Source source,
+                                                    ClientWriteAccess clientWriteAccess) throws AssetProcessingException {
+        AssetAttribute oldAttribute = asset.getAttribute(event.getAttributeName()).orElse(null);
+        if (oldAttribute == null)
+            throw new AssetProcessingException(ATTRIBUTE_NOT_FOUND);
+
+        // Agent attributes can't be updated with events
+        if (asset.getWellKnownType() == AssetType.AGENT) {
+            throw new AssetProcessingException(ILLEGAL_AGENT_UPDATE);
+        }
 
-                    // Validate constraints of attribute
-                    List<ValidationFailure> validationFailures = updatedAttribute.getValidationFailures();
-                    if (!validationFailures.isEmpty()) {
-                        throw new AssetProcessingException(ATTRIBUTE_VALIDATION_FAILURE, validationFailures.toString());
-                    }
+        // For executable attributes, non-sensor sources can set a writable attribute execute status
+        if (oldAttribute.isExecutable() && source != SENSOR) {
+            Optional<AttributeExecuteStatus> status = event.getValue()
+                .flatMap(Values::getString)
+                .flatMap(AttributeExecuteStatus::fromString);
 
-                    // Push through all processors
-                    boolean consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source);
+            if (status.isPresent() && !status.get().isWrite()) {
+                throw new AssetProcessingException(INVALID_ATTRIBUTE_EXECUTE_STATUS);
+            }
+        }
 
-                    // Publish a new event for clients if no processor consumed the update completely
-                    if (!consumedCompletely) {
-                        publishClientEvent(asset, updatedAttribute);
-                    }
-                });
-            }))
-            .endDoTry()
-            .doCatch(AssetProcessingException.class)
-            .process(handleAssetProcessingException(LOG));
+        switch (source) {
+            case CLIENT:
+                if (clientWriteAccess == null || clientWriteAccess.authContext == null) {
+                    throw new AssetProcessingException(NO_AUTH_CONTEXT);
+                }
+                if (!clientWriteAccess.isWritable(asset, oldAttribute)) {
+                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                }
+                break;
+
+            case SENSOR:
+                Optional<AssetAttribute> protocolConfiguration =
+                    getAgentLink(oldAttribute).flatMap(agentService::getProtocolConfiguration);
+
+                // Sensor event must be for an attribute linked to a protocol configuration
+                if (!protocolConfiguration.isPresent()) {
+                    throw new AssetProcessingException(INVALID_AGENT_LINK);
+                }
+                break;
+        }
+
+        // Either use the timestamp of the event or set event time to processing time
+        long processingTime = timerService.getCurrentTimeMillis();
+        long eventTime = event.getTimestamp() > 0 ? event.getTimestamp() : processingTime;
+
+        // Ensure timestamp of event is not in the future as that would essentially block access to
+        // the attribute until after that time (maybe that is desirable behaviour)
+        if (eventTime - processingTime > 0) {
+            // TODO: Decide how to handle update events in the future - ignore or change timestamp
+            throw new AssetProcessingException(
+                EVENT_IN_FUTURE,
+                "current time: " + new Date(processingTime) + "/" + processingTime
+                    + ", event time: " + new Date(eventTime) + "/" + eventTime
+            );
+        }
+
+        // Check the last update timestamp of the attribute, ignoring any event that is older than last update
+        // TODO This means we drop out-of-sequence events but accept events with the same source timestamp
+        // TODO Several attribute events can occur in the same millisecond, then order of application is undefined
+        oldAttribute.getValueTimestamp().filter(t -> t >= 0 && eventTime < t).ifPresent(
+            lastStateTime -> {
+                throw new AssetProcessingException(
+                    EVENT_OUTDATED,
+                    "last asset state time: " + new Date(lastStateTime) + "/" + lastStateTime
+                        + ", event time: " + new Date(eventTime) + "/" + eventTime);
+            }
+        );
+
+        // Create a copy of the attribute and set the new value and timestamp
+        AssetAttribute updatedAttribute = oldAttribute.deepCopy();
+        updatedAttribute.setValue(event.getValue().orElse(null), eventTime);
+
+        // Validate constraints of attribute
+        List<ValidationFailure> validationFailures = updatedAttribute.getValidationFailures();
+        if (!validationFailures.isEmpty()) {
+            throw new AssetProcessingException(ATTRIBUTE_VALIDATION_FAILURE, validationFailures.toString());
+        }
+        return updatedAttribute;
     }
 
     /**
@@ -516,9 +751,61 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         );
     }
 
+    /**
+     * Authorizes attribute writes of a client, the realm, role and linked asset checks of an asset are only
+     * done once. Instances are not thread-safe.
+     */
+    protected class ClientWriteAccess {
+
+        final protected AuthContext authContext;
+        final protected Map<String, Boolean> assetWritable = new HashMap<>();
+        protected Boolean restrictedUser;
+
+        protected ClientWriteAccess(AuthContext authContext) {
+            this.authContext = authContext;
+        }
+
+        protected boolean isWritable(Asset asset, AssetAttribute attribute) {
+            // Check read-only
+            if (attribute.isReadOnly() && !authContext.isSuperUser())
+                return false;
+
+            if (!assetWritable.computeIfAbsent(asset.getId(), assetId -> isAssetWritable(asset)))
+                return false;
+
+            // Restricted user can only write attributes writable by restricted client
+            return !isRestrictedUser() || attribute.isAccessRestrictedWrite();
+        }
+
+        protected boolean isAssetWritable(Asset asset) {
+            // Check realm, must be accessible
+            if (!identityService.getIdentityProvider().isTenantActiveAndAccessible(authContext, asset))
+                return false;
+
+            // Regular user must have write assets role
+            if (!authContext.hasResourceRoleOrIsSuperUser(ClientRole.WRITE_ASSETS.getValue(), Constants.KEYCLOAK_CLIENT_ID))
+                return false;
+
+            // Restricted user must be linked to asset
+            return !isRestrictedUser() || assetStorageService.isUserAsset(authContext.getUserId(), asset.getId());
+        }
+
+        protected boolean isRestrictedUser() {
+            if (restrictedUser == null) {
+                restrictedUser = identityService.getIdentityProvider().isRestrictedUser(authContext.getUserId());
+            }
+            return restrictedUser;
+        }
+    }
+
+    public AssetProcessingLanes getProcessingLanes() {
+        return processingLanes;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
+            "processingLanes=" + processingLanes +
             '}';
     }
 }
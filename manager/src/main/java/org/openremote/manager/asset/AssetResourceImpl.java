@@ -38,6 +38,9 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.HttpHeaders;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import static javax.ws.rs.core.Response.Status.*;
@@ -51,16 +54,22 @@ public class AssetResourceImpl extends ManagerWebResource implements AssetResour
     private static final Logger LOG = Logger.getLogger(AssetResourceImpl.class.getName());
 
     protected final static Asset[] EMPTY_ASSETS = new Asset[0];
+    protected final static AssetCluster[] EMPTY_CLUSTERS = new AssetCluster[0];
+    // Same as the timeout of a request sent to the asset queue
+    protected final static long WRITE_ATTRIBUTE_EVENTS_TIMEOUT_MILLIS = 10000;
     protected final AssetStorageService assetStorageService;
     protected final MessageBrokerService messageBrokerService;
+    protected final AssetProcessingService assetProcessingService;
 
     public AssetResourceImpl(TimerService timerService,
                              ManagerIdentityService identityService,
                              AssetStorageService assetStorageService,
-                             MessageBrokerService messageBrokerService) {
+                             MessageBrokerService messageBrokerService,
+                             AssetProcessingService assetProcessingService) {
         super(timerService, identityService);
         this.assetStorageService = assetStorageService;
         this.messageBrokerService = messageBrokerService;
+        this.assetProcessingService = assetProcessingService;
     }
 
     @Override
@@ -380,6 +389,28 @@ public class AssetResourceImpl extends ManagerWebResource implements AssetResour
         }
     }
 
+    @Override
+    public AttributeWriteResult[] writeAttributeEvents(RequestParams requestParams, AttributeEvent[] events) {
+        if (events == null || events.length == 0)
+            throw new WebApplicationException(BAD_REQUEST);
+
+        for (AttributeEvent event : events) {
+            if (event != null && event.getTimestamp() <= 0) {
+                event.setTimestamp(timerService.getCurrentTimeMillis());
+            }
+        }
+
+        // Block for a little while waiting for the results
+        try {
+            return assetProcessingService.processAttributeEvents(Arrays.asList(events), CLIENT, getAuthContext())
+                .get(WRITE_ATTRIBUTE_EVENTS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            throw new WebApplicationException(ex, SERVICE_UNAVAILABLE);
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new WebApplicationException(ex, INTERNAL_SERVER_ERROR);
+        }
+    }
+
     @Override
     public Asset create(RequestParams requestParams, Asset asset) {
         try {
@@ -473,49 +504,29 @@ public class AssetResourceImpl extends ManagerWebResource implements AssetResour
     @Override
     public Asset[] queryAssets(RequestParams requestParams, AssetQuery query) {
         try {
-            if (query == null) {
+            if (query == null || !restrictQuery(query)) {
                 return EMPTY_ASSETS;
             }
 
-            if (isRestrictedUser()) {
-                // A restricted user can only query linked assets
-                query = query.userId(getUserId());
-
-                // A restricted user may not query private asset data, only restricted or public
-                if (query.select == null)
-                    query.select = new Select();
-                if (query.select.access == null || query.select.access == Access.PRIVATE_READ)
-                    query.select.filterAccess(Access.RESTRICTED_READ);
-            }
-
-            Tenant tenant = query.tenant != null
-                ? !isNullOrEmpty(query.tenant.realmId)
-                ? identityService.getIdentityProvider().getTenantForRealmId(query.tenant.realmId)
-                : !isNullOrEmpty(query.tenant.realm)
-                ? identityService.getIdentityProvider().getTenantForRealm(query.tenant.realm)
-                : getAuthenticatedTenant()
-                : getAuthenticatedTenant();
-
-            if (tenant == null) {
-                throw new WebApplicationException(NOT_FOUND);
-            }
-
-            if (!isTenantActiveAndAccessible(tenant)) {
-                return EMPTY_ASSETS;
-            }
-
-            // This replicates behaviour of old getRoot and getChildren methods
-            if (!isSuperUser() || query.parent == null || query.parent.noParent) {
-                query.tenant(new TenantPredicate(tenant.getId()));
-            }
-
-            List<ServerAsset> result = assetStorageService.findAll(query);
+            Asset[] result = findPage(query);
 
             // Compress response (the request attribute enables the interceptor)
             request.setAttribute(HttpHeaders.CONTENT_ENCODING, "gzip");
 
-            return result.toArray(new Asset[result.size()]);
+            return result;
+
+        } catch (IllegalStateException ex) {
+            throw new WebApplicationException(ex, BAD_REQUEST);
+        }
+    }
 
+    @Override
+    public AssetCluster[] queryAssetClusters(RequestParams requestParams, int zoom, AssetQuery query) {
+        try {
+            if (query == null || !restrictQuery(query)) {
+                return EMPTY_CLUSTERS;
+            }
+            return assetStorageService.findClusters(query, zoom);
         } catch (IllegalStateException ex) {
             throw new WebApplicationException(ex, BAD_REQUEST);
         }
@@ -545,17 +556,75 @@ public class AssetResourceImpl extends ManagerWebResource implements AssetResour
         }
 
         try {
-            List<ServerAsset> result = assetStorageService.findAll(query);
+            Asset[] result = findPage(query);
 
             // Compress response (the request attribute enables the interceptor)
             request.setAttribute(HttpHeaders.CONTENT_ENCODING, "gzip");
 
-            return result.toArray(new Asset[result.size()]);
+            return result;
         } catch (IllegalStateException ex) {
             throw new WebApplicationException(ex, BAD_REQUEST);
         }
     }
 
+    /**
+     * Restricts the query to the assets the user may access.
+     *
+     * @return <code>false</code> if the queried tenant is not active or accessible.
+     */
+    protected boolean restrictQuery(AssetQuery query) {
+        if (isRestrictedUser()) {
+            // A restricted user can only query linked assets
+            query.userId(getUserId());
+
+            // A restricted user may not query private asset data, only restricted or public
+            if (query.select == null)
+                query.select = new Select();
+            if (query.select.access == null || query.select.access == Access.PRIVATE_READ)
+                query.select.filterAccess(Access.RESTRICTED_READ);
+        }
+
+        Tenant tenant = query.tenant != null
+            ? !isNullOrEmpty(query.tenant.realmId)
+            ? identityService.getIdentityProvider().getTenantForRealmId(query.tenant.realmId)
+            : !isNullOrEmpty(query.tenant.realm)
+            ? identityService.getIdentityProvider().getTenantForRealm(query.tenant.realm)
+            : getAuthenticatedTenant()
+            : getAuthenticatedTenant();
+
+        if (tenant == null) {
+            throw new WebApplicationException(NOT_FOUND);
+        }
+
+        if (!isTenantActiveAndAccessible(tenant)) {
+            return false;
+        }
+
+        // This replicates behaviour of old getRoot and getChildren methods
+        if (!isSuperUser() || query.parent == null || query.parent.noParent) {
+            query.tenant(new TenantPredicate(tenant.getId()));
+        }
+        return true;
+    }
+
+    /**
+     * Limit the query to the maximum page size and return the page token of the next page in a response header.
+     * The page is collected in memory, the resource returns an array and the page token must be known before the
+     * response is written, only {@link AssetStorageService#ASSET_QUERY_MAX_LIMIT} bounds the size of a page.
+     */
+    protected Asset[] findPage(AssetQuery query) {
+        int maxLimit = assetStorageService.getQueryMaxLimit();
+        if (maxLimit > 0 && (query.limit <= 0 || query.limit > maxLimit)) {
+            query.limit = maxLimit;
+        }
+        List<Asset> result = new ArrayList<>();
+        String nextPageToken = assetStorageService.findAll(query, result::add);
+        if (nextPageToken != null) {
+            response.setHeader(Constants.RESPONSE_HEADER_NEXT_PAGE_TOKEN, nextPageToken);
+        }
+        return result.toArray(new Asset[result.size()]);
+    }
+
     @Override
     public Asset[] getPublicAssets(RequestParams requestParams, String q) {
         AssetQuery assetQuery;
@@ -39,6 +39,7 @@ import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.security.AuthContext;
 import org.openremote.container.timer.TimerService;
 import org.openremote.container.web.WebService;
+import org.openremote.manager.concurrent.ManagerExecutorService;
 import org.openremote.manager.event.ClientEventService;
 import org.openremote.manager.security.ManagerIdentityService;
 import org.openremote.manager.security.UserConfiguration;
@@ -59,14 +60,20 @@ import org.postgresql.util.PGobject;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
 import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_TOPIC;
 import static org.openremote.manager.event.ClientEventService.getSessionKey;
 import static org.openremote.model.asset.BaseAssetQuery.*;
@@ -96,10 +103,74 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
     private static final Logger LOG = Logger.getLogger(AssetStorageService.class.getName());
 
+    /**
+     * Coalesce attribute value updates in memory and store them in batches, see {@link AssetAttributeWriteBehind}.
+     */
+    public static final String ASSET_STATE_WRITE_BEHIND = "ASSET_STATE_WRITE_BEHIND";
+    public static final boolean ASSET_STATE_WRITE_BEHIND_DEFAULT = false;
+    public static final String ASSET_STATE_WRITE_BEHIND_INTERVAL_MILLIS = "ASSET_STATE_WRITE_BEHIND_INTERVAL_MILLIS";
+    public static final int ASSET_STATE_WRITE_BEHIND_INTERVAL_MILLIS_DEFAULT = 1000;
+    public static final String ASSET_STATE_WRITE_BEHIND_MAX_PENDING = "ASSET_STATE_WRITE_BEHIND_MAX_PENDING";
+    public static final int ASSET_STATE_WRITE_BEHIND_MAX_PENDING_DEFAULT = 5000;
+
+    /**
+     * Maximum number of completely loaded assets kept in the {@link ServerAssetCache}, set to <code>0</code> to disable.
+     */
+    public static final String ASSET_CACHE_MAX_SIZE = "ASSET_CACHE_MAX_SIZE";
+    public static final int ASSET_CACHE_MAX_SIZE_DEFAULT = 10000;
+
+    /**
+     * Maximum number of assets returned by one asset query of a client, queries without a smaller limit are paged,
+     * set to <code>0</code> to disable. Disabled by default, the manager UI doesn't follow page tokens and would
+     * silently miss assets. With the limit disabled, a client query loads all its results into memory at once.
+     */
+    public static final String ASSET_QUERY_MAX_LIMIT = "ASSET_QUERY_MAX_LIMIT";
+    public static final int ASSET_QUERY_MAX_LIMIT_DEFAULT = 0;
+
+    // Number of rows the database driver fetches at once when a query result is streamed
+    public static final int QUERY_FETCH_SIZE = 500;
+
+    // Number of clusters along each side of a map tile, see findClusters()
+    public static final int CLUSTER_CELLS_PER_TILE = 4;
+
+    // Distance of one degree latitude on the sphere of ST_Distance_Sphere, rounded down so bounds are never too small
+    public static final double METRES_PER_DEGREE = 111000;
+
+    /**
+     * Selects a page of assets with at least one {@link AssetMeta#RULE_STATE} attribute, ordered by ID, and projects
+     * only the rule state attributes. Bind the meta item name (twice), the exclusive lower ID bound, and the limit.
+     */
+    public static final String SELECT_RULE_STATE_ASSETS_SQL =
+        "select A.ID as ID, A.OBJ_VERSION as OBJ_VERSION, A.CREATED_ON as CREATED_ON, A.NAME as NAME, " +
+            "A.ASSET_TYPE as ASSET_TYPE, A.ACCESS_PUBLIC_READ as ACCESS_PUBLIC_READ, A.PARENT_ID as PARENT_ID, " +
+            "P.NAME as PARENT_NAME, P.ASSET_TYPE as PARENT_TYPE, A.REALM_ID as REALM_ID, R.NAME as TENANT_NAME, " +
+            "RA.VALUE as TENANT_DISPLAY_NAME, A.LOCATION as LOCATION, A.PATH as PATH, " +
+            "(select json_object_agg(AX.KEY, AX.VALUE) from jsonb_each(A.ATTRIBUTES) as AX " +
+            "where exists (select 1 from jsonb_array_elements(AX.VALUE #> '{meta}') as AM " +
+            "where AM.VALUE #>> '{name}' = ? and AM.VALUE #> '{value}' = to_jsonb(true))) as ATTRIBUTES " +
+            "from ASSET A " +
+            "join PUBLIC.REALM R on R.ID = A.REALM_ID " +
+            "join PUBLIC.REALM_ATTRIBUTE RA on RA.REALM_ID = R.ID and RA.NAME = 'displayName' " +
+            "left outer join ASSET P on A.PARENT_ID = P.ID " +
+            "where A.ID > ? and A.ID in (select AM.ASSET_ID from ASSET_ATTRIBUTE_META AM " +
+            "where AM.VALUE #>> '{name}' = ? and AM.VALUE #> '{value}' = to_jsonb(true)) " +
+            "order by A.ID limit ?";
+
     protected TimerService timerService;
     protected PersistenceService persistenceService;
     protected ManagerIdentityService identityService;
     protected ClientEventService clientEventService;
+    protected ManagerExecutorService executorService;
+    protected AssetAttributeWriteBehind writeBehind;
+    protected int writeBehindIntervalMillis;
+    protected ScheduledFuture writeBehindFlushFuture;
+    protected ServerAssetCache assetCache;
+    protected int queryMaxLimit;
+    final protected Map<String, PreparedAssetQuery> queryTemplates = new ConcurrentHashMap<>();
+    final protected AtomicLong queryTemplateHits = new AtomicLong();
+    final protected AtomicLong queryTemplateMisses = new AtomicLong();
+    final protected AtomicLong queryBuildCount = new AtomicLong();
+    final protected AtomicLong queryBuildNanos = new AtomicLong();
 
     @Override
     public void init(Container container) throws Exception {
@@ -107,6 +178,25 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         persistenceService = container.getService(PersistenceService.class);
         identityService = container.getService(ManagerIdentityService.class);
         clientEventService = container.getService(ClientEventService.class);
+        executorService = container.getService(ManagerExecutorService.class);
+
+        if (getBoolean(container.getConfig(), ASSET_STATE_WRITE_BEHIND, ASSET_STATE_WRITE_BEHIND_DEFAULT)) {
+            writeBehindIntervalMillis = getInteger(
+                container.getConfig(), ASSET_STATE_WRITE_BEHIND_INTERVAL_MILLIS, ASSET_STATE_WRITE_BEHIND_INTERVAL_MILLIS_DEFAULT
+            );
+            writeBehind = new AssetAttributeWriteBehind(
+                persistenceService,
+                getInteger(container.getConfig(), ASSET_STATE_WRITE_BEHIND_MAX_PENDING, ASSET_STATE_WRITE_BEHIND_MAX_PENDING_DEFAULT),
+                () -> executorService.execute(() -> writeBehind.flush())
+            );
+        }
+
+        queryMaxLimit = Math.max(getInteger(container.getConfig(), ASSET_QUERY_MAX_LIMIT, ASSET_QUERY_MAX_LIMIT_DEFAULT), 0);
+
+        int assetCacheMaxSize = getInteger(container.getConfig(), ASSET_CACHE_MAX_SIZE, ASSET_CACHE_MAX_SIZE_DEFAULT);
+        if (assetCacheMaxSize > 0) {
+            assetCache = new ServerAssetCache(assetCacheMaxSize);
+        }
 
         clientEventService.addSubscriptionAuthorizer((auth, subscription) ->
             (subscription.isEventType(AssetTreeModifiedEvent.class) || subscription.isEventType(LocationEvent.class))
@@ -121,7 +211,8 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 container.getService(TimerService.class),
                 identityService,
                 this,
-                container.getService(MessageBrokerService.class)
+                container.getService(MessageBrokerService.class),
+                container.getService(AssetProcessingService.class)
             )
         );
 
@@ -130,11 +221,26 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
     @Override
     public void start(Container container) throws Exception {
+        if (writeBehind != null) {
+            writeBehindFlushFuture = executorService.scheduleWithFixedDelay(
+                () -> writeBehind.flush(), writeBehindIntervalMillis, writeBehindIntervalMillis
+            );
+        }
     }
 
     @Override
     public void stop(Container container) throws Exception {
-
+        if (writeBehindFlushFuture != null) {
+            writeBehindFlushFuture.cancel(false);
+            writeBehindFlushFuture = null;
+        }
+        if (writeBehind != null) {
+            LOG.info("Flushing pending attribute values: " + writeBehind);
+            writeBehind.flush();
+        }
+        LOG.info("Asset queries built: " + queryBuildCount.get()
+            + ", template hit rate: " + getQueryTemplateHitRate()
+            + ", average build time: " + getQueryBuildAverageMicros() + "us");
     }
 
     @SuppressWarnings("unchecked")
@@ -144,7 +250,11 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         from(PERSISTENCE_TOPIC)
             .routeId("AssetPersistenceChanges")
             .filter(isPersistenceEventForEntityType(ServerAsset.class))
-            .process(exchange -> publishModificationEvents(exchange.getIn().getBody(PersistenceEvent.class)));
+            .process(exchange -> {
+                PersistenceEvent<ServerAsset> persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
+                invalidateCachedAsset(persistenceEvent.getEntity().getId());
+                publishModificationEvents(persistenceEvent);
+            });
 
         // React if a client wants to read attribute state
         from(CLIENT_EVENT_TOPIC)
@@ -201,9 +311,13 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     }
 
     /**
-     * @param loadComplete If the whole asset data (including path and attributes) should be loaded.
+     * @param loadComplete If the whole asset data (including path and attributes) should be loaded, such
+     *                     assets are served from the {@link ServerAssetCache} if enabled.
      */
     public ServerAsset find(EntityManager em, String assetId, boolean loadComplete) {
+        if (loadComplete && assetCache != null && assetId != null) {
+            return assetCache.get(assetId, id -> find(em, id, true, PRIVATE_READ));
+        }
         return find(em, assetId, loadComplete, PRIVATE_READ);
     }
 
@@ -236,6 +350,59 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         return persistenceService.doReturningTransaction(em -> findAll(em, query));
     }
 
+    /**
+     * Streams the results of the query to the consumer, rows are fetched from the database in batches and not
+     * collected in memory.
+     *
+     * @return The page token of the next page if the query has a {@link BaseAssetQuery#limit} and there are more
+     * results, otherwise <code>null</code>.
+     */
+    public String findAll(BaseAssetQuery query, Consumer<ServerAsset> consumer) {
+        return persistenceService.doReturningTransaction(em -> findAll(em, query, consumer));
+    }
+
+    /**
+     * Aggregates the located assets matching the query in a grid, for displaying assets on a map without loading
+     * all of them. There are {@link #CLUSTER_CELLS_PER_TILE} grid cells along each side of a map tile at the given
+     * zoom level. The query should restrict the {@link BaseAssetQuery#location} to the visible area of the map, its
+     * projection, ordering and paging are ignored.
+     */
+    public AssetCluster[] findClusters(BaseAssetQuery query, int zoom) {
+        return persistenceService.doReturningTransaction(em -> findClusters(em, query, zoom));
+    }
+
+    /**
+     * @return The maximum number of assets returned by one asset query of a client, <code>0</code> if unlimited.
+     */
+    public int getQueryMaxLimit() {
+        return queryMaxLimit;
+    }
+
+    public long getQueryTemplateHits() {
+        return queryTemplateHits.get();
+    }
+
+    public long getQueryTemplateMisses() {
+        return queryTemplateMisses.get();
+    }
+
+    /**
+     * @return The share of cacheable asset queries which reused a query template, <code>0</code> if there were none.
+     */
+    public double getQueryTemplateHitRate() {
+        long hits = queryTemplateHits.get();
+        long total = hits + queryTemplateMisses.get();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    /**
+     * @return The average time to build the SQL and parameters of an asset query.
+     */
+    public long getQueryBuildAverageMicros() {
+        long count = queryBuildCount.get();
+        return count > 0 ? queryBuildNanos.get() / count / 1000 : 0;
+    }
+
     public List<String> findNames(String... ids) {
         if (ids == null || ids.length == 0)
             return new ArrayList<>();
@@ -291,7 +458,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
      * @throws IllegalArgumentException if the realm or parent is illegal, or other asset constraint is violated.
      */
     public ServerAsset merge(ServerAsset asset, boolean overrideVersion, String userName) {
-        return persistenceService.doReturningTransaction(em -> {
+        ServerAsset result = persistenceService.doReturningTransaction(em -> {
 
             // Update all empty attribute timestamps with server-time (a caller which doesn't have a
             // reliable time source such as a browser should clear the timestamp when setting an attribute
@@ -362,6 +529,11 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
             LOG.fine("Storing: " + asset);
 
+            // Pending attribute values must be written before the row is updated
+            if (writeBehind != null && asset.getId() != null) {
+                writeBehind.flush(em, asset.getId());
+            }
+
             ServerAsset updatedAsset = em.merge(asset);
 
             if (user != null) {
@@ -370,13 +542,15 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
             return updatedAsset;
         });
+        invalidateCachedAsset(result.getId());
+        return result;
     }
 
     /**
      * @return <code>true</code> if the asset was deleted, false if the asset still has children and can't be deleted.
      */
     public boolean delete(String assetId) {
-        return persistenceService.doReturningTransaction(em -> {
+        boolean result = persistenceService.doReturningTransaction(em -> {
             Asset asset = em.find(ServerAsset.class, assetId);
             if (asset != null) {
                 List<ServerAsset> children = findAll(em, new AssetQuery()
@@ -385,10 +559,15 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 if (children.size() > 0)
                     return false;
                 LOG.fine("Removing: " + asset);
+                if (writeBehind != null) {
+                    writeBehind.discard(asset.getId());
+                }
                 em.remove(asset);
             }
             return true;
         });
+        invalidateCachedAsset(assetId);
+        return result;
     }
 
     public boolean isUserAsset(String userId, String assetId) {
@@ -511,6 +690,12 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     }
 
     protected List<ServerAsset> findAll(EntityManager em, BaseAssetQuery query) {
+        List<ServerAsset> result = new ArrayList<>();
+        findAll(em, query, result::add);
+        return result;
+    }
+
+    protected String findAll(EntityManager em, BaseAssetQuery query, Consumer<ServerAsset> consumer) {
 
         // Use a default projection if it's missing
         if (query.select == null)
@@ -521,71 +706,319 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             query.select.access = PRIVATE_READ;
 
         // Default to order by creation date if the query may return multiple results
-        if (query.orderBy == null && query.id == null)
+        boolean paged = isPaged(query);
+        if (query.orderBy == null && (query.id == null || paged))
             query.orderBy = new OrderBy(OrderBy.Property.CREATED_ON);
+        if (paged && query.orderBy.property == null)
+            query.orderBy.property = OrderBy.Property.CREATED_ON;
 
         PreparedAssetQuery querySql = buildQuery(query);
 
-        return em.unwrap(Session.class).doReturningWork(new AbstractReturningWork<List<ServerAsset>>() {
+        return em.unwrap(Session.class).doReturningWork(new AbstractReturningWork<String>() {
             @Override
-            public List<ServerAsset> execute(Connection connection) throws SQLException {
+            public String execute(Connection connection) throws SQLException {
                 LOG.fine("Executing: " + querySql.querySql);
                 try (PreparedStatement st = connection.prepareStatement(querySql.querySql)) {
                     querySql.apply(st);
+                    // Stream the rows, the driver only does this inside a transaction
+                    st.setFetchSize(QUERY_FETCH_SIZE);
 
                     try (ResultSet rs = st.executeQuery()) {
-                        List<ServerAsset> result = new ArrayList<>();
-                        if (query.calendarEventActive != null) {
-                            while (rs.next()) {
-                                ServerAsset asset = mapResultTuple(query, rs);
-                                if (calendarEventPredicateMatches(query.calendarEventActive, asset)) {
-                                    result.add(asset);
-                                }
+                        int rowCount = 0;
+                        String lastPageKey = null;
+                        while (rs.next()) {
+                            if (paged && query.limit > 0 && ++rowCount > query.limit) {
+                                // One more row than the limit was selected, there is a next page
+                                return lastPageKey;
+                            }
+                            ServerAsset asset = mapResultTuple(query, rs);
+                            if (paged) {
+                                lastPageKey = encodePageToken(query.orderBy, rs);
                             }
-                        } else {
-                            while (rs.next()) {
-                                result.add(mapResultTuple(query, rs));
+                            if (query.calendarEventActive != null && !calendarEventPredicateMatches(query.calendarEventActive, asset))
+                                continue;
+                            if (writeBehind != null) {
+                                writeBehind.applyPending(asset);
                             }
+                            consumer.accept(asset);
                         }
-                        return result;
+                        return null;
+                    }
+                }
+            }
+        });
+    }
+
+    protected AssetCluster[] findClusters(EntityManager em, BaseAssetQuery query, int zoom) {
+        if (zoom < 0 || zoom > 30)
+            throw new IllegalStateException("Invalid zoom level: " + zoom);
+        if (query.calendarEventActive != null)
+            throw new IllegalStateException("Calendar event predicates are not supported in cluster queries");
+
+        // Only the location of the assets is needed
+        query.select = new Select(
+            ALL_EXCEPT_PATH_AND_ATTRIBUTES,
+            query.select != null && query.select.recursive,
+            query.select != null && query.select.access != null ? query.select.access : PRIVATE_READ
+        );
+        query.orderBy = null;
+        query.limit = 0;
+        query.pageToken = null;
+
+        PreparedAssetQuery assetQuery = buildQuery(query);
+        List<ParameterBinder> binders = new ArrayList<>(assetQuery.binders);
+        double cellDegrees = 360d / (1L << zoom) / CLUSTER_CELLS_PER_TILE;
+        final int pos = binders.size() + 1;
+        binders.add(st -> st.setDouble(pos, cellDegrees));
+        PreparedAssetQuery querySql = new PreparedAssetQuery(
+            "select count(*) as CLUSTER_SIZE, " +
+                "ST_Y(ST_Centroid(ST_Collect(Q.LOCATION))) as LAT, ST_X(ST_Centroid(ST_Collect(Q.LOCATION))) as LNG, " +
+                "ST_YMin(ST_Extent(Q.LOCATION)) as LAT_MIN, ST_XMin(ST_Extent(Q.LOCATION)) as LNG_MIN, " +
+                "ST_YMax(ST_Extent(Q.LOCATION)) as LAT_MAX, ST_XMax(ST_Extent(Q.LOCATION)) as LNG_MAX, " +
+                "min(Q.ID) as ASSET_ID " +
+                "from (" + assetQuery.querySql + ") Q " +
+                "where Q.LOCATION is not null " +
+                "group by ST_SnapToGrid(Q.LOCATION, ?)",
+            binders
+        );
+
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            LOG.fine("Executing: " + querySql.querySql);
+            try (PreparedStatement st = connection.prepareStatement(querySql.querySql)) {
+                querySql.apply(st);
+                try (ResultSet rs = st.executeQuery()) {
+                    List<AssetCluster> result = new ArrayList<>();
+                    while (rs.next()) {
+                        long count = rs.getLong("CLUSTER_SIZE");
+                        result.add(new AssetCluster(
+                            count,
+                            rs.getDouble("LAT"),
+                            rs.getDouble("LNG"),
+                            rs.getDouble("LAT_MIN"),
+                            rs.getDouble("LNG_MIN"),
+                            rs.getDouble("LAT_MAX"),
+                            rs.getDouble("LNG_MAX"),
+                            count == 1 ? rs.getString("ASSET_ID") : null
+                        ));
                     }
+                    return result.toArray(new AssetCluster[result.size()]);
                 }
             }
         });
     }
 
+    protected static boolean isPaged(BaseAssetQuery query) {
+        return (query.limit > 0 || query.pageToken != null) && (query.id == null || query.select.recursive);
+    }
+
+    /**
+     * The page token is the order value and ID of the last asset of a page, with the order property and direction
+     * to detect a token used with a different query.
+     */
+    protected static String encodePageToken(OrderBy orderBy, ResultSet rs) throws SQLException {
+        String value;
+        if (orderBy.property == OrderBy.Property.CREATED_ON) {
+            // Full precision of the stored timestamp, not only milliseconds
+            value = rs.getTimestamp("CREATED_ON").toString();
+        } else {
+            value = rs.getString(orderBy.property.name());
+        }
+        String token = orderBy.property.name() + "\n" + orderBy.descending + "\n"
+            + (value != null ? value : "") + "\n" + rs.getString("ID");
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The order value and asset ID of the last asset of the previous page.
+     */
+    protected static String[] decodePageToken(OrderBy orderBy, String pageToken) {
+        String[] token;
+        try {
+            token = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8).split("\n", -1);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalStateException("Invalid page token: " + pageToken);
+        }
+        if (token.length != 4
+            || !token[0].equals(orderBy.property.name())
+            || !token[1].equals(Boolean.toString(orderBy.descending))) {
+            throw new IllegalStateException("Page token doesn't match ordering of query: " + pageToken);
+        }
+        return new String[]{token[2], token[3]};
+    }
+
+    /**
+     * Keyset pagination over all assets with {@link AssetMeta#RULE_STATE} attributes, the returned assets only
+     * contain their rule state attributes. Pass the ID of the last asset of the previous page to get the next page.
+     *
+     * @param afterAssetId Exclusive lower bound, use an empty string for the first page.
+     */
+    public List<ServerAsset> findRuleStateAssets(String afterAssetId, int limit) {
+        AssetQuery query = new AssetQuery().select(new Select(ALL));
+        return persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement st = connection.prepareStatement(SELECT_RULE_STATE_ASSETS_SQL)) {
+                st.setString(1, AssetMeta.RULE_STATE.getUrn());
+                st.setString(2, afterAssetId);
+                st.setString(3, AssetMeta.RULE_STATE.getUrn());
+                st.setInt(4, limit);
+                try (ResultSet rs = st.executeQuery()) {
+                    List<ServerAsset> result = new ArrayList<>();
+                    while (rs.next()) {
+                        result.add(mapResultTuple(query, rs));
+                    }
+                    if (writeBehind != null) {
+                        result.forEach(writeBehind::applyPending);
+                    }
+                    return result;
+                }
+            }
+        }));
+    }
+
+    /**
+     * Lookups of a single asset by identifier are the most frequent queries, the SQL and parameters of their shape,
+     * except the identifier, are built once and cached as a template. The SQL of any query contains only parameter
+     * placeholders and no values, so the driver reuses server-side prepared statements of the pooled connection for
+     * queries of the same shape.
+     */
     protected PreparedAssetQuery buildQuery(BaseAssetQuery query) {
+        long startTime = System.nanoTime();
+        try {
+            String templateKey = getQueryTemplateKey(query);
+            if (templateKey == null) {
+                return compileQuery(query);
+            }
+            PreparedAssetQuery template = queryTemplates.get(templateKey);
+            if (template == null) {
+                queryTemplateMisses.incrementAndGet();
+                template = compileQuery(query);
+                queryTemplates.put(templateKey, template);
+                return template;
+            }
+            queryTemplateHits.incrementAndGet();
+            // The asset identifier is the last parameter, all other parameters are the same for the shape
+            List<ParameterBinder> binders = new ArrayList<>(template.binders);
+            final int pos = binders.size();
+            binders.set(pos - 1, st -> st.setString(pos, query.id));
+            return new PreparedAssetQuery(template.querySql, binders);
+        } finally {
+            queryBuildCount.incrementAndGet();
+            queryBuildNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * @return The key of the query template for the shape of the query, or <code>null</code> if the query is not a
+     * plain lookup of a single asset by identifier.
+     */
+    protected static String getQueryTemplateKey(BaseAssetQuery query) {
+        if (query.id == null
+            || query.select.recursive
+            || query.select.attributeNames != null
+            || query.name != null
+            || query.parent != null
+            || query.path != null
+            || query.tenant != null
+            || query.userId != null
+            || query.type != null
+            || query.attribute != null
+            || query.attributeMeta != null
+            || query.calendarEventActive != null
+            || query.location != null
+            || query.orderBy != null
+            || query.limit > 0
+            || query.pageToken != null)
+            return null;
+        return query.select.include + ":" + query.select.access;
+    }
+
+    protected PreparedAssetQuery compileQuery(BaseAssetQuery query) {
         LOG.fine("Building: " + query);
         StringBuilder sb = new StringBuilder();
         boolean recursive = query.select.recursive;
         List<ParameterBinder> binders = new ArrayList<>();
-        sb.append(buildSelectString(query, 1, binders));
-        sb.append(buildFromString(query, 1));
-        sb.append(buildWhereClause(query, 1, binders));
 
         if (recursive) {
-            sb.insert(0, "WITH RECURSIVE top_level_assets AS ((");
-            sb.append(") UNION (");
-            sb.append(buildSelectString(query, 2, binders));
+            // Select the top level assets and their descendants, any asset with a top level asset in its path
+            sb.append(buildSelectString(query, binders));
             sb.append(buildFromString(query, 2));
             sb.append(buildWhereClause(query, 2, binders));
-            sb.append("))");
-            sb.append(buildSelectString(query, 3, binders));
-            sb.append(buildFromString(query, 3));
-            sb.append(buildWhereClause(query, 3, binders));
+            sb.append(" and A.PATH && array(select text(A.ID)");
+            sb.append(buildFromString(query, 1));
+            sb.append(buildWhereClause(query, 1, binders));
+            sb.append(")");
+        } else {
+            sb.append(buildSelectString(query, binders));
+            sb.append(buildFromString(query, 1));
+            sb.append(buildWhereClause(query, 1, binders));
         }
 
-        sb.append(buildOrderByString(query));
+        if (isPaged(query)) {
+            sb.append(buildKeysetString(query, binders));
+        } else {
+            sb.append(buildOrderByString(query));
+        }
         return new PreparedAssetQuery(sb.toString(), binders);
     }
 
-    protected String buildSelectString(BaseAssetQuery query, int level, List<ParameterBinder> binders) {
-        // level = 1 is main query select
-        // level = 2 is union select
-        // level = 3 is CTE select
+    /**
+     * Continue after the page token and order by the order property and asset ID, so the order is total and a page
+     * can start after any asset. Selects one more row than the limit, to know if there is a next page.
+     */
+    protected String buildKeysetString(BaseAssetQuery query, List<ParameterBinder> binders) {
+        StringBuilder sb = new StringBuilder();
+        String orderColumn;
+        switch (query.orderBy.property) {
+            case NAME:
+                orderColumn = "A.NAME";
+                break;
+            case ASSET_TYPE:
+                orderColumn = "A.ASSET_TYPE";
+                break;
+            case PARENT_ID:
+                // Root assets have no parent, row comparison with null is never true
+                orderColumn = "coalesce(A.PARENT_ID, '')";
+                break;
+            case REALM_ID:
+                orderColumn = "A.REALM_ID";
+                break;
+            default:
+                orderColumn = "A.CREATED_ON";
+        }
+        String direction = query.orderBy.descending ? "desc" : "asc";
+
+        if (query.pageToken != null) {
+            String[] lastKey = decodePageToken(query.orderBy, query.pageToken);
+            sb.append(" and (").append(orderColumn).append(", A.ID) ");
+            sb.append(query.orderBy.descending ? "<" : ">").append(" (?, ?)");
+            int pos = binders.size() + 1;
+            if (query.orderBy.property == OrderBy.Property.CREATED_ON) {
+                Timestamp createdOn;
+                try {
+                    createdOn = Timestamp.valueOf(lastKey[0]);
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalStateException("Invalid page token: " + query.pageToken);
+                }
+                binders.add(st -> st.setTimestamp(pos, createdOn));
+            } else {
+                binders.add(st -> st.setString(pos, lastKey[0]));
+            }
+            binders.add(st -> st.setString(pos + 1, lastKey[1]));
+        }
+
+        sb.append(" order by ").append(orderColumn).append(" ").append(direction);
+        sb.append(", A.ID ").append(direction);
+
+        if (query.limit > 0) {
+            int pos = binders.size() + 1;
+            sb.append(" limit ?");
+            binders.add(st -> st.setInt(pos, query.limit + 1));
+        }
+        return sb.toString();
+    }
+
+    protected String buildSelectString(BaseAssetQuery query, List<ParameterBinder> binders) {
         StringBuilder sb = new StringBuilder();
         AssetQuery.Include include = query.select.include;
-        boolean recursive = query.select.recursive;
         boolean includeMainProperties = include == ALL ||
             include == AssetQuery.Include.ALL_EXCEPT_PATH ||
             include == ALL_EXCEPT_PATH_AND_ATTRIBUTES;
@@ -605,28 +1038,19 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             case ALL:
                 sb.append(", A.OBJ_VERSION as OBJ_VERSION, A.LOCATION as LOCATION");
                 sb.append(", P.NAME as PARENT_NAME, P.ASSET_TYPE as PARENT_TYPE");
-                if (!recursive || level == 3) {
-                    sb.append(", R.NAME as TENANT_NAME, RA.VALUE as TENANT_DISPLAY_NAME");
-                }
+                sb.append(", R.NAME as TENANT_NAME, RA.VALUE as TENANT_DISPLAY_NAME");
                 break;
         }
 
-        if (!recursive || level == 3) {
-            if (include == ALL) {
-                sb.append(", get_asset_tree_path(A.ID) as PATH");
-            } else {
-                sb.append(", NULL as PATH");
-            }
+        if (include == ALL) {
+            sb.append(", A.PATH as PATH");
+        } else {
+            sb.append(", NULL as PATH");
         }
 
         if (include != ALL_EXCEPT_PATH_AND_ATTRIBUTES) {
-
-            if (recursive && level != 3) {
-                sb.append(", A.ATTRIBUTES as ATTRIBUTES");
-            } else {
-                boolean namesOnly = include == AssetQuery.Include.ONLY_ID_AND_NAME_AND_ATTRIBUTE_NAMES;
-                sb.append(buildAttributeSelect(query.select.attributeNames, query.select.access, namesOnly, binders));
-            }
+            boolean namesOnly = include == AssetQuery.Include.ONLY_ID_AND_NAME_AND_ATTRIBUTE_NAMES;
+            sb.append(buildAttributeSelect(query.select.attributeNames, query.select.access, namesOnly, binders));
         } else {
             sb.append(", NULL as ATTRIBUTES");
         }
@@ -696,45 +1120,51 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     }
 
     protected String buildFromString(BaseAssetQuery query, int level) {
-        // level = 1 is main query
-        // level = 2 is union
-        // level = 3 is CTE
+        // level = 1 is main query, or recursive query subselect of top level assets
+        // level = 2 is recursive query of top level assets and their descendants
         StringBuilder sb = new StringBuilder();
         boolean recursive = query.select.recursive;
 
-        if (level == 1) {
-            sb.append(" from ASSET A ");
-        } else if (level == 2) {
-            sb.append(" from top_level_assets P ");
-            sb.append("join ASSET A on A.PARENT_ID = P.ID ");
-        } else {
-            sb.append(" from top_level_assets A ");
-        }
+        sb.append(" from ASSET A ");
 
         boolean includeRealmInfo = query.select.include != AssetQuery.Include.ONLY_ID_AND_NAME &&
             query.select.include != AssetQuery.Include.ONLY_ID_AND_NAME_AND_ATTRIBUTE_NAMES &&
             query.select.include != AssetQuery.Include.ONLY_ID_AND_NAME_AND_ATTRIBUTES;
 
-        if ((!recursive || level == 3) && (includeRealmInfo || query.tenant != null)) {
+        if ((!recursive || level == 2) && (includeRealmInfo || query.tenant != null)) {
             sb.append("join PUBLIC.REALM R on R.ID = A.REALM_ID ");
             sb.append("join PUBLIC.REALM_ATTRIBUTE RA on RA.REALM_ID = R.ID and RA.NAME = 'displayName' ");
         }
 
-        if ((!recursive || level == 3) && query.id == null && query.userId != null) {
+        if ((!recursive || level == 2) && query.id == null && query.userId != null) {
             sb.append("cross join USER_ASSET ua ");
         }
 
-        if (level == 1) {
-            if (query.parent != null && !query.parent.noParent) {
-                sb.append("cross join ASSET P ");
-            } else {
-                sb.append("left outer join ASSET P on A.PARENT_ID = P.ID ");
-            }
+        if (level == 1 && query.parent != null && !query.parent.noParent) {
+            sb.append("cross join ASSET P ");
+        } else {
+            sb.append("left outer join ASSET P on A.PARENT_ID = P.ID ");
         }
 
         return sb.toString();
     }
 
+    /**
+     * @return The distance in degrees around the center of the predicate containing all locations within its radius,
+     * or <code>0</code> if the circle reaches a pole or the antimeridian and there is no such bound.
+     */
+    protected static double getBoundingDegrees(RadialLocationPredicate location) {
+        double latDegrees = location.radius / METRES_PER_DEGREE;
+        // A degree of longitude is shortest on the side of the circle closest to a pole
+        double maxLat = Math.abs(location.lat) + latDegrees;
+        if (maxLat >= 90)
+            return 0;
+        double degrees = latDegrees / Math.cos(Math.toRadians(maxLat));
+        if (Math.abs(location.lng) + degrees >= 180)
+            return 0;
+        return degrees;
+    }
+
     protected String buildOrderByString(BaseAssetQuery query) {
         StringBuilder sb = new StringBuilder();
 
@@ -769,17 +1199,12 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     }
 
     protected String buildWhereClause(BaseAssetQuery query, int level, List<ParameterBinder> binders) {
-        // level = 1 is main query
-        // level = 2 is union
-        // level = 3 is CTE
+        // level = 1 is main query, or recursive query subselect of top level assets
+        // level = 2 is recursive query of top level assets and their descendants
         StringBuilder sb = new StringBuilder();
         boolean recursive = query.select.recursive;
         sb.append(" where true");
 
-        if (level == 2) {
-            return sb.toString();
-        }
-
         if (level == 1 && query.id != null) {
             sb.append(" and A.ID = ?");
             final int pos = binders.size() + 1;
@@ -808,25 +1233,30 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         if (level == 1 && query.location != null) {
             if (query.location instanceof RadialLocationPredicate) {
                 RadialLocationPredicate location = (RadialLocationPredicate) query.location;
-                sb.append(" and ST_Distance_Sphere(A.LOCATION, ST_MakePoint(");
-                sb.append(location.lng);
-                sb.append(",");
-                sb.append(location.lat);
-                sb.append(location.negated ? ")) > " : ")) <= ");
-                sb.append(location.radius);
+                double boundingDegrees = getBoundingDegrees(location);
+                if (!location.negated && boundingDegrees > 0) {
+                    // Select candidates from the spatial index, the exact distance is then on the sphere
+                    sb.append(" and ST_DWithin(A.LOCATION, ST_MakePoint(?, ?), ?)");
+                    final int pos = binders.size() + 1;
+                    binders.add(st -> st.setDouble(pos, location.lng));
+                    binders.add(st -> st.setDouble(pos + 1, location.lat));
+                    binders.add(st -> st.setDouble(pos + 2, boundingDegrees));
+                }
+                sb.append(" and ST_Distance_Sphere(A.LOCATION, ST_MakePoint(?, ?))");
+                sb.append(location.negated ? " > ?" : " <= ?");
+                final int pos = binders.size() + 1;
+                binders.add(st -> st.setDouble(pos, location.lng));
+                binders.add(st -> st.setDouble(pos + 1, location.lat));
+                binders.add(st -> st.setInt(pos + 2, location.radius));
             } else if (query.location instanceof RectangularLocationPredicate) {
                 RectangularLocationPredicate location = (RectangularLocationPredicate) query.location;
                 sb.append(location.negated ? " and NOT" : " and");
-                sb.append(" ST_Within(A.LOCATION,");
-                sb.append("ST_MakeEnvelope(");
-                sb.append(location.lngMin);
-                sb.append(",");
-                sb.append(location.latMin);
-                sb.append(",");
-                sb.append(location.lngMax);
-                sb.append(",");
-                sb.append(location.latMax);
-                sb.append("))");
+                sb.append(" ST_Within(A.LOCATION, ST_MakeEnvelope(?, ?, ?, ?))");
+                final int pos = binders.size() + 1;
+                binders.add(st -> st.setDouble(pos, location.lngMin));
+                binders.add(st -> st.setDouble(pos + 1, location.latMin));
+                binders.add(st -> st.setDouble(pos + 2, location.lngMax));
+                binders.add(st -> st.setDouble(pos + 3, location.latMax));
             }
         }
 
@@ -848,12 +1278,12 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         }
 
         if (level == 1 && query.path != null && query.path.hasPath()) {
-            sb.append(" and ? <@ get_asset_tree_path(A.ID)");
+            sb.append(" and A.PATH @> ?");
             final int pos = binders.size() + 1;
             binders.add(st -> st.setArray(pos, st.getConnection().createArrayOf("text", query.path.path)));
         }
 
-        if (!recursive || level == 3) {
+        if (!recursive || level == 2) {
             if (query.tenant != null && query.tenant.realmId != null) {
                 sb.append(" and R.ID = ?");
                 final int pos = binders.size() + 1;
@@ -898,9 +1328,9 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                     String attributeMetaFilter = buildAttributeMetaFilter(attributeMetaPredicate, binders);
 
                     if (attributeMetaFilter.length() > 0) {
-                        sb.append(" and A.ID in (select A.ID from");
-                        sb.append(" jsonb_each(A.ATTRIBUTES) as AX,");
-                        sb.append(" jsonb_array_elements(AX.VALUE #> '{meta}') as AM");
+                        // The side table of meta items is indexed by meta item name and value
+                        sb.append(" and A.ID in (select AM.ASSET_ID from");
+                        sb.append(" ASSET_ATTRIBUTE_META as AM");
                         sb.append(" where true");
                         sb.append(attributeMetaFilter);
                         sb.append(")");
@@ -1204,8 +1634,23 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         }
     }
 
+    /**
+     * Stores the attribute value and timestamp, or if {@link #ASSET_STATE_WRITE_BEHIND} is enabled, queues it for a
+     * later batch update when the transaction commits.
+     */
     public boolean storeAttributeValue(EntityManager em, String assetId, String attributeName, Value value, String timestamp) {
-        return em.unwrap(Session.class).doReturningWork(connection -> {
+        if (writeBehind != null) {
+            if (!AssetAttribute.ATTRIBUTE_NAME_VALIDATOR.test(attributeName)) {
+                LOG.fine(
+                    "Invalid attribute name (must match '" + AssetAttribute.ATTRIBUTE_NAME_PATTERN + "'): " + attributeName
+                );
+                return false;
+            }
+            writeBehind.write(em, assetId, attributeName, value, Long.parseLong(timestamp));
+            updateCachedAttributeValue(assetId, attributeName, value, timestamp);
+            return true;
+        }
+        boolean stored = em.unwrap(Session.class).doReturningWork(connection -> {
             String update =
                 "update ASSET" +
                     " set ATTRIBUTES = jsonb_set(jsonb_set(ATTRIBUTES, ?, ?, true), ?, ?, true)" +
@@ -1255,6 +1700,30 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 return updatedRows == 1;
             }
         });
+        if (stored) {
+            updateCachedAttributeValue(assetId, attributeName, value, timestamp);
+        }
+        return stored;
+    }
+
+    /**
+     * Must be called when an asset was modified without going through {@link #merge} or {@link #delete}, or
+     * when a transaction that stored attribute values of the asset was rolled back.
+     */
+    public void invalidateCachedAsset(String assetId) {
+        if (assetCache != null) {
+            assetCache.invalidate(assetId);
+        }
+    }
+
+    public ServerAssetCache getAssetCache() {
+        return assetCache;
+    }
+
+    protected void updateCachedAttributeValue(String assetId, String attributeName, Value value, String timestamp) {
+        if (assetCache != null) {
+            assetCache.updateAttributeValue(assetId, attributeName, value, Long.parseLong(timestamp));
+        }
     }
 
     protected void publishModificationEvents(PersistenceEvent<ServerAsset> persistenceEvent) {
@@ -1377,8 +1846,31 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         return periodRule.evaluate(vEvent);
     }
 
+    /**
+     * @return The mark of the attribute values written in the transaction, see
+     * {@link AssetAttributeWriteBehind#getTransactionMark}.
+     */
+    public int getTransactionMark(EntityManager em) {
+        return writeBehind != null ? writeBehind.getTransactionMark(em) : 0;
+    }
+
+    /**
+     * Forget the attribute values written in the transaction after the mark, when rolling back to a savepoint.
+     */
+    public void rollbackToMark(EntityManager em, int mark) {
+        if (writeBehind != null) {
+            writeBehind.rollbackToMark(em, mark);
+        }
+    }
+
+    public AssetAttributeWriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
     public String toString() {
         return getClass().getSimpleName() + "{" +
+            "writeBehind=" + writeBehind +
+            ", assetCache=" + assetCache +
             '}';
     }
 }
\ No newline at end of file
@@ -28,10 +28,10 @@ import javax.persistence.EntityManager;
 /**
  * Process update of an asset attribute (value), from a {@link Source}.
  *
- * Implementations don't have to lock the whole context through {@link GlobalLock}, the
- * caller of this has already obtained the lock. Internal synchronization and thread-safety
- * must still be maintained if shared state of a processor can be modified by concurrent tasks
- * maintained by that processor.
+ * Implementations are called concurrently by several processing lanes, however, updates of the
+ * same asset are never processed concurrently. The caller does not hold the {@link GlobalLock},
+ * internal synchronization and thread-safety must be maintained by implementations if shared
+ * state of a processor can be modified by concurrent tasks.
  */
 public interface AssetUpdateProcessor {
 
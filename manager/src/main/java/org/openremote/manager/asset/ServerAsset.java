@@ -139,6 +139,20 @@ public class ServerAsset extends Asset {
         setLocation(position);
     }
 
+    /**
+     * Copies all properties, the attributes are a deep copy.
+     */
+    public ServerAsset(ServerAsset asset) {
+        super(
+            asset.getId(), asset.getVersion(), asset.getCreatedOn(), asset.getName(), asset.getType(), asset.isAccessPublicRead(),
+            asset.getParentId(), asset.getParentName(), asset.getParentType(),
+            asset.getRealmId(), asset.getTenantRealm(), asset.getTenantDisplayName(),
+            asset.getPath() != null ? asset.getPath().clone() : null,
+            asset.getAttributes() != null ? asset.getAttributes().deepCopy() : null
+        );
+        setLocation(asset.getLocation());
+    }
+
     public ServerAsset(@NotNull String name, @NotNull AssetType type) {
         this(name, type, null, null);
     }
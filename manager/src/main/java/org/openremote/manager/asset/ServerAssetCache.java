@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import org.openremote.model.value.Value;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of completely loaded assets (including path and all attributes), keyed by asset identifier.
+ * <p>
+ * Cached instances are never handed out, callers always receive a copy they may modify. Attribute value writes
+ * are applied to cached entries with {@link #updateAttributeValue}, any other modification of an asset must
+ * {@link #invalidate} it (and its descendants, as their path may have changed). Cached descendants are found
+ * through a reverse index of asset paths, so invalidation doesn't scan the cache.
+ */
+public class ServerAssetCache {
+
+    final protected Cache<String, ServerAsset> cache;
+    // Incremented on every invalidation, loads that raced with an invalidation are not cached
+    final protected AtomicLong generation = new AtomicLong();
+    // Identifiers of cached assets by identifier of their ancestors
+    final protected Map<String, Set<String>> descendants = new ConcurrentHashMap<>();
+
+    public ServerAssetCache(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .removalListener(this::onRemoval)
+            .build();
+    }
+
+    /**
+     * @return A copy of the cached asset or, if not cached, the asset returned by the loader (which is then cached).
+     */
+    public ServerAsset get(String assetId, Function<String, ServerAsset> loader) {
+        ServerAsset cached = cache.getIfPresent(assetId);
+        if (cached != null) {
+            return copy(cached);
+        }
+        long loadGeneration = generation.get();
+        ServerAsset asset = loader.apply(assetId);
+        if (asset != null && loadGeneration == generation.get()) {
+            ServerAsset cachedAsset = copy(asset);
+            if (cache.asMap().putIfAbsent(assetId, cachedAsset) == null) {
+                addDescendant(cachedAsset);
+            }
+            // An invalidation might have happened after the generation check, before the asset was indexed
+            if (loadGeneration != generation.get()) {
+                cache.invalidate(assetId);
+            }
+        }
+        return asset;
+    }
+
+    public void updateAttributeValue(String assetId, String attributeName, Value value, long timestamp) {
+        ServerAsset cached = cache.getIfPresent(assetId);
+        if (cached == null)
+            return;
+        synchronized (cached) {
+            cached.getAttribute(attributeName).ifPresent(attribute -> {
+                attribute.setValue(value, timestamp);
+                cached.replaceAttribute(attribute);
+            });
+        }
+    }
+
+    /**
+     * Remove the asset and all cached assets with the given asset in their path.
+     */
+    public void invalidate(String assetId) {
+        if (assetId == null)
+            return;
+        generation.incrementAndGet();
+        cache.invalidate(assetId);
+        Set<String> descendantIds = descendants.remove(assetId);
+        if (descendantIds != null) {
+            cache.invalidateAll(descendantIds);
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+        descendants.clear();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return The hit, miss and eviction counters.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    protected void addDescendant(ServerAsset asset) {
+        if (asset.getPath() == null)
+            return;
+        for (String ancestorId : asset.getPath()) {
+            if (ancestorId.equals(asset.getId()))
+                continue;
+            descendants.compute(ancestorId, (id, descendantIds) -> {
+                if (descendantIds == null) {
+                    descendantIds = ConcurrentHashMap.newKeySet();
+                }
+                descendantIds.add(asset.getId());
+                return descendantIds;
+            });
+        }
+    }
+
+    protected void onRemoval(RemovalNotification<String, ServerAsset> notification) {
+        ServerAsset asset = notification.getValue();
+        if (asset == null || asset.getPath() == null)
+            return;
+        for (String ancestorId : asset.getPath()) {
+            descendants.computeIfPresent(ancestorId, (id, descendantIds) -> {
+                descendantIds.remove(asset.getId());
+                return descendantIds.isEmpty() ? null : descendantIds;
+            });
+        }
+    }
+
+    protected ServerAsset copy(ServerAsset asset) {
+        synchronized (asset) {
+            return new ServerAsset(asset);
+        }
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = getStats();
+        return getClass().getSimpleName() + "{" +
+            "size=" + size() +
+            ", hits=" + stats.hitCount() +
+            ", misses=" + stats.missCount() +
+            ", evictions=" + stats.evictionCount() +
+            '}';
+    }
+}
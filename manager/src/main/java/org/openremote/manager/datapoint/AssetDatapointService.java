@@ -1,7 +1,5 @@
 package org.openremote.manager.datapoint;
 
-import org.hibernate.Session;
-import org.hibernate.jdbc.AbstractReturningWork;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
 import org.openremote.container.persistence.PersistenceService;
@@ -11,6 +9,7 @@ import org.openremote.manager.asset.AssetProcessingException;
 import org.openremote.manager.asset.AssetStorageService;
 import org.openremote.manager.asset.AssetUpdateProcessor;
 import org.openremote.manager.asset.ServerAsset;
+import org.openremote.manager.concurrent.ManagerExecutorService;
 import org.openremote.manager.security.ManagerIdentityService;
 import org.openremote.model.asset.AssetAttribute;
 import org.openremote.model.attribute.AttributeEvent.Source;
@@ -19,16 +18,17 @@ import org.openremote.model.datapoint.AssetDatapoint;
 import org.openremote.model.datapoint.Datapoint;
 import org.openremote.model.datapoint.DatapointInterval;
 import org.openremote.model.datapoint.NumberDatapoint;
-import org.postgresql.util.PGInterval;
 
 import javax.persistence.EntityManager;
-import java.sql.*;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Function;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
+import static org.openremote.container.util.MapAccess.getString;
+
 /**
  * Store and retrieve datapoints for asset attributes.
  */
@@ -36,15 +36,97 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
 
     private static final Logger LOG = Logger.getLogger(AssetDatapointService.class.getName());
 
+    /**
+     * The {@link AssetDatapointStore}, <code>TABLE</code> for {@link TableAssetDatapointStore} or
+     * <code>CHUNKED</code> for {@link ChunkedAssetDatapointStore}.
+     */
+    public static final String DATAPOINT_STORE = "DATAPOINT_STORE";
+    public static final String DATAPOINT_STORE_DEFAULT = "TABLE";
+    public static final String DATAPOINT_CHUNK_PERIOD_MILLIS = "DATAPOINT_CHUNK_PERIOD_MILLIS";
+    public static final int DATAPOINT_CHUNK_PERIOD_MILLIS_DEFAULT = 60 * 60 * 1000;
+    public static final String DATAPOINT_FLUSH_INTERVAL_MILLIS = "DATAPOINT_FLUSH_INTERVAL_MILLIS";
+    public static final int DATAPOINT_FLUSH_INTERVAL_MILLIS_DEFAULT = 5000;
+
+    /**
+     * Maintain {@link DatapointRollups} and aggregate charts from them.
+     */
+    public static final String DATAPOINT_ROLLUPS = "DATAPOINT_ROLLUPS";
+    public static final boolean DATAPOINT_ROLLUPS_DEFAULT = true;
+    public static final String DATAPOINT_ROLLUP_BACKFILL_BATCH_SIZE = "DATAPOINT_ROLLUP_BACKFILL_BATCH_SIZE";
+    public static final int DATAPOINT_ROLLUP_BACKFILL_BATCH_SIZE_DEFAULT = 10000;
+    public static final int DATAPOINT_ROLLUP_BACKFILL_DELAY_MILLIS = 100;
+
+    /**
+     * How often {@link DatapointRetention} runs, set to <code>0</code> to disable.
+     */
+    public static final String DATAPOINT_RETENTION_INTERVAL_MILLIS = "DATAPOINT_RETENTION_INTERVAL_MILLIS";
+    public static final int DATAPOINT_RETENTION_INTERVAL_MILLIS_DEFAULT = 60 * 1000;
+    public static final String DATAPOINT_RETENTION_BATCH_SIZE = "DATAPOINT_RETENTION_BATCH_SIZE";
+    public static final int DATAPOINT_RETENTION_BATCH_SIZE_DEFAULT = 1000;
+    public static final String DATAPOINT_RETENTION_MAX_ROWS_PER_RUN = "DATAPOINT_RETENTION_MAX_ROWS_PER_RUN";
+    public static final int DATAPOINT_RETENTION_MAX_ROWS_PER_RUN_DEFAULT = 100000;
+
+    protected TimerService timerService;
     protected PersistenceService persistenceService;
+    protected ManagerExecutorService executorService;
+    protected AssetDatapointStore datapointStore;
+    protected DatapointRollups rollups;
+    protected DatapointRetention retention;
+    protected int flushIntervalMillis;
+    protected int retentionIntervalMillis;
+    protected ScheduledFuture flushFuture;
+    protected ScheduledFuture backfillFuture;
+    protected ScheduledFuture retentionFuture;
 
     @Override
     public void init(Container container) throws Exception {
+        timerService = container.getService(TimerService.class);
         persistenceService = container.getService(PersistenceService.class);
+        executorService = container.getService(ManagerExecutorService.class);
+        flushIntervalMillis = getInteger(
+            container.getConfig(), DATAPOINT_FLUSH_INTERVAL_MILLIS, DATAPOINT_FLUSH_INTERVAL_MILLIS_DEFAULT
+        );
+
+        String store = getString(container.getConfig(), DATAPOINT_STORE, DATAPOINT_STORE_DEFAULT);
+        switch (store) {
+            case "TABLE":
+                datapointStore = new TableAssetDatapointStore(persistenceService);
+                break;
+            case "CHUNKED":
+                datapointStore = new ChunkedAssetDatapointStore(
+                    persistenceService,
+                    getInteger(container.getConfig(), DATAPOINT_CHUNK_PERIOD_MILLIS, DATAPOINT_CHUNK_PERIOD_MILLIS_DEFAULT)
+                );
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown " + DATAPOINT_STORE + ": " + store);
+        }
+        LOG.info("Using datapoint store: " + datapointStore);
+
+        if (getBoolean(container.getConfig(), DATAPOINT_ROLLUPS, DATAPOINT_ROLLUPS_DEFAULT)) {
+            rollups = new DatapointRollups(
+                persistenceService,
+                datapointStore,
+                getInteger(container.getConfig(), DATAPOINT_ROLLUP_BACKFILL_BATCH_SIZE, DATAPOINT_ROLLUP_BACKFILL_BATCH_SIZE_DEFAULT)
+            );
+        }
+
+        retentionIntervalMillis = getInteger(
+            container.getConfig(), DATAPOINT_RETENTION_INTERVAL_MILLIS, DATAPOINT_RETENTION_INTERVAL_MILLIS_DEFAULT
+        );
+        if (retentionIntervalMillis > 0) {
+            retention = new DatapointRetention(
+                persistenceService,
+                datapointStore,
+                rollups,
+                getInteger(container.getConfig(), DATAPOINT_RETENTION_BATCH_SIZE, DATAPOINT_RETENTION_BATCH_SIZE_DEFAULT),
+                getInteger(container.getConfig(), DATAPOINT_RETENTION_MAX_ROWS_PER_RUN, DATAPOINT_RETENTION_MAX_ROWS_PER_RUN_DEFAULT)
+            );
+        }
 
         container.getService(WebService.class).getApiSingletons().add(
             new AssetDatapointResourceImpl(
-                container.getService(TimerService.class),
+                timerService,
                 container.getService(ManagerIdentityService.class),
                 container.getService(AssetStorageService.class),
                 this
@@ -55,10 +137,39 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
 
     @Override
     public void start(Container container) throws Exception {
+        if (rollups != null) {
+            rollups.start(timerService.getCurrentTimeMillis());
+            if (!rollups.isBackfillCompleted()) {
+                backfillFuture = executorService.scheduleWithFixedDelay(
+                    this::backfillRollups, DATAPOINT_ROLLUP_BACKFILL_DELAY_MILLIS, DATAPOINT_ROLLUP_BACKFILL_DELAY_MILLIS
+                );
+            }
+        }
+        flushFuture = executorService.scheduleWithFixedDelay(
+            this::flush, flushIntervalMillis, flushIntervalMillis
+        );
+        if (retention != null) {
+            retentionFuture = executorService.scheduleWithFixedDelay(
+                this::runRetention, retentionIntervalMillis, retentionIntervalMillis
+            );
+        }
     }
 
     @Override
     public void stop(Container container) throws Exception {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        if (backfillFuture != null) {
+            backfillFuture.cancel(false);
+            backfillFuture = null;
+        }
+        if (retentionFuture != null) {
+            retentionFuture.cancel(false);
+            retentionFuture = null;
+        }
+        flush();
     }
 
     @Override
@@ -72,144 +183,100 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
             && attribute.getStateEvent().get().getValue().isPresent()) { // Don't store datapoints with null value
             LOG.finest("Storing datapoint for: " + attribute);
             AssetDatapoint assetDatapoint = new AssetDatapoint(attribute.getStateEvent().get());
-            em.persist(assetDatapoint);
+            boolean added = datapointStore.storeDatapoint(em, assetDatapoint);
+            // A datapoint replacing one with the same timestamp has already been counted
+            if (rollups != null && added) {
+                DatapointBuckets.toNumber(assetDatapoint.getValue()).ifPresent(value -> rollups.add(
+                    em, attribute.getReferenceOrThrow(), assetDatapoint.getTimestamp(), value
+                ));
+            }
         }
         return false;
     }
 
     public List<AssetDatapoint> getDatapoints(AttributeRef attributeRef) {
-        return persistenceService.doReturningTransaction(entityManager -> entityManager.createQuery(
-            "select dp from AssetDatapoint dp " +
-                "where dp.entityId = :assetId " +
-                "and dp.attributeName = :attributeName " +
-                "order by dp.timestamp desc",
-            AssetDatapoint.class)
-            .setParameter("assetId", attributeRef.getEntityId())
-            .setParameter("attributeName", attributeRef.getAttributeName())
-            .getResultList());
+        return datapointStore.getDatapoints(attributeRef);
     }
 
     public NumberDatapoint[] aggregateDatapoints(AssetAttribute attribute,
                                                  DatapointInterval datapointInterval,
                                                  long timestamp) {
-        LOG.fine("Aggregating datapoints for: " + attribute);
-
-        AttributeRef attributeRef = attribute.getReferenceOrThrow();
-
-        return persistenceService.doReturningTransaction(entityManager ->
-            entityManager.unwrap(Session.class).doReturningWork(new AbstractReturningWork<NumberDatapoint[]>() {
-                @Override
-                public NumberDatapoint[] execute(Connection connection) throws SQLException {
-
-                    String truncateX;
-                    String step;
-                    String interval;
-                    Function<Timestamp, String> labelFunction;
-
-                    SimpleDateFormat dayFormat = new SimpleDateFormat("dd. MMM yyyy");
-                    SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
-                    switch (datapointInterval) {
-                        case HOUR:
-                            truncateX = "minute";
-                            step = "1 minute";
-                            interval = "1 hour";
-                            labelFunction = timeFormat::format;
-                            break;
-                        case DAY:
-                            truncateX = "hour";
-                            step = "1 hour";
-                            interval = "1 day";
-                            labelFunction = timeFormat::format;
-                            break;
-                        case WEEK:
-                            truncateX = "day";
-                            step = "1 day";
-                            interval = "7 day";
-                            labelFunction = dayFormat::format;
-                            break;
-                        case MONTH:
-                            truncateX = "day";
-                            step = "1 day";
-                            interval = "1 month";
-                            labelFunction = dayFormat::format;
-                            break;
-                        case YEAR:
-                            truncateX = "month";
-                            step = "1 month";
-                            interval = "1 year";
-                            labelFunction = dayFormat::format;
-                            break;
-                        default:
-                            throw new IllegalArgumentException("Can't handle interval: " + datapointInterval);
-                    }
-
-                    StringBuilder query = new StringBuilder();
-
-                    query.append("select TS as X, coalesce(AVG_VALUE, null) as Y " +
-                        " from ( " +
-                        "       select date_trunc(?, GS)::timestamp TS " +
-                        "       from generate_series(to_timestamp(?) - ?, to_timestamp(?), ?) GS " +
-                        "       ) TS " +
-                        "  left join ( " +
-                        "       select " +
-                        "           date_trunc(?, to_timestamp(TIMESTAMP / 1000))::timestamp as TS, ");
-
-                    switch (attribute.getTypeOrThrow().getValueType()) {
-                        case NUMBER:
-                            query.append(" AVG(VALUE::text::numeric) as AVG_VALUE ");
-                            break;
-                        case BOOLEAN:
-                            query.append(" AVG(case when VALUE::text::boolean is true then 1 else 0 end) as AVG_VALUE ");
-                            break;
-                        default:
-                            throw new IllegalArgumentException("Can't aggregate number datapoints for type of: " + attribute);
-                    }
-
-                    query.append(" from ASSET_DATAPOINT " +
-                        "         where " +
-                        "           to_timestamp(TIMESTAMP / 1000) >= to_timestamp(?) - ? " +
-                        "           and " +
-                        "           to_timestamp(TIMESTAMP / 1000) <= to_timestamp(?) " +
-                        "           and " +
-                        "           ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
-                        "         group by TS " +
-                        "  ) DP using (TS) " +
-                        " order by TS asc "
-                    );
-
-                    try (PreparedStatement st = connection.prepareStatement(query.toString())) {
-
-                        long timestampSeconds = timestamp / 1000;
-                        st.setString(1, truncateX);
-                        st.setLong(2, timestampSeconds);
-                        st.setObject(3, new PGInterval(interval));
-                        st.setLong(4, timestampSeconds);
-                        st.setObject(5, new PGInterval(step));
-                        st.setString(6, truncateX);
-                        st.setLong(7, timestampSeconds);
-                        st.setObject(8, new PGInterval(interval));
-                        st.setLong(9, timestampSeconds);
-                        st.setString(10, attributeRef.getEntityId());
-                        st.setString(11, attributeRef.getAttributeName());
-
-                        try (ResultSet rs = st.executeQuery()) {
-                            List<NumberDatapoint> result = new ArrayList<>();
-                            while (rs.next()) {
-                                String label = labelFunction.apply(rs.getTimestamp(1));
-                                Number value = rs.getObject(2) != null ? rs.getDouble(2) : null;
-                                result.add(new NumberDatapoint(label, value));
-                            }
-                            return result.toArray(new NumberDatapoint[result.size()]);
-                        }
-                    }
-                }
-            })
-        );
+        if (rollups == null || !rollups.isBackfillCompleted())
+            return datapointStore.aggregateDatapoints(attribute, datapointInterval, timestamp);
+
+        switch (attribute.getTypeOrThrow().getValueType()) {
+            case NUMBER:
+            case BOOLEAN:
+                break;
+            default:
+                throw new IllegalArgumentException("Can't aggregate number datapoints for type of: " + attribute);
+        }
+        LOG.fine("Aggregating datapoint rollups for: " + attribute);
+        return rollups.aggregate(attribute.getReferenceOrThrow(), datapointInterval, timestamp);
+    }
+
+    /**
+     * @return The mark of the rollup datapoints added in the transaction, see
+     * {@link DatapointRollups#getTransactionMark}.
+     */
+    public int getTransactionMark(EntityManager em) {
+        return rollups != null ? rollups.getTransactionMark(em) : 0;
+    }
+
+    /**
+     * Forget the rollup datapoints added in the transaction after the mark, when rolling back to a savepoint.
+     */
+    public void rollbackToMark(EntityManager em, int mark) {
+        if (rollups != null) {
+            rollups.rollbackToMark(em, mark);
+        }
+    }
+
+    public AssetDatapointStore getDatapointStore() {
+        return datapointStore;
+    }
+
+    public DatapointRollups getRollups() {
+        return rollups;
+    }
+
+    public DatapointRetention getRetention() {
+        return retention;
+    }
+
+    protected void flush() {
+        if (datapointStore != null) {
+            datapointStore.flush();
+        }
+        if (rollups != null) {
+            rollups.flush();
+        }
+    }
+
+    protected void backfillRollups() {
+        try {
+            if (!rollups.backfill() && backfillFuture != null) {
+                backfillFuture.cancel(false);
+            }
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Backfilling datapoint rollups failed, retrying", ex);
+        }
+    }
+
+    protected void runRetention() {
+        try {
+            retention.run(timerService.getCurrentTimeMillis());
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Datapoint retention failed", ex);
+        }
     }
 
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
+            "datapointStore=" + datapointStore +
+            ", rollups=" + rollups +
+            ", retention=" + retention +
             '}';
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.openremote.model.asset.AssetAttribute;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.datapoint.AssetDatapoint;
+import org.openremote.model.datapoint.DatapointInterval;
+import org.openremote.model.datapoint.NumberDatapoint;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+
+/**
+ * Storage engine for the time series of {@link AssetDatapoint}s, selected with
+ * {@link AssetDatapointService#DATAPOINT_STORE}.
+ */
+public interface AssetDatapointStore {
+
+    /**
+     * Called while processing an attribute update.
+     *
+     * @param em The current transaction of the update.
+     * @return <code>false</code> if the datapoint replaced a stored datapoint with the same timestamp.
+     */
+    boolean storeDatapoint(EntityManager em, AssetDatapoint datapoint);
+
+    /**
+     * @return The mark of the datapoints buffered in the transaction, for stores which buffer datapoints until
+     * the transaction commits.
+     */
+    default int getTransactionMark(EntityManager em) {
+        return 0;
+    }
+
+    /**
+     * Forget the datapoints buffered in the transaction after the mark, when rolling back to a savepoint.
+     */
+    default void rollbackToMark(EntityManager em, int mark) {
+    }
+
+    /**
+     * @return All datapoints of the attribute, the newest first.
+     */
+    List<AssetDatapoint> getDatapoints(AttributeRef attributeRef);
+
+    /**
+     * @return The average value per step of the interval ending at the given timestamp.
+     */
+    NumberDatapoint[] aggregateDatapoints(AssetAttribute attribute, DatapointInterval datapointInterval, long timestamp);
+
+    /**
+     * @param after Start after this attribute, or from the first attribute if <code>null</code>.
+     * @return Attributes with stored datapoints ordered by asset identifier and attribute name.
+     */
+    List<AttributeRef> getAttributeRefs(EntityManager em, AttributeRef after, int limit);
+
+    /**
+     * Read stored datapoints in ascending timestamp order, values as defined by {@link DatapointBuckets#toNumber}.
+     *
+     * @return The number of datapoints passed to the consumer.
+     */
+    int readDatapoints(EntityManager em,
+                       AttributeRef attributeRef,
+                       long afterTimestamp,
+                       long beforeTimestamp,
+                       int limit,
+                       DatapointChunkCodec.DatapointConsumer consumer);
+
+    /**
+     * Delete a batch of stored datapoints older than the given timestamp.
+     *
+     * @return The number of deleted rows.
+     */
+    int purgeDatapoints(EntityManager em, AttributeRef attributeRef, long beforeTimestamp, int limit);
+
+    /**
+     * Persist any datapoints buffered in memory.
+     */
+    default void flush() {
+    }
+}
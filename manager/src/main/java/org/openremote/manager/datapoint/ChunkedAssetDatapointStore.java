@@ -0,0 +1,681 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.AfterCommitBuffer;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.asset.AssetAttribute;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.datapoint.AssetDatapoint;
+import org.openremote.model.datapoint.DatapointInterval;
+import org.openremote.model.datapoint.NumberDatapoint;
+import org.openremote.model.value.Value;
+import org.openremote.model.value.ValueType;
+import org.openremote.model.value.Values;
+
+import javax.persistence.EntityManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the datapoints of an attribute as compressed chunks, one row of <code>ASSET_DATAPOINT_CHUNK</code>
+ * per attribute and chunk period instead of one <code>ASSET_DATAPOINT</code> row per datapoint.
+ * <p>
+ * Each attribute has a series in <code>ASSET_DATAPOINT_SERIES</code>. Datapoints are appended to an in-memory
+ * chunk encoded with {@link DatapointChunkCodec}, dirty chunks are written with a periodic {@link #flush}. Only
+ * the latest chunk of each series stays in memory after a flush. Out-of-order datapoints are merged into their
+ * (possibly already stored) chunk, a datapoint with the same timestamp as an existing datapoint replaces it.
+ * <p>
+ * Datapoints are held per transaction of the attribute update and only appended to their chunk when it commits,
+ * see {@link #getTransactionMark} for rolling back to a savepoint. The transaction of the update is only used
+ * to read, a new series row is inserted with it and the series is shared after the commit. A chunk which isn't
+ * in memory when a committed datapoint is appended is merged with the stored chunk on flush. A crash may lose the
+ * datapoints committed since the last flush. Reads flush the series first and always see all datapoints.
+ * <p>
+ * Only number and boolean values can be encoded, datapoints with any other value are stored in the
+ * {@link TableAssetDatapointStore}. Reads and purges cover both stores.
+ */
+public class ChunkedAssetDatapointStore implements AssetDatapointStore {
+
+    private static final Logger LOG = Logger.getLogger(ChunkedAssetDatapointStore.class.getName());
+
+    public static final String INSERT_SERIES_SQL =
+        "insert into ASSET_DATAPOINT_SERIES (ENTITY_ID, ATTRIBUTE_NAME, VALUE_TYPE) values (?, ?, ?) " +
+            "on conflict (ENTITY_ID, ATTRIBUTE_NAME) do nothing";
+
+    public static final String SELECT_SERIES_SQL =
+        "select ID, VALUE_TYPE from ASSET_DATAPOINT_SERIES where ENTITY_ID = ? and ATTRIBUTE_NAME = ?";
+
+    /**
+     * Chunks of series which have been deleted (with their asset) are ignored.
+     */
+    public static final String UPSERT_CHUNK_SQL =
+        "insert into ASSET_DATAPOINT_CHUNK (SERIES_ID, CHUNK_START, FIRST_TIMESTAMP, LAST_TIMESTAMP, POINT_COUNT, DATA) " +
+            "select ?, ?, ?, ?, ?, ? where exists (select S.ID from ASSET_DATAPOINT_SERIES S where S.ID = ?) " +
+            "on conflict (SERIES_ID, CHUNK_START) do update set " +
+            "FIRST_TIMESTAMP = excluded.FIRST_TIMESTAMP, LAST_TIMESTAMP = excluded.LAST_TIMESTAMP, " +
+            "POINT_COUNT = excluded.POINT_COUNT, DATA = excluded.DATA";
+
+    /**
+     * Includes the attributes with datapoints in the table store.
+     */
+    public static final String SELECT_SERIES_AFTER_SQL =
+        "select ENTITY_ID, ATTRIBUTE_NAME from ASSET_DATAPOINT_SERIES " +
+            "where (ENTITY_ID, ATTRIBUTE_NAME) > (?, ?) " +
+            "union " +
+            "select ENTITY_ID, ATTRIBUTE_NAME from ASSET_DATAPOINT " +
+            "where (ENTITY_ID, ATTRIBUTE_NAME) > (?, ?) " +
+            "order by ENTITY_ID, ATTRIBUTE_NAME limit ?";
+
+    /**
+     * Only chunks which are completely older than the given timestamp are deleted.
+     */
+    public static final String PURGE_CHUNKS_SQL =
+        "delete from ASSET_DATAPOINT_CHUNK where ctid = any(array(" +
+            "select C.ctid from ASSET_DATAPOINT_CHUNK C join ASSET_DATAPOINT_SERIES S on S.ID = C.SERIES_ID " +
+            "where S.ENTITY_ID = ? and S.ATTRIBUTE_NAME = ? and C.LAST_TIMESTAMP < ? limit ?" +
+            "))";
+
+    public static final String SELECT_CHUNK_SQL =
+        "select FIRST_TIMESTAMP, LAST_TIMESTAMP, POINT_COUNT, DATA from ASSET_DATAPOINT_CHUNK " +
+            "where SERIES_ID = ? and CHUNK_START = ?";
+
+    public static final String SELECT_CHUNKS_SQL =
+        "select C.FIRST_TIMESTAMP, C.LAST_TIMESTAMP, C.POINT_COUNT, C.DATA from ASSET_DATAPOINT_CHUNK C " +
+            "join ASSET_DATAPOINT_SERIES S on S.ID = C.SERIES_ID " +
+            "where S.ENTITY_ID = ? and S.ATTRIBUTE_NAME = ? and C.LAST_TIMESTAMP >= ? and C.FIRST_TIMESTAMP <= ? " +
+            "order by C.CHUNK_START asc";
+
+    /**
+     * An immutable, encoded chunk.
+     */
+    protected static class ChunkData {
+        final protected long chunkStart;
+        final protected long firstTimestamp;
+        final protected long lastTimestamp;
+        final protected int count;
+        final protected byte[] data;
+
+        public ChunkData(long chunkStart, long firstTimestamp, long lastTimestamp, int count, byte[] data) {
+            this.chunkStart = chunkStart;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+            this.count = count;
+            this.data = data;
+        }
+
+        public void decode(DatapointChunkCodec.DatapointConsumer consumer) {
+            DatapointChunkCodec.decode(data, count, consumer);
+        }
+    }
+
+    /**
+     * A chunk which can be appended to, guarded by the lock of its {@link Series}.
+     */
+    protected static class Chunk {
+        final protected long chunkStart;
+        protected DatapointChunkCodec.Encoder encoder = new DatapointChunkCodec.Encoder();
+        protected long firstTimestamp;
+        protected boolean dirty;
+        // Incremented on every modification, a flush only marks the chunk clean if it wasn't modified meanwhile
+        protected long modifications;
+        // Not merged with the stored chunk yet, only holds the datapoints added since it was created in memory
+        protected boolean loaded;
+
+        public Chunk(long chunkStart) {
+            this.chunkStart = chunkStart;
+        }
+
+        /**
+         * Merge the stored datapoints, a datapoint in memory replaces a stored datapoint with the same timestamp.
+         */
+        public void merge(ChunkData stored) {
+            if (stored != null && stored.count > 0) {
+                TreeMap<Long, Double> datapoints = new TreeMap<>();
+                stored.decode(datapoints::put);
+                DatapointChunkCodec.decode(encoder.toByteArray(), encoder.getCount(), datapoints::put);
+                encoder = new DatapointChunkCodec.Encoder();
+                datapoints.forEach(this::append);
+            }
+            loaded = true;
+        }
+
+        public boolean contains(long timestamp) {
+            if (encoder.getCount() == 0 || timestamp < firstTimestamp || timestamp > encoder.getLastTimestamp())
+                return false;
+            boolean[] found = new boolean[1];
+            DatapointChunkCodec.decode(encoder.toByteArray(), encoder.getCount(), (t, value) -> {
+                if (t == timestamp) {
+                    found[0] = true;
+                }
+            });
+            return found[0];
+        }
+
+        /**
+         * @return <code>false</code> if a datapoint with the same timestamp has been replaced.
+         */
+        public boolean add(long timestamp, double value) {
+            boolean added = true;
+            if (encoder.getCount() == 0 || timestamp > encoder.getLastTimestamp()) {
+                append(timestamp, value);
+            } else {
+                // Out of order or duplicate timestamp, re-encode the whole chunk
+                TreeMap<Long, Double> datapoints = new TreeMap<>();
+                DatapointChunkCodec.decode(encoder.toByteArray(), encoder.getCount(), datapoints::put);
+                added = datapoints.put(timestamp, value) == null;
+                encoder = new DatapointChunkCodec.Encoder();
+                datapoints.forEach(this::append);
+            }
+            dirty = true;
+            modifications++;
+            return added;
+        }
+
+        protected void append(long timestamp, double value) {
+            if (encoder.getCount() == 0) {
+                firstTimestamp = timestamp;
+            }
+            encoder.append(timestamp, value);
+        }
+
+        public ChunkData toChunkData() {
+            return new ChunkData(
+                chunkStart, firstTimestamp, encoder.getLastTimestamp(), encoder.getCount(), encoder.toByteArray()
+            );
+        }
+    }
+
+    protected static class Series {
+        final protected long id;
+        final protected ValueType valueType;
+        final protected NavigableMap<Long, Chunk> chunks = new TreeMap<>();
+
+        public Series(long id, ValueType valueType) {
+            this.id = id;
+            this.valueType = valueType;
+        }
+    }
+
+    /**
+     * A datapoint stored in a transaction which hasn't committed yet.
+     */
+    protected static class PendingDatapoint {
+        final protected AttributeRef attributeRef;
+        final protected Series series;
+        final protected long timestamp;
+        final protected double value;
+
+        public PendingDatapoint(AttributeRef attributeRef, Series series, long timestamp, double value) {
+            this.attributeRef = attributeRef;
+            this.series = series;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A dirty chunk being written, the data is encoded after the chunk has been merged with the stored chunk.
+     */
+    protected static class FlushingChunk {
+        final protected AttributeRef attributeRef;
+        final protected Series series;
+        final protected Chunk chunk;
+        protected long modifications;
+        protected ChunkData data;
+
+        public FlushingChunk(AttributeRef attributeRef, Series series, Chunk chunk) {
+            this.attributeRef = attributeRef;
+            this.series = series;
+            this.chunk = chunk;
+        }
+
+        /**
+         * Call with the lock of the series.
+         */
+        public void encode() {
+            modifications = chunk.modifications;
+            data = chunk.toChunkData();
+        }
+    }
+
+    final protected PersistenceService persistenceService;
+    final protected TableAssetDatapointStore tableStore;
+    final protected long chunkPeriodMillis;
+    final protected Map<AttributeRef, Series> series = new ConcurrentHashMap<>();
+    final protected AfterCommitBuffer<PendingDatapoint> uncommitted = new AfterCommitBuffer<>(this::addCommitted);
+    final protected AtomicLong storedCount = new AtomicLong();
+    final protected AtomicLong flushedChunkCount = new AtomicLong();
+
+    public ChunkedAssetDatapointStore(PersistenceService persistenceService, long chunkPeriodMillis) {
+        if (chunkPeriodMillis <= 0)
+            throw new IllegalArgumentException("Chunk period must be positive: " + chunkPeriodMillis);
+        this.persistenceService = persistenceService;
+        this.tableStore = new TableAssetDatapointStore(persistenceService);
+        this.chunkPeriodMillis = chunkPeriodMillis;
+    }
+
+    @Override
+    public boolean storeDatapoint(EntityManager em, AssetDatapoint datapoint) {
+        Value value = datapoint.getValue();
+        if (value == null)
+            return false;
+        Optional<Double> number = DatapointBuckets.toNumber(value);
+        if (!number.isPresent()) {
+            return tableStore.storeDatapoint(em, datapoint);
+        }
+        AttributeRef attributeRef = new AttributeRef(datapoint.getEntityId(), datapoint.getAttributeName());
+        long timestamp = datapoint.getTimestamp();
+        Series s = getSeries(em, attributeRef, value.getType());
+        boolean added = !containsDatapoint(em, s, timestamp);
+        uncommitted.add(em, new PendingDatapoint(attributeRef, s, timestamp, number.get()));
+        return added;
+    }
+
+    /**
+     * @return The mark of the datapoints stored in the transaction, pass it to {@link #rollbackToMark} when
+     * rolling back to a savepoint.
+     */
+    @Override
+    public int getTransactionMark(EntityManager em) {
+        return uncommitted.getMark(em);
+    }
+
+    /**
+     * Forget the datapoints stored in the transaction after the mark.
+     */
+    @Override
+    public void rollbackToMark(EntityManager em, int mark) {
+        uncommitted.rollbackToMark(em, mark);
+    }
+
+    protected void addCommitted(List<PendingDatapoint> datapoints) {
+        for (PendingDatapoint datapoint : datapoints) {
+            Series s = series.computeIfAbsent(datapoint.attributeRef, attributeRef -> datapoint.series);
+            synchronized (s) {
+                // Merged with the stored chunk on flush if it's not in memory
+                s.chunks.computeIfAbsent(getChunkStart(datapoint.timestamp), Chunk::new)
+                    .add(datapoint.timestamp, datapoint.value);
+            }
+            storedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Datapoints stored earlier in the same transaction aren't considered. The stored chunk is read with the
+     * transaction of the update if the chunk in memory doesn't have all datapoints, without the lock of the series.
+     */
+    protected boolean containsDatapoint(EntityManager em, Series s, long timestamp) {
+        long chunkStart = getChunkStart(timestamp);
+        synchronized (s) {
+            Chunk chunk = s.chunks.get(chunkStart);
+            if (chunk != null && chunk.contains(timestamp))
+                return true;
+            if (chunk != null && chunk.loaded)
+                return false;
+        }
+        ChunkData stored = loadChunk(em, s.id, chunkStart);
+        if (stored == null)
+            return false;
+        Chunk chunk = new Chunk(chunkStart);
+        chunk.merge(stored);
+        return chunk.contains(timestamp);
+    }
+
+    @Override
+    public List<AssetDatapoint> getDatapoints(AttributeRef attributeRef) {
+        ValueType valueType = flush(attributeRef);
+        List<AssetDatapoint> tableDatapoints = tableStore.getDatapoints(attributeRef);
+        if (valueType == null)
+            return tableDatapoints;
+        List<AssetDatapoint> result = new ArrayList<>(tableDatapoints);
+        for (ChunkData chunkData : loadChunks(attributeRef, Long.MIN_VALUE, Long.MAX_VALUE)) {
+            chunkData.decode((timestamp, value) -> result.add(
+                new AssetDatapoint(attributeRef, toValue(valueType, value), timestamp)
+            ));
+        }
+        // The value type of the attribute might have changed, there can be datapoints in both stores
+        result.sort(Comparator.comparingLong(AssetDatapoint::getTimestamp).reversed());
+        return result;
+    }
+
+    @Override
+    public NumberDatapoint[] aggregateDatapoints(AssetAttribute attribute,
+                                                 DatapointInterval datapointInterval,
+                                                 long timestamp) {
+        LOG.fine("Aggregating datapoints for: " + attribute);
+
+        switch (attribute.getTypeOrThrow().getValueType()) {
+            case NUMBER:
+            case BOOLEAN:
+                break;
+            default:
+                throw new IllegalArgumentException("Can't aggregate number datapoints for type of: " + attribute);
+        }
+
+        AttributeRef attributeRef = attribute.getReferenceOrThrow();
+        if (flush(attributeRef) == null)
+            return tableStore.aggregateDatapoints(attribute, datapointInterval, timestamp);
+
+        DatapointBuckets buckets = new DatapointBuckets(datapointInterval, timestamp);
+        for (ChunkData chunkData : loadChunks(attributeRef, buckets.getStartMillis(), buckets.getEndMillis())) {
+            chunkData.decode(buckets::add);
+        }
+        return buckets.toNumberDatapoints();
+    }
+
+    @Override
+    public List<AttributeRef> getAttributeRefs(EntityManager em, AttributeRef after, int limit) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_SERIES_AFTER_SQL)) {
+                statement.setString(1, after != null ? after.getEntityId() : "");
+                statement.setString(2, after != null ? after.getAttributeName() : "");
+                statement.setString(3, after != null ? after.getEntityId() : "");
+                statement.setString(4, after != null ? after.getAttributeName() : "");
+                statement.setInt(5, limit);
+                List<AttributeRef> result = new ArrayList<>();
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(new AttributeRef(rs.getString(1), rs.getString(2)));
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    @Override
+    public int readDatapoints(EntityManager em,
+                              AttributeRef attributeRef,
+                              long afterTimestamp,
+                              long beforeTimestamp,
+                              int limit,
+                              DatapointChunkCodec.DatapointConsumer consumer) {
+        if (flush(attributeRef) == null)
+            return tableStore.readDatapoints(em, attributeRef, afterTimestamp, beforeTimestamp, limit, consumer);
+        int[] count = new int[1];
+        for (ChunkData chunkData : loadChunks(em, attributeRef, afterTimestamp, beforeTimestamp)) {
+            chunkData.decode((timestamp, value) -> {
+                if (timestamp > afterTimestamp && timestamp < beforeTimestamp && count[0] < limit) {
+                    consumer.accept(timestamp, value);
+                    count[0]++;
+                }
+            });
+            if (count[0] >= limit)
+                break;
+        }
+        return count[0];
+    }
+
+    @Override
+    public int purgeDatapoints(EntityManager em, AttributeRef attributeRef, long beforeTimestamp, int limit) {
+        int purged = tableStore.purgeDatapoints(em, attributeRef, beforeTimestamp, limit);
+        if (purged >= limit)
+            return purged;
+        return purged + em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(PURGE_CHUNKS_SQL)) {
+                statement.setString(1, attributeRef.getEntityId());
+                statement.setString(2, attributeRef.getAttributeName());
+                statement.setLong(3, beforeTimestamp);
+                statement.setInt(4, limit - purged);
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Write all dirty chunks in a new transaction.
+     */
+    @Override
+    public void flush() {
+        flush(series.keySet());
+    }
+
+    /**
+     * Write the dirty chunks of an attribute in a new transaction.
+     *
+     * @return The value type of the series or <code>null</code> if the attribute has no datapoints in memory.
+     */
+    protected ValueType flush(AttributeRef attributeRef) {
+        Series s = series.get(attributeRef);
+        if (s == null)
+            return loadSeriesValueType(attributeRef);
+        flush(Collections.singleton(attributeRef));
+        return s.valueType;
+    }
+
+    protected void flush(Collection<AttributeRef> attributeRefs) {
+        List<FlushingChunk> flushing = new ArrayList<>();
+        for (AttributeRef attributeRef : attributeRefs) {
+            Series s = series.get(attributeRef);
+            if (s == null)
+                continue;
+            synchronized (s) {
+                for (Chunk chunk : s.chunks.values()) {
+                    if (!chunk.dirty)
+                        continue;
+                    FlushingChunk flushingChunk = new FlushingChunk(attributeRef, s, chunk);
+                    if (chunk.loaded) {
+                        flushingChunk.encode();
+                    }
+                    flushing.add(flushingChunk);
+                }
+            }
+        }
+        if (flushing.isEmpty())
+            return;
+
+        long startTime = System.currentTimeMillis();
+        int[] updateCounts;
+        try {
+            updateCounts = persistenceService.doReturningTransaction(em -> {
+                for (FlushingChunk flushingChunk : flushing) {
+                    if (flushingChunk.data != null)
+                        continue;
+                    ChunkData stored = loadChunk(em, flushingChunk.series.id, flushingChunk.chunk.chunkStart);
+                    synchronized (flushingChunk.series) {
+                        flushingChunk.chunk.merge(stored);
+                        flushingChunk.encode();
+                    }
+                }
+                return em.unwrap(Session.class).doReturningWork(connection -> {
+                    try (PreparedStatement statement = connection.prepareStatement(UPSERT_CHUNK_SQL)) {
+                        for (FlushingChunk flushingChunk : flushing) {
+                            ChunkData chunkData = flushingChunk.data;
+                            long seriesId = flushingChunk.series.id;
+                            statement.setLong(1, seriesId);
+                            statement.setLong(2, chunkData.chunkStart);
+                            statement.setLong(3, chunkData.firstTimestamp);
+                            statement.setLong(4, chunkData.lastTimestamp);
+                            statement.setInt(5, chunkData.count);
+                            statement.setBytes(6, chunkData.data);
+                            statement.setLong(7, seriesId);
+                            statement.addBatch();
+                        }
+                        return statement.executeBatch();
+                    }
+                });
+            });
+        } catch (Exception ex) {
+            // Chunks stay dirty and are written with the next flush, merged chunks stay merged
+            LOG.log(Level.WARNING, "Flushing " + flushing.size() + " datapoint chunks failed", ex);
+            return;
+        }
+
+        Set<Long> deletedSeries = new HashSet<>();
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] == 0) {
+                deletedSeries.add(flushing.get(i).series.id);
+            }
+        }
+
+        Map<AttributeRef, List<FlushingChunk>> flushed = new HashMap<>();
+        for (FlushingChunk flushingChunk : flushing) {
+            flushed.computeIfAbsent(flushingChunk.attributeRef, ref -> new ArrayList<>()).add(flushingChunk);
+        }
+        flushed.forEach((attributeRef, chunks) -> {
+            Series s = series.get(attributeRef);
+            if (s == null)
+                return;
+            if (deletedSeries.contains(s.id)) {
+                LOG.fine("Dropping datapoints of deleted series: " + attributeRef);
+                series.remove(attributeRef);
+                return;
+            }
+            synchronized (s) {
+                if (s.chunks.isEmpty())
+                    return;
+                for (FlushingChunk flushingChunk : chunks) {
+                    if (flushingChunk.chunk.modifications == flushingChunk.modifications) {
+                        flushingChunk.chunk.dirty = false;
+                    }
+                }
+                // Keep only the latest and any re-dirtied chunks in memory
+                Long latest = s.chunks.lastKey();
+                s.chunks.values().removeIf(chunk -> !chunk.dirty && chunk.chunkStart != latest);
+            }
+        });
+
+        flushedChunkCount.addAndGet(flushing.size());
+        LOG.fine("Flushed " + flushing.size() + " datapoint chunks in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * A series which isn't in memory is read (and inserted if missing) with the transaction of the update, it's
+     * only added to the map when a datapoint of the transaction commits.
+     */
+    protected Series getSeries(EntityManager em, AttributeRef attributeRef, ValueType valueType) {
+        Series s = series.get(attributeRef);
+        return s != null ? s : loadSeries(em, attributeRef, valueType);
+    }
+
+    protected Series loadSeries(EntityManager em, AttributeRef ref, ValueType valueType) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SERIES_SQL)) {
+                statement.setString(1, ref.getEntityId());
+                statement.setString(2, ref.getAttributeName());
+                statement.setString(3, valueType.name());
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_SERIES_SQL)) {
+                statement.setString(1, ref.getEntityId());
+                statement.setString(2, ref.getAttributeName());
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (!rs.next())
+                        throw new IllegalStateException("Datapoint series not found after insert: " + ref);
+                    return new Series(rs.getLong(1), ValueType.valueOf(rs.getString(2)));
+                }
+            }
+        });
+    }
+
+    protected ValueType loadSeriesValueType(AttributeRef attributeRef) {
+        return persistenceService.doReturningTransaction(em ->
+            em.unwrap(Session.class).doReturningWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(SELECT_SERIES_SQL)) {
+                    statement.setString(1, attributeRef.getEntityId());
+                    statement.setString(2, attributeRef.getAttributeName());
+                    try (ResultSet rs = statement.executeQuery()) {
+                        return rs.next() ? ValueType.valueOf(rs.getString(2)) : null;
+                    }
+                }
+            })
+        );
+    }
+
+    /**
+     * @return The stored chunk or <code>null</code>.
+     */
+    protected ChunkData loadChunk(EntityManager em, long seriesId, long chunkStart) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_CHUNK_SQL)) {
+                statement.setLong(1, seriesId);
+                statement.setLong(2, chunkStart);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (!rs.next())
+                        return null;
+                    return new ChunkData(chunkStart, rs.getLong(1), rs.getLong(2), rs.getInt(3), rs.getBytes(4));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The stored chunks which may contain datapoints within the given range, oldest first.
+     */
+    protected List<ChunkData> loadChunks(AttributeRef attributeRef, long fromTimestamp, long toTimestamp) {
+        return persistenceService.doReturningTransaction(em -> loadChunks(em, attributeRef, fromTimestamp, toTimestamp));
+    }
+
+    protected List<ChunkData> loadChunks(EntityManager em, AttributeRef attributeRef, long fromTimestamp, long toTimestamp) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_CHUNKS_SQL)) {
+                statement.setString(1, attributeRef.getEntityId());
+                statement.setString(2, attributeRef.getAttributeName());
+                statement.setLong(3, fromTimestamp);
+                statement.setLong(4, toTimestamp);
+                List<ChunkData> result = new ArrayList<>();
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(new ChunkData(0, rs.getLong(1), rs.getLong(2), rs.getInt(3), rs.getBytes(4)));
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    protected long getChunkStart(long timestamp) {
+        return timestamp - Math.floorMod(timestamp, chunkPeriodMillis);
+    }
+
+    protected static Value toValue(ValueType valueType, double value) {
+        return valueType == ValueType.BOOLEAN ? Values.create(value != 0) : Values.create(value);
+    }
+
+    public int getSeriesCount() {
+        return series.size();
+    }
+
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
+    public long getFlushedChunkCount() {
+        return flushedChunkCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "chunkPeriodMillis=" + chunkPeriodMillis +
+            ", series=" + getSeriesCount() +
+            ", stored=" + getStoredCount() +
+            ", flushedChunks=" + getFlushedChunkCount() +
+            ", uncommittedTransactions=" + uncommitted.getTransactionCount() +
+            '}';
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.openremote.model.datapoint.DatapointInterval;
+import org.openremote.model.datapoint.NumberDatapoint;
+import org.openremote.model.value.Value;
+import org.openremote.model.value.Values;
+
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Computes the averaged chart steps of a {@link DatapointInterval} in memory, with the same step boundaries
+ * and labels as the SQL aggregation of {@link TableAssetDatapointStore}.
+ */
+public class DatapointBuckets {
+
+    final protected DatapointInterval datapointInterval;
+    final protected ZonedDateTime start;
+    final protected ZonedDateTime end;
+    final protected SimpleDateFormat labelFormat;
+    final protected Map<Long, double[]> buckets = new LinkedHashMap<>();
+
+    public DatapointBuckets(DatapointInterval datapointInterval, long timestamp) {
+        this(datapointInterval, timestamp, ZoneId.systemDefault());
+    }
+
+    public DatapointBuckets(DatapointInterval datapointInterval, long timestamp, ZoneId zone) {
+        this.datapointInterval = datapointInterval;
+        // Aggregation works on second precision
+        this.end = Instant.ofEpochSecond(timestamp / 1000).atZone(zone);
+        switch (datapointInterval) {
+            case HOUR:
+                start = end.minusHours(1);
+                labelFormat = new SimpleDateFormat("HH:mm");
+                break;
+            case DAY:
+                start = end.minusDays(1);
+                labelFormat = new SimpleDateFormat("HH:mm");
+                break;
+            case WEEK:
+                start = end.minusDays(7);
+                labelFormat = new SimpleDateFormat("dd. MMM yyyy");
+                break;
+            case MONTH:
+                start = end.minusMonths(1);
+                labelFormat = new SimpleDateFormat("dd. MMM yyyy");
+                break;
+            case YEAR:
+                start = end.minusYears(1);
+                labelFormat = new SimpleDateFormat("dd. MMM yyyy");
+                break;
+            default:
+                throw new IllegalArgumentException("Can't handle interval: " + datapointInterval);
+        }
+        for (ZonedDateTime step = start; !step.isAfter(end); step = nextStep(step)) {
+            buckets.putIfAbsent(truncate(step).toInstant().toEpochMilli(), new double[2]);
+        }
+    }
+
+    /**
+     * @return The first millisecond of the interval.
+     */
+    public long getStartMillis() {
+        return start.toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return The last millisecond of the interval.
+     */
+    public long getEndMillis() {
+        return end.toInstant().toEpochMilli() + 999;
+    }
+
+    /**
+     * Adds a datapoint value to its step, values outside of the interval are ignored.
+     */
+    public void add(long timestamp, double value) {
+        add(timestamp, value, 1);
+    }
+
+    /**
+     * Adds the sum of several datapoint values to the step of the timestamp.
+     */
+    public void add(long timestamp, double sum, long count) {
+        if (timestamp < getStartMillis() || timestamp > getEndMillis())
+            return;
+        double[] bucket = buckets.get(getStepStartMillis(timestamp));
+        if (bucket != null) {
+            bucket[0] += sum;
+            bucket[1] += count;
+        }
+    }
+
+    /**
+     * Adds the sum of several datapoint values to the step of the timestamp, also when the timestamp is in the
+     * first step but before the start of the interval.
+     */
+    public void addToStep(long timestamp, double sum, long count) {
+        double[] bucket = buckets.get(getStepStartMillis(timestamp));
+        if (bucket != null) {
+            bucket[0] += sum;
+            bucket[1] += count;
+        }
+    }
+
+    /**
+     * @return The truncated start of the step containing the timestamp.
+     */
+    public long getStepStartMillis(long timestamp) {
+        return truncate(Instant.ofEpochMilli(timestamp).atZone(end.getZone())).toInstant().toEpochMilli();
+    }
+
+    public NumberDatapoint[] toNumberDatapoints() {
+        NumberDatapoint[] result = new NumberDatapoint[buckets.size()];
+        int i = 0;
+        for (Map.Entry<Long, double[]> bucket : buckets.entrySet()) {
+            double[] sumAndCount = bucket.getValue();
+            result[i++] = new NumberDatapoint(
+                labelFormat.format(new Date(bucket.getKey())),
+                sumAndCount[1] > 0 ? sumAndCount[0] / sumAndCount[1] : null
+            );
+        }
+        return result;
+    }
+
+    /**
+     * @return The aggregated value of a datapoint, <code>1</code> or <code>0</code> for booleans.
+     */
+    public static Optional<Double> toNumber(Value value) {
+        if (value == null)
+            return Optional.empty();
+        switch (value.getType()) {
+            case NUMBER:
+                return Values.getNumber(value);
+            case BOOLEAN:
+                return Values.getBoolean(value).map(bool -> bool ? 1d : 0d);
+            default:
+                return Optional.empty();
+        }
+    }
+
+    protected ZonedDateTime nextStep(ZonedDateTime step) {
+        switch (datapointInterval) {
+            case HOUR:
+                return step.plusMinutes(1);
+            case DAY:
+                return step.plusHours(1);
+            case WEEK:
+            case MONTH:
+                return step.plusDays(1);
+            default:
+                return step.plusMonths(1);
+        }
+    }
+
+    protected ZonedDateTime truncate(ZonedDateTime time) {
+        switch (datapointInterval) {
+            case HOUR:
+                return time.truncatedTo(ChronoUnit.MINUTES);
+            case DAY:
+                return time.truncatedTo(ChronoUnit.HOURS);
+            case WEEK:
+            case MONTH:
+                return time.truncatedTo(ChronoUnit.DAYS);
+            default:
+                return time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS);
+        }
+    }
+}
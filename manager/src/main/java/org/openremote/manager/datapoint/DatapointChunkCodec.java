@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import java.util.Arrays;
+
+/**
+ * Compresses a series of (timestamp, double) pairs into a bit stream.
+ * <p>
+ * Timestamps (milliseconds) are stored as delta-of-delta with variable length prefixes, values are XOR'ed
+ * with the previous value and only the meaningful bits are stored. Regularly sampled sensors with slowly
+ * changing values typically compress to one or two bytes per datapoint. Timestamps must be appended in
+ * ascending order, equal timestamps are allowed.
+ */
+public class DatapointChunkCodec {
+
+    /**
+     * Appends datapoints to a growing bit stream.
+     */
+    public static class Encoder {
+
+        final protected BitWriter out = new BitWriter();
+        protected int count;
+        protected long previousTimestamp;
+        protected long previousDelta;
+        protected long previousValueBits;
+        protected int previousLeadingZeros = Integer.MAX_VALUE;
+        protected int previousTrailingZeros;
+
+        public void append(long timestamp, double value) {
+            long valueBits = Double.doubleToRawLongBits(value);
+            if (count == 0) {
+                out.write(timestamp, 64);
+                out.write(valueBits, 64);
+            } else {
+                if (timestamp < previousTimestamp)
+                    throw new IllegalArgumentException("Timestamp must not be before previous timestamp: " + timestamp);
+                long delta = timestamp - previousTimestamp;
+                writeDeltaOfDelta(delta - previousDelta);
+                previousDelta = delta;
+                writeValue(valueBits);
+            }
+            previousTimestamp = timestamp;
+            previousValueBits = valueBits;
+            count++;
+        }
+
+        protected void writeDeltaOfDelta(long deltaOfDelta) {
+            if (deltaOfDelta == 0) {
+                out.writeBit(false);
+            } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                out.write(0b10, 2);
+                out.write(deltaOfDelta, 7);
+            } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                out.write(0b110, 3);
+                out.write(deltaOfDelta, 9);
+            } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                out.write(0b1110, 4);
+                out.write(deltaOfDelta, 12);
+            } else {
+                out.write(0b1111, 4);
+                out.write(deltaOfDelta, 64);
+            }
+        }
+
+        protected void writeValue(long valueBits) {
+            long xor = valueBits ^ previousValueBits;
+            if (xor == 0) {
+                out.writeBit(false);
+                return;
+            }
+            out.writeBit(true);
+            int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+            if (previousLeadingZeros != Integer.MAX_VALUE
+                && leadingZeros >= previousLeadingZeros
+                && trailingZeros >= previousTrailingZeros) {
+                // Meaningful bits fit into the previous window
+                out.writeBit(false);
+                int significantBits = 64 - previousLeadingZeros - previousTrailingZeros;
+                out.write(xor >>> previousTrailingZeros, significantBits);
+            } else {
+                out.writeBit(true);
+                int significantBits = 64 - leadingZeros - trailingZeros;
+                out.write(leadingZeros, 5);
+                // A length of 64 is stored as 0, 0 can not occur as the XOR is not zero
+                out.write(significantBits == 64 ? 0 : significantBits, 6);
+                out.write(xor >>> trailingZeros, significantBits);
+                previousLeadingZeros = leadingZeros;
+                previousTrailingZeros = trailingZeros;
+            }
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getLastTimestamp() {
+            return previousTimestamp;
+        }
+
+        /**
+         * @return A copy of the encoded data, decode it with the current {@link #getCount()}.
+         */
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Receives decoded datapoints.
+     */
+    public interface DatapointConsumer {
+        void accept(long timestamp, double value);
+    }
+
+    public static void decode(byte[] data, int count, DatapointConsumer consumer) {
+        if (count <= 0)
+            return;
+        BitReader in = new BitReader(data);
+        long timestamp = in.read(64);
+        long valueBits = in.read(64);
+        consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+
+        long delta = 0;
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(in);
+            timestamp += delta;
+
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leadingZeros = (int) in.read(5);
+                    int significantBits = (int) in.read(6);
+                    if (significantBits == 0)
+                        significantBits = 64;
+                    trailingZeros = 64 - leadingZeros - significantBits;
+                }
+                int significantBits = 64 - leadingZeros - trailingZeros;
+                valueBits ^= in.read(significantBits) << trailingZeros;
+            }
+            consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+        }
+    }
+
+    protected static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit())
+            return 0;
+        if (!in.readBit())
+            return in.readSigned(7);
+        if (!in.readBit())
+            return in.readSigned(9);
+        if (!in.readBit())
+            return in.readSigned(12);
+        return in.read(64);
+    }
+
+    protected static class BitWriter {
+        protected byte[] buffer = new byte[64];
+        protected long bitPosition;
+
+        public void writeBit(boolean bit) {
+            int byteIndex = (int) (bitPosition >>> 3);
+            if (byteIndex >= buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            if (bit) {
+                buffer[byteIndex] |= (byte) (0x80 >>> (bitPosition & 7));
+            }
+            bitPosition++;
+        }
+
+        /**
+         * Writes the lowest <code>bits</code> of the value, most significant bit first.
+         */
+        public void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) == 1);
+            }
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (int) ((bitPosition + 7) >>> 3));
+        }
+    }
+
+    protected static class BitReader {
+        final protected byte[] buffer;
+        protected long bitPosition;
+
+        public BitReader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        public boolean readBit() {
+            int byteIndex = (int) (bitPosition >>> 3);
+            if (byteIndex >= buffer.length)
+                throw new IllegalStateException("Unexpected end of datapoint chunk data");
+            boolean bit = (buffer[byteIndex] & (0x80 >>> (bitPosition & 7))) != 0;
+            bitPosition++;
+            return bit;
+        }
+
+        public long read(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        public long readSigned(int bits) {
+            long value = read(bits);
+            // Sign extend, positive values up to 2^(bits-1) are stored without sign bit overlap
+            long max = 1L << (bits - 1);
+            return value > max ? value - (1L << bits) : value;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.asset.AssetMeta;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.util.TimeUtil;
+
+import javax.persistence.EntityManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes datapoints and datapoint rollups older than the maximum age configured on the attribute with
+ * {@link AssetMeta#DATA_POINTS_MAX_AGE}, {@link AssetMeta#DATA_POINTS_MINUTE_ROLLUP_MAX_AGE} and
+ * {@link AssetMeta#DATA_POINTS_HOUR_ROLLUP_MAX_AGE}.
+ * <p>
+ * Each {@link #run} deletes in batches of a bounded number of rows, each batch in its own short transaction, and
+ * stops when the configured maximum number of rows per run has been deleted. Remaining rows are deleted by the
+ * next run, which starts with the attribute after the one the previous run stopped at, so all attributes are
+ * eventually processed. Day rollups are small and kept forever.
+ * <p>
+ * Raw datapoints are only deleted once the rollups have been backfilled, so charts can still be aggregated from
+ * the rollups. If rollups are disabled, raw datapoints are deleted and charts lose their history, a warning is
+ * logged once.
+ */
+public class DatapointRetention {
+
+    private static final Logger LOG = Logger.getLogger(DatapointRetention.class.getName());
+
+    public static final String SELECT_POLICIES_SQL =
+        "select AM.ASSET_ID, AM.ATTRIBUTE_NAME, AM.VALUE #>> '{name}', AM.VALUE #>> '{value}' " +
+            "from ASSET_ATTRIBUTE_META AM " +
+            "where AM.VALUE #>> '{name}' in (?, ?, ?) " +
+            "order by AM.ASSET_ID, AM.ATTRIBUTE_NAME";
+
+    protected static class Policy {
+        protected long rawMaxAge;
+        protected long minuteRollupMaxAge;
+        protected long hourRollupMaxAge;
+    }
+
+    final protected PersistenceService persistenceService;
+    final protected AssetDatapointStore datapointStore;
+    final protected DatapointRollups rollups;
+    final protected int batchSize;
+    final protected int maxRowsPerRun;
+    final protected AtomicLong runCount = new AtomicLong();
+    final protected AtomicLong reclaimedCount = new AtomicLong();
+    protected volatile long lastRunReclaimedCount;
+    // Runs are not concurrent, the next run starts at this position of the policies
+    protected int nextPolicyIndex;
+    protected boolean warnedRollupsDisabled;
+
+    /**
+     * @param rollups May be <code>null</code> if rollups are disabled.
+     */
+    public DatapointRetention(PersistenceService persistenceService,
+                              AssetDatapointStore datapointStore,
+                              DatapointRollups rollups,
+                              int batchSize,
+                              int maxRowsPerRun) {
+        this.persistenceService = persistenceService;
+        this.datapointStore = datapointStore;
+        this.rollups = rollups;
+        this.batchSize = batchSize;
+        this.maxRowsPerRun = maxRowsPerRun;
+    }
+
+    /**
+     * @return The number of deleted rows.
+     */
+    public long run(long currentTimeMillis) {
+        long startTime = System.currentTimeMillis();
+        Map<AttributeRef, Policy> policies = persistenceService.doReturningTransaction(this::loadPolicies);
+        List<Map.Entry<AttributeRef, Policy>> entries = new ArrayList<>(policies.entrySet());
+        int startIndex = entries.isEmpty() ? 0 : nextPolicyIndex % entries.size();
+
+        boolean purgeRaw = rollups == null || rollups.isBackfillCompleted();
+        if (!purgeRaw) {
+            LOG.fine("Not purging raw datapoints until the datapoint rollups have been backfilled");
+        }
+
+        long[] reclaimed = new long[1];
+        for (int i = 0; i < entries.size(); i++) {
+            int index = (startIndex + i) % entries.size();
+            Map.Entry<AttributeRef, Policy> entry = entries.get(index);
+            AttributeRef attributeRef = entry.getKey();
+            Policy policy = entry.getValue();
+            if (purgeRaw && policy.rawMaxAge > 0) {
+                if (rollups == null && !warnedRollupsDisabled) {
+                    LOG.warning("Purging raw datapoints while datapoint rollups are disabled, charts lose the history of purged datapoints");
+                    warnedRollupsDisabled = true;
+                }
+                reclaimed[0] += purge(reclaimed[0], em ->
+                    datapointStore.purgeDatapoints(em, attributeRef, currentTimeMillis - policy.rawMaxAge, batchSize)
+                );
+            }
+            if (rollups != null && policy.minuteRollupMaxAge > 0) {
+                reclaimed[0] += purge(reclaimed[0], em -> rollups.purge(
+                    em, attributeRef, DatapointRollups.Tier.MINUTE, currentTimeMillis - policy.minuteRollupMaxAge, batchSize
+                ));
+            }
+            if (rollups != null && policy.hourRollupMaxAge > 0) {
+                reclaimed[0] += purge(reclaimed[0], em -> rollups.purge(
+                    em, attributeRef, DatapointRollups.Tier.HOUR, currentTimeMillis - policy.hourRollupMaxAge, batchSize
+                ));
+            }
+            if (reclaimed[0] >= maxRowsPerRun) {
+                nextPolicyIndex = index + 1;
+                break;
+            }
+        }
+
+        runCount.incrementAndGet();
+        reclaimedCount.addAndGet(reclaimed[0]);
+        lastRunReclaimedCount = reclaimed[0];
+        Level level = reclaimed[0] > 0 ? Level.INFO : Level.FINE;
+        LOG.log(level, "Datapoint retention of " + policies.size() + " attributes reclaimed "
+            + reclaimed[0] + " rows in " + (System.currentTimeMillis() - startTime) + "ms");
+        return reclaimed[0];
+    }
+
+    /**
+     * Delete batches until a batch is not full or the maximum rows per run have been deleted.
+     */
+    protected long purge(long alreadyReclaimed, ToIntFunction<EntityManager> batch) {
+        long reclaimed = 0;
+        while (alreadyReclaimed + reclaimed < maxRowsPerRun) {
+            int deleted = persistenceService.doReturningTransaction(batch::applyAsInt);
+            reclaimed += deleted;
+            if (deleted < batchSize)
+                break;
+        }
+        return reclaimed;
+    }
+
+    protected Map<AttributeRef, Policy> loadPolicies(EntityManager em) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            Map<AttributeRef, Policy> policies = new LinkedHashMap<>();
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_POLICIES_SQL)) {
+                statement.setString(1, AssetMeta.DATA_POINTS_MAX_AGE.getUrn());
+                statement.setString(2, AssetMeta.DATA_POINTS_MINUTE_ROLLUP_MAX_AGE.getUrn());
+                statement.setString(3, AssetMeta.DATA_POINTS_HOUR_ROLLUP_MAX_AGE.getUrn());
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        AttributeRef attributeRef = new AttributeRef(rs.getString(1), rs.getString(2));
+                        String name = rs.getString(3);
+                        String value = rs.getString(4);
+                        long maxAge;
+                        try {
+                            maxAge = value != null ? TimeUtil.parseTimeString(value) : 0;
+                        } catch (RuntimeException ex) {
+                            LOG.warning("Ignoring invalid '" + name + "' of " + attributeRef + ": " + value);
+                            continue;
+                        }
+                        // Stored before signed values were rejected by the meta item pattern
+                        if (maxAge < 0) {
+                            LOG.warning("Ignoring negative '" + name + "' of " + attributeRef + ": " + value);
+                            continue;
+                        }
+                        Policy policy = policies.computeIfAbsent(attributeRef, ref -> new Policy());
+                        if (AssetMeta.DATA_POINTS_MAX_AGE.getUrn().equals(name)) {
+                            policy.rawMaxAge = maxAge;
+                        } else if (AssetMeta.DATA_POINTS_MINUTE_ROLLUP_MAX_AGE.getUrn().equals(name)) {
+                            policy.minuteRollupMaxAge = maxAge;
+                        } else {
+                            policy.hourRollupMaxAge = maxAge;
+                        }
+                    }
+                }
+            }
+            return policies;
+        });
+    }
+
+    public long getRunCount() {
+        return runCount.get();
+    }
+
+    public long getReclaimedCount() {
+        return reclaimedCount.get();
+    }
+
+    public long getLastRunReclaimedCount() {
+        return lastRunReclaimedCount;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "runs=" + getRunCount() +
+            ", reclaimed=" + getReclaimedCount() +
+            ", lastRunReclaimed=" + getLastRunReclaimedCount() +
+            '}';
+    }
+}
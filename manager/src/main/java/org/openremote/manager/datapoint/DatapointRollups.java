@@ -0,0 +1,522 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.AfterCommitBuffer;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.datapoint.DatapointInterval;
+import org.openremote.model.datapoint.NumberDatapoint;
+
+import javax.persistence.EntityManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maintains the minimum, maximum, sum and count of datapoint values per attribute in minute, hour and day
+ * buckets of the <code>ASSET_DATAPOINT_ROLLUP</code> table, so charts don't have to aggregate raw datapoints.
+ * <p>
+ * Stored datapoints are accumulated in memory with {@link #add} when their transaction commits, and merged into
+ * the rollup rows with a periodic {@link #flush}. Bucket boundaries are truncated in the time zone of the server,
+ * like the steps of {@link DatapointBuckets}. Datapoints stored before rollups were enabled are added by a
+ * resumable backfill, call {@link #backfill} until it returns <code>false</code>; until then
+ * {@link #isBackfillCompleted} is <code>false</code> and charts must be aggregated from raw datapoints. While the
+ * backfill is running, datapoints with a timestamp before the backfill cutoff (the time rollups were enabled)
+ * are only merged if the backfill has already passed them, otherwise they are left to the backfill.
+ */
+public class DatapointRollups {
+
+    private static final Logger LOG = Logger.getLogger(DatapointRollups.class.getName());
+
+    public enum Tier {
+        MINUTE,
+        HOUR,
+        DAY
+    }
+
+    public static final String MERGE_ROLLUP_SQL =
+        "insert into ASSET_DATAPOINT_ROLLUP (ENTITY_ID, ATTRIBUTE_NAME, TIER, BUCKET_START, MIN_VALUE, MAX_VALUE, SUM_VALUE, POINT_COUNT) " +
+            "select ?, ?, ?, ?, ?, ?, ?, ? where exists (select A.ID from ASSET A where A.ID = ?) " +
+            "on conflict (ENTITY_ID, ATTRIBUTE_NAME, TIER, BUCKET_START) do update set " +
+            "MIN_VALUE = least(ASSET_DATAPOINT_ROLLUP.MIN_VALUE, excluded.MIN_VALUE), " +
+            "MAX_VALUE = greatest(ASSET_DATAPOINT_ROLLUP.MAX_VALUE, excluded.MAX_VALUE), " +
+            "SUM_VALUE = ASSET_DATAPOINT_ROLLUP.SUM_VALUE + excluded.SUM_VALUE, " +
+            "POINT_COUNT = ASSET_DATAPOINT_ROLLUP.POINT_COUNT + excluded.POINT_COUNT";
+
+    public static final String SELECT_ROLLUPS_SQL =
+        "select BUCKET_START, SUM_VALUE, POINT_COUNT from ASSET_DATAPOINT_ROLLUP " +
+            "where ENTITY_ID = ? and ATTRIBUTE_NAME = ? and TIER = ? and BUCKET_START >= ? and BUCKET_START <= ?";
+
+    public static final String PURGE_ROLLUPS_SQL =
+        "delete from ASSET_DATAPOINT_ROLLUP where ctid = any(array(" +
+            "select ctid from ASSET_DATAPOINT_ROLLUP where ENTITY_ID = ? and ATTRIBUTE_NAME = ? and TIER = ? and BUCKET_START < ? limit ?" +
+            "))";
+
+    public static final String INSERT_BACKFILL_SQL =
+        "insert into ASSET_DATAPOINT_ROLLUP_BACKFILL (ID, CUTOFF, COMPLETED) values (1, ?, false) " +
+            "on conflict (ID) do nothing";
+
+    public static final String SELECT_BACKFILL_SQL =
+        "select CUTOFF, COMPLETED, SERIES_ENTITY_ID, SERIES_ATTRIBUTE_NAME, SERIES_TIMESTAMP " +
+            "from ASSET_DATAPOINT_ROLLUP_BACKFILL where ID = 1 for update";
+
+    /**
+     * Has the backfill already read the datapoints of the attribute up to the timestamp, locks the backfill state
+     * until a running backfill batch has been committed.
+     */
+    public static final String SELECT_BACKFILL_PASSED_SQL =
+        "select COMPLETED or (SERIES_ENTITY_ID is not null and (" +
+            "(?, ?) < (SERIES_ENTITY_ID, SERIES_ATTRIBUTE_NAME) or " +
+            "((?, ?) = (SERIES_ENTITY_ID, SERIES_ATTRIBUTE_NAME) and SERIES_TIMESTAMP is not null and ? <= SERIES_TIMESTAMP)" +
+            ")) from ASSET_DATAPOINT_ROLLUP_BACKFILL where ID = 1 for share";
+
+    public static final String UPDATE_BACKFILL_SQL =
+        "update ASSET_DATAPOINT_ROLLUP_BACKFILL set COMPLETED = ?, SERIES_ENTITY_ID = ?, SERIES_ATTRIBUTE_NAME = ?, " +
+            "SERIES_TIMESTAMP = ? where ID = 1";
+
+    protected static class Bucket {
+        final protected AttributeRef attributeRef;
+        final protected Tier tier;
+        final protected long bucketStart;
+
+        public Bucket(AttributeRef attributeRef, Tier tier, long bucketStart) {
+            this.attributeRef = attributeRef;
+            this.tier = tier;
+            this.bucketStart = bucketStart;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Bucket that = (Bucket) o;
+            return bucketStart == that.bucketStart && tier == that.tier && attributeRef.equals(that.attributeRef);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(attributeRef, tier, bucketStart);
+        }
+    }
+
+    protected static class RollupDatapoint {
+        final protected AttributeRef attributeRef;
+        final protected long timestamp;
+        final protected double value;
+
+        public RollupDatapoint(AttributeRef attributeRef, long timestamp, double value) {
+            this.attributeRef = attributeRef;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    protected static class Accumulator {
+        protected double min = Double.POSITIVE_INFINITY;
+        protected double max = Double.NEGATIVE_INFINITY;
+        protected double sum;
+        protected long count;
+
+        public Accumulator add(double value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+            return this;
+        }
+
+        public Accumulator add(Accumulator other) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            count += other.count;
+            return this;
+        }
+    }
+
+    final protected PersistenceService persistenceService;
+    final protected AssetDatapointStore datapointStore;
+    final protected ZoneId zone;
+    final protected int backfillBatchSize;
+    // Accumulators are only mutated inside compute() of the map
+    final protected Map<Bucket, Accumulator> pending = new ConcurrentHashMap<>();
+    // Committed datapoints before the backfill cutoff, which might still be read by the backfill
+    final protected Queue<RollupDatapoint> late = new ConcurrentLinkedQueue<>();
+    final protected AfterCommitBuffer<RollupDatapoint> uncommitted = new AfterCommitBuffer<>(this::addCommitted);
+    final protected AtomicLong addedCount = new AtomicLong();
+    final protected AtomicLong flushedBucketCount = new AtomicLong();
+    final protected AtomicLong backfilledCount = new AtomicLong();
+    protected volatile long backfillCutoff = Long.MAX_VALUE;
+    protected volatile boolean backfillCompleted;
+
+    public DatapointRollups(PersistenceService persistenceService, AssetDatapointStore datapointStore, int backfillBatchSize) {
+        this(persistenceService, datapointStore, backfillBatchSize, ZoneId.systemDefault());
+    }
+
+    public DatapointRollups(PersistenceService persistenceService, AssetDatapointStore datapointStore, int backfillBatchSize, ZoneId zone) {
+        this.persistenceService = persistenceService;
+        this.datapointStore = datapointStore;
+        this.backfillBatchSize = backfillBatchSize;
+        this.zone = zone;
+    }
+
+    /**
+     * Loads the backfill state, on first start the current time becomes the backfill cutoff.
+     */
+    public void start(long currentTimeMillis) {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_BACKFILL_SQL)) {
+                statement.setLong(1, currentTimeMillis);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_BACKFILL_SQL);
+                 ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                backfillCutoff = rs.getLong(1);
+                backfillCompleted = rs.getBoolean(2);
+            }
+        }));
+        LOG.info("Datapoint rollups backfill " + (backfillCompleted ? "completed" : "pending") + ", cutoff: " + backfillCutoff);
+    }
+
+    /**
+     * Add the datapoint when the transaction of the entity manager commits.
+     */
+    public void add(EntityManager em, AttributeRef attributeRef, long timestamp, double value) {
+        uncommitted.add(em, new RollupDatapoint(attributeRef, timestamp, value));
+    }
+
+    /**
+     * @return The number of datapoints added in the transaction of the entity manager, pass it to
+     * {@link #rollbackToMark} when rolling back to a savepoint.
+     */
+    public int getTransactionMark(EntityManager em) {
+        return uncommitted.getMark(em);
+    }
+
+    /**
+     * Forget the datapoints added in the transaction of the entity manager after the mark.
+     */
+    public void rollbackToMark(EntityManager em, int mark) {
+        uncommitted.rollbackToMark(em, mark);
+    }
+
+    protected void addCommitted(List<RollupDatapoint> datapoints) {
+        for (RollupDatapoint datapoint : datapoints) {
+            if (!backfillCompleted && datapoint.timestamp < backfillCutoff) {
+                late.add(datapoint);
+            } else {
+                accumulate(pending, datapoint.attributeRef, datapoint.timestamp, datapoint.value);
+            }
+            addedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Merge the accumulated datapoints of all attributes into the rollups in a new transaction.
+     */
+    public void flush() {
+        flush(attributeRef -> true);
+    }
+
+    /**
+     * Merge the accumulated datapoints of an attribute into the rollups in a new transaction.
+     */
+    public void flush(AttributeRef attributeRef) {
+        flush(attributeRef::equals);
+    }
+
+    protected void flush(Predicate<AttributeRef> filter) {
+        Map<Bucket, Accumulator> drained = new HashMap<>();
+        for (Bucket bucket : pending.keySet()) {
+            if (!filter.test(bucket.attributeRef))
+                continue;
+            Accumulator accumulator = pending.remove(bucket);
+            if (accumulator != null) {
+                drained.put(bucket, accumulator);
+            }
+        }
+        List<RollupDatapoint> drainedLate = new ArrayList<>();
+        late.removeIf(datapoint -> filter.test(datapoint.attributeRef) && drainedLate.add(datapoint));
+        if (drained.isEmpty() && drainedLate.isEmpty())
+            return;
+        try {
+            persistenceService.doTransaction(em -> {
+                merge(em, drained);
+                mergeLate(em, drainedLate);
+            });
+            flushedBucketCount.addAndGet(drained.size());
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Flushing " + drained.size() + " datapoint rollup buckets failed", ex);
+            // Put the accumulators back, they are merged with the next flush
+            drained.forEach((bucket, accumulator) ->
+                pending.merge(bucket, accumulator, Accumulator::add)
+            );
+            late.addAll(drainedLate);
+        }
+    }
+
+    /**
+     * Merge the late datapoints which the backfill has already passed, the others are left to the backfill.
+     */
+    protected void mergeLate(EntityManager em, List<RollupDatapoint> datapoints) {
+        if (datapoints.isEmpty())
+            return;
+        Map<Bucket, Accumulator> accumulated = new HashMap<>();
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_BACKFILL_PASSED_SQL)) {
+                for (RollupDatapoint datapoint : datapoints) {
+                    statement.setString(1, datapoint.attributeRef.getEntityId());
+                    statement.setString(2, datapoint.attributeRef.getAttributeName());
+                    statement.setString(3, datapoint.attributeRef.getEntityId());
+                    statement.setString(4, datapoint.attributeRef.getAttributeName());
+                    statement.setLong(5, datapoint.timestamp);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        if (rs.next() && rs.getBoolean(1)) {
+                            accumulate(accumulated, datapoint.attributeRef, datapoint.timestamp, datapoint.value);
+                        }
+                    }
+                }
+            }
+        });
+        merge(em, accumulated);
+    }
+
+    /**
+     * Aggregate the rollups of the attribute, only valid when the backfill has been completed.
+     */
+    public NumberDatapoint[] aggregate(AttributeRef attributeRef, DatapointInterval datapointInterval, long timestamp) {
+        flush(attributeRef);
+        Tier tier = getTier(datapointInterval);
+        DatapointBuckets buckets = new DatapointBuckets(datapointInterval, timestamp, zone);
+        long fromBucket = buckets.getStepStartMillis(buckets.getStartMillis());
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_ROLLUPS_SQL)) {
+                statement.setString(1, attributeRef.getEntityId());
+                statement.setString(2, attributeRef.getAttributeName());
+                statement.setString(3, tier.name());
+                statement.setLong(4, fromBucket);
+                statement.setLong(5, buckets.getEndMillis());
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        buckets.addToStep(rs.getLong(1), rs.getDouble(2), rs.getLong(3));
+                    }
+                }
+            }
+        }));
+        return buckets.toNumberDatapoints();
+    }
+
+    /**
+     * Add a batch of datapoints stored before the backfill cutoff to the rollups, the batch and the backfill
+     * progress are committed in one transaction.
+     *
+     * @return <code>true</code> if there are more datapoints to backfill.
+     */
+    public boolean backfill() {
+        if (backfillCompleted)
+            return false;
+        return persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(connection -> {
+            AttributeRef series;
+            long seriesTimestamp;
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_BACKFILL_SQL);
+                 ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                if (rs.getBoolean(2)) {
+                    backfillCompleted = true;
+                    return false;
+                }
+                series = rs.getString(3) != null ? new AttributeRef(rs.getString(3), rs.getString(4)) : null;
+                seriesTimestamp = rs.getObject(5) != null ? rs.getLong(5) : Long.MIN_VALUE;
+            }
+
+            if (series == null) {
+                series = nextSeries(em, null);
+                seriesTimestamp = Long.MIN_VALUE;
+            }
+
+            long nextTimestamp = seriesTimestamp;
+            if (series != null) {
+                Map<Bucket, Accumulator> accumulated = new HashMap<>();
+                long[] lastTimestamp = new long[]{seriesTimestamp};
+                AttributeRef attributeRef = series;
+                int count = datapointStore.readDatapoints(
+                    em, series, seriesTimestamp, backfillCutoff, backfillBatchSize, (timestamp, value) -> {
+                        accumulate(accumulated, attributeRef, timestamp, value);
+                        lastTimestamp[0] = timestamp;
+                    }
+                );
+                merge(em, accumulated);
+                backfilledCount.addAndGet(count);
+                nextTimestamp = lastTimestamp[0];
+                if (count < backfillBatchSize) {
+                    LOG.fine("Backfilled datapoint rollups of: " + series);
+                    series = nextSeries(em, series);
+                    nextTimestamp = Long.MIN_VALUE;
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_BACKFILL_SQL)) {
+                statement.setBoolean(1, series == null);
+                statement.setString(2, series != null ? series.getEntityId() : null);
+                statement.setString(3, series != null ? series.getAttributeName() : null);
+                if (series != null && nextTimestamp != Long.MIN_VALUE) {
+                    statement.setLong(4, nextTimestamp);
+                } else {
+                    statement.setNull(4, Types.BIGINT);
+                }
+                statement.executeUpdate();
+            }
+            if (series == null) {
+                LOG.info("Datapoint rollups backfill completed, datapoints added: " + backfilledCount.get());
+                backfillCompleted = true;
+            }
+            return series != null;
+        }));
+    }
+
+    /**
+     * Delete a batch of rollup buckets of the tier starting before the given timestamp.
+     *
+     * @return The number of deleted rows.
+     */
+    public int purge(EntityManager em, AttributeRef attributeRef, Tier tier, long beforeTimestamp, int limit) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(PURGE_ROLLUPS_SQL)) {
+                statement.setString(1, attributeRef.getEntityId());
+                statement.setString(2, attributeRef.getAttributeName());
+                statement.setString(3, tier.name());
+                statement.setLong(4, beforeTimestamp);
+                statement.setInt(5, limit);
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    public boolean isBackfillCompleted() {
+        return backfillCompleted;
+    }
+
+    public static Tier getTier(DatapointInterval datapointInterval) {
+        switch (datapointInterval) {
+            case HOUR:
+                return Tier.MINUTE;
+            case DAY:
+                return Tier.HOUR;
+            default:
+                return Tier.DAY;
+        }
+    }
+
+    protected AttributeRef nextSeries(EntityManager em, AttributeRef after) {
+        List<AttributeRef> attributeRefs = datapointStore.getAttributeRefs(em, after, 1);
+        return attributeRefs.isEmpty() ? null : attributeRefs.get(0);
+    }
+
+    protected void accumulate(Map<Bucket, Accumulator> accumulators, AttributeRef attributeRef, long timestamp, double value) {
+        for (Tier tier : Tier.values()) {
+            accumulators.compute(
+                new Bucket(attributeRef, tier, truncate(tier, timestamp)),
+                (bucket, accumulator) -> (accumulator != null ? accumulator : new Accumulator()).add(value)
+            );
+        }
+    }
+
+    protected void merge(EntityManager em, Map<Bucket, Accumulator> accumulators) {
+        if (accumulators.isEmpty())
+            return;
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(MERGE_ROLLUP_SQL)) {
+                for (Map.Entry<Bucket, Accumulator> entry : accumulators.entrySet()) {
+                    Bucket bucket = entry.getKey();
+                    Accumulator accumulator = entry.getValue();
+                    statement.setString(1, bucket.attributeRef.getEntityId());
+                    statement.setString(2, bucket.attributeRef.getAttributeName());
+                    statement.setString(3, bucket.tier.name());
+                    statement.setLong(4, bucket.bucketStart);
+                    statement.setDouble(5, accumulator.min);
+                    statement.setDouble(6, accumulator.max);
+                    statement.setDouble(7, accumulator.sum);
+                    statement.setLong(8, accumulator.count);
+                    statement.setString(9, bucket.attributeRef.getEntityId());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+    }
+
+    protected long truncate(Tier tier, long timestamp) {
+        ZonedDateTime time = Instant.ofEpochMilli(timestamp).atZone(zone);
+        switch (tier) {
+            case MINUTE:
+                return time.truncatedTo(ChronoUnit.MINUTES).toInstant().toEpochMilli();
+            case HOUR:
+                return time.truncatedTo(ChronoUnit.HOURS).toInstant().toEpochMilli();
+            default:
+                return time.truncatedTo(ChronoUnit.DAYS).toInstant().toEpochMilli();
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public int getLateCount() {
+        return late.size();
+    }
+
+    public long getAddedCount() {
+        return addedCount.get();
+    }
+
+    public long getFlushedBucketCount() {
+        return flushedBucketCount.get();
+    }
+
+    public long getBackfilledCount() {
+        return backfilledCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "backfillCompleted=" + backfillCompleted +
+            ", pendingBuckets=" + getPendingCount() +
+            ", late=" + getLateCount() +
+            ", added=" + getAddedCount() +
+            ", flushedBuckets=" + getFlushedBucketCount() +
+            ", backfilled=" + getBackfilledCount() +
+            '}';
+    }
+}
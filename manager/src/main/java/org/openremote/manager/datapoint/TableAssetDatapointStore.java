@@ -0,0 +1,274 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.AbstractReturningWork;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.asset.AssetAttribute;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.datapoint.AssetDatapoint;
+import org.openremote.model.datapoint.DatapointInterval;
+import org.openremote.model.datapoint.NumberDatapoint;
+import org.postgresql.util.PGInterval;
+
+import javax.persistence.EntityManager;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Stores each datapoint as a row of the <code>ASSET_DATAPOINT</code> table.
+ */
+public class TableAssetDatapointStore implements AssetDatapointStore {
+
+    private static final Logger LOG = Logger.getLogger(TableAssetDatapointStore.class.getName());
+
+    public static final String SELECT_ATTRIBUTE_REFS_AFTER_SQL =
+        "select distinct ENTITY_ID, ATTRIBUTE_NAME from ASSET_DATAPOINT " +
+            "where (ENTITY_ID, ATTRIBUTE_NAME) > (?, ?) order by ENTITY_ID, ATTRIBUTE_NAME limit ?";
+
+    public static final String SELECT_NUMBER_VALUES_SQL =
+        "select TIMESTAMP, case jsonb_typeof(VALUE) " +
+            "when 'number' then VALUE::text::float8 " +
+            "when 'boolean' then case when VALUE::text::boolean is true then 1 else 0 end " +
+            "end as NUMBER_VALUE " +
+            "from ASSET_DATAPOINT " +
+            "where ENTITY_ID = ? and ATTRIBUTE_NAME = ? and TIMESTAMP > ? and TIMESTAMP < ? " +
+            "and jsonb_typeof(VALUE) in ('number', 'boolean') " +
+            "order by TIMESTAMP asc limit ?";
+
+    public static final String PURGE_DATAPOINTS_SQL =
+        "delete from ASSET_DATAPOINT where ctid = any(array(" +
+            "select ctid from ASSET_DATAPOINT where ENTITY_ID = ? and ATTRIBUTE_NAME = ? and TIMESTAMP < ? limit ?" +
+            "))";
+
+    final protected PersistenceService persistenceService;
+
+    public TableAssetDatapointStore(PersistenceService persistenceService) {
+        this.persistenceService = persistenceService;
+    }
+
+    @Override
+    public boolean storeDatapoint(EntityManager em, AssetDatapoint datapoint) {
+        // A duplicate timestamp violates the primary key
+        em.persist(datapoint);
+        return true;
+    }
+
+    @Override
+    public List<AssetDatapoint> getDatapoints(AttributeRef attributeRef) {
+        return persistenceService.doReturningTransaction(entityManager -> entityManager.createQuery(
+            "select dp from AssetDatapoint dp " +
+                "where dp.entityId = :assetId " +
+                "and dp.attributeName = :attributeName " +
+                "order by dp.timestamp desc",
+            AssetDatapoint.class)
+            .setParameter("assetId", attributeRef.getEntityId())
+            .setParameter("attributeName", attributeRef.getAttributeName())
+            .getResultList());
+    }
+
+    @Override
+    public NumberDatapoint[] aggregateDatapoints(AssetAttribute attribute,
+                                                 DatapointInterval datapointInterval,
+                                                 long timestamp) {
+        LOG.fine("Aggregating datapoints for: " + attribute);
+
+        AttributeRef attributeRef = attribute.getReferenceOrThrow();
+
+        return persistenceService.doReturningTransaction(entityManager ->
+            entityManager.unwrap(Session.class).doReturningWork(new AbstractReturningWork<NumberDatapoint[]>() {
+                @Override
+                public NumberDatapoint[] execute(Connection connection) throws SQLException {
+
+                    String truncateX;
+                    String step;
+                    String interval;
+                    Function<Timestamp, String> labelFunction;
+
+                    SimpleDateFormat dayFormat = new SimpleDateFormat("dd. MMM yyyy");
+                    SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
+                    switch (datapointInterval) {
+                        case HOUR:
+                            truncateX = "minute";
+                            step = "1 minute";
+                            interval = "1 hour";
+                            labelFunction = timeFormat::format;
+                            break;
+                        case DAY:
+                            truncateX = "hour";
+                            step = "1 hour";
+                            interval = "1 day";
+                            labelFunction = timeFormat::format;
+                            break;
+                        case WEEK:
+                            truncateX = "day";
+                            step = "1 day";
+                            interval = "7 day";
+                            labelFunction = dayFormat::format;
+                            break;
+                        case MONTH:
+                            truncateX = "day";
+                            step = "1 day";
+                            interval = "1 month";
+                            labelFunction = dayFormat::format;
+                            break;
+                        case YEAR:
+                            truncateX = "month";
+                            step = "1 month";
+                            interval = "1 year";
+                            labelFunction = dayFormat::format;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Can't handle interval: " + datapointInterval);
+                    }
+
+                    StringBuilder query = new StringBuilder();
+
+                    query.append("select TS as X, coalesce(AVG_VALUE, null) as Y " +
+                        " from ( " +
+                        "       select date_trunc(?, GS)::timestamp TS " +
+                        "       from generate_series(to_timestamp(?) - ?, to_timestamp(?), ?) GS " +
+                        "       ) TS " +
+                        "  left join ( " +
+                        "       select " +
+                        "           date_trunc(?, to_timestamp(TIMESTAMP / 1000))::timestamp as TS, ");
+
+                    switch (attribute.getTypeOrThrow().getValueType()) {
+                        case NUMBER:
+                            query.append(" AVG(VALUE::text::numeric) as AVG_VALUE ");
+                            break;
+                        case BOOLEAN:
+                            query.append(" AVG(case when VALUE::text::boolean is true then 1 else 0 end) as AVG_VALUE ");
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Can't aggregate number datapoints for type of: " + attribute);
+                    }
+
+                    query.append(" from ASSET_DATAPOINT " +
+                        "         where " +
+                        "           to_timestamp(TIMESTAMP / 1000) >= to_timestamp(?) - ? " +
+                        "           and " +
+                        "           to_timestamp(TIMESTAMP / 1000) <= to_timestamp(?) " +
+                        "           and " +
+                        "           ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
+                        "         group by TS " +
+                        "  ) DP using (TS) " +
+                        " order by TS asc "
+                    );
+
+                    try (PreparedStatement st = connection.prepareStatement(query.toString())) {
+
+                        long timestampSeconds = timestamp / 1000;
+                        st.setString(1, truncateX);
+                        st.setLong(2, timestampSeconds);
+                        st.setObject(3, new PGInterval(interval));
+                        st.setLong(4, timestampSeconds);
+                        st.setObject(5, new PGInterval(step));
+                        st.setString(6, truncateX);
+                        st.setLong(7, timestampSeconds);
+                        st.setObject(8, new PGInterval(interval));
+                        st.setLong(9, timestampSeconds);
+                        st.setString(10, attributeRef.getEntityId());
+                        st.setString(11, attributeRef.getAttributeName());
+
+                        try (ResultSet rs = st.executeQuery()) {
+                            List<NumberDatapoint> result = new ArrayList<>();
+                            while (rs.next()) {
+                                String label = labelFunction.apply(rs.getTimestamp(1));
+                                Number value = rs.getObject(2) != null ? rs.getDouble(2) : null;
+                                result.add(new NumberDatapoint(label, value));
+                            }
+                            return result.toArray(new NumberDatapoint[result.size()]);
+                        }
+                    }
+                }
+            })
+        );
+    }
+
+    @Override
+    public List<AttributeRef> getAttributeRefs(EntityManager em, AttributeRef after, int limit) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_ATTRIBUTE_REFS_AFTER_SQL)) {
+                statement.setString(1, after != null ? after.getEntityId() : "");
+                statement.setString(2, after != null ? after.getAttributeName() : "");
+                statement.setInt(3, limit);
+                List<AttributeRef> result = new ArrayList<>();
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(new AttributeRef(rs.getString(1), rs.getString(2)));
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    @Override
+    public int readDatapoints(EntityManager em,
+                              AttributeRef attributeRef,
+                              long afterTimestamp,
+                              long beforeTimestamp,
+                              int limit,
+                              DatapointChunkCodec.DatapointConsumer consumer) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_NUMBER_VALUES_SQL)) {
+                statement.setString(1, attributeRef.getEntityId());
+                statement.setString(2, attributeRef.getAttributeName());
+                statement.setLong(3, afterTimestamp);
+                statement.setLong(4, beforeTimestamp);
+                statement.setInt(5, limit);
+                statement.setFetchSize(1000);
+                int count = 0;
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(rs.getLong(1), rs.getDouble(2));
+                        count++;
+                    }
+                }
+                return count;
+            }
+        });
+    }
+
+    @Override
+    public int purgeDatapoints(EntityManager em, AttributeRef attributeRef, long beforeTimestamp, int limit) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(PURGE_DATAPOINTS_SQL)) {
+                statement.setString(1, attributeRef.getEntityId());
+                statement.setString(2, attributeRef.getAttributeName());
+                statement.setLong(3, beforeTimestamp);
+                statement.setInt(4, limit);
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            '}';
+    }
+}
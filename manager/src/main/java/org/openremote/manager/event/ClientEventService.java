@@ -31,6 +31,8 @@ import org.openremote.container.web.socket.WebsocketConstants;
 import org.openremote.manager.concurrent.ManagerExecutorService;
 import org.openremote.manager.security.ManagerIdentityService;
 import org.openremote.model.Constants;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeWriteResult;
 import org.openremote.model.event.shared.CancelEventSubscription;
 import org.openremote.model.event.shared.EventSubscription;
 import org.openremote.model.event.shared.SharedEvent;
@@ -73,6 +75,11 @@ import static org.apache.camel.builder.PredicateBuilder.or;
  * The payload is a serialized representation of a subtype of {@link SharedEvent}. If the server
  * does not recognize the event, it is silently ignored.
  * </p></dd>
+ * <dt><code>EVENT[...]</code></dt>
+ * <dd><p>
+ * The payload is an array of {@link SharedEvent}s. The {@link AttributeEvent}s of the array are processed as a
+ * batch and the server replies with a <code>WRITE_RESULTS[...]</code> message.
+ * </p></dd>
  * </dl>
  * <p>
  * The following messages can be published/returned by the server:
@@ -89,7 +96,15 @@ import static org.apache.camel.builder.PredicateBuilder.or;
  * <dd><p>
  * The payload is an array of {@link SharedEvent}s.
  * </p></dd>
+ * <dt><code>WRITE_RESULTS[...]</code></dt>
+ * <dd><p>
+ * The payload is an array of {@link AttributeWriteResult}s, one for each {@link AttributeEvent} of a received
+ * <code>EVENT[...]</code> message, in the same order.
+ * </p></dd>
  * </dl>
+ * <p>
+ * A published event is serialized once for all subscribed sessions and sent asynchronously, see
+ * {@link org.openremote.container.web.socket.WebsocketSessionSender} for how slow sessions are handled.
  */
 public class ClientEventService implements ContainerService {
 
@@ -175,6 +190,18 @@ public class ClientEventService implements ContainerService {
                         String sessionKey = getSessionKey(exchange);
                         eventSubscriptions.cancel(sessionKey, exchange.getIn().getBody(CancelEventSubscription.class));
                     })
+                    .when(bodyAs(String.class).startsWith(SharedEvent.MESSAGE_PREFIX + "["))
+                    .convertBodyTo(SharedEvent[].class)
+                    .process(exchange -> {
+                        SharedEvent[] events = exchange.getIn().getBody(SharedEvent[].class);
+                        // If there is no timestamp in event, set to system time
+                        for (SharedEvent event : events) {
+                            if (event != null && event.getTimestamp() <= 0) {
+                                event.setTimestamp(timerService.getCurrentTimeMillis());
+                            }
+                        }
+                    })
+                    .to(ClientEventService.CLIENT_EVENT_TOPIC)
                     .when(bodyAs(String.class).startsWith(SharedEvent.MESSAGE_PREFIX))
                     .convertBodyTo(SharedEvent.class)
                     .process(exchange -> {
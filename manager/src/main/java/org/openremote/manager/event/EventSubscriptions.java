@@ -21,21 +21,28 @@ package org.openremote.manager.event;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
+import org.apache.camel.NoTypeConversionAvailableException;
 import org.apache.camel.impl.DefaultMessage;
 import org.openremote.container.timer.TimerService;
 import org.openremote.container.web.socket.WebsocketConstants;
 import org.openremote.manager.concurrent.ManagerExecutorService;
+import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.event.shared.CancelEventSubscription;
 import org.openremote.model.event.shared.EventSubscription;
 import org.openremote.model.event.shared.SharedEvent;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import static org.openremote.manager.event.ClientEventService.HEADER_ACCESS_RESTRICTED;
 
 /**
  * Manages subscriptions to events for WebSocket sessions.
+ * <p>
+ * Subscriptions are indexed by event type and, for {@link AttributeEvent.EntityIdFilter}, by entity identifier,
+ * so matching a published event only visits the subscriptions that can receive it. The index is modified while
+ * holding the lock of the session subscriptions and read without locking.
  */
 public class EventSubscriptions {
 
@@ -43,13 +50,21 @@ public class EventSubscriptions {
 
     final protected TimerService timerService;
     final protected Map<String, SessionSubscriptions> sessionSubscriptions = new HashMap<>();
+    final protected Map<String, EventTypeSubscriptions> eventTypeSubscriptions = new ConcurrentHashMap<>();
 
     class SessionSubscriptions extends HashSet<SessionSubscription> {
+        final String sessionKey;
+
+        SessionSubscriptions(String sessionKey) {
+            this.sessionKey = sessionKey;
+        }
+
         public void removeExpired() {
             removeIf(sessionSubscription -> {
                     boolean expired = sessionSubscription.isExpired();
                     if (expired) {
                         LOG.fine("Removing expired; " + sessionSubscription.subscription);
+                        removeFromIndex(sessionSubscription);
                     }
                     return expired;
                 }
@@ -58,27 +73,56 @@ public class EventSubscriptions {
 
         public void update(boolean restrictedUser, EventSubscription eventSubscription) {
             cancel(eventSubscription.getEventType());
-            add(new SessionSubscription(restrictedUser, timerService.getCurrentTimeMillis(), eventSubscription));
+            SessionSubscription sessionSubscription =
+                new SessionSubscription(sessionKey, restrictedUser, timerService.getCurrentTimeMillis(), eventSubscription);
+            add(sessionSubscription);
+            addToIndex(sessionSubscription);
         }
 
         public void cancel(String eventType) {
-            removeIf(sessionSubscription -> sessionSubscription.subscription.getEventType().equals(eventType));
+            removeIf(sessionSubscription -> {
+                boolean cancel = sessionSubscription.subscription.getEventType().equals(eventType);
+                if (cancel) {
+                    removeFromIndex(sessionSubscription);
+                }
+                return cancel;
+            });
+        }
+
+        public void cancelAll() {
+            for (SessionSubscription sessionSubscription : this) {
+                removeFromIndex(sessionSubscription);
+            }
+            clear();
         }
     }
 
     class SessionSubscription {
+        final String sessionKey;
         final boolean restrictedUser;
         final long timestamp;
         final EventSubscription subscription;
+        // The entity identifiers of an indexed filter, null if the subscription is not indexed by entity identifier
+        final String[] indexedEntityIds;
 
-        public SessionSubscription(boolean restrictedUser, long timestamp, EventSubscription subscription) {
+        public SessionSubscription(String sessionKey, boolean restrictedUser, long timestamp, EventSubscription subscription) {
+            this.sessionKey = sessionKey;
             this.restrictedUser = restrictedUser;
             this.timestamp = timestamp;
             this.subscription = subscription;
+            this.indexedEntityIds = subscription.getFilter() instanceof AttributeEvent.EntityIdFilter
+                ? ((AttributeEvent.EntityIdFilter) subscription.getFilter()).getEntityId()
+                : null;
         }
 
+        @SuppressWarnings("unchecked")
         public boolean matches(boolean accessibleForRestrictedUsers, SharedEvent event) {
-            return (!restrictedUser || accessibleForRestrictedUsers) && subscription.getEventType().equals(event.getEventType());
+            if (restrictedUser && !accessibleForRestrictedUsers)
+                return false;
+            // Indexed subscriptions are only candidates for events of their entities
+            return indexedEntityIds != null
+                || subscription.getFilter() == null
+                || subscription.getFilter().apply(event);
         }
 
         /**
@@ -90,6 +134,49 @@ public class EventSubscriptions {
         }
     }
 
+    class EventTypeSubscriptions {
+        final Map<String, Set<SessionSubscription>> byEntityId = new ConcurrentHashMap<>();
+        // Subscriptions without filter or with a filter that can't be indexed
+        final Set<SessionSubscription> unindexed = ConcurrentHashMap.newKeySet();
+
+        void add(SessionSubscription sessionSubscription) {
+            if (sessionSubscription.indexedEntityIds == null) {
+                unindexed.add(sessionSubscription);
+                return;
+            }
+            for (String entityId : sessionSubscription.indexedEntityIds) {
+                byEntityId.computeIfAbsent(entityId, id -> ConcurrentHashMap.newKeySet()).add(sessionSubscription);
+            }
+        }
+
+        void remove(SessionSubscription sessionSubscription) {
+            if (sessionSubscription.indexedEntityIds == null) {
+                unindexed.remove(sessionSubscription);
+                return;
+            }
+            for (String entityId : sessionSubscription.indexedEntityIds) {
+                byEntityId.computeIfPresent(entityId, (id, subscriptions) -> {
+                    subscriptions.remove(sessionSubscription);
+                    return subscriptions.isEmpty() ? null : subscriptions;
+                });
+            }
+        }
+
+        boolean isEmpty() {
+            return byEntityId.isEmpty() && unindexed.isEmpty();
+        }
+
+        void collectCandidates(SharedEvent event, List<SessionSubscription> candidates) {
+            if (event instanceof AttributeEvent) {
+                Set<SessionSubscription> subscriptions = byEntityId.get(((AttributeEvent) event).getEntityId());
+                if (subscriptions != null) {
+                    candidates.addAll(subscriptions);
+                }
+            }
+            candidates.addAll(unindexed);
+        }
+    }
+
     public EventSubscriptions(TimerService timerService, ManagerExecutorService executorService) {
         LOG.info("Starting background task checking for expired event subscriptions from clients");
         this.timerService = timerService;
@@ -107,7 +194,7 @@ public class EventSubscriptions {
             // TODO Check if the user can actually subscribe to the events it wants, how do we do that?
             LOG.fine("For session '" + sessionKey + "', updating: " + subscription);
             SessionSubscriptions sessionSubscriptions =
-                this.sessionSubscriptions.computeIfAbsent(sessionKey, k -> new SessionSubscriptions());
+                this.sessionSubscriptions.computeIfAbsent(sessionKey, SessionSubscriptions::new);
             sessionSubscriptions.update(restrictedUser, subscription);
         }
     }
@@ -126,49 +213,66 @@ public class EventSubscriptions {
         synchronized (this.sessionSubscriptions) {
             if (this.sessionSubscriptions.containsKey(sessionKey)) {
                 LOG.fine("Cancelling all subscriptions for session: " + sessionKey);
-                this.sessionSubscriptions.remove(sessionKey);
+                this.sessionSubscriptions.remove(sessionKey).cancelAll();
             }
         }
     }
 
     @SuppressWarnings("unchecked")
-    public <T extends SharedEvent> List<Message> splitForSubscribers(Exchange exchange) {
+    public <T extends SharedEvent> List<Message> splitForSubscribers(Exchange exchange) throws NoTypeConversionAvailableException {
         List<Message> messageList = new ArrayList<>();
         SharedEvent event = exchange.getIn().getBody(SharedEvent.class);
         if (event == null)
             return messageList;
 
+        EventTypeSubscriptions subscriptions = eventTypeSubscriptions.get(event.getEventType());
+        if (subscriptions == null)
+            return messageList;
+
         boolean accessibleForRestrictedUsers = exchange.getIn().getHeader(HEADER_ACCESS_RESTRICTED, false, Boolean.class);
 
-        Set<Map.Entry<String, SessionSubscriptions>> sessionSubscriptionsSet;
-        synchronized (this.sessionSubscriptions) {
-            sessionSubscriptionsSet = new HashSet<>(sessionSubscriptions.entrySet());
-        }
+        List<SessionSubscription> candidates = new ArrayList<>();
+        subscriptions.collectCandidates(event, candidates);
 
-        for (Map.Entry<String, SessionSubscriptions> entry : sessionSubscriptionsSet) {
-            String sessionKey = entry.getKey();
-            SessionSubscriptions subscriptions = entry.getValue();
+        // Serialize once and share the message text with all recipient sessions
+        String text = null;
+        // Pending messages of a lagging session are coalesced to the latest value of an attribute
+        Object coalesceKey = event instanceof AttributeEvent ? ((AttributeEvent) event).getAttributeRef() : null;
 
-            for (SessionSubscription sessionSubscription : subscriptions) {
+        for (SessionSubscription sessionSubscription : candidates) {
 
-                if (!sessionSubscription.matches(accessibleForRestrictedUsers, event))
-                    continue;
+            if (!sessionSubscription.matches(accessibleForRestrictedUsers, event))
+                continue;
 
-                if (sessionSubscription.subscription.getFilter() == null
-                    || sessionSubscription.subscription.getFilter().apply(event)) {
-                    LOG.fine("Creating message for subscribed session '" + sessionKey + "': " + event);
-                    if (sessionSubscription.subscription.getInternalConsumer() == null) {
-                        Message msg = new DefaultMessage();
-                        msg.setBody(event); // Don't copy the event, use same reference
-                        msg.setHeaders(new HashMap<>(exchange.getIn().getHeaders())); // Copy headers
-                        msg.setHeader(WebsocketConstants.SESSION_KEY, sessionKey);
-                        messageList.add(msg);
-                    } else {
-                        sessionSubscription.subscription.getInternalConsumer().accept(event);
-                    }
+            LOG.fine("Creating message for subscribed session '" + sessionSubscription.sessionKey + "': " + event);
+            if (sessionSubscription.subscription.getInternalConsumer() == null) {
+                if (text == null) {
+                    text = exchange.getContext().getTypeConverter().mandatoryConvertTo(String.class, exchange, event);
+                }
+                Message msg = new DefaultMessage();
+                msg.setBody(text);
+                msg.setHeader(WebsocketConstants.SESSION_KEY, sessionSubscription.sessionKey);
+                if (coalesceKey != null) {
+                    msg.setHeader(WebsocketConstants.COALESCE_KEY, coalesceKey);
                 }
+                messageList.add(msg);
+            } else {
+                sessionSubscription.subscription.getInternalConsumer().accept(event);
             }
         }
         return messageList;
     }
-}
\ No newline at end of file
+
+    protected void addToIndex(SessionSubscription sessionSubscription) {
+        eventTypeSubscriptions
+            .computeIfAbsent(sessionSubscription.subscription.getEventType(), eventType -> new EventTypeSubscriptions())
+            .add(sessionSubscription);
+    }
+
+    protected void removeFromIndex(SessionSubscription sessionSubscription) {
+        eventTypeSubscriptions.computeIfPresent(sessionSubscription.subscription.getEventType(), (eventType, subscriptions) -> {
+            subscriptions.remove(sessionSubscription);
+            return subscriptions.isEmpty() ? null : subscriptions;
+        });
+    }
+}
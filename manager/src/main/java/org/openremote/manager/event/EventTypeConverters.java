@@ -43,6 +43,7 @@ import org.apache.camel.Converter;
 import org.apache.camel.Exchange;
 import org.apache.camel.TypeConverters;
 import org.openremote.container.Container;
+import org.openremote.model.attribute.AttributeWriteResult;
 import org.openremote.model.event.shared.CancelEventSubscription;
 import org.openremote.model.event.shared.EventSubscription;
 import org.openremote.model.event.shared.SharedEvent;
@@ -72,6 +73,14 @@ public class EventTypeConverters implements TypeConverters {
         return Container.JSON.readValue(string, SharedEvent.class);
     }
 
+    @Converter
+    public SharedEvent[] readEventArray(String string, Exchange exchange) throws Exception {
+        if (!string.startsWith(SharedEvent.MESSAGE_PREFIX + "["))
+            return null;
+        string = string.substring(SharedEvent.MESSAGE_PREFIX.length());
+        return Container.JSON.readValue(string, SharedEvent[].class);
+    }
+
     @Converter
     public EventSubscription readEventSubscription(String string, Exchange exchange) throws Exception {
         if (!string.startsWith(EventSubscription.MESSAGE_PREFIX))
@@ -92,4 +101,9 @@ public class EventTypeConverters implements TypeConverters {
     public String writeUnauthorizedEventSubscription(UnauthorizedEventSubscription unauthorizedEventSubscription, Exchange exchange) throws Exception {
         return UnauthorizedEventSubscription.MESSAGE_PREFIX + Container.JSON.writeValueAsString(unauthorizedEventSubscription);
     }
-}
\ No newline at end of file
+
+    @Converter
+    public String writeAttributeWriteResults(AttributeWriteResult[] results, Exchange exchange) throws Exception {
+        return AttributeWriteResult.MESSAGE_PREFIX + Container.JSON.writeValueAsString(results);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.rules.AssetQueryPredicate;
+import org.openremote.model.rules.AssetState;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A named time window declared by a ruleset with {@link RulesBuilder#window}, keeps a {@link WindowAggregate} of
+ * the asset events matching a query for each attribute. The aggregates are updated when an asset event is
+ * inserted into the {@link RulesFacts} and queried by rule conditions with {@link RulesFacts#getWindow}.
+ */
+public class AssetEventWindow {
+
+    final protected String name;
+    final protected WindowAggregate.Type type;
+    final protected long sizeMillis;
+    final protected AssetQueryPredicate predicate;
+    final protected Map<AttributeRef, WindowAggregate> aggregates = new HashMap<>();
+
+    public AssetEventWindow(String name, WindowAggregate.Type type, long sizeMillis, AssetQueryPredicate predicate) {
+        if (sizeMillis <= 0)
+            throw new IllegalArgumentException("Size of window '" + name + "' must be greater than zero: " + sizeMillis);
+        this.name = name;
+        this.type = type;
+        this.sizeMillis = sizeMillis;
+        this.predicate = predicate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public WindowAggregate.Type getType() {
+        return type;
+    }
+
+    public long getSizeMillis() {
+        return sizeMillis;
+    }
+
+    public AssetQueryPredicate getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * Add the asset event to the aggregate of its attribute if it matches the query of this window.
+     */
+    public void add(AssetState assetState) {
+        if (!predicate.test(assetState))
+            return;
+        aggregates.computeIfAbsent(
+            new AttributeRef(assetState.getId(), assetState.getAttributeName()),
+            attributeRef -> new WindowAggregate(attributeRef, type, sizeMillis)
+        ).add(assetState.getTimestamp(), assetState.getValue().orElse(null));
+    }
+
+    /**
+     * @return The aggregate of the attribute at the given time, empty if no asset event of the attribute was added.
+     */
+    public Optional<WindowAggregate> get(AttributeRef attributeRef, long currentTimestamp) {
+        WindowAggregate aggregate = aggregates.get(attributeRef);
+        if (aggregate == null)
+            return Optional.empty();
+        aggregate.evict(currentTimestamp);
+        return Optional.of(aggregate);
+    }
+
+    public void clear() {
+        aggregates.clear();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "name='" + name + '\'' +
+            ", type=" + type +
+            ", sizeMillis=" + sizeMillis +
+            ", aggregates=" + aggregates.size() +
+            '}';
+    }
+}
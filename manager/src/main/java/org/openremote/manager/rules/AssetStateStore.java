@@ -0,0 +1,211 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.model.asset.BaseAssetQuery;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Stores {@link AssetState} facts with hash-based secondary indexes on asset ID, attribute name, asset type,
+ * parent ID, realm ID and the asset IDs in the path of an asset. Insert and remove are constant time.
+ * <p>
+ * The {@link #getCandidates} of an {@link BaseAssetQuery} are the states of the most selective index the query
+ * restricts on, these candidates still have to be filtered with the query predicate.
+ */
+public class AssetStateStore {
+
+    protected static class Index {
+
+        final protected Function<AssetState, String[]> keys;
+        final protected Map<String, Set<AssetState>> entries = new HashMap<>();
+
+        protected Index(Function<AssetState, String[]> keys) {
+            this.keys = keys;
+        }
+
+        protected void add(AssetState assetState) {
+            String[] keys = this.keys.apply(assetState);
+            if (keys == null)
+                return;
+            for (String key : keys) {
+                if (key != null) {
+                    entries.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(assetState);
+                }
+            }
+        }
+
+        protected void remove(AssetState assetState) {
+            String[] keys = this.keys.apply(assetState);
+            if (keys == null)
+                return;
+            for (String key : keys) {
+                if (key == null)
+                    continue;
+                Set<AssetState> assetStates = entries.get(key);
+                if (assetStates != null) {
+                    assetStates.remove(assetState);
+                    if (assetStates.isEmpty()) {
+                        entries.remove(key);
+                    }
+                }
+            }
+        }
+
+        protected Collection<AssetState> get(String key) {
+            Set<AssetState> assetStates = entries.get(key);
+            return assetStates != null ? assetStates : Collections.emptySet();
+        }
+    }
+
+    final protected Map<AssetState, AssetState> assetStates = new LinkedHashMap<>();
+    final protected Collection<AssetState> assetStatesView = Collections.unmodifiableCollection(assetStates.values());
+    final protected Index idIndex = new Index(assetState -> new String[]{assetState.getId()});
+    final protected Index attributeNameIndex = new Index(assetState -> new String[]{assetState.getAttributeName()});
+    final protected Index typeIndex = new Index(assetState -> new String[]{assetState.getTypeString()});
+    final protected Index parentIdIndex = new Index(assetState -> new String[]{assetState.getParentId()});
+    final protected Index realmIdIndex = new Index(assetState -> new String[]{assetState.getRealmId()});
+    final protected Index pathIndex = new Index(AssetState::getPath);
+    final protected Index[] indexes = {idIndex, attributeNameIndex, typeIndex, parentIdIndex, realmIdIndex, pathIndex};
+
+    /**
+     * Adds the asset state or replaces the stored version of it.
+     *
+     * @return The replaced version of the asset state, or <code>null</code>.
+     */
+    public AssetState put(AssetState assetState) {
+        AssetState previous = remove(assetState);
+        assetStates.put(assetState, assetState);
+        for (Index index : indexes) {
+            index.add(assetState);
+        }
+        return previous;
+    }
+
+    /**
+     * @return The removed version of the asset state, or <code>null</code> if it wasn't stored.
+     */
+    public AssetState remove(AssetState assetState) {
+        AssetState previous = assetStates.remove(assetState);
+        if (previous != null) {
+            for (Index index : indexes) {
+                index.remove(previous);
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * @return The stored version of the given asset state.
+     */
+    public Optional<AssetState> get(AssetState assetState) {
+        return Optional.ofNullable(assetStates.get(assetState));
+    }
+
+    /**
+     * @return The stored asset state of the given asset attribute.
+     */
+    public Optional<AssetState> get(String assetId, String attributeName) {
+        for (AssetState assetState : idIndex.get(assetId)) {
+            if (assetState.getAttributeName().equals(attributeName))
+                return Optional.of(assetState);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return An unmodifiable view of all asset states, in order of insertion.
+     */
+    public Collection<AssetState> getAll() {
+        return assetStatesView;
+    }
+
+    public int size() {
+        return assetStates.size();
+    }
+
+    /**
+     * @return The asset states of the asset and all its descendants, the path of these states contains the asset.
+     */
+    public Collection<AssetState> getSubtree(String assetId) {
+        return Collections.unmodifiableCollection(pathIndex.get(assetId));
+    }
+
+    /**
+     * @return The asset states of all assets in the realm.
+     */
+    public Collection<AssetState> getByRealm(String realmId) {
+        return Collections.unmodifiableCollection(realmIdIndex.get(realmId));
+    }
+
+    /**
+     * @return The smallest set of asset states that can match the query, all asset states if the query doesn't
+     * restrict on any indexed property with an exact match.
+     */
+    public Collection<AssetState> getCandidates(BaseAssetQuery<?> query) {
+        Collection<AssetState> candidates = assetStatesView;
+
+        if (query.id != null) {
+            candidates = smallest(candidates, idIndex.get(query.id));
+        }
+        if (query.type != null && isExactMatch(query.type)) {
+            candidates = smallest(candidates, typeIndex.get(query.type.value));
+        }
+        if (query.parent != null && query.parent.id != null) {
+            candidates = smallest(candidates, parentIdIndex.get(query.parent.id));
+        }
+        if (query.tenant != null && query.tenant.realmId != null) {
+            candidates = smallest(candidates, realmIdIndex.get(query.tenant.realmId));
+        }
+        if (query.path != null && query.path.path != null && query.path.path.length > 0) {
+            // The first element of the path is the asset itself, every match contains it
+            candidates = smallest(candidates, pathIndex.get(query.path.path[0]));
+        }
+        if (query.attribute != null) {
+            for (BaseAssetQuery.AttributePredicate attributePredicate : query.attribute) {
+                if (attributePredicate.name != null && isExactMatch(attributePredicate.name)) {
+                    candidates = smallest(candidates, attributeNameIndex.get(attributePredicate.name.value));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    protected static boolean isExactMatch(BaseAssetQuery.StringPredicate predicate) {
+        return predicate.value != null
+            && predicate.caseSensitive
+            && predicate.match == BaseAssetQuery.Match.EXACT;
+    }
+
+    protected static Collection<AssetState> smallest(Collection<AssetState> a, Collection<AssetState> b) {
+        return b.size() < a.size() ? b : a;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "assetStates=" + assetStates.size() +
+            ", assets=" + idIndex.entries.size() +
+            ", types=" + typeIndex.entries.size() +
+            '}';
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.jeasy.rules.api.Facts;
+import org.jeasy.rules.api.Rule;
+
+/**
+ * Wraps a rule and records the time and the number of scanned facts of each condition evaluation in a
+ * {@link RulesProfiler}. The inference engine evaluates the conditions of all rules when it selects candidates
+ * without notifying rule listeners, so conditions can't be measured with listener callbacks alone.
+ */
+public class ProfiledRule implements Rule {
+
+    final protected Rule rule;
+    final protected RulesProfiler profiler;
+
+    public ProfiledRule(Rule rule, RulesProfiler profiler) {
+        this.rule = rule;
+        this.profiler = profiler;
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+
+    @Override
+    public String getName() {
+        return rule.getName();
+    }
+
+    @Override
+    public String getDescription() {
+        return rule.getDescription();
+    }
+
+    @Override
+    public int getPriority() {
+        return rule.getPriority();
+    }
+
+    @Override
+    public boolean evaluate(Facts facts) {
+        RulesFacts rulesFacts = (RulesFacts) facts;
+        long scannedCount = rulesFacts.getScannedCount();
+        long startTime = System.nanoTime();
+        try {
+            return rule.evaluate(facts);
+        } finally {
+            profiler.onConditionEvaluated(this, System.nanoTime() - startTime, rulesFacts.getScannedCount() - scannedCount);
+        }
+    }
+
+    @Override
+    public void execute(Facts facts) throws Exception {
+        rule.execute(facts);
+    }
+
+    @Override
+    public int compareTo(Rule that) {
+        return rule.compareTo(that);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return rule.equals(((ProfiledRule) o).rule);
+    }
+
+    @Override
+    public int hashCode() {
+        return rule.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "name='" + getName() + '\'' +
+            '}';
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.container.timer.TimerService;
+import org.openremote.manager.security.ManagerIdentityService;
+import org.openremote.manager.web.ManagerWebResource;
+import org.openremote.model.http.RequestParams;
+import org.openremote.model.rules.RuleMetrics;
+import org.openremote.model.rules.RuleMetricsResource;
+
+import javax.ws.rs.BeanParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.List;
+
+public class RuleMetricsResourceImpl extends ManagerWebResource implements RuleMetricsResource {
+
+    final protected RulesService rulesService;
+
+    public RuleMetricsResourceImpl(TimerService timerService,
+                                   ManagerIdentityService identityService,
+                                   RulesService rulesService) {
+        super(timerService, identityService);
+        this.rulesService = rulesService;
+    }
+
+    @Override
+    public RuleMetrics[] getRuleMetrics(@BeanParam RequestParams requestParams) {
+        if (!isSuperUser()) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+        List<RuleMetrics> result = rulesService.getRuleMetrics();
+        return result.toArray(new RuleMetrics[result.size()]);
+    }
+
+    @Override
+    public void resetRuleMetrics(@BeanParam RequestParams requestParams) {
+        if (!isSuperUser()) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+        rulesService.resetRuleMetrics();
+    }
+}
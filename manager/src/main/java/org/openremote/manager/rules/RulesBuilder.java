@@ -21,12 +21,16 @@ package org.openremote.manager.rules;
 
 import org.jeasy.rules.api.Rule;
 import org.jeasy.rules.core.RuleBuilder;
+import org.openremote.model.asset.AssetQuery;
+import org.openremote.model.asset.BaseAssetQuery;
+import org.openremote.model.rules.AssetQueryPredicate;
+import org.openremote.model.util.TimeUtil;
 
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Call {@link #add()} to add rules.
+ * Call {@link #add()} to add rules and {@link #window} to declare time windows of asset events.
  */
 public class RulesBuilder {
 
@@ -82,7 +86,53 @@ public class RulesBuilder {
         }
     }
 
+    public static class WindowBuilder {
+        protected String name;
+        protected BaseAssetQuery query = new AssetQuery();
+        protected WindowAggregate.Type type = WindowAggregate.Type.SLIDING;
+        protected long sizeMillis;
+
+        public WindowBuilder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Optional query of the asset events aggregated in this window, default is all asset events.
+         */
+        public WindowBuilder matching(BaseAssetQuery query) {
+            this.query = query;
+            return this;
+        }
+
+        /**
+         * Aggregate the asset events of the last duration, e.g. <code>10m</code>.
+         */
+        public WindowBuilder sliding(String duration) {
+            return sliding(TimeUtil.parseTimeString(duration));
+        }
+
+        public WindowBuilder sliding(long durationMillis) {
+            this.type = WindowAggregate.Type.SLIDING;
+            this.sizeMillis = durationMillis;
+            return this;
+        }
+
+        /**
+         * Aggregate the asset events of the current fixed interval, e.g. <code>1h</code>.
+         */
+        public WindowBuilder tumbling(String duration) {
+            return tumbling(TimeUtil.parseTimeString(duration));
+        }
+
+        public WindowBuilder tumbling(long durationMillis) {
+            this.type = WindowAggregate.Type.TUMBLING;
+            this.sizeMillis = durationMillis;
+            return this;
+        }
+    }
+
     final protected List<Builder> builders = new ArrayList<>();
+    final protected List<WindowBuilder> windowBuilders = new ArrayList<>();
 
     public Builder add() {
         Builder builder = new Builder();
@@ -90,6 +140,28 @@ public class RulesBuilder {
         return builder;
     }
 
+    /**
+     * Declare a time window with the given name, rule conditions query its aggregates with
+     * {@link RulesFacts#getWindow}.
+     */
+    public WindowBuilder window(String name) {
+        WindowBuilder windowBuilder = new WindowBuilder(name);
+        windowBuilders.add(windowBuilder);
+        return windowBuilder;
+    }
+
+    public AssetEventWindow[] buildWindows() {
+        List<AssetEventWindow> windows = new ArrayList<>();
+        for (WindowBuilder windowBuilder : windowBuilders) {
+            if (windowBuilder.name == null || windowBuilder.name.isEmpty())
+                throw new IllegalArgumentException("Missing window name");
+            windows.add(new AssetEventWindow(
+                windowBuilder.name, windowBuilder.type, windowBuilder.sizeMillis, new AssetQueryPredicate(windowBuilder.query)
+            ));
+        }
+        return windows.toArray(new AssetEventWindow[windows.size()]);
+    }
+
     public Rule[] build() {
         List<Rule> rules = new ArrayList<>();
         for (Builder builder : builders) {
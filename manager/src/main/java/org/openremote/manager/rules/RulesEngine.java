@@ -19,9 +19,12 @@
  */
 package org.openremote.manager.rules;
 
+import org.jeasy.rules.api.Rule;
+import org.jeasy.rules.api.Rules;
 import org.jeasy.rules.core.InferenceRulesEngine;
 import org.jeasy.rules.core.RulesEngineParameters;
 import org.openremote.container.timer.TimerService;
+import org.openremote.manager.asset.AssetProcessingLanes;
 import org.openremote.manager.asset.AssetProcessingService;
 import org.openremote.manager.asset.AssetStorageService;
 import org.openremote.manager.concurrent.ManagerExecutorService;
@@ -37,9 +40,16 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.manager.rules.RulesetDeployment.Status.*;
 
+/**
+ * Holds the facts and deployed rulesets of a scope and fires the rules.
+ * <p>
+ * Each engine fires its rules on its own lane of the rules worker pool, engines assigned to different lanes fire
+ * in parallel. Fact updates are delivered as tasks on the lane of the engine, they don't wait for a firing to
+ * complete. The facts and the firing are guarded by the monitor of this engine, the deployments are only modified
+ * while holding the monitor and the {@link org.openremote.container.concurrent.GlobalLock}.
+ */
 public class RulesEngine<T extends Ruleset> {
 
     public static final Logger LOG = Logger.getLogger(RulesEngine.class.getName());
@@ -52,6 +62,7 @@ public class RulesEngine<T extends Ruleset> {
 
     final protected TimerService timerService;
     final protected ManagerExecutorService executorService;
+    final protected AssetProcessingLanes lanes;
     final protected AssetStorageService assetStorageService;
 
     final protected RulesEngineId<T> id;
@@ -61,9 +72,24 @@ public class RulesEngine<T extends Ruleset> {
     final protected Map<Long, RulesetDeployment> deployments = new LinkedHashMap<>();
     final protected RulesFacts facts;
     final protected InferenceRulesEngine engine;
+    final protected boolean incrementalEvaluation;
+    // Fire at least this often while temporary facts are present, for conditions on sliding time windows
+    final protected int maxExpirationDelayMillis;
+    // Optional, only if rule profiling is enabled
+    final protected RulesProfiler profiler;
+    final protected RulesWriteLimiter writeLimiter;
+
+    // Rules of each deployment wrapped for profiling and/or dependency tracking, TrackedRule is the outermost wrapper
+    final protected Map<Long, Rules> wrappedRules = new HashMap<>();
 
-    protected boolean running;
+    protected volatile boolean running;
     protected ScheduledFuture fireTimer;
+    // Wakes the engine when the next temporary fact expires
+    protected ScheduledFuture expirationTimer;
+    // Dispatches the rate limited attribute writes of the rules when the write limits allow it again
+    protected ScheduledFuture deferredWritesTimer;
+    // Guards the fire and expiration timers only, so scheduling a firing doesn't wait for a running firing
+    final protected Object fireTimerLock = new Object();
     protected ScheduledFuture statsTimer;
 
     // Only used to optimize toString(), contains the details of this engine
@@ -75,15 +101,25 @@ public class RulesEngine<T extends Ruleset> {
     public RulesEngine(TimerService timerService,
                        ManagerIdentityService identityService,
                        ManagerExecutorService executorService,
+                       AssetProcessingLanes lanes,
                        AssetStorageService assetStorageService,
                        AssetProcessingService assetProcessingService,
                        NotificationService notificationService,
-                       RulesEngineId<T> id) {
+                       RulesEngineId<T> id,
+                       boolean incrementalEvaluation,
+                       boolean profiling,
+                       int maxExpirationDelayMillis,
+                       RulesWriteLimiter.Limits writeLimits) {
         this.timerService = timerService;
         this.executorService = executorService;
+        this.lanes = lanes;
         this.assetStorageService = assetStorageService;
         this.id = id;
-        this.assetsFacade = new AssetsFacade<>(id, assetStorageService, assetProcessingService::sendAttributeEvent);
+        this.incrementalEvaluation = incrementalEvaluation;
+        this.maxExpirationDelayMillis = maxExpirationDelayMillis;
+        this.profiler = profiling ? new RulesProfiler(id.toString()) : null;
+        this.writeLimiter = new RulesWriteLimiter(id, assetProcessingService::sendAttributeEvent, writeLimits);
+        this.assetsFacade = new AssetsFacade<>(id, assetStorageService, writeLimiter::write);
         this.usersFacade = new UsersFacade<>(id, assetStorageService, notificationService, identityService);
 
         this.facts = new RulesFacts(assetsFacade, this, RULES_LOG);
@@ -91,7 +127,33 @@ public class RulesEngine<T extends Ruleset> {
             // Skip any other rules after the first failed rule (exception thrown in condition or action)
             new RulesEngineParameters(false, true, false, RulesEngineParameters.DEFAULT_RULE_PRIORITY_THRESHOLD)
         );
+        if (profiler != null) {
+            // Register first, the facts listener throws on failures and loop detection
+            engine.registerRuleListener(profiler);
+        }
         engine.registerRuleListener(facts);
+
+        if (incrementalEvaluation) {
+            facts.setAssetChangeListener(new RulesFacts.AssetChangeListener() {
+                @Override
+                public void onAssetStateChanged(AssetState assetState) {
+                    for (Rules rules : wrappedRules.values()) {
+                        for (Rule rule : rules) {
+                            ((TrackedRule) rule).onAssetStateChanged(assetState);
+                        }
+                    }
+                }
+
+                @Override
+                public void onAssetEventChanged(AssetState assetState) {
+                    for (Rules rules : wrappedRules.values()) {
+                        for (Rule rule : rules) {
+                            ((TrackedRule) rule).onAssetEventChanged(assetState);
+                        }
+                    }
+                }
+            });
+        }
     }
 
     public RulesEngineId<T> getId() {
@@ -101,14 +163,14 @@ public class RulesEngine<T extends Ruleset> {
     /**
      * @return a shallow copy of the asset state facts.
      */
-    public Set<AssetState> getAssetStates() {
+    public synchronized Set<AssetState> getAssetStates() {
         return new HashSet<>(facts.getAssetStates());
     }
 
     /**
      * @return a shallow copy of the asset event facts.
      */
-    public List<TemporaryFact<AssetState>> getAssetEvents() {
+    public synchronized List<TemporaryFact<AssetState>> getAssetEvents() {
         return new ArrayList<>(facts.getAssetEvents());
     }
 
@@ -153,7 +215,7 @@ public class RulesEngine<T extends Ruleset> {
         return deployments.values().stream().allMatch(rd -> rd.getStatus() == DEPLOYED);
     }
 
-    public void addRuleset(T ruleset) {
+    public synchronized void addRuleset(T ruleset) {
         if (ruleset == null || ruleset.getRules() == null || ruleset.getRules().isEmpty()) {
             // Assume it's a success if deploying an empty ruleset
             LOG.finest("Ruleset is empty so no rules to deploy");
@@ -168,6 +230,11 @@ public class RulesEngine<T extends Ruleset> {
         if (deployment != null) {
             LOG.info("Removing ruleset deployment: " + ruleset);
             deployments.remove(ruleset.getId());
+            deployment.getWindows().forEach(facts::removeWindow);
+            wrappedRules.remove(ruleset.getId());
+            if (profiler != null) {
+                profiler.remove(ruleset.getId());
+            }
             updateDeploymentInfo();
         }
 
@@ -187,6 +254,22 @@ public class RulesEngine<T extends Ruleset> {
         // Add new ruleset and set its status to either DEPLOYED or COMPILATION_ERROR
         deployment.setStatus(compilationSuccessful ? DEPLOYED : COMPILATION_ERROR);
         deployments.put(ruleset.getId(), deployment);
+        if (compilationSuccessful) {
+            deployment.getWindows().forEach(facts::putWindow);
+        }
+        if (compilationSuccessful && (incrementalEvaluation || profiler != null)) {
+            Rules rules = new Rules();
+            for (Rule rule : deployment.getRules()) {
+                if (profiler != null) {
+                    rule = new ProfiledRule(rule, profiler);
+                }
+                if (incrementalEvaluation) {
+                    rule = new TrackedRule(rule);
+                }
+                rules.register(rule);
+            }
+            wrappedRules.put(ruleset.getId(), rules);
+        }
         updateDeploymentInfo();
 
         start();
@@ -195,7 +278,7 @@ public class RulesEngine<T extends Ruleset> {
     /**
      * @return <code>true</code> if this rules engine has no deployments.
      */
-    public boolean removeRuleset(Ruleset ruleset) {
+    public synchronized boolean removeRuleset(Ruleset ruleset) {
         if (!deployments.containsKey(ruleset.getId())) {
             LOG.finer("Ruleset cannot be retracted as it was never deployed: " + ruleset);
             return deployments.size() == 0;
@@ -203,7 +286,11 @@ public class RulesEngine<T extends Ruleset> {
 
         stop();
 
-        deployments.remove(ruleset.getId());
+        deployments.remove(ruleset.getId()).getWindows().forEach(facts::removeWindow);
+        wrappedRules.remove(ruleset.getId());
+        if (profiler != null) {
+            profiler.remove(ruleset.getId());
+        }
         updateDeploymentInfo();
 
         // If there are no deployments with COMPILATION_ERROR, promote all which are READY to DEPLOYED
@@ -228,7 +315,7 @@ public class RulesEngine<T extends Ruleset> {
         }
     }
 
-    public void start() {
+    public synchronized void start() {
         if (isRunning()) {
             return;
         }
@@ -245,6 +332,9 @@ public class RulesEngine<T extends Ruleset> {
 
         LOG.info("Starting: " + this);
         running = true;
+        if (profiler != null) {
+            profiler.registerMBean();
+        }
         fire();
 
         // Start a background stats printer if INFO level logging is enabled
@@ -259,36 +349,80 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void fire() {
-        withLock(toString() + "::scheduleFire", () -> {
+        synchronized (fireTimerLock) {
             // Schedule a firing within the guaranteed expiration time (so not immediately), and
-            // only if the last firing is done. This effectively limits how often the rules engine
+            // only if no firing is scheduled. This effectively limits how often the rules engine
             // will fire, only once within the guaranteed minimum expiration time.
             if (fireTimer == null || fireTimer.isDone()) {
                 LOG.fine("Scheduling rules firing on: " + this);
                 fireTimer = executorService.schedule(
-                    () -> withLock(RulesEngine.this.toString() + "::fire", () -> {
-
-                        // Are temporary facts present before rules are fired?
-                        boolean hadTemporaryFactsBefore = facts.hasTemporaryFacts();
-
-                        // Process rules for all deployments
-                        fireAllDeployments();
-
-                        // If there are temporary facts, or if there were some before and
-                        // now they are gone, schedule a new firing to guarantee processing
-                        // of expired and removed temporary facts
-                        if ((facts.hasTemporaryFacts() || (hadTemporaryFactsBefore && !facts.hasTemporaryFacts()))
-                            && !disableTemporaryFactExpiration) {
-                            LOG.fine("Temporary facts require firing rules on: " + this);
-                            executorService.schedule(this::fire, 0);
-                        } else if (!disableTemporaryFactExpiration) {
-                            LOG.fine("No temporary facts present/changed when firing rules on: " + this);
-                        }
-
-                    }),
+                    () -> submit("fire", this::fireScheduled),
                     TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS
                 );
             }
+        }
+    }
+
+    protected void fireScheduled() {
+        // Are temporary facts present before rules are fired?
+        boolean hadTemporaryFactsBefore = facts.hasTemporaryFacts();
+
+        // Process rules for all deployments
+        fireAllDeployments();
+
+        if (disableTemporaryFactExpiration || !running)
+            return;
+
+        // If there are temporary facts, wake up when the next one expires, if there were some before and
+        // now they are gone, fire again to guarantee processing of removed temporary facts
+        OptionalLong nextExpiration = facts.getNextExpiration();
+        if (nextExpiration.isPresent()) {
+            LOG.fine("Temporary facts require firing rules on: " + this);
+            scheduleExpiration(nextExpiration.getAsLong());
+        } else if (hadTemporaryFactsBefore) {
+            LOG.fine("Temporary facts removed, firing rules on: " + this);
+            executorService.schedule(this::fire, 0);
+        } else {
+            LOG.fine("No temporary facts present/changed when firing rules on: " + this);
+        }
+    }
+
+    /**
+     * Fire when the temporary fact with the given expiration time has expired, or after the maximum expiration
+     * delay, replaces any earlier wake-up. A pseudo clock can be advanced at any time, so with a pseudo clock the
+     * engine fires again as soon as possible.
+     */
+    protected void scheduleExpiration(long expirationTimestamp) {
+        long delay = 0;
+        if (timerService.getClock() == TimerService.Clock.REAL) {
+            // The firing itself is delayed by the guaranteed minimum expiration time
+            delay = Math.max(
+                expirationTimestamp + 1 - timerService.getCurrentTimeMillis() - TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS,
+                0
+            );
+            delay = Math.min(delay, Math.max(maxExpirationDelayMillis - TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS, 0));
+        }
+        synchronized (fireTimerLock) {
+            if (expirationTimer != null) {
+                expirationTimer.cancel(false);
+            }
+            expirationTimer = executorService.schedule(this::fire, delay);
+        }
+    }
+
+    /**
+     * Execute the task on the lane of this engine while holding the monitor of this engine.
+     */
+    protected void submit(String name, Runnable task) {
+        lanes.submit(id.toString(), () -> {
+            try {
+                synchronized (RulesEngine.this) {
+                    task.run();
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, "On " + RulesEngine.this + ", error executing task: " + name, ex);
+            }
+            return null;
         });
     }
 
@@ -304,6 +438,41 @@ public class RulesEngine<T extends Ruleset> {
         // Remove any expired temporary facts
         facts.removeExpiredTemporaryFacts();
 
+        // Coalesce the attribute writes of all deployments, dispatch them when the firing stops
+        writeLimiter.startFiring();
+        try {
+            fireDeployments(clock);
+        } finally {
+            writeLimiter.stopFiring();
+            scheduleDeferredWrites();
+        }
+    }
+
+    protected void scheduleDeferredWrites() {
+        long delay = writeLimiter.getDeferredDelayMillis();
+        if (delay < 0)
+            return;
+        synchronized (fireTimerLock) {
+            if (deferredWritesTimer == null) {
+                deferredWritesTimer = executorService.schedule(
+                    () -> submit("dispatchDeferredWrites", this::dispatchDeferredWrites),
+                    delay
+                );
+            }
+        }
+    }
+
+    protected void dispatchDeferredWrites() {
+        synchronized (fireTimerLock) {
+            deferredWritesTimer = null;
+        }
+        if (!running)
+            return;
+        writeLimiter.dispatchDeferred();
+        scheduleDeferredWrites();
+    }
+
+    protected void fireDeployments(RulesClock clock) {
         for (RulesetDeployment deployment : deployments.values()) {
             try {
                 RULES_LOG.fine("Firing rules @" + clock + " of: " + deployment);
@@ -317,8 +486,12 @@ public class RulesEngine<T extends Ruleset> {
                 // Reset facts for this firing (loop detection etc.)
                 facts.reset();
 
+                if (profiler != null) {
+                    profiler.startFiring(deployment);
+                }
+
                 long startTimestamp = System.currentTimeMillis();
-                engine.fire(deployment.getRules(), facts);
+                engine.fire(getRules(deployment), facts);
                 RULES_LOG.fine("Rules executed in: " + (System.currentTimeMillis() - startTimestamp) + "ms");
 
             } catch (Exception ex) {
@@ -336,41 +509,96 @@ public class RulesEngine<T extends Ruleset> {
             } finally {
                 // Reset facts after this firing (loop detection etc.)
                 facts.reset();
+                if (profiler != null) {
+                    profiler.stopFiring();
+                }
             }
         }
     }
 
-    public void stop() {
+    /**
+     * @return The wrapped rules of the deployment with incremental evaluation or profiling, otherwise all rules of
+     * the deployment.
+     */
+    protected Rules getRules(RulesetDeployment deployment) {
+        Rules rules = wrappedRules.get(deployment.getId());
+        return rules != null ? rules : deployment.getRules();
+    }
+
+    /**
+     * @return The rule profiler of this engine, or <code>null</code> if profiling is disabled.
+     */
+    public RulesProfiler getProfiler() {
+        return profiler;
+    }
+
+    public RulesWriteLimiter getWriteLimiter() {
+        return writeLimiter;
+    }
+
+    public synchronized void stop() {
         if (!isRunning()) {
             return;
         }
         LOG.info("Stopping: " + this);
-        if (fireTimer != null) {
-            fireTimer.cancel(true);
-            fireTimer = null;
+        synchronized (fireTimerLock) {
+            if (fireTimer != null) {
+                fireTimer.cancel(true);
+                fireTimer = null;
+            }
+            if (expirationTimer != null) {
+                expirationTimer.cancel(true);
+                expirationTimer = null;
+            }
+            if (deferredWritesTimer != null) {
+                deferredWritesTimer.cancel(true);
+                deferredWritesTimer = null;
+            }
         }
         if (statsTimer != null) {
             statsTimer.cancel(true);
             statsTimer = null;
         }
+        if (profiler != null) {
+            profiler.unregisterMBean();
+        }
         running = false;
     }
 
     public void updateFact(AssetState assetState, boolean fireImmediately) {
-        facts.putAssetState(assetState);
-        if (fireImmediately) {
+        submit("updateFact", () -> {
+            facts.putAssetState(assetState);
+            writeLimiter.onInput(assetState);
+            if (fireImmediately) {
+                fire();
+            }
+        });
+    }
+
+    /**
+     * Bulk load of asset states in a single lane task, the engine fires once after all states have been updated.
+     */
+    public void updateFacts(Collection<AssetState> assetStates) {
+        submit("updateFacts", () -> {
+            assetStates.forEach(facts::putAssetState);
             fire();
-        }
+        });
     }
 
     public void removeFact(AssetState assetState) {
-        facts.removeAssetState(assetState);
-        fire();
+        submit("removeFact", () -> {
+            facts.removeAssetState(assetState);
+            writeLimiter.onInput(assetState);
+            fire();
+        });
     }
 
     public void insertFact(String expires, AssetState assetState) {
-        facts.insertAssetEvent(expires, assetState);
-        fire();
+        submit("insertFact", () -> {
+            facts.insertAssetEvent(expires, assetState);
+            writeLimiter.onInput(assetState);
+            fire();
+        });
     }
 
     protected void updateDeploymentInfo() {
@@ -382,7 +610,7 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     protected void printSessionStats() {
-        withLock(toString() + "::printSessionStats", () -> {
+        synchronized (this) {
             Collection<AssetState> assetStateFacts = facts.getAssetStates();
             Collection<TemporaryFact<AssetState>> assetEventFacts = facts.getAssetEvents();
             Map<String, Object> namedFacts = facts.getNamedFacts();
@@ -396,11 +624,41 @@ public class RulesEngine<T extends Ruleset> {
                 + ", Anonymous: " + anonFacts.size()
                 + ", Temporary: " + temporaryFactsCount);
 
+            if (incrementalEvaluation) {
+                long untrackedCount = 0;
+                long skippedCount = 0;
+                for (Rules rules : wrappedRules.values()) {
+                    for (Rule rule : rules) {
+                        TrackedRule trackedRule = (TrackedRule) rule;
+                        untrackedCount += trackedRule.isUntracked() ? 1 : 0;
+                        skippedCount += trackedRule.getSkippedCount();
+                    }
+                }
+                STATS_LOG.info("On " + this + ", incremental evaluation has untracked rules: " + untrackedCount
+                    + ", skipped condition evaluations: " + skippedCount);
+            }
+
+            STATS_LOG.info("On " + this + ", attribute writes dispatched: " + writeLimiter.getDispatchedCount()
+                + ", coalesced: " + writeLimiter.getCoalescedCount()
+                + ", dropped: " + writeLimiter.getDroppedCount()
+                + ", feedback loops: " + writeLimiter.getLoopCount());
+
+            if (profiler != null) {
+                profiler.getRuleMetrics().stream()
+                    .max(Comparator.comparingLong(metrics -> metrics.getConditionTime().getSum() + metrics.getActionTime().getSum()))
+                    .ifPresent(metrics -> STATS_LOG.info("On " + this + ", most expensive rule is '" + metrics.getRuleName()
+                        + "' of ruleset '" + metrics.getRulesetName()
+                        + "', evaluations: " + metrics.getEvaluations()
+                        + ", condition time: " + metrics.getConditionTime().getSum() / 1000 + "ms"
+                        + ", executions: " + metrics.getExecutions()
+                        + ", action time: " + metrics.getActionTime().getSum() / 1000 + "ms"));
+            }
+
             // Additional details if FINEST is enabled
             if (STATS_LOG.isLoggable(Level.FINEST)) {
                 facts.logFacts(STATS_LOG);
             }
-        });
+        }
     }
 
     @Override
@@ -24,6 +24,7 @@ import org.jeasy.rules.api.Rule;
 import org.jeasy.rules.api.RuleListener;
 import org.openremote.model.asset.AssetQuery;
 import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.attribute.AttributeExecuteStatus;
 import org.openremote.model.rules.AssetQueryPredicate;
 import org.openremote.model.rules.AssetState;
@@ -61,47 +62,124 @@ public class RulesFacts extends Facts implements RuleListener {
 
     public RulesClock clock;
 
-    final protected Map<String, Collection<AssetState>> assetIdIndex = new HashMap<>();
-    final protected Map<String, Collection<AssetState>> assetTypeIndex = new HashMap<>();
+    final protected AssetStateStore assetStateStore = new AssetStateStore();
 
     protected int triggerCount;
 
+    // Facts offered to match predicates, used by the RulesProfiler
+    protected long scannedCount;
+
+    // Temporary facts ordered by expiration time, expired facts are removed without scanning all facts
+    final protected PriorityQueue<Expiration> expirations = new PriorityQueue<>(
+        Comparator.comparingLong(expiration -> expiration.timestamp)
+    );
+
+    // Time windows declared by the deployed rulesets, updated with each inserted asset event
+    final protected Map<String, AssetEventWindow> windows = new HashMap<>();
+
+    // The rule whose condition is currently evaluated with dependency tracking
+    protected TrackedRule trackingRule;
+    protected AssetChangeListener assetChangeListener;
+
+    /**
+     * Notified when asset state and asset event facts change, used to find {@link TrackedRule}s that have to be
+     * evaluated again.
+     */
+    public interface AssetChangeListener {
+
+        void onAssetStateChanged(AssetState assetState);
+
+        void onAssetEventChanged(AssetState assetState);
+    }
+
+    /**
+     * The location of a temporary fact, equal to any other expiration of the same fact instance.
+     */
+    protected static class Expiration {
+
+        final protected TemporaryFact<?> fact;
+        final protected long timestamp;
+        // The name of a named fact, null if the fact is an anonymous fact or asset event
+        final protected String name;
+        final protected boolean assetEvent;
+
+        public Expiration(TemporaryFact<?> fact, String name, boolean assetEvent) {
+            this.fact = fact;
+            this.timestamp = fact.getTimestamp() + fact.getExpirationMilliseconds();
+            this.name = name;
+            this.assetEvent = assetEvent;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return fact == ((Expiration) o).fact;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(fact);
+        }
+    }
+
     public RulesFacts(Assets assetsFacade, Object loggingContext, Logger logger) {
         this.assetsFacade = assetsFacade;
         this.loggingContext = loggingContext;
         this.LOG = logger;
 
-        asMap().put(ASSET_STATES, new ArrayDeque(INITIAL_CAPACITY));
-        asMap().put(ASSET_EVENTS, new ArrayDeque(INITIAL_CAPACITY));
+        asMap().put(ASSET_STATES, assetStateStore.getAll());
+        // Temporary facts are equal by identity, so asset events can be removed in constant time when they expire
+        asMap().put(ASSET_EVENTS, new LinkedHashSet());
         asMap().put(EXECUTION_VARS, new HashMap());
         asMap().put(ANONYMOUS_FACTS, new ArrayDeque(INITIAL_CAPACITY));
     }
 
+    public void setAssetChangeListener(AssetChangeListener assetChangeListener) {
+        this.assetChangeListener = assetChangeListener;
+    }
+
     public void setClock(RulesClock clock) {
         this.clock = clock;
         asMap().put(CLOCK, clock);
     }
 
     public RulesClock getClock() {
+        trackUntracked();
         return clock;
     }
 
-    @SuppressWarnings("unchecked")
     public Collection<AssetState> getAssetStates() {
-        return (Collection<AssetState>) get(ASSET_STATES);
+        trackUntracked();
+        return assetStates();
     }
 
-    @SuppressWarnings("unchecked")
     public Collection<TemporaryFact<AssetState>> getAssetEvents() {
-        return (Collection<TemporaryFact<AssetState>>) get(ASSET_EVENTS);
+        trackUntracked();
+        return assetEvents();
     }
 
-    @SuppressWarnings("unchecked")
     public Collection<Object> getAnonymousFacts() {
-        return (Collection<Object>) get(ANONYMOUS_FACTS);
+        trackUntracked();
+        return anonymousFacts();
+    }
+
+    protected Collection<AssetState> assetStates() {
+        return assetStateStore.getAll();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Collection<TemporaryFact<AssetState>> assetEvents() {
+        return (Collection<TemporaryFact<AssetState>>) asMap().get(ASSET_EVENTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Collection<Object> anonymousFacts() {
+        return (Collection<Object>) asMap().get(ANONYMOUS_FACTS);
     }
 
     public Map<String, Object> getNamedFacts() {
+        trackUntracked();
         return asMap().entrySet().stream().filter(entry ->
             !entry.getKey().equals(CLOCK)
                 && !entry.getKey().equals(ASSET_STATES)
@@ -127,7 +205,7 @@ public class RulesFacts extends Facts implements RuleListener {
 
     @SuppressWarnings("unchecked")
     public Map<String, Object> getVars() {
-        return (Map<String, Object>) get(EXECUTION_VARS);
+        return (Map<String, Object>) asMap().get(EXECUTION_VARS);
     }
 
     public RulesFacts bind(String var, Object value) {
@@ -143,6 +221,7 @@ public class RulesFacts extends Facts implements RuleListener {
     @SuppressWarnings("unchecked")
     @Override
     public <T> T get(String name) {
+        trackUntracked();
         Object fact = super.get(name);
         if (fact != null && fact instanceof TemporaryFact) {
             TemporaryFact temporaryFact = (TemporaryFact) fact;
@@ -168,7 +247,14 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (UPDATE): " + name + " => " + fact + " - on: " + loggingContext);
         }
+        Object previous = asMap().get(name);
+        if (previous instanceof TemporaryFact) {
+            expirations.remove(new Expiration((TemporaryFact<?>) previous, name, false));
+        }
         super.put(name, fact);
+        if (fact instanceof TemporaryFact) {
+            expirations.add(new Expiration((TemporaryFact<?>) fact, name, false));
+        }
         return this;
     }
 
@@ -176,8 +262,11 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (UPDATE): " + o + " - on: " + loggingContext);
         }
-        getAnonymousFacts().remove(o);
+        boolean present = getAnonymousFacts().remove(o);
         getAnonymousFacts().add(o);
+        if (!present && o instanceof TemporaryFact) {
+            expirations.add(new Expiration((TemporaryFact<?>) o, null, false));
+        }
         return this;
     }
 
@@ -185,19 +274,13 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (UPDATE): " + assetState + " - on: " + loggingContext);
         }
-        getAssetStates().remove(assetState);
-        getAssetStates().add(assetState);
-
-        // Maintain index of all asset states for this asset by ID
-        assetIdIndex.putIfAbsent(assetState.getId(), new ArrayDeque<>());
-        assetIdIndex.get(assetState.getId()).remove(assetState);
-        assetIdIndex.get(assetState.getId()).add(assetState);
-
-        // Maintain index of all asset states for this asset by type
-        assetTypeIndex.putIfAbsent(assetState.getTypeString(), new ArrayDeque<>());
-        assetTypeIndex.get(assetState.getTypeString()).remove(assetState);
-        assetTypeIndex.get(assetState.getTypeString()).add(assetState);
-
+        AssetState previous = assetStateStore.put(assetState);
+        if (assetChangeListener != null) {
+            if (previous != null) {
+                assetChangeListener.onAssetStateChanged(previous);
+            }
+            assetChangeListener.onAssetStateChanged(assetState);
+        }
         return this;
     }
 
@@ -205,20 +288,13 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (DELETE): " + assetState + " - on: " + loggingContext);
         }
-        getAssetStates().remove(assetState);
-
-        // Maintain index of all asset states for this asset by ID
-        Collection<AssetState> assetIdIndexCollection = assetIdIndex.get(assetState.getId());
-        if (assetIdIndexCollection != null) {
-            assetIdIndexCollection.remove(assetState);
-        }
-
-        // Maintain index of all asset states for this asset by type
-        Collection<AssetState> assetTypeIndexCollection = assetTypeIndex.get(assetState.getTypeString());
-        if (assetTypeIndexCollection != null) {
-            assetTypeIndexCollection.remove(assetState);
+        AssetState previous = assetStateStore.remove(assetState);
+        if (assetChangeListener != null) {
+            if (previous != null) {
+                assetChangeListener.onAssetStateChanged(previous);
+            }
+            assetChangeListener.onAssetStateChanged(assetState);
         }
-
         return this;
     }
 
@@ -232,6 +308,13 @@ public class RulesFacts extends Facts implements RuleListener {
             LOG.finest("Fact change (INSERT): " + fact + " - on: " + loggingContext);
         }
         getAssetEvents().add(fact);
+        expirations.add(new Expiration(fact, null, true));
+        for (AssetEventWindow window : windows.values()) {
+            window.add(assetState);
+        }
+        if (assetChangeListener != null) {
+            assetChangeListener.onAssetEventChanged(assetState);
+        }
         return this;
     }
 
@@ -248,7 +331,9 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public RulesFacts putTemporary(long expires, Object value) {
-        getAnonymousFacts().add(new TemporaryFact<>((long) getClock().getTimestamp(), expires, value));
+        TemporaryFact<Object> fact = new TemporaryFact<>((long) getClock().getTimestamp(), expires, value);
+        getAnonymousFacts().add(fact);
+        expirations.add(new Expiration(fact, null, false));
         return this;
     }
 
@@ -266,7 +351,15 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public boolean hasTemporaryFacts() {
-        return getTemporaryFacts().count() > 0;
+        return !expirations.isEmpty();
+    }
+
+    /**
+     * @return The time when the next temporary fact expires, empty if there are no temporary facts.
+     */
+    public OptionalLong getNextExpiration() {
+        Expiration next = expirations.peek();
+        return next != null ? OptionalLong.of(next.timestamp) : OptionalLong.empty();
     }
 
     public Stream<TemporaryFact> getTemporaryFacts() {
@@ -281,20 +374,94 @@ public class RulesFacts extends Facts implements RuleListener {
 
     @Override
     public RulesFacts remove(String name) {
+        Object previous = asMap().get(name);
         super.remove(name);
+        if (previous instanceof TemporaryFact) {
+            expirations.remove(new Expiration((TemporaryFact<?>) previous, name, false));
+        }
         return this;
     }
 
     public RulesFacts remove(Object fact) {
         getAnonymousFacts().removeIf(anonFact -> {
             if (anonFact instanceof TemporaryFact) {
-                anonFact = ((TemporaryFact) anonFact).getFact();
+                TemporaryFact<?> temporaryFact = (TemporaryFact<?>) anonFact;
+                if (temporaryFact.getFact().equals(fact)) {
+                    expirations.remove(new Expiration(temporaryFact, null, false));
+                    return true;
+                }
+                return false;
             }
             return anonFact.equals(fact);
         });
         return this;
     }
 
+    /**
+     * Add a time window, replacing any window with the same name. The window starts with the asset events that are
+     * currently in the facts.
+     */
+    public RulesFacts putWindow(AssetEventWindow window) {
+        AssetEventWindow previous = windows.put(window.getName(), window);
+        if (previous != null && previous != window) {
+            LOG.warning("Replacing window '" + window.getName() + "' - on: " + loggingContext);
+        }
+        window.clear();
+        for (TemporaryFact<AssetState> assetEvent : assetEvents()) {
+            window.add(assetEvent.getFact());
+        }
+        return this;
+    }
+
+    public RulesFacts removeWindow(AssetEventWindow window) {
+        windows.remove(window.getName(), window);
+        return this;
+    }
+
+    /**
+     * @return The aggregate of the attribute in the named time window at the current time of the clock, empty if
+     * there is no window with that name or no asset event of the attribute was aggregated by the window.
+     */
+    public Optional<WindowAggregate> getWindow(String name, String assetId, String attributeName) {
+        return getWindow(name, new AttributeRef(assetId, attributeName));
+    }
+
+    public Optional<WindowAggregate> getWindow(String name, AttributeRef attributeRef) {
+        // The aggregate changes with the clock, so the condition must always be evaluated
+        trackUntracked();
+        AssetEventWindow window = windows.get(name);
+        if (window == null)
+            return Optional.empty();
+        return window.get(attributeRef, (long) clock.getTimestamp());
+    }
+
+    /**
+     * Record the dependencies of the given rule until {@link #stopTracking()} is called.
+     */
+    protected void startTracking(TrackedRule rule) {
+        trackingRule = rule;
+    }
+
+    protected void stopTracking() {
+        trackingRule = null;
+    }
+
+    /**
+     * @return The total number of facts offered to the predicates of the <code>match</code> methods.
+     */
+    public long getScannedCount() {
+        return scannedCount;
+    }
+
+    /**
+     * The currently evaluated rule (if any) accessed facts which can't be tracked by asset query.
+     */
+    protected void trackUntracked() {
+        if (trackingRule != null) {
+            trackingRule.trackUntracked();
+        }
+    }
+
     /**
      * Reset rules triggered counter, used for loop detection.
      */
@@ -391,6 +558,7 @@ public class RulesFacts extends Facts implements RuleListener {
 
     @SuppressWarnings("unchecked")
     public <T> Stream<T> match(Class<T> factType, Predicate<T> predicate) {
+        scannedCount += asMap().size() + anonymousFacts().size() + assetStates().size() + assetEvents().size();
         return getAllFacts()
             .filter(fact -> matchFact(fact, factType, predicate).isPresent())
             .map(fact -> {
@@ -407,24 +575,15 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public Stream<AssetState> matchAssetState(AssetQuery assetQuery) {
-        Predicate<AssetState> p = new AssetQueryPredicate(assetQuery);
-
-        // Match against all asset states by default
-        Stream<AssetState> assetStates = getAssetStates().stream();
-
-        // If the query is by asset ID, look up a smaller stream on asset ID index
-        Collection<AssetState> assetStatesForId;
-        if (assetQuery.id != null && ((assetStatesForId = assetIdIndex.get(assetQuery.id)) != null)) {
-            return assetStatesForId.stream().parallel().filter(p);
-        }
-
-        // If the query is by asset type, look up a smaller stream on asset type index
-        Collection<AssetState> assetStatesForType;
-        if (assetQuery.type != null && ((assetStatesForType = assetTypeIndex.get(assetQuery.type.value)) != null)) {
-            return assetStatesForType.stream().parallel().filter(p);
+        AssetQueryPredicate p = new AssetQueryPredicate(assetQuery);
+        if (trackingRule != null) {
+            trackingRule.trackAssetStates(p);
         }
 
-        return assetStates.parallel().filter(p);
+        // Match against the smallest indexed set of asset states, all asset states if the query isn't indexed
+        Collection<AssetState> candidates = assetStateStore.getCandidates(assetQuery);
+        scannedCount += candidates.size();
+        return candidates.stream().parallel().filter(p);
     }
 
     public Optional<TemporaryFact<AssetState>> matchFirstAssetEvent(AssetQuery assetQuery) {
@@ -436,8 +595,12 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public Stream<TemporaryFact<AssetState>> matchAssetEvent(AssetQuery assetQuery) {
-        Predicate<AssetState> p = new AssetQueryPredicate(assetQuery);
-        return getAssetEvents().stream().parallel()
+        AssetQueryPredicate p = new AssetQueryPredicate(assetQuery);
+        if (trackingRule != null) {
+            trackingRule.trackAssetEvents(p);
+        }
+        scannedCount += assetEvents().size();
+        return assetEvents().stream().parallel()
             .filter(fact -> matchFact(fact, AssetState.class, p).isPresent());
     }
 
@@ -467,26 +630,15 @@ public class RulesFacts extends Facts implements RuleListener {
 
     protected RulesFacts invalidateAssetStateAndDispatch(String assetId, String attributeName, Value value) {
         // Remove the asset state from the facts, it is invalid now
-        getAssetStates()
-            .removeIf(assetState -> {
-                boolean invalid = assetState.getId().equals(assetId) && assetState.getAttributeName().equals(attributeName);
-                if (invalid) {
-                    if (LOG.isLoggable(Level.FINEST)) {
-                        LOG.finest("Fact change (INTERNAL DELETE): " + assetState + " - on: " + loggingContext);
-                    }
-                    // Maintain index of all asset states for this asset by ID
-                    Collection<AssetState> assetIdIndexCollection = assetIdIndex.get(assetState.getId());
-                    if (assetIdIndexCollection != null) {
-                        assetIdIndexCollection.remove(assetState);
-                    }
-                    // Maintain index of all asset states for this asset by type
-                    Collection<AssetState> assetTypeIndexCollection = assetTypeIndex.get(assetState.getTypeString());
-                    if (assetTypeIndexCollection != null) {
-                        assetTypeIndexCollection.remove(assetState);
-                    }
-                }
-                return invalid;
-            });
+        assetStateStore.get(assetId, attributeName).ifPresent(assetState -> {
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest("Fact change (INTERNAL DELETE): " + assetState + " - on: " + loggingContext);
+            }
+            assetStateStore.remove(assetState);
+            if (assetChangeListener != null) {
+                assetChangeListener.onAssetStateChanged(assetState);
+            }
+        });
 
         // Dispatch the update to the asset processing service
         AttributeEvent attributeEvent = new AttributeEvent(assetId, attributeName, value);
@@ -496,41 +648,29 @@ public class RulesFacts extends Facts implements RuleListener {
         return this;
     }
 
+    /**
+     * Removes the expired temporary facts in order of expiration, the cost depends on the number of expired facts
+     * and not on the number of all facts.
+     */
     public void removeExpiredTemporaryFacts() {
         long currentTimestamp = (long) getClock().getTimestamp();
-        getAssetEvents().removeIf(fact -> {
-            boolean result = fact.isExpired(currentTimestamp);
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + fact + " - on: " + loggingContext);
-            }
-            return result;
-        });
-        asMap().entrySet().removeIf(entry -> {
-            if (entry.getKey().equals(CLOCK)
-                || entry.getKey().equals(ASSET_STATES)
-                || entry.getKey().equals(ASSET_EVENTS)
-                || entry.getKey().equals(EXECUTION_VARS)
-                || entry.getKey().equals(ANONYMOUS_FACTS)
-                || !(entry.getValue() instanceof TemporaryFact)) {
-                return false;
+        while (!expirations.isEmpty() && expirations.peek().fact.isExpired(currentTimestamp)) {
+            Expiration expiration = expirations.poll();
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest("Fact change (DELETE EXPIRED): " + expiration.fact + " - on: " + loggingContext);
             }
-            boolean result = ((TemporaryFact) entry.getValue()).isExpired(currentTimestamp);
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + entry.getValue() + " - on: " + loggingContext);
-            }
-            return result;
-        });
-        getAnonymousFacts().removeIf(fact -> {
-            boolean result = false;
-            if (fact instanceof TemporaryFact) {
-                TemporaryFact temporaryFact = (TemporaryFact) fact;
-                result = temporaryFact.isExpired((long) getClock().getTimestamp());
-            }
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + fact + " - on: " + loggingContext);
+            if (expiration.assetEvent) {
+                assetEvents().remove(expiration.fact);
+                if (assetChangeListener != null) {
+                    assetChangeListener.onAssetEventChanged((AssetState) expiration.fact.getFact());
+                }
+            } else if (expiration.name != null) {
+                asMap().remove(expiration.name, expiration.fact);
+            } else {
+                // Equal by identity, removes only this temporary fact
+                anonymousFacts().remove(expiration.fact);
             }
-            return result;
-        });
+        }
     }
 
     public boolean logFacts(Logger logger) {
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.jeasy.rules.api.Facts;
+import org.jeasy.rules.api.Rule;
+import org.jeasy.rules.api.RuleListener;
+import org.openremote.model.rules.RuleHistogram;
+import org.openremote.model.rules.RuleMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the {@link RuleMetrics} of the rules of a {@link RulesEngine}.
+ * <p>
+ * Actions are measured with the rule listener callbacks, conditions are measured by wrapping each rule in a
+ * {@link ProfiledRule}. Metrics are recorded on the lane of the engine and read by other threads, all access is
+ * synchronized on this profiler. While the engine is running, the profiler is registered as an MXBean on the
+ * platform MBean server.
+ */
+public class RulesProfiler implements RuleListener, RulesProfilerMXBean {
+
+    private static final Logger LOG = Logger.getLogger(RulesProfiler.class.getName());
+
+    public static final String OBJECT_NAME_DOMAIN = "org.openremote.manager.rules";
+
+    public static final long[] TIME_BUCKETS_MICROS = {10, 100, 1000, 10000, 100000, 1000000, 10000000};
+    public static final long[] FACTS_SCANNED_BUCKETS = {0, 10, 100, 1000, 10000, 100000, 1000000};
+    public static final long[] LOOP_ITERATION_BUCKETS = {1, 2, 5, 10, 20, 50, 100};
+
+    protected static class Histogram {
+
+        final protected long[] bounds;
+        final protected long[] counts;
+        protected long count;
+        protected long sum;
+        protected long max;
+
+        public Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length + 1];
+        }
+
+        public void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        public RuleHistogram toRuleHistogram() {
+            return new RuleHistogram(bounds.clone(), counts.clone(), count, sum, max);
+        }
+    }
+
+    protected static class Metrics {
+
+        final protected Long rulesetId;
+        final protected String rulesetName;
+        final protected String ruleName;
+        final protected Histogram conditionTime = new Histogram(TIME_BUCKETS_MICROS);
+        final protected Histogram actionTime = new Histogram(TIME_BUCKETS_MICROS);
+        final protected Histogram factsScanned = new Histogram(FACTS_SCANNED_BUCKETS);
+        final protected Histogram loopIterations = new Histogram(LOOP_ITERATION_BUCKETS);
+        protected long executions;
+        protected long failures;
+        // Executions of the action in the current firing
+        protected long firingExecutions;
+
+        public Metrics(Long rulesetId, String rulesetName, String ruleName) {
+            this.rulesetId = rulesetId;
+            this.rulesetName = rulesetName;
+            this.ruleName = ruleName;
+        }
+    }
+
+    final protected String engineId;
+    final protected Map<String, Metrics> metrics = new LinkedHashMap<>();
+    protected RulesetDeployment deployment;
+    protected long actionStartTime;
+
+    public RulesProfiler(String engineId) {
+        this.engineId = engineId;
+    }
+
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName(OBJECT_NAME_DOMAIN + ":type=RulesProfiler,engine=" + ObjectName.quote(engineId));
+    }
+
+    /**
+     * Register this profiler on the platform MBean server, replaces the profiler of a previous engine with the same
+     * identifier. Failures are logged, profiling continues without JMX access.
+     */
+    public void registerMBean() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(this, objectName);
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Error registering rules profiler MBean: " + this, ex);
+        }
+    }
+
+    public void unregisterMBean() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Error unregistering rules profiler MBean: " + this, ex);
+        }
+    }
+
+    /**
+     * Call before the rules of the deployment are fired, rules are identified by name within the deployment.
+     */
+    public synchronized void startFiring(RulesetDeployment deployment) {
+        this.deployment = deployment;
+    }
+
+    /**
+     * Call after the rules of the deployment have been fired, records the loop iterations of the firing.
+     */
+    public synchronized void stopFiring() {
+        if (deployment == null)
+            return;
+        for (Metrics ruleMetrics : metrics.values()) {
+            if (ruleMetrics.firingExecutions > 0) {
+                ruleMetrics.loopIterations.record(ruleMetrics.firingExecutions);
+                ruleMetrics.firingExecutions = 0;
+            }
+        }
+        deployment = null;
+    }
+
+    public synchronized void onConditionEvaluated(Rule rule, long nanos, long factsScanned) {
+        Metrics ruleMetrics = getMetrics(rule);
+        if (ruleMetrics == null)
+            return;
+        ruleMetrics.conditionTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        ruleMetrics.factsScanned.record(factsScanned);
+    }
+
+    @Override
+    public boolean beforeEvaluate(Rule rule, Facts facts) {
+        return true;
+    }
+
+    @Override
+    public void afterEvaluate(Rule rule, Facts facts, boolean evaluationResult) {
+        // Conditions are recorded by ProfiledRule, this is only the second evaluation of a selected candidate
+    }
+
+    @Override
+    public synchronized void beforeExecute(Rule rule, Facts facts) {
+        actionStartTime = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void onSuccess(Rule rule, Facts facts) {
+        Metrics ruleMetrics = onActionExecuted(rule);
+        if (ruleMetrics != null) {
+            ruleMetrics.executions++;
+            ruleMetrics.firingExecutions++;
+        }
+    }
+
+    @Override
+    public synchronized void onFailure(Rule rule, Facts facts, Exception exception) {
+        Metrics ruleMetrics = onActionExecuted(rule);
+        if (ruleMetrics != null) {
+            ruleMetrics.failures++;
+        }
+    }
+
+    /**
+     * Remove the metrics of all rules of the ruleset.
+     */
+    public synchronized void remove(Long rulesetId) {
+        Iterator<Metrics> it = metrics.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().rulesetId.equals(rulesetId)) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        metrics.clear();
+    }
+
+    @Override
+    public synchronized List<RuleMetrics> getRuleMetrics() {
+        List<RuleMetrics> result = new ArrayList<>(metrics.size());
+        for (Metrics ruleMetrics : metrics.values()) {
+            result.add(new RuleMetrics(
+                engineId,
+                ruleMetrics.rulesetId,
+                ruleMetrics.rulesetName,
+                ruleMetrics.ruleName,
+                ruleMetrics.conditionTime.count,
+                ruleMetrics.executions,
+                ruleMetrics.failures,
+                ruleMetrics.conditionTime.toRuleHistogram(),
+                ruleMetrics.actionTime.toRuleHistogram(),
+                ruleMetrics.factsScanned.toRuleHistogram(),
+                ruleMetrics.loopIterations.toRuleHistogram()
+            ));
+        }
+        return result;
+    }
+
+    protected Metrics onActionExecuted(Rule rule) {
+        Metrics ruleMetrics = getMetrics(rule);
+        if (ruleMetrics != null) {
+            ruleMetrics.actionTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - actionStartTime));
+        }
+        return ruleMetrics;
+    }
+
+    protected Metrics getMetrics(Rule rule) {
+        if (deployment == null)
+            return null;
+        return metrics.computeIfAbsent(
+            deployment.getId() + ":" + rule.getName(),
+            key -> new Metrics(deployment.getId(), deployment.getName(), rule.getName())
+        );
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "{" +
+            "engineId='" + engineId + '\'' +
+            ", rules=" + metrics.size() +
+            '}';
+    }
+}
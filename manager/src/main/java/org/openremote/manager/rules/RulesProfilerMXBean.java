@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.model.rules.RuleMetrics;
+
+import java.util.List;
+
+/**
+ * The {@link RuleMetrics} of a running {@link RulesEngine}, registered on the platform MBean server so the metrics
+ * can be read with JMX tools, see {@link RulesProfiler#getObjectName}.
+ */
+public interface RulesProfilerMXBean {
+
+    List<RuleMetrics> getRuleMetrics();
+
+    void reset();
+}
@@ -19,13 +19,17 @@
  */
 package org.openremote.manager.rules;
 
+import groovy.lang.GroovySystem;
 import org.apache.camel.builder.RouteBuilder;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
+import org.openremote.container.concurrent.GlobalLock;
 import org.openremote.container.message.MessageBrokerSetupService;
+import org.openremote.container.persistence.AfterCommitBuffer;
 import org.openremote.container.persistence.PersistenceEvent;
 import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.timer.TimerService;
+import org.openremote.container.web.WebService;
 import org.openremote.manager.asset.*;
 import org.openremote.manager.concurrent.ManagerExecutorService;
 import org.openremote.manager.notification.NotificationService;
@@ -33,7 +37,6 @@ import org.openremote.manager.security.ManagerIdentityService;
 import org.openremote.model.asset.Asset;
 import org.openremote.model.asset.AssetAttribute;
 import org.openremote.model.asset.AssetMeta;
-import org.openremote.model.asset.AssetQuery;
 import org.openremote.model.attribute.AttributeEvent.Source;
 import org.openremote.model.rules.*;
 import org.openremote.model.security.Tenant;
@@ -41,17 +44,23 @@ import org.openremote.model.util.Pair;
 import org.openremote.model.value.ObjectValue;
 
 import javax.persistence.EntityManager;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static java.util.logging.Level.FINEST;
+import static java.util.logging.Level.WARNING;
 import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
 import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
 import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.container.util.MapAccess.getString;
 import static org.openremote.model.AbstractValueTimestampHolder.VALUE_TIMESTAMP_FIELD_NAME;
 import static org.openremote.model.asset.AssetAttribute.attributesFromJson;
@@ -71,13 +80,17 @@ import static org.openremote.model.asset.AssetAttribute.getAddedOrModifiedAttrib
  * set in {@link RulesService#RULE_EVENT_EXPIRES} is reached, or if the lifetime set in the
  * attribute {@link AssetMeta#RULE_EVENT_EXPIRES} is reached.
  * <p>
- * Each asset attribute update is processed in the following order:
+ * Each asset attribute update is delivered to the rules engines in the following order:
  * <ol>
  * <li>Global Rulesets</li>
  * <li>Tenant Rulesets</li>
  * <li>Asset Rulesets (in hierarchical order from oldest ancestor down)</li>
  * </ol>
- * Processing order of rulesets with the same scope or same parent is not guaranteed.
+ * Processing order of rulesets with the same scope or same parent is not guaranteed. The rules engines
+ * fire asynchronously and independently of each other on the lanes of a bounded worker pool, configured with
+ * {@link #RULES_ENGINE_LANES}. Fact updates for the rules engines are queued while holding the global lock and
+ * submitted to the lanes in the same order after the lock has been released, so a full lane never blocks a thread
+ * holding the global lock.
  */
 public class RulesService extends RouteBuilder implements ContainerService, AssetUpdateProcessor {
 
@@ -85,6 +98,39 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
     public static final String RULE_EVENT_EXPIRES = "RULE_EVENT_EXPIRES";
     public static final String RULE_EVENT_EXPIRES_DEFAULT = "1h";
+    // Only evaluate rule conditions again if asset states/events they matched have changed, see TrackedRule
+    public static final String RULES_INCREMENTAL_EVALUATION = "RULES_INCREMENTAL_EVALUATION";
+    public static final boolean RULES_INCREMENTAL_EVALUATION_DEFAULT = false;
+    // Rules engines fire in parallel on this many lanes, all fact updates and firings of an engine use the same lane
+    public static final String RULES_ENGINE_LANES = "RULES_ENGINE_LANES";
+    public static final int RULES_ENGINE_LANES_DEFAULT = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+    // When the queue of a lane is full, the thread submitting queued fact updates blocks until there is space
+    public static final String RULES_ENGINE_LANE_QUEUE_SIZE = "RULES_ENGINE_LANE_QUEUE_SIZE";
+    public static final int RULES_ENGINE_LANE_QUEUE_SIZE_DEFAULT = 1000;
+    // Number of assets with rule state attributes loaded per query when the rules engines are initialized
+    public static final String RULE_STATE_LOAD_CHUNK_SIZE = "RULE_STATE_LOAD_CHUNK_SIZE";
+    public static final int RULE_STATE_LOAD_CHUNK_SIZE_DEFAULT = 1000;
+    // Record execution metrics of each rule, see RulesProfiler
+    public static final String RULES_PROFILING = "RULES_PROFILING";
+    public static final boolean RULES_PROFILING_DEFAULT = true;
+    // Rules engines wake up when the next temporary fact expires, but at least this often while temporary facts
+    // are present, so conditions on sliding time windows of asset events are evaluated again
+    public static final String RULES_TEMPORARY_FACT_MAX_DELAY_MILLIS = "RULES_TEMPORARY_FACT_MAX_DELAY_MILLIS";
+    public static final int RULES_TEMPORARY_FACT_MAX_DELAY_MILLIS_DEFAULT = 30000;
+    // Maximum attribute writes per second of the rules of one engine, and of one attribute, see RulesWriteLimiter
+    public static final String RULES_ENGINE_WRITE_RATE = "RULES_ENGINE_WRITE_RATE";
+    public static final int RULES_ENGINE_WRITE_RATE_DEFAULT = 1000;
+    public static final String RULES_ATTRIBUTE_WRITE_RATE = "RULES_ATTRIBUTE_WRITE_RATE";
+    public static final int RULES_ATTRIBUTE_WRITE_RATE_DEFAULT = 10;
+    // Drop the writes of rules which wrote again in this many consecutive firings triggered only by their own writes
+    public static final String RULES_WRITE_LOOP_FIRINGS = "RULES_WRITE_LOOP_FIRINGS";
+    public static final int RULES_WRITE_LOOP_FIRINGS_DEFAULT = 20;
+    // Directory for the compiled classes of Groovy rulesets, reused after a restart, disabled if empty; stored
+    // classes are verified with an HMAC keyed with the secret, which is required to enable the directory
+    public static final String RULES_COMPILED_CLASSES_PATH = "RULES_COMPILED_CLASSES_PATH";
+    public static final String RULES_COMPILED_CLASSES_PATH_DEFAULT = "";
+    public static final String RULES_COMPILED_CLASSES_SECRET = "RULES_COMPILED_CLASSES_SECRET";
+    public static final String RULES_COMPILED_CLASSES_SECRET_DEFAULT = "";
 
     protected TimerService timerService;
     protected ManagerExecutorService executorService;
@@ -94,6 +140,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     protected AssetStorageService assetStorageService;
     protected NotificationService notificationService;
     protected AssetProcessingService assetProcessingService;
+    protected AssetProcessingLanes rulesEngineLanes;
 
     protected RulesEngine<GlobalRuleset> globalEngine;
     protected final Map<String, RulesEngine<TenantRuleset>> tenantEngines = new HashMap<>();
@@ -102,10 +149,47 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
     // Keep global list of asset states that have been pushed to any engines
     // The objects are already in memory inside the rule engines but keeping them
-    // here means we can quickly insert facts into newly started engines
-    protected Set<AssetState> assetStates = new HashSet<>();
+    // here means we can quickly insert facts into newly started engines, the
+    // indexes by realm and asset path find the states in scope of a new engine
+    final protected AssetStateStore assetStates = new AssetStateStore();
+
+    // The rules engines in scope of an asset by asset ID, cleared when any engine is added or removed
+    final protected Map<String, EngineScope> engineScopes = new HashMap<>();
+
+    // Fact updates queued while holding the global lock, submitted to the engine lanes after the lock is released
+    final protected Queue<Runnable> pendingFactUpdates = new ConcurrentLinkedQueue<>();
+    final protected ReentrantLock factUpdateSubmitLock = new ReentrantLock();
+
+    // Asset states of attribute updates, passed to the rules engines when the transaction of the update commits
+    final protected AfterCommitBuffer<Runnable> uncommittedAssetStates =
+        new AfterCommitBuffer<>(assetStateUpdates -> assetStateUpdates.forEach(Runnable::run));
+
+    /**
+     * The global, tenant and asset rules engines in scope of an asset with the given realm and path.
+     */
+    protected static class EngineScope {
+
+        final protected String realmId;
+        final protected String[] path;
+        final protected RulesEngine[] rulesEngines;
+
+        public EngineScope(String realmId, String[] path, RulesEngine[] rulesEngines) {
+            this.realmId = realmId;
+            this.path = path;
+            this.rulesEngines = rulesEngines;
+        }
+
+        public boolean matches(String realmId, String[] path) {
+            return Objects.equals(this.realmId, realmId) && Arrays.equals(this.path, path);
+        }
+    }
 
     protected String configEventExpires;
+    protected boolean configIncrementalEvaluation;
+    protected int configRuleStateLoadChunkSize;
+    protected boolean configProfiling;
+    protected int configMaxExpirationDelayMillis;
+    protected RulesWriteLimiter.Limits configWriteLimits;
 
     @Override
     public void init(Container container) throws Exception {
@@ -118,8 +202,45 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
         assetStorageService = container.getService(AssetStorageService.class);
         assetProcessingService = container.getService(AssetProcessingService.class);
         container.getService(MessageBrokerSetupService.class).getContext().addRoutes(this);
+        container.getService(WebService.class).getApiSingletons().add(
+            new RuleMetricsResourceImpl(timerService, identityService, this)
+        );
 
         configEventExpires = getString(container.getConfig(), RULE_EVENT_EXPIRES, RULE_EVENT_EXPIRES_DEFAULT);
+        configIncrementalEvaluation = getBoolean(container.getConfig(), RULES_INCREMENTAL_EVALUATION, RULES_INCREMENTAL_EVALUATION_DEFAULT);
+        configProfiling = getBoolean(container.getConfig(), RULES_PROFILING, RULES_PROFILING_DEFAULT);
+        configMaxExpirationDelayMillis = getInteger(
+            container.getConfig(), RULES_TEMPORARY_FACT_MAX_DELAY_MILLIS, RULES_TEMPORARY_FACT_MAX_DELAY_MILLIS_DEFAULT
+        );
+        configWriteLimits = new RulesWriteLimiter.Limits(
+            getInteger(container.getConfig(), RULES_ENGINE_WRITE_RATE, RULES_ENGINE_WRITE_RATE_DEFAULT),
+            getInteger(container.getConfig(), RULES_ATTRIBUTE_WRITE_RATE, RULES_ATTRIBUTE_WRITE_RATE_DEFAULT),
+            getInteger(container.getConfig(), RULES_WRITE_LOOP_FIRINGS, RULES_WRITE_LOOP_FIRINGS_DEFAULT)
+        );
+        configRuleStateLoadChunkSize = Math.max(
+            getInteger(container.getConfig(), RULE_STATE_LOAD_CHUNK_SIZE, RULE_STATE_LOAD_CHUNK_SIZE_DEFAULT), 1
+        );
+        String compiledClassesPath =
+            getString(container.getConfig(), RULES_COMPILED_CLASSES_PATH, RULES_COMPILED_CLASSES_PATH_DEFAULT);
+        String compiledClassesSecret =
+            getString(container.getConfig(), RULES_COMPILED_CLASSES_SECRET, RULES_COMPILED_CLASSES_SECRET_DEFAULT);
+        RulesetClassStore classStore = null;
+        if (!compiledClassesPath.isEmpty()) {
+            if (compiledClassesSecret.isEmpty()) {
+                LOG.warning("Not storing compiled ruleset classes, " + RULES_COMPILED_CLASSES_SECRET + " is not set");
+            } else {
+                // Classes compiled by another Groovy version are not reused
+                classStore = new RulesetClassStore(
+                    Paths.get(compiledClassesPath, GroovySystem.getVersion()), compiledClassesSecret
+                );
+            }
+        }
+        RulesetDeployment.setClassStore(classStore);
+        rulesEngineLanes = new AssetProcessingLanes(
+            "Rules engine",
+            getInteger(container.getConfig(), RULES_ENGINE_LANES, RULES_ENGINE_LANES_DEFAULT),
+            getInteger(container.getConfig(), RULES_ENGINE_LANE_QUEUE_SIZE, RULES_ENGINE_LANE_QUEUE_SIZE_DEFAULT)
+        );
     }
 
     @Override
@@ -157,40 +278,40 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
     @Override
     public void start(Container container) throws Exception {
-        LOG.info("Deploying global rulesets");
-        rulesetStorageService.findEnabledGlobalRulesets().forEach(this::deployGlobalRuleset);
-
-        LOG.info("Deploying tenant rulesets");
+        List<GlobalRuleset> globalRulesets = rulesetStorageService.findEnabledGlobalRulesets();
         activeTenantIds = identityService.getIdentityProvider().getActiveTenantIds();
-        rulesetStorageService.findEnabledTenantRulesets()
+        List<TenantRuleset> tenantRulesets = rulesetStorageService.findEnabledTenantRulesets()
             .stream()
             .filter(rd ->
                 Arrays.stream(activeTenantIds)
                     .anyMatch(tenantId -> rd.getRealmId().equals(tenantId))
-            ).forEach(this::deployTenantRuleset);
+            ).collect(Collectors.toList());
+        List<AssetRuleset> assetRulesets = rulesetStorageService.findEnabledAssetRulesets();
+
+        LOG.info("Compiling rulesets");
+        List<Ruleset> rulesets = new ArrayList<>(globalRulesets);
+        rulesets.addAll(tenantRulesets);
+        rulesets.addAll(assetRulesets);
+        RulesetDeployment.precompile(rulesets);
+
+        LOG.info("Deploying global rulesets");
+        globalRulesets.forEach(this::deployGlobalRuleset);
+
+        LOG.info("Deploying tenant rulesets");
+        tenantRulesets.forEach(this::deployTenantRuleset);
 
         LOG.info("Deploying asset rulesets");
         // Group by asset ID then tenant and check tenant is enabled
-        deployAssetRulesets(rulesetStorageService.findEnabledAssetRulesets());
+        deployAssetRulesets(assetRulesets);
 
         LOG.info("Loading all assets with fact attributes to initialize state of rules engines");
-        Stream<Pair<ServerAsset, Stream<AssetAttribute>>> assetRuleAttributes = findRuleStateAttributes();
-
-        // Push each rule attribute as an asset update through the rule engine chain
-        // that will ensure the insert only happens to the engines in scope
-        assetRuleAttributes
-            .forEach(pair -> {
-                ServerAsset asset = pair.key;
-                pair.value.forEach(ruleAttribute -> {
-                    AssetState assetState = new AssetState(asset, ruleAttribute, Source.INTERNAL);
-                    updateAssetState(assetState, true, true);
-                });
-            });
+        loadRuleStates();
     }
 
     @Override
     public void stop(Container container) throws Exception {
         withLock(getClass().getSimpleName() + "::stop", () -> {
+            engineScopes.clear();
             assetEngines.forEach((assetId, rulesEngine) -> rulesEngine.stop());
             assetEngines.clear();
             tenantEngines.forEach((realm, rulesEngine) -> rulesEngine.stop());
@@ -201,6 +322,8 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                 globalEngine = null;
             }
         });
+        pendingFactUpdates.clear();
+        rulesEngineLanes.shutdown();
     }
 
     @Override
@@ -208,28 +331,43 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                                       ServerAsset asset,
                                       AssetAttribute attribute,
                                       Source source) throws AssetProcessingException {
-        // We might process two facts for a single attribute update, if that is what the user wants
+        // We might process two facts for a single attribute update, if that is what the user wants, the rules
+        // engines only see them when the update has been committed
 
         // First as asset state
         if (attribute.isRuleState()) {
-            updateAssetState(
-                new AssetState(asset, attribute, source),
-                false, // Don't skip the error check on the rules engines
-                !attribute.isRuleEvent() // If it's not a rule event, fire immediately
-            );
+            AssetState assetState = new AssetState(asset, attribute, source);
+            boolean fireImmediately = !attribute.isRuleEvent(); // If it's not a rule event, fire immediately
+            // Fail the update now if a rules engine in scope is in error, it's not checked again after the commit
+            checkEnginesInScope(assetState);
+            uncommittedAssetStates.add(em, () -> updateAssetState(assetState, true, fireImmediately));
         }
 
         // Then as asset event (if there wasn't an error), this will also fire the rules engines
         if (attribute.isRuleEvent()) {
-            insertAssetEvent(
-                new AssetState(asset, attribute, source),
-                attribute.getRuleEventExpires().orElse(configEventExpires)
-            );
+            AssetState assetState = new AssetState(asset, attribute, source);
+            String expires = attribute.getRuleEventExpires().orElse(configEventExpires);
+            uncommittedAssetStates.add(em, () -> insertAssetEvent(assetState, expires));
         }
 
         return false;
     }
 
+    /**
+     * @return The mark of the asset states of the attribute updates in the transaction, pass it to
+     * {@link #rollbackToMark} when rolling back to a savepoint.
+     */
+    public int getTransactionMark(EntityManager em) {
+        return uncommittedAssetStates.getMark(em);
+    }
+
+    /**
+     * Forget the asset states of the attribute updates in the transaction after the mark.
+     */
+    public void rollbackToMark(EntityManager em, int mark) {
+        uncommittedAssetStates.rollbackToMark(em, mark);
+    }
+
     protected void processTenantChange(Tenant tenant, PersistenceEvent.Cause cause) {
         withLock(getClass().getSimpleName() + "::processTenantChange", () -> {
             // Check if enabled status has changed
@@ -242,6 +380,8 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                 return;
             }
 
+            engineScopes.clear();
+
             if (wasEnabled) {
                 // Remove tenant rules engine for this tenant if it exists
                 RulesEngine<TenantRuleset> tenantRulesEngine = tenantEngines.get(tenant.getId());
@@ -271,7 +411,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     }
 
     protected void processAssetChange(ServerAsset asset, PersistenceEvent persistenceEvent) {
-        withLock(getClass().getSimpleName() + "::processAssetChange", () -> {
+        withLockSubmittingFacts(getClass().getSimpleName() + "::processAssetChange", () -> {
 
             // We must load the asset from database (only when required), as the
             // persistence event might not contain a completely loaded asset
@@ -360,7 +500,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     }
 
     protected void processRulesetChange(Ruleset ruleset, PersistenceEvent.Cause cause) {
-        withLock(getClass().getSimpleName() + "::processRulesetChange", () -> {
+        withLockSubmittingFacts(getClass().getSimpleName() + "::processRulesetChange", () -> {
             if (cause == PersistenceEvent.Cause.DELETE || !ruleset.isEnabled()) {
                 if (ruleset instanceof GlobalRuleset) {
                     undeployGlobalRuleset((GlobalRuleset) ruleset);
@@ -375,8 +515,8 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                     RulesEngine newEngine = deployGlobalRuleset((GlobalRuleset) ruleset);
                     if (newEngine != null) {
                         // Push all existing facts into the engine, this is an initial import of state so fire delayed
-                        assetStates.forEach(assetState -> newEngine.updateFact(assetState, false));
-                        newEngine.fire();
+                        List<AssetState> engineStates = new ArrayList<>(assetStates.getAll());
+                        pendingFactUpdates.add(() -> newEngine.updateFacts(engineStates));
                     }
 
                 } else if (ruleset instanceof TenantRuleset) {
@@ -384,12 +524,9 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                     RulesEngine newEngine = deployTenantRuleset((TenantRuleset) ruleset);
                     if (newEngine != null) {
                         // Push all existing facts into the engine, this is an initial import of state so fire delayed
-                        assetStates.forEach(assetState -> {
-                            if (assetState.getRealmId().equals(((TenantRuleset) ruleset).getRealmId())) {
-                                newEngine.updateFact(assetState, false);
-                            }
-                        });
-                        newEngine.fire();
+                        List<AssetState> engineStates =
+                            new ArrayList<>(assetStates.getByRealm(((TenantRuleset) ruleset).getRealmId()));
+                        pendingFactUpdates.add(() -> newEngine.updateFacts(engineStates));
                     }
 
                 } else if (ruleset instanceof AssetRuleset) {
@@ -400,9 +537,9 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                     if (newEngine != null) {
                         // Push all existing facts for this asset (and it's children into the engine), this is an
                         // initial import of state so fire delayed
-                        getAssetStatesInScope(((AssetRuleset) ruleset).getAssetId())
-                            .forEach(assetState -> newEngine.updateFact(assetState, false));
-                        newEngine.fire();
+                        List<AssetState> engineStates =
+                            new ArrayList<>(assetStates.getSubtree(((AssetRuleset) ruleset).getAssetId()));
+                        pendingFactUpdates.add(() -> newEngine.updateFacts(engineStates));
                     }
                 }
             }
@@ -419,14 +556,20 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
             // Global rules have access to everything in the system
             if (globalEngine == null) {
+                engineScopes.clear();
                 globalEngine = new RulesEngine<>(
                     timerService,
                     identityService,
                     executorService,
+                    rulesEngineLanes,
                     assetStorageService,
                     assetProcessingService,
                     notificationService,
-                    new RulesEngineId<>()
+                    new RulesEngineId<>(),
+                    configIncrementalEvaluation,
+                    configProfiling,
+                    configMaxExpirationDelayMillis,
+                    configWriteLimits
                 );
             }
 
@@ -442,6 +585,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
 
             if (globalEngine.removeRuleset(ruleset)) {
+                engineScopes.clear();
                 globalEngine = null;
             }
         });
@@ -455,14 +599,20 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             RulesEngine<TenantRuleset> tenentRulesEngine = tenantEngines
                 .computeIfAbsent(ruleset.getRealmId(), (realmId) -> {
                     created[0] = true;
+                    engineScopes.clear();
                     return new RulesEngine<>(
                         timerService,
                         identityService,
                         executorService,
+                        rulesEngineLanes,
                         assetStorageService,
                         assetProcessingService,
                         notificationService,
-                        new RulesEngineId<>(realmId)
+                        new RulesEngineId<>(realmId),
+                        configIncrementalEvaluation,
+                        configProfiling,
+                        configMaxExpirationDelayMillis,
+                        configWriteLimits
                     );
                 });
 
@@ -480,6 +630,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
 
             if (rulesEngine.removeRuleset(ruleset)) {
+                engineScopes.clear();
                 tenantEngines.remove(ruleset.getRealmId());
             }
         });
@@ -521,14 +672,20 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             RulesEngine<AssetRuleset> assetRulesEngine = assetEngines
                 .computeIfAbsent(ruleset.getAssetId(), (assetId) -> {
                     created[0] = true;
+                    engineScopes.clear();
                     return new RulesEngine<>(
                         timerService,
                         identityService,
                         executorService,
+                        rulesEngineLanes,
                         assetStorageService,
                         assetProcessingService,
                         notificationService,
-                        new RulesEngineId<>(ruleset.getRealmId(), assetId)
+                        new RulesEngineId<>(ruleset.getRealmId(), assetId),
+                        configIncrementalEvaluation,
+                        configProfiling,
+                        configMaxExpirationDelayMillis,
+                        configWriteLimits
                     );
                 });
 
@@ -545,18 +702,19 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
 
             if (assetRulesEngine.removeRuleset(ruleset)) {
+                engineScopes.clear();
                 assetEngines.remove(ruleset.getAssetId());
             }
         });
     }
 
     protected void insertAssetEvent(AssetState assetState, String expires) {
-        withLock(getClass().getSimpleName() + "::insertAssetEvent", () -> {
+        withLockSubmittingFacts(getClass().getSimpleName() + "::insertAssetEvent", () -> {
             // Get the chain of rule engines that we need to pass through
-            List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
+            RulesEngine[] rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
 
             // Check that all engines in the scope are available
-            if (rulesEngines.stream().anyMatch(RulesEngine::isError)) {
+            if (isAnyError(rulesEngines)) {
                 LOG.severe("At least one rules engine is in an error state, skipping: " + assetState);
                 if (LOG.isLoggable(FINEST)) {
                     for (RulesEngine rulesEngine : rulesEngines) {
@@ -570,17 +728,27 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
             // Pass through each engine
             for (RulesEngine rulesEngine : rulesEngines) {
-                rulesEngine.insertFact(expires, assetState);
+                pendingFactUpdates.add(() -> rulesEngine.insertFact(expires, assetState));
+            }
+        });
+    }
+
+    protected void checkEnginesInScope(AssetState assetState) {
+        withLock(getClass().getSimpleName() + "::checkEnginesInScope", () -> {
+            for (RulesEngine rulesEngine : getEnginesInScope(assetState.getRealmId(), assetState.getPath())) {
+                if (rulesEngine.isError()) {
+                    throw rulesEngine.getError();
+                }
             }
         });
     }
 
     protected void updateAssetState(AssetState assetState, boolean skipStatusCheck, boolean fireImmediately) {
-        withLock(getClass().getSimpleName() + "::updateAssetState", () -> {
+        withLockSubmittingFacts(getClass().getSimpleName() + "::updateAssetState", () -> {
             // TODO: implement rules processing error state handling
 
             // Get the chain of rule engines that we need to pass through
-            List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
+            RulesEngine[] rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
 
             if (!skipStatusCheck) {
                 // Check that all engines in the scope are available
@@ -592,42 +760,103 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                 }
             }
 
-            // Remove asset state with same attribute ref as new state, add new state
-            assetStates.remove(assetState);
-            assetStates.add(assetState);
+            // Replace asset state with same attribute ref as new state
+            assetStates.put(assetState);
 
             // Pass through each rules engine
             for (RulesEngine rulesEngine : rulesEngines) {
-                rulesEngine.updateFact(assetState, fireImmediately);
+                pendingFactUpdates.add(() -> rulesEngine.updateFact(assetState, fireImmediately));
             }
         });
     }
 
     protected void retractAssetState(AssetState assetState) {
         // Get the chain of rule engines that we need to pass through
-        List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
+        RulesEngine[] rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
 
         // Remove asset state with same attribute ref
         assetStates.remove(assetState);
 
-        if (rulesEngines.size() == 0) {
+        if (rulesEngines.length == 0) {
             LOG.fine("Ignoring as there are no matching rules engines: " + assetState);
         }
 
         // Pass through each rules engine
         for (RulesEngine rulesEngine : rulesEngines) {
-            rulesEngine.removeFact(assetState);
+            pendingFactUpdates.add(() -> rulesEngine.removeFact(assetState));
         }
     }
 
-    protected List<AssetState> getAssetStatesInScope(String assetId) {
-        return assetStates
-            .stream()
-            .filter(assetState -> Arrays.asList(assetState.getPath()).contains(assetId))
-            .collect(Collectors.toList());
+    /**
+     * Execute the guarded code while holding the global lock, then submit the fact updates it queued to the lanes of
+     * the rules engines. Nested calls leave the queued updates to the outermost call, which releases the lock.
+     */
+    protected void withLockSubmittingFacts(String info, Runnable runnable) {
+        try {
+            withLock(info, runnable);
+        } finally {
+            submitFactUpdates();
+        }
+    }
+
+    /**
+     * Submit queued fact updates in queue order, must not be called while holding the global lock as submitting
+     * blocks when the queue of a lane is full. Only one thread submits at a time, other threads don't wait for it,
+     * the submitting thread also submits their queued updates.
+     */
+    protected void submitFactUpdates() {
+        if (GlobalLock.isHeldByCurrentThread())
+            return;
+        while (!pendingFactUpdates.isEmpty() && factUpdateSubmitLock.tryLock()) {
+            try {
+                Runnable factUpdate;
+                while ((factUpdate = pendingFactUpdates.poll()) != null) {
+                    try {
+                        factUpdate.run();
+                    } catch (RejectedExecutionException ex) {
+                        LOG.log(WARNING, "Rules engine lane rejected fact update, is the service stopping?", ex);
+                    }
+                }
+            } finally {
+                factUpdateSubmitLock.unlock();
+            }
+        }
+    }
+
+    protected static boolean isAnyError(RulesEngine[] rulesEngines) {
+        for (RulesEngine rulesEngine : rulesEngines) {
+            if (rulesEngine.isError())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The asset states of the asset and all its descendants.
+     */
+    protected Collection<AssetState> getAssetStatesInScope(String assetId) {
+        return assetStates.getSubtree(assetId);
     }
 
-    protected List<RulesEngine> getEnginesInScope(String realmId, String[] assetPath) {
+    /**
+     * @return The rules engines in scope of an asset, from the cache if the realm and path of the asset didn't change.
+     */
+    protected RulesEngine[] getEnginesInScope(String realmId, String[] assetPath) {
+        // The first element of the path is the asset itself
+        String assetId = assetPath.length > 0 ? assetPath[0] : null;
+        EngineScope engineScope = assetId != null ? engineScopes.get(assetId) : null;
+        if (engineScope != null && engineScope.matches(realmId, assetPath)) {
+            return engineScope.rulesEngines;
+        }
+
+        RulesEngine[] rulesEngines = findEnginesInScope(realmId, assetPath);
+        if (assetId != null) {
+            engineScopes.put(assetId, new EngineScope(realmId, assetPath, rulesEngines));
+        }
+        return rulesEngines;
+    }
+
+    protected RulesEngine[] findEnginesInScope(String realmId, String[] assetPath) {
         List<RulesEngine> rulesEngines = new ArrayList<>();
 
         // Add global engine (if it exists)
@@ -650,23 +879,89 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
         }
 
+        return rulesEngines.toArray(new RulesEngine[rulesEngines.size()]);
+    }
+
+    /**
+     * @return The metrics of all rules of all rules engines, empty if profiling is disabled.
+     */
+    public List<RuleMetrics> getRuleMetrics() {
+        return withLockReturning(getClass().getSimpleName() + "::getRuleMetrics", () -> {
+            List<RuleMetrics> result = new ArrayList<>();
+            for (RulesEngine rulesEngine : getEngines()) {
+                if (rulesEngine.getProfiler() != null) {
+                    result.addAll(rulesEngine.getProfiler().getRuleMetrics());
+                }
+            }
+            return result;
+        });
+    }
+
+    public void resetRuleMetrics() {
+        withLock(getClass().getSimpleName() + "::resetRuleMetrics", () -> {
+            for (RulesEngine rulesEngine : getEngines()) {
+                if (rulesEngine.getProfiler() != null) {
+                    rulesEngine.getProfiler().reset();
+                }
+            }
+        });
+    }
+
+    protected List<RulesEngine> getEngines() {
+        List<RulesEngine> rulesEngines = new ArrayList<>();
+        if (globalEngine != null) {
+            rulesEngines.add(globalEngine);
+        }
+        rulesEngines.addAll(tenantEngines.values());
+        rulesEngines.addAll(assetEngines.values());
         return rulesEngines;
     }
 
-    protected Stream<Pair<ServerAsset, Stream<AssetAttribute>>> findRuleStateAttributes() {
-        List<ServerAsset> assets = assetStorageService.findAll(
-            new AssetQuery()
-                .select(new AssetQuery.Select(AssetQuery.Include.ALL))
-                .attributeMeta(
-                    new AssetQuery.AttributeMetaPredicate(
-                        AssetMeta.RULE_STATE,
-                        new AssetQuery.BooleanPredicate(true))
-                ));
-
-        return assets.stream()
-            .map((ServerAsset asset) ->
-                new Pair<>(asset, asset.getAttributesStream().filter(AssetAttribute::isRuleState))
-            );
+    /**
+     * Loads the rule state attributes of all assets in pages of {@link #RULE_STATE_LOAD_CHUNK_SIZE}, ordered by
+     * asset ID, and passes each page as one bulk update to the rules engines in scope. Only the current page is
+     * kept in memory and each engine fires once per page instead of once per fact.
+     */
+    protected void loadRuleStates() {
+        long startTime = System.currentTimeMillis();
+        String lastAssetId = "";
+        int assetCount = 0;
+        int stateCount = 0;
+        List<ServerAsset> assets;
+        do {
+            assets = assetStorageService.findRuleStateAssets(lastAssetId, configRuleStateLoadChunkSize);
+            if (assets.isEmpty())
+                break;
+            lastAssetId = assets.get(assets.size() - 1).getId();
+
+            List<AssetState> chunk = new ArrayList<>();
+            for (ServerAsset asset : assets) {
+                asset.getAttributesStream()
+                    .filter(AssetAttribute::isRuleState)
+                    .forEach(ruleAttribute -> chunk.add(new AssetState(asset, ruleAttribute, Source.INTERNAL)));
+            }
+            loadRuleStates(chunk);
+
+            assetCount += assets.size();
+            stateCount += chunk.size();
+            LOG.fine("Loaded " + stateCount + " asset states of " + assetCount + " assets into rules engines");
+        } while (assets.size() == configRuleStateLoadChunkSize);
+
+        LOG.info("Loaded " + stateCount + " asset states of " + assetCount + " assets into rules engines in "
+            + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    protected void loadRuleStates(List<AssetState> chunk) {
+        withLockSubmittingFacts(getClass().getSimpleName() + "::loadRuleStates", () -> {
+            Map<RulesEngine, List<AssetState>> engineStates = new LinkedHashMap<>();
+            for (AssetState assetState : chunk) {
+                assetStates.put(assetState);
+                for (RulesEngine rulesEngine : getEnginesInScope(assetState.getRealmId(), assetState.getPath())) {
+                    engineStates.computeIfAbsent(rulesEngine, engine -> new ArrayList<>()).add(assetState);
+                }
+            }
+            engineStates.forEach((rulesEngine, states) -> pendingFactUpdates.add(() -> rulesEngine.updateFacts(states)));
+        });
     }
 
     @Override
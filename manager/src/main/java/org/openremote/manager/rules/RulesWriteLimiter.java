@@ -0,0 +1,339 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Protects the asset processing queue from attribute writes of misbehaving rules, all writes of the rules of a
+ * {@link RulesEngine} pass through an instance of this class.
+ * <p>
+ * Writes during a firing are coalesced, only the last write of each attribute is dispatched when the firing
+ * stops. Dispatched writes are limited with token buckets, one for the engine and one for each attribute. A
+ * write is deferred when a bucket is empty, the latest deferred write of each attribute is dispatched when the
+ * buckets have been refilled, see {@link #dispatchDeferred} and {@link #getDeferredDelayMillis}. A deferred write
+ * replaced by a later write of the same attribute is dropped.
+ * <p>
+ * A feedback loop is detected when a number of consecutive firings were triggered only by the facts of
+ * attributes the previous firing wrote, and each of these firings wrote again. The writes of the firing that
+ * completes the loop are dropped, this stops the loop.
+ */
+public class RulesWriteLimiter {
+
+    private static final Logger LOG = Logger.getLogger(RulesWriteLimiter.class.getName());
+
+    public static class Limits {
+
+        final protected int engineWritesPerSecond;
+        final protected int attributeWritesPerSecond;
+        final protected int loopFirings;
+
+        /**
+         * @param engineWritesPerSecond    Maximum rate and burst of writes of the engine, disabled if <code>0</code>.
+         * @param attributeWritesPerSecond Maximum rate and burst of writes of one attribute, disabled if <code>0</code>.
+         * @param loopFirings              Consecutive self-triggered firings of a feedback loop, disabled if <code>0</code>.
+         */
+        public Limits(int engineWritesPerSecond, int attributeWritesPerSecond, int loopFirings) {
+            this.engineWritesPerSecond = engineWritesPerSecond;
+            this.attributeWritesPerSecond = attributeWritesPerSecond;
+            this.loopFirings = loopFirings;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "engineWritesPerSecond=" + engineWritesPerSecond +
+                ", attributeWritesPerSecond=" + attributeWritesPerSecond +
+                ", loopFirings=" + loopFirings +
+                '}';
+        }
+    }
+
+    /**
+     * Holds up to one second of tokens, refilled continuously.
+     */
+    protected static class TokenBucket {
+
+        final protected double capacity;
+        final protected double tokensPerMilli;
+        protected double tokens;
+        protected long lastRefill;
+
+        public TokenBucket(int tokensPerSecond, long currentMillis) {
+            this.capacity = tokensPerSecond;
+            this.tokensPerMilli = tokensPerSecond / 1000d;
+            this.tokens = capacity;
+            this.lastRefill = currentMillis;
+        }
+
+        public boolean hasToken(long currentMillis) {
+            refill(currentMillis);
+            return tokens >= 1;
+        }
+
+        public void take() {
+            tokens--;
+        }
+
+        /**
+         * @return The time until the bucket holds a token again, <code>0</code> if it holds a token.
+         */
+        public long getDelayMillis(long currentMillis) {
+            refill(currentMillis);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerMilli);
+        }
+
+        public boolean isFull(long currentMillis) {
+            refill(currentMillis);
+            return tokens >= capacity;
+        }
+
+        protected void refill(long currentMillis) {
+            if (currentMillis > lastRefill) {
+                tokens = Math.min(capacity, tokens + (currentMillis - lastRefill) * tokensPerMilli);
+                lastRefill = currentMillis;
+            }
+        }
+    }
+
+    final protected Object loggingContext;
+    final protected Consumer<AttributeEvent> dispatcher;
+    final protected Limits limits;
+    final protected TokenBucket engineBucket;
+    final protected Map<AttributeRef, TokenBucket> attributeBuckets = new HashMap<>();
+
+    // Writes of the current firing, last write of each attribute in order of first write
+    final protected Map<AttributeRef, AttributeEvent> pendingWrites = new LinkedHashMap<>();
+    // Latest rate limited write of each attribute, dispatched when the buckets have been refilled
+    final protected Map<AttributeRef, AttributeEvent> deferredWrites = new LinkedHashMap<>();
+    // Attributes written by the last firing and whether any other facts changed since
+    protected Set<AttributeRef> lastWrites = new HashSet<>();
+    protected boolean selfTriggered;
+    protected boolean externalInput;
+    protected int loopStreak;
+    protected boolean firing;
+
+    protected long dispatchedCount;
+    protected long coalescedCount;
+    protected long droppedCount;
+    protected long loopCount;
+
+    public RulesWriteLimiter(Object loggingContext, Consumer<AttributeEvent> dispatcher, Limits limits) {
+        this.loggingContext = loggingContext;
+        this.dispatcher = dispatcher;
+        this.limits = limits;
+        this.engineBucket = limits.engineWritesPerSecond > 0
+            ? new TokenBucket(limits.engineWritesPerSecond, currentMillis())
+            : null;
+    }
+
+    /**
+     * A fact changed between firings, writes of the last firing which come back as facts don't count as input
+     * for feedback loop detection.
+     */
+    public void onInput(AssetState assetState) {
+        if (lastWrites.contains(new AttributeRef(assetState.getId(), assetState.getAttributeName()))) {
+            selfTriggered = true;
+        } else {
+            externalInput = true;
+        }
+    }
+
+    public void startFiring() {
+        firing = true;
+    }
+
+    /**
+     * Write during a firing replaces any earlier write of the attribute in the firing, a write outside of a
+     * firing is dispatched immediately.
+     */
+    public void write(AttributeEvent attributeEvent) {
+        if (!firing) {
+            dispatch(attributeEvent, currentMillis());
+            return;
+        }
+        if (pendingWrites.put(attributeEvent.getAttributeRef(), attributeEvent) != null) {
+            coalescedCount++;
+        }
+    }
+
+    /**
+     * Dispatch the coalesced writes of the firing, unless they complete a feedback loop.
+     */
+    public void stopFiring() {
+        firing = false;
+
+        if (!pendingWrites.isEmpty() && selfTriggered && !externalInput) {
+            loopStreak++;
+        } else {
+            loopStreak = 0;
+        }
+        selfTriggered = false;
+        externalInput = false;
+
+        if (limits.loopFirings > 0 && loopStreak >= limits.loopFirings) {
+            loopCount++;
+            droppedCount += pendingWrites.size();
+            LOG.severe("Feedback loop detected, rules wrote attributes in " + loopStreak
+                + " consecutive firings triggered only by their own writes, dropping writes of "
+                + pendingWrites.keySet() + " - on: " + loggingContext);
+            loopStreak = 0;
+            pendingWrites.clear();
+            lastWrites = new HashSet<>();
+            return;
+        }
+
+        long currentMillis = currentMillis();
+        lastWrites = new HashSet<>(pendingWrites.keySet());
+        for (AttributeEvent attributeEvent : pendingWrites.values()) {
+            dispatch(attributeEvent, currentMillis);
+        }
+        pendingWrites.clear();
+        dispatchDeferred(currentMillis);
+
+        // Buckets that refilled completely are the same as new buckets
+        attributeBuckets.values().removeIf(bucket -> bucket.isFull(currentMillis));
+    }
+
+    /**
+     * Dispatch the deferred writes the buckets have tokens for, in order of deferral.
+     */
+    public void dispatchDeferred() {
+        dispatchDeferred(currentMillis());
+    }
+
+    /**
+     * @return The time until the next deferred write can be dispatched, <code>-1</code> if no writes are deferred.
+     */
+    public long getDeferredDelayMillis() {
+        long currentMillis = currentMillis();
+        long delayMillis = -1;
+        for (AttributeRef attributeRef : deferredWrites.keySet()) {
+            long attributeDelayMillis = engineBucket != null ? engineBucket.getDelayMillis(currentMillis) : 0;
+            TokenBucket bucket = attributeBuckets.get(attributeRef);
+            if (bucket != null) {
+                attributeDelayMillis = Math.max(attributeDelayMillis, bucket.getDelayMillis(currentMillis));
+            }
+            delayMillis = delayMillis < 0 ? attributeDelayMillis : Math.min(delayMillis, attributeDelayMillis);
+        }
+        return delayMillis;
+    }
+
+    public int getDeferredCount() {
+        return deferredWrites.size();
+    }
+
+    protected void dispatch(AttributeEvent attributeEvent, long currentMillis) {
+        // The write replaces the deferred write of the attribute
+        if (deferredWrites.remove(attributeEvent.getAttributeRef()) != null) {
+            droppedCount++;
+        }
+        String exceededLimit = tryDispatch(attributeEvent, currentMillis);
+        if (exceededLimit != null) {
+            LOG.warning("Deferring write, exceeded " + exceededLimit + " write rate limit: " + attributeEvent + " - on: " + loggingContext);
+            deferredWrites.put(attributeEvent.getAttributeRef(), attributeEvent);
+        }
+    }
+
+    protected void dispatchDeferred(long currentMillis) {
+        Iterator<AttributeEvent> it = deferredWrites.values().iterator();
+        while (it.hasNext()) {
+            AttributeEvent attributeEvent = it.next();
+            if (tryDispatch(attributeEvent, currentMillis) == null) {
+                it.remove();
+            } else if (engineBucket != null && !engineBucket.hasToken(currentMillis)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return The exceeded limit if the write was not dispatched, <code>null</code> if it was dispatched.
+     */
+    protected String tryDispatch(AttributeEvent attributeEvent, long currentMillis) {
+        if (engineBucket != null && !engineBucket.hasToken(currentMillis)) {
+            return "engine";
+        }
+        TokenBucket attributeBucket = null;
+        if (limits.attributeWritesPerSecond > 0) {
+            attributeBucket = attributeBuckets.computeIfAbsent(
+                attributeEvent.getAttributeRef(),
+                attributeRef -> new TokenBucket(limits.attributeWritesPerSecond, currentMillis)
+            );
+            if (!attributeBucket.hasToken(currentMillis)) {
+                return "attribute";
+            }
+        }
+        if (engineBucket != null) {
+            engineBucket.take();
+        }
+        if (attributeBucket != null) {
+            attributeBucket.take();
+        }
+        dispatchedCount++;
+        dispatcher.accept(attributeEvent);
+        return null;
+    }
+
+    protected long currentMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    /**
+     * @return The number of writes replaced by a later write of the same attribute in the same firing.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return The number of deferred writes replaced by a later write, and of writes dropped by feedback loop
+     * detection.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getLoopCount() {
+        return loopCount;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "limits=" + limits +
+            ", dispatched=" + dispatchedCount +
+            ", coalesced=" + coalescedCount +
+            ", deferred=" + deferredWrites.size() +
+            ", dropped=" + droppedCount +
+            ", loops=" + loopCount +
+            '}';
+    }
+}
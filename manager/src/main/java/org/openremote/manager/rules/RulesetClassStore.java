@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Stores the bytecode of compiled Groovy rulesets on disk, so the rulesets don't have to be compiled again when
+ * the manager is restarted. The classes of a ruleset are stored in one archive named after the ruleset ID,
+ * version and content hash, an archive is only used for exactly this ruleset content.
+ * <p>
+ * The stored bytecode is defined without compiling (and sandboxing) the ruleset again, so it must not be
+ * modifiable by others: the directory is created accessible by the owner only, and each archive contains an
+ * HMAC of its name and classes, keyed with a server secret. An archive with a missing or wrong HMAC is ignored
+ * and the ruleset is compiled again.
+ */
+public class RulesetClassStore {
+
+    private static final Logger LOG = Logger.getLogger(RulesetClassStore.class.getName());
+
+    public static final String FILE_EXTENSION = ".jar";
+    // Archive entry with the HMAC, never the name of a class
+    public static final String HMAC_ENTRY = "META-INF/HMAC";
+    public static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    protected static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    final protected Path directory;
+    final protected SecretKeySpec secretKey;
+
+    public RulesetClassStore(Path directory, String secret) {
+        if (secret == null || secret.isEmpty())
+            throw new IllegalArgumentException("Storing compiled ruleset classes requires a secret");
+        this.directory = directory;
+        this.secretKey = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+    }
+
+    /**
+     * @return The bytecode of the classes by class name, or <code>null</code> if the classes have not been stored
+     * or the archive could not be verified.
+     */
+    public Map<String, byte[]> load(long rulesetId, long version, String contentHash) {
+        Path file = getFile(rulesetId, version, contentHash);
+        if (!Files.isReadable(file))
+            return null;
+        Map<String, byte[]> classBytes = new LinkedHashMap<>();
+        byte[] storedHmac = null;
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(file))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (HMAC_ENTRY.equals(entry.getName())) {
+                    storedHmac = readAll(in);
+                } else {
+                    classBytes.put(entry.getName(), readAll(in));
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Error loading compiled ruleset classes, compiling again: " + file, ex);
+            return null;
+        }
+        if (classBytes.isEmpty())
+            return null;
+        if (storedHmac == null || !MessageDigest.isEqual(storedHmac, getHmac(file, classBytes))) {
+            LOG.warning("Compiled ruleset classes failed verification, compiling again: " + file);
+            return null;
+        }
+        LOG.fine("Loaded " + classBytes.size() + " compiled ruleset classes: " + file);
+        return classBytes;
+    }
+
+    /**
+     * Store the bytecode of the classes by class name, if they have not been stored already.
+     */
+    public void save(long rulesetId, long version, String contentHash, Map<String, byte[]> classBytes) {
+        Path file = getFile(rulesetId, version, contentHash);
+        if (Files.exists(file))
+            return;
+        Path tempFile = null;
+        try {
+            createDirectory();
+            // Write to a temporary file first, a concurrent or interrupted save must not leave a partial archive
+            tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(tempFile))) {
+                for (Map.Entry<String, byte[]> entry : classBytes.entrySet()) {
+                    out.putNextEntry(new ZipEntry(entry.getKey()));
+                    out.write(entry.getValue());
+                    out.closeEntry();
+                }
+                out.putNextEntry(new ZipEntry(HMAC_ENTRY));
+                out.write(getHmac(file, classBytes));
+                out.closeEntry();
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.fine("Stored " + classBytes.size() + " compiled ruleset classes: " + file);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Error storing compiled ruleset classes: " + file, ex);
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the stored classes of all other versions and content of the ruleset.
+     */
+    public void removeOthers(long rulesetId, long version, String contentHash) {
+        if (!Files.isDirectory(directory))
+            return;
+        Path current = getFile(rulesetId, version, contentHash);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, rulesetId + "-*" + FILE_EXTENSION)) {
+            for (Path file : files) {
+                if (!file.equals(current)) {
+                    LOG.fine("Deleting obsolete compiled ruleset classes: " + file);
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Error deleting obsolete compiled ruleset classes of ruleset: " + rulesetId, ex);
+        }
+    }
+
+    /**
+     * Create the directory accessible by the owner only, an existing directory is restricted to the owner, this
+     * fails if the directory is owned by another user.
+     */
+    protected void createDirectory() throws IOException {
+        boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.isDirectory(directory)) {
+            if (posix) {
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } else {
+                Files.createDirectories(directory);
+            }
+        }
+        if (posix) {
+            Files.setPosixFilePermissions(directory, OWNER_ONLY);
+        }
+    }
+
+    /**
+     * @return The HMAC of the archive file name and all classes, so an archive can't be used for other content.
+     */
+    protected byte[] getHmac(Path file, Map<String, byte[]> classBytes) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secretKey);
+            mac.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            for (Map.Entry<String, byte[]> entry : classBytes.entrySet()) {
+                mac.update((byte) 0);
+                mac.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                mac.update((byte) 0);
+                mac.update(entry.getValue());
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    protected Path getFile(long rulesetId, long version, String contentHash) {
+        return directory.resolve(rulesetId + "-" + version + "-" + contentHash + FILE_EXTENSION);
+    }
+
+    protected static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "directory=" + directory +
+            '}';
+    }
+}
@@ -20,10 +20,14 @@
 package org.openremote.manager.rules;
 
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
+import groovy.lang.GroovyClassLoader;
 import groovy.lang.Script;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import org.codehaus.groovy.control.CompilationUnit;
 import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.tools.GroovyClass;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.jeasy.rules.api.Action;
 import org.jeasy.rules.api.Condition;
 import org.jeasy.rules.api.Rule;
@@ -36,14 +40,21 @@ import org.openremote.model.rules.Ruleset;
 import org.openremote.model.rules.Users;
 
 import javax.script.*;
-import java.util.Collection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class RulesetDeployment {
 
     public static final int DEFAULT_RULE_PRIORITY = 1000;
 
+    // Maximum number of distinct compiled ruleset scripts kept in memory
+    public static final int COMPILED_CACHE_SIZE = 5000;
+
     public enum Status {
         /**
          * Ruleset compiled successfully but is not running, due to failure of other rulesets in same scope.
@@ -105,7 +116,61 @@ public class RulesetDeployment {
     // Share one JS script engine manager, it's thread-safe
     static final protected ScriptEngineManager scriptEngineManager;
 
-    static final protected GroovyShell groovyShell;
+    static final protected CompilerConfiguration groovyCompilerConfiguration;
+
+    /**
+     * Compiled Groovy script classes, keyed by language and hash of the ruleset content. Deploying a ruleset with the same content again, or the same content in another scope,
+     * doesn't compile it again.
+     */
+    static final protected Map<String, Object> compiledCache = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > COMPILED_CACHE_SIZE;
+        }
+    };
+
+    // The cache key of the last compiled content of each ruleset by ruleset ID, guarded by the compiled cache
+    static final protected Map<Long, String> compiledCacheKeys = new HashMap<>();
+
+    // Optional, stores the bytecode of compiled Groovy rulesets so they are not compiled again on restart
+    static protected volatile RulesetClassStore classStore;
+
+    /**
+     * The script class of a compiled Groovy ruleset and the bytecode of all classes of the script.
+     */
+    static class CompiledGroovy {
+
+        final protected Class<? extends Script> scriptClass;
+        final protected Map<String, byte[]> classBytes;
+
+        CompiledGroovy(Class<? extends Script> scriptClass, Map<String, byte[]> classBytes) {
+            this.scriptClass = scriptClass;
+            this.classBytes = classBytes;
+        }
+    }
+
+    /**
+     * Defines the classes of a compiled Groovy ruleset from their bytecode when they are first loaded, each
+     * compiled ruleset content has its own class loader.
+     */
+    static class CompiledGroovyClassLoader extends GroovyClassLoader {
+
+        final protected Map<String, byte[]> classBytes;
+
+        CompiledGroovyClassLoader(Map<String, byte[]> classBytes) {
+            super(RulesetDeployment.class.getClassLoader(), groovyCompilerConfiguration);
+            this.classBytes = classBytes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classBytes.get(name);
+            if (bytes != null) {
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+            return super.findClass(name);
+        }
+    }
 
     static {
         scriptEngineManager = new ScriptEngineManager();
@@ -115,27 +180,18 @@ public class RulesetDeployment {
         scriptEngineManager.put("LOG", RulesEngine.RULES_LOG);
         scriptEngineManager.put("console", new JsConsole(RulesEngine.RULES_LOG));
 
-        /* TODO Sharing a static GroovyShell doesn't work, redeploying a ruleset which defines classes (e.g. Flight) is broken:
-
-        java.lang.RuntimeException: Error evaluating condition of rule '-Update flight facts when estimated landing time of flight asset is updated':
-        No signature of method: org.openremote.manager.setup.database.Script1$_run_closure2$_closure14$_closure17.doCall() is applicable for argument types: (org.openremote.manager.setup.database.Flight) values: [...]
-        Possible solutions: doCall(org.openremote.manager.setup.database.Flight), findAll(), findAll(), isCase(java.lang.Object), isCase(java.lang.Object)
-        The following classes appear as argument class and as parameter class, but are defined by different class loader:
-        org.openremote.manager.setup.database.Flight (defined by 'groovy.lang.GroovyClassLoader$InnerLoader@2cc34cd5' and 'groovy.lang.GroovyClassLoader$InnerLoader@1af957bc')
-        If one of the method suggestions matches the method you wanted to call,
-        then check your class loader setup.
-         */
-        groovyShell = new GroovyShell(
-            new CompilerConfiguration().addCompilationCustomizers(new SandboxTransformer())
-        );
+        // Each distinct Groovy script is compiled with its own class loader, a shared GroovyShell breaks
+        // redeploying a ruleset which defines classes, as these are then loaded by different class loaders
+        groovyCompilerConfiguration = new CompilerConfiguration().addCompilationCustomizers(new SandboxTransformer());
     }
 
     final protected long id;
     final protected String name;
     final protected long version;
     final protected Rules rules = new Rules();
-    protected Status status;
-    protected Throwable error;
+    final protected List<AssetEventWindow> windows = new ArrayList<>();
+    protected volatile Status status;
+    protected volatile Throwable error;
 
     public RulesetDeployment(long id, String name, long version) {
         this.id = id;
@@ -159,6 +215,10 @@ public class RulesetDeployment {
         return rules;
     }
 
+    public List<AssetEventWindow> getWindows() {
+        return windows;
+    }
+
     public boolean registerRules(Ruleset ruleset, Assets assetsFacade, Users usersFacade) {
         RulesEngine.LOG.info("Evaluating ruleset deployment: " + ruleset);
         switch (ruleset.getLang()) {
@@ -172,63 +232,14 @@ public class RulesetDeployment {
 
     public boolean registerRulesJavascript(Ruleset ruleset, Assets assetsFacade, Users usersFacade) {
         // TODO https://github.com/pfisterer/scripting-sandbox/blob/master/src/main/java/de/farberg/scripting/sandbox/ScriptingSandbox.java
-        ScriptEngine scriptEngine = scriptEngineManager.getEngineByName("nashorn");
-        ScriptContext newContext = new SimpleScriptContext();
-        newContext.setBindings(scriptEngine.createBindings(), ScriptContext.ENGINE_SCOPE);
-        Bindings engineScope = newContext.getBindings(ScriptContext.ENGINE_SCOPE);
-
-        engineScope.put("assets", assetsFacade);
-        engineScope.put("users", usersFacade);
-
-        String script = ruleset.getRules();
-
-        // Default header/imports for all rules scripts
-        script = "load(\"nashorn:mozilla_compat.js\");\n" + // This provides importPackage
-            "\n" +
-            "importPackage(\n" +
-            "    \"java.util.stream\",\n" +
-            "    \"org.openremote.model.asset\",\n" +
-            "    \"org.openremote.model.attribute\",\n" +
-            "    \"org.openremote.model.value\",\n" +
-            "    \"org.openremote.model.rules\"\n" +
-            ");\n" +
-            "var Match = Java.type(\"org.openremote.model.asset.BaseAssetQuery$Match\");\n" +
-            "var Operator = Java.type(\"org.openremote.model.asset.BaseAssetQuery$Operator\");\n" +
-            "var NumberType = Java.type(\"org.openremote.model.asset.BaseAssetQuery$NumberType\");\n" +
-            "var StringPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$StringPredicate\");\n" +
-            "var BooleanPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$BooleanPredicate\");\n" +
-            "var StringArrayPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$StringArrayPredicate\");\n" +
-            "var DateTimePredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$DateTimePredicate\");\n" +
-            "var NumberPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$NumberPredicate\");\n" +
-            "var ParentPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$ParentPredicate\");\n" +
-            "var PathPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$PathPredicate\");\n" +
-            "var TenantPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$TenantPredicate\");\n" +
-            "var AttributePredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$AttributePredicate\");\n" +
-            "var AttributeExecuteStatus = Java.type(\"org.openremote.model.attribute.AttributeExecuteStatus\");\n" +
-            "var EXACT = Match.EXACT;\n" +
-            "var BEGIN = Match.BEGIN;\n" +
-            "var END = Match.END;\n" +
-            "var CONTAINS = Match.CONTAINS;\n" +
-            "var EQUALS = Operator.EQUALS;\n" +
-            "var GREATER_THAN = Operator.GREATER_THAN;\n" +
-            "var GREATER_EQUALS = Operator.GREATER_EQUALS;\n" +
-            "var LESS_THAN = Operator.LESS_THAN;\n" +
-            "var LESS_EQUALS = Operator.LESS_EQUALS;\n" +
-            "var BETWEEN = Operator.BETWEEN;\n" +
-            "var REQUEST_START = AttributeExecuteStatus.REQUEST_START;\n" +
-            "var REQUEST_REPEATING = AttributeExecuteStatus.REQUEST_REPEATING;\n" +
-            "var REQUEST_CANCEL = AttributeExecuteStatus.REQUEST_CANCEL;\n" +
-            "var READY = AttributeExecuteStatus.READY;\n" +
-            "var COMPLETED = AttributeExecuteStatus.COMPLETED;\n" +
-            "var RUNNING = AttributeExecuteStatus.RUNNING;\n" +
-            "var CANCELLED = AttributeExecuteStatus.CANCELLED;\n" +
-            "var ERROR = AttributeExecuteStatus.ERROR;\n" +
-            "var DISABLED = AttributeExecuteStatus.DISABLED;\n" +
-            "\n"
-            + script;
-
+        Bindings engineScope = null;
         try {
-            scriptEngine.eval(script, engineScope);
+            CompiledScript compiledScript = compileJavascript(ruleset);
+            engineScope = compiledScript.getEngine().createBindings();
+            engineScope.put("assets", assetsFacade);
+            engineScope.put("users", usersFacade);
+
+            compiledScript.eval(engineScope);
 
             registerRulesJavascript((ScriptObjectMirror) engineScope.get("rules"));
 
@@ -238,7 +249,9 @@ public class RulesetDeployment {
         } catch (Exception e) {
             RulesEngine.LOG.log(Level.SEVERE, "Error evaluating ruleset: " + ruleset, e);
             setError(e);
-            engineScope.clear();
+            if (engineScope != null) {
+                engineScope.clear();
+            }
             return false;
         }
     }
@@ -316,19 +329,23 @@ public class RulesetDeployment {
         try {
             // TODO Implement sandbox
             // new DenyAll().register();
-            Script script = groovyShell.parse(ruleset.getRules());
+            Class<? extends Script> scriptClass = compileGroovy(ruleset);
             Binding binding = new Binding();
             RulesBuilder rulesBuilder = new RulesBuilder();
             binding.setVariable("LOG", RulesEngine.RULES_LOG);
             binding.setVariable("rules", rulesBuilder);
             binding.setVariable("assets", assetsFacade);
             binding.setVariable("users", usersFacade);
-            script.setBinding(binding);
+            Script script = InvokerHelper.createScript(scriptClass, binding);
             script.run();
             for (Rule rule : rulesBuilder.build()) {
                 RulesEngine.LOG.info("Registering rule: " + rule.getName());
                 rules.register(rule);
             }
+            for (AssetEventWindow window : rulesBuilder.buildWindows()) {
+                RulesEngine.LOG.info("Registering window: " + window.getName());
+                windows.add(window);
+            }
             RulesEngine.LOG.info("Evaluated ruleset deployment: " + ruleset);
             return true;
 
@@ -339,6 +356,194 @@ public class RulesetDeployment {
         }
     }
 
+    /**
+     * Compile all distinct Groovy rulesets in parallel and cache the results, deploying these rulesets doesn't have
+     * to compile them again. Compilation errors are ignored here, they are reported when the ruleset is deployed.
+     */
+    public static void precompile(Collection<? extends Ruleset> rulesets) {
+        rulesets.stream()
+            .filter(ruleset -> ruleset.getLang() == Ruleset.Lang.GROOVY)
+            .filter(ruleset -> ruleset.getRules() != null && !ruleset.getRules().isEmpty())
+            .collect(Collectors.toMap(
+                ruleset -> getCacheKey(ruleset.getLang(), getContentHash(ruleset.getRules())),
+                ruleset -> ruleset,
+                (a, b) -> a
+            ))
+            .values()
+            .parallelStream()
+            .forEach(ruleset -> {
+                try {
+                    compileGroovy(ruleset);
+                } catch (Exception ex) {
+                    RulesEngine.LOG.fine("Precompiling failed, ignoring: " + ruleset);
+                }
+            });
+    }
+
+    public static void setClassStore(RulesetClassStore classStore) {
+        RulesetDeployment.classStore = classStore;
+    }
+
+    /**
+     * Compile the ruleset or define its classes from the bytecode stored in the {@link RulesetClassStore}, if the
+     * ruleset content is not in the compiled cache.
+     */
+    @SuppressWarnings("unchecked")
+    protected static Class<? extends Script> compileGroovy(Ruleset ruleset) throws ClassNotFoundException {
+        String contentHash = getContentHash(ruleset.getRules());
+        String cacheKey = getCacheKey(Ruleset.Lang.GROOVY, contentHash);
+        RulesetClassStore store = ruleset.getId() != null ? classStore : null;
+        CompiledGroovy compiled = (CompiledGroovy) getCompiled(cacheKey);
+        if (compiled == null) {
+            String scriptClassName = "Ruleset_" + contentHash;
+            Map<String, byte[]> classBytes = store != null
+                ? store.load(ruleset.getId(), ruleset.getVersion(), contentHash)
+                : null;
+            if (classBytes == null) {
+                classBytes = compileGroovyClasses(scriptClassName, ruleset.getRules());
+            }
+            GroovyClassLoader classLoader = new CompiledGroovyClassLoader(classBytes);
+            compiled = new CompiledGroovy((Class<? extends Script>) classLoader.loadClass(scriptClassName), classBytes);
+            putCompiled(cacheKey, compiled);
+        }
+        if (store != null) {
+            store.save(ruleset.getId(), ruleset.getVersion(), contentHash, compiled.classBytes);
+        }
+        if (replaceCompiled(ruleset, cacheKey) && store != null) {
+            store.removeOthers(ruleset.getId(), ruleset.getVersion(), contentHash);
+        }
+        return compiled.scriptClass;
+    }
+
+    /**
+     * @return The bytecode of the script class and all other classes defined in the script, by class name.
+     */
+    @SuppressWarnings("unchecked")
+    protected static Map<String, byte[]> compileGroovyClasses(String scriptClassName, String rules) {
+        CompilationUnit compilationUnit = new CompilationUnit(
+            groovyCompilerConfiguration,
+            null,
+            new GroovyClassLoader(RulesetDeployment.class.getClassLoader(), groovyCompilerConfiguration)
+        );
+        compilationUnit.addSource(scriptClassName + ".groovy", rules);
+        compilationUnit.compile(Phases.CLASS_GENERATION);
+        Map<String, byte[]> classBytes = new LinkedHashMap<>();
+        for (GroovyClass groovyClass : (List<GroovyClass>) compilationUnit.getClasses()) {
+            classBytes.put(groovyClass.getName(), groovyClass.getBytes());
+        }
+        return classBytes;
+    }
+
+    /**
+     * Compiled JavaScript is not cached, it is bound to its Nashorn engine which is not thread-safe, and rules
+     * engines fire in parallel. Each deployment has its own engine.
+     */
+    protected static CompiledScript compileJavascript(Ruleset ruleset) throws ScriptException {
+        ScriptEngine scriptEngine = scriptEngineManager.getEngineByName("nashorn");
+        return ((Compilable) scriptEngine).compile(getJavascriptHeader() + ruleset.getRules());
+    }
+
+    protected static Object getCompiled(String cacheKey) {
+        synchronized (compiledCache) {
+            return compiledCache.get(cacheKey);
+        }
+    }
+
+    protected static void putCompiled(String cacheKey, Object compiled) {
+        synchronized (compiledCache) {
+            compiledCache.put(cacheKey, compiled);
+        }
+    }
+
+    /**
+     * Remember the compiled content of the ruleset, when it was redeployed with new content the cache entry of
+     * the previous content is evicted, unless another ruleset still has this content. This releases the script
+     * classes and class loader of the previous content once the previous deployment is stopped.
+     *
+     * @return <code>true</code> if the ruleset was compiled before with other content.
+     */
+    protected static boolean replaceCompiled(Ruleset ruleset, String cacheKey) {
+        if (ruleset.getId() == null)
+            return false;
+        synchronized (compiledCache) {
+            String previousCacheKey = compiledCacheKeys.put(ruleset.getId(), cacheKey);
+            if (previousCacheKey == null || previousCacheKey.equals(cacheKey))
+                return false;
+            if (!compiledCacheKeys.containsValue(previousCacheKey)) {
+                RulesEngine.LOG.fine("Evicting previously compiled content of ruleset: " + ruleset);
+                compiledCache.remove(previousCacheKey);
+            }
+            return true;
+        }
+    }
+
+    protected static String getCacheKey(Ruleset.Lang lang, String contentHash) {
+        return lang.name() + ':' + contentHash;
+    }
+
+    protected static String getContentHash(String rules) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(rules.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Default header/imports for all rules scripts.
+     */
+    protected static String getJavascriptHeader() {
+        // Default header/imports for all rules scripts
+        return "load(\"nashorn:mozilla_compat.js\");\n" + // This provides importPackage
+            "\n" +
+            "importPackage(\n" +
+            "    \"java.util.stream\",\n" +
+            "    \"org.openremote.model.asset\",\n" +
+            "    \"org.openremote.model.attribute\",\n" +
+            "    \"org.openremote.model.value\",\n" +
+            "    \"org.openremote.model.rules\"\n" +
+            ");\n" +
+            "var Match = Java.type(\"org.openremote.model.asset.BaseAssetQuery$Match\");\n" +
+            "var Operator = Java.type(\"org.openremote.model.asset.BaseAssetQuery$Operator\");\n" +
+            "var NumberType = Java.type(\"org.openremote.model.asset.BaseAssetQuery$NumberType\");\n" +
+            "var StringPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$StringPredicate\");\n" +
+            "var BooleanPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$BooleanPredicate\");\n" +
+            "var StringArrayPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$StringArrayPredicate\");\n" +
+            "var DateTimePredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$DateTimePredicate\");\n" +
+            "var NumberPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$NumberPredicate\");\n" +
+            "var ParentPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$ParentPredicate\");\n" +
+            "var PathPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$PathPredicate\");\n" +
+            "var TenantPredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$TenantPredicate\");\n" +
+            "var AttributePredicate = Java.type(\"org.openremote.model.asset.BaseAssetQuery$AttributePredicate\");\n" +
+            "var AttributeExecuteStatus = Java.type(\"org.openremote.model.attribute.AttributeExecuteStatus\");\n" +
+            "var EXACT = Match.EXACT;\n" +
+            "var BEGIN = Match.BEGIN;\n" +
+            "var END = Match.END;\n" +
+            "var CONTAINS = Match.CONTAINS;\n" +
+            "var EQUALS = Operator.EQUALS;\n" +
+            "var GREATER_THAN = Operator.GREATER_THAN;\n" +
+            "var GREATER_EQUALS = Operator.GREATER_EQUALS;\n" +
+            "var LESS_THAN = Operator.LESS_THAN;\n" +
+            "var LESS_EQUALS = Operator.LESS_EQUALS;\n" +
+            "var BETWEEN = Operator.BETWEEN;\n" +
+            "var REQUEST_START = AttributeExecuteStatus.REQUEST_START;\n" +
+            "var REQUEST_REPEATING = AttributeExecuteStatus.REQUEST_REPEATING;\n" +
+            "var REQUEST_CANCEL = AttributeExecuteStatus.REQUEST_CANCEL;\n" +
+            "var READY = AttributeExecuteStatus.READY;\n" +
+            "var COMPLETED = AttributeExecuteStatus.COMPLETED;\n" +
+            "var RUNNING = AttributeExecuteStatus.RUNNING;\n" +
+            "var CANCELLED = AttributeExecuteStatus.CANCELLED;\n" +
+            "var ERROR = AttributeExecuteStatus.ERROR;\n" +
+            "var DISABLED = AttributeExecuteStatus.DISABLED;\n" +
+            "\n";
+    }
+
     public Status getStatus() {
         return status;
     }
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.jeasy.rules.api.Facts;
+import org.jeasy.rules.api.Rule;
+import org.openremote.model.rules.AssetQueryPredicate;
+import org.openremote.model.rules.AssetState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wraps a rule and records which asset states and asset events the condition of the rule matched with an
+ * {@link org.openremote.model.asset.AssetQuery}, see {@link RulesFacts#matchAssetState} and
+ * {@link RulesFacts#matchAssetEvent}. A condition that was <code>false</code> is only evaluated again when an
+ * asset state or asset event changed that could match one of the recorded queries.
+ * <p>
+ * A condition that accessed any other facts, the clock, or the fact collections directly, is untracked and
+ * always evaluated. A condition that was <code>true</code> is also always evaluated, as it might bind variables
+ * for the action.
+ */
+public class TrackedRule implements Rule {
+
+    final protected Rule rule;
+    final protected List<AssetQueryPredicate> assetStateQueries = new ArrayList<>();
+    final protected List<AssetQueryPredicate> assetEventQueries = new ArrayList<>();
+    protected boolean evaluated;
+    protected boolean untracked;
+    protected boolean dirty;
+    protected boolean lastResult;
+    protected long skippedCount;
+
+    public TrackedRule(Rule rule) {
+        this.rule = rule;
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+
+    @Override
+    public String getName() {
+        return rule.getName();
+    }
+
+    @Override
+    public String getDescription() {
+        return rule.getDescription();
+    }
+
+    @Override
+    public int getPriority() {
+        return rule.getPriority();
+    }
+
+    @Override
+    public boolean evaluate(Facts facts) {
+        if (evaluated && !untracked && !dirty && !lastResult) {
+            skippedCount++;
+            return false;
+        }
+
+        RulesFacts rulesFacts = (RulesFacts) facts;
+        assetStateQueries.clear();
+        assetEventQueries.clear();
+        untracked = false;
+        evaluated = false;
+
+        rulesFacts.startTracking(this);
+        try {
+            lastResult = rule.evaluate(facts);
+        } finally {
+            rulesFacts.stopTracking();
+        }
+        evaluated = true;
+        dirty = false;
+        return lastResult;
+    }
+
+    @Override
+    public void execute(Facts facts) throws Exception {
+        rule.execute(facts);
+    }
+
+    @Override
+    public int compareTo(Rule that) {
+        return rule.compareTo(that);
+    }
+
+    public boolean isUntracked() {
+        return untracked;
+    }
+
+    /**
+     * @return The number of condition evaluations skipped because no dependency changed.
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    protected void trackAssetStates(AssetQueryPredicate predicate) {
+        assetStateQueries.add(predicate);
+    }
+
+    protected void trackAssetEvents(AssetQueryPredicate predicate) {
+        assetEventQueries.add(predicate);
+    }
+
+    protected void trackUntracked() {
+        untracked = true;
+    }
+
+    /**
+     * Call with the previous and the new version of a changed asset state, marks this rule for evaluation if any
+     * recorded query matches either.
+     */
+    protected void onAssetStateChanged(AssetState assetState) {
+        if (!dirty && matchesAny(assetStateQueries, assetState)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Call with the asset state of an inserted or expired asset event, marks this rule for evaluation if any
+     * recorded query matches.
+     */
+    protected void onAssetEventChanged(AssetState assetState) {
+        if (!dirty && matchesAny(assetEventQueries, assetState)) {
+            dirty = true;
+        }
+    }
+
+    protected static boolean matchesAny(List<AssetQueryPredicate> predicates, AssetState assetState) {
+        for (AssetQueryPredicate predicate : predicates) {
+            if (predicate.test(assetState))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return rule.equals(((TrackedRule) o).rule);
+    }
+
+    @Override
+    public int hashCode() {
+        return rule.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "name='" + getName() + '\'' +
+            ", untracked=" + untracked +
+            ", assetStateQueries=" + assetStateQueries.size() +
+            ", assetEventQueries=" + assetEventQueries.size() +
+            ", skipped=" + skippedCount +
+            '}';
+    }
+}
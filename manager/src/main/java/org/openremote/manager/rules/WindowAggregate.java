@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.value.Value;
+import org.openremote.model.value.Values;
+
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.OptionalDouble;
+
+/**
+ * Incremental count, sum, min, max, average and last value of the events of one attribute in a time window.
+ * Numeric values are aggregated, all events are counted. Each event is added in constant time and each event
+ * is removed once when it leaves a sliding window, so the aggregate never iterates the events in the window.
+ * <p>
+ * A {@link Type#SLIDING} window contains the events of the last window size milliseconds, the minimum and maximum
+ * are kept in monotonic queues. A {@link Type#TUMBLING} window contains the events of the current fixed interval
+ * of window size milliseconds since epoch, it is empty again when the next interval starts.
+ * <p>
+ * Events are expected in order of their timestamp. A late event is still aggregated if it is inside the window,
+ * it leaves a sliding window together with the events that were added before it.
+ */
+public class WindowAggregate {
+
+    public enum Type {
+        SLIDING,
+        TUMBLING
+    }
+
+    protected static class Sample {
+
+        final protected long timestamp;
+        // Null if the value is not a number
+        final protected Double number;
+
+        public Sample(long timestamp, Double number) {
+            this.timestamp = timestamp;
+            this.number = number;
+        }
+    }
+
+    final protected AttributeRef attributeRef;
+    final protected Type type;
+    final protected long sizeMillis;
+
+    // Events of a sliding window in order of insertion
+    final protected ArrayDeque<Sample> samples = new ArrayDeque<>();
+    // Numeric events of a sliding window that can still become the minimum/maximum, the head is the current one
+    final protected ArrayDeque<Sample> minCandidates = new ArrayDeque<>();
+    final protected ArrayDeque<Sample> maxCandidates = new ArrayDeque<>();
+
+    // Start of the current interval of a tumbling window
+    protected long windowStart = Long.MIN_VALUE;
+    protected long count;
+    protected long numberCount;
+    protected double sum;
+    protected double min = Double.NaN;
+    protected double max = Double.NaN;
+    protected Value last;
+    protected long lastTimestamp = Long.MIN_VALUE;
+
+    public WindowAggregate(AttributeRef attributeRef, Type type, long sizeMillis) {
+        if (sizeMillis <= 0)
+            throw new IllegalArgumentException("Window size must be greater than zero: " + sizeMillis);
+        this.attributeRef = attributeRef;
+        this.type = type;
+        this.sizeMillis = sizeMillis;
+    }
+
+    public AttributeRef getAttributeRef() {
+        return attributeRef;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getSizeMillis() {
+        return sizeMillis;
+    }
+
+    /**
+     * @return <code>false</code> if the event is older than the window and was ignored.
+     */
+    public boolean add(long timestamp, Value value) {
+        Double number = Values.getNumber(value).orElse(null);
+        if (type == Type.TUMBLING) {
+            long start = timestamp - Math.floorMod(timestamp, sizeMillis);
+            if (start < windowStart)
+                return false;
+            if (start > windowStart) {
+                clear();
+                windowStart = start;
+            }
+            if (number != null) {
+                min = numberCount == 0 ? number : Math.min(min, number);
+                max = numberCount == 0 ? number : Math.max(max, number);
+            }
+        } else {
+            if (lastTimestamp != Long.MIN_VALUE && timestamp < lastTimestamp - sizeMillis)
+                return false;
+            evict(Math.max(timestamp, lastTimestamp));
+            Sample sample = new Sample(timestamp, number);
+            samples.addLast(sample);
+            if (number != null) {
+                while (!minCandidates.isEmpty() && minCandidates.peekLast().number >= number) {
+                    minCandidates.pollLast();
+                }
+                minCandidates.addLast(sample);
+                while (!maxCandidates.isEmpty() && maxCandidates.peekLast().number <= number) {
+                    maxCandidates.pollLast();
+                }
+                maxCandidates.addLast(sample);
+            }
+        }
+        count++;
+        if (number != null) {
+            numberCount++;
+            sum += number;
+        }
+        if (timestamp >= lastTimestamp) {
+            last = value;
+            lastTimestamp = timestamp;
+        }
+        return true;
+    }
+
+    /**
+     * Remove the events which are no longer in the window at the given time.
+     */
+    public void evict(long currentTimestamp) {
+        if (type == Type.TUMBLING) {
+            if (windowStart != Long.MIN_VALUE && currentTimestamp >= windowStart + sizeMillis) {
+                clear();
+                windowStart = currentTimestamp - Math.floorMod(currentTimestamp, sizeMillis);
+            }
+            return;
+        }
+        while (!samples.isEmpty() && samples.peekFirst().timestamp < currentTimestamp - sizeMillis) {
+            Sample sample = samples.pollFirst();
+            count--;
+            if (sample.number != null) {
+                numberCount--;
+                // Start again from zero instead of accumulating rounding errors
+                sum = numberCount == 0 ? 0 : sum - sample.number;
+                if (minCandidates.peekFirst() == sample) {
+                    minCandidates.pollFirst();
+                }
+                if (maxCandidates.peekFirst() == sample) {
+                    maxCandidates.pollFirst();
+                }
+            }
+        }
+    }
+
+    protected void clear() {
+        count = 0;
+        numberCount = 0;
+        sum = 0;
+        min = Double.NaN;
+        max = Double.NaN;
+    }
+
+    /**
+     * @return The number of events in the window, including events without a numeric value.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The sum of the numeric values in the window, <code>0</code> if there are none.
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    public OptionalDouble getMin() {
+        if (numberCount == 0)
+            return OptionalDouble.empty();
+        return OptionalDouble.of(type == Type.TUMBLING ? min : minCandidates.peekFirst().number);
+    }
+
+    public OptionalDouble getMax() {
+        if (numberCount == 0)
+            return OptionalDouble.empty();
+        return OptionalDouble.of(type == Type.TUMBLING ? max : maxCandidates.peekFirst().number);
+    }
+
+    public OptionalDouble getAverage() {
+        return numberCount == 0 ? OptionalDouble.empty() : OptionalDouble.of(sum / numberCount);
+    }
+
+    /**
+     * @return The value of the latest event, even if it is no longer in the window.
+     */
+    public Optional<Value> getLast() {
+        return Optional.ofNullable(last);
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "attributeRef=" + attributeRef +
+            ", type=" + type +
+            ", sizeMillis=" + sizeMillis +
+            ", count=" + count +
+            ", sum=" + sum +
+            ", min=" + getMin() +
+            ", max=" + getMax() +
+            ", last=" + last +
+            '}';
+    }
+}
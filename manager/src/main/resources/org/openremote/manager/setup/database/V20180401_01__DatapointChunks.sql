@@ -0,0 +1,32 @@
+/*
+  ############################# TABLES #############################
+ */
+
+create table ASSET_DATAPOINT_SERIES (
+  ID             bigserial    not null,
+  ENTITY_ID      varchar(36)  not null,
+  ATTRIBUTE_NAME varchar(255) not null,
+  VALUE_TYPE     varchar(255) not null,
+  primary key (ID),
+  unique (ENTITY_ID, ATTRIBUTE_NAME)
+);
+
+create table ASSET_DATAPOINT_CHUNK (
+  SERIES_ID       int8  not null,
+  CHUNK_START     int8  not null,
+  FIRST_TIMESTAMP int8  not null,
+  LAST_TIMESTAMP  int8  not null,
+  POINT_COUNT     int4  not null,
+  DATA            bytea not null,
+  primary key (SERIES_ID, CHUNK_START)
+);
+
+/*
+  ############################# CONSTRAINTS #############################
+ */
+
+alter table ASSET_DATAPOINT_SERIES
+  add foreign key (ENTITY_ID) references ASSET (ID) on delete cascade;
+
+alter table ASSET_DATAPOINT_CHUNK
+  add foreign key (SERIES_ID) references ASSET_DATAPOINT_SERIES (ID) on delete cascade;
@@ -0,0 +1,38 @@
+/*
+  ############################# TABLES #############################
+ */
+
+create table ASSET_DATAPOINT_ROLLUP (
+  ENTITY_ID      varchar(36)  not null,
+  ATTRIBUTE_NAME varchar(255) not null,
+  TIER           varchar(16)  not null,
+  BUCKET_START   int8         not null,
+  MIN_VALUE      float8       not null,
+  MAX_VALUE      float8       not null,
+  SUM_VALUE      float8       not null,
+  POINT_COUNT    int8         not null,
+  primary key (ENTITY_ID, ATTRIBUTE_NAME, TIER, BUCKET_START)
+);
+
+create table ASSET_DATAPOINT_ROLLUP_BACKFILL (
+  ID                    int4         not null,
+  CUTOFF                int8         not null,
+  COMPLETED             boolean      not null,
+  SERIES_ENTITY_ID      varchar(36),
+  SERIES_ATTRIBUTE_NAME varchar(255),
+  SERIES_TIMESTAMP      int8,
+  primary key (ID)
+);
+
+/*
+  ############################# CONSTRAINTS #############################
+ */
+
+alter table ASSET_DATAPOINT_ROLLUP
+  add foreign key (ENTITY_ID) references ASSET (ID) on delete cascade;
+
+/*
+  ############################# INDICES #############################
+ */
+
+create index ASSET_DATAPOINT_SERIES_IDX on ASSET_DATAPOINT (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP);
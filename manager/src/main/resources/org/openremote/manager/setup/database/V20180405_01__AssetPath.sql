@@ -0,0 +1,93 @@
+/*
+  ############################# TABLES #############################
+ */
+
+/*
+  Materialized path of each asset, the asset ID followed by the IDs of all its parents up to the
+  root asset, maintained by triggers when an asset is inserted or moved to a different parent.
+ */
+alter table ASSET
+  add column PATH text [];
+
+update ASSET
+set PATH = GET_ASSET_TREE_PATH(ID);
+
+alter table ASSET
+  alter column PATH set not null;
+
+/*
+  ############################# FUNCTIONS #############################
+ */
+create or replace function UPDATE_ASSET_PATH()
+  returns trigger as
+$$
+declare
+  PARENT_PATH text [];
+begin
+  if NEW.PARENT_ID is null
+  then
+    NEW.PATH := array [text(NEW.ID)];
+  else
+    select PATH
+    into PARENT_PATH
+    from ASSET
+    where ID = NEW.PARENT_ID;
+    if text(NEW.ID) = any (PARENT_PATH)
+    then
+      raise exception 'Asset % can not be a descendant of itself', NEW.ID;
+    end if;
+    NEW.PATH := array [text(NEW.ID)] || PARENT_PATH;
+  end if;
+  return NEW;
+end;
+$$
+language plpgsql;
+
+create or replace function UPDATE_ASSET_DESCENDANT_PATHS()
+  returns trigger as
+$$
+begin
+  update ASSET
+  set PATH = PATH [1 : array_position(PATH, text(NEW.ID)) - 1] || NEW.PATH
+  where PATH @> array [text(NEW.ID)] and ID != NEW.ID;
+  return null;
+end;
+$$
+language plpgsql;
+
+create or replace function GET_ASSET_TREE_PATH(ASSET_ID text)
+  returns text [] as
+$$
+begin
+  return (select PATH
+          from ASSET
+          where ID = ASSET_ID);
+end;
+$$
+language plpgsql;
+
+/*
+  ############################# TRIGGERS #############################
+ */
+
+create trigger ASSET_PATH_INSERT
+  before insert on ASSET
+  for each row execute procedure UPDATE_ASSET_PATH();
+
+create trigger ASSET_PATH_UPDATE
+  before update of PARENT_ID on ASSET
+  for each row
+  when (OLD.PARENT_ID is distinct from NEW.PARENT_ID)
+  execute procedure UPDATE_ASSET_PATH();
+
+create trigger ASSET_DESCENDANT_PATHS_UPDATE
+  after update of PARENT_ID on ASSET
+  for each row
+  when (OLD.PARENT_ID is distinct from NEW.PARENT_ID)
+  execute procedure UPDATE_ASSET_DESCENDANT_PATHS();
+
+/*
+  ############################# INDICES #############################
+ */
+
+create index ASSET_PATH_IDX on ASSET using gin (PATH);
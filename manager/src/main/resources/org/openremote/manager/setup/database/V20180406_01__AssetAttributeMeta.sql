@@ -0,0 +1,87 @@
+/*
+  ############################# TABLES #############################
+ */
+
+/*
+  Denormalized meta items of asset attributes, one row for each meta item with the meta item object
+  as VALUE, maintained by triggers when the attributes of an asset are inserted or their meta changes.
+ */
+create table ASSET_ATTRIBUTE_META (
+  ASSET_ID       varchar(36)  not null,
+  ATTRIBUTE_NAME varchar(255) not null,
+  VALUE          jsonb        not null
+);
+
+/*
+  ############################# FUNCTIONS #############################
+ */
+/*
+  Only the meta items of attributes with changed meta are replaced on update, the meta of an attribute is only
+  compared if the attribute changed. A write of an attribute value compares the meta of this attribute only.
+ */
+create or replace function UPDATE_ASSET_ATTRIBUTE_META()
+  returns trigger as
+$$
+declare
+  CHANGED_ATTRIBUTE_NAMES text[];
+begin
+  if TG_OP = 'UPDATE'
+  then
+    select array_agg(coalesce(NX.KEY, OX.KEY))
+    into CHANGED_ATTRIBUTE_NAMES
+    from jsonb_each(NEW.ATTRIBUTES) as NX
+      full join jsonb_each(OLD.ATTRIBUTES) as OX on OX.KEY = NX.KEY
+    where NX.VALUE is distinct from OX.VALUE
+          and NX.VALUE #> '{meta}' is distinct from OX.VALUE #> '{meta}';
+    if CHANGED_ATTRIBUTE_NAMES is null
+    then
+      return null;
+    end if;
+    delete from ASSET_ATTRIBUTE_META
+    where ASSET_ID = NEW.ID and ATTRIBUTE_NAME = any (CHANGED_ATTRIBUTE_NAMES);
+  end if;
+  insert into ASSET_ATTRIBUTE_META (ASSET_ID, ATTRIBUTE_NAME, VALUE)
+    select NEW.ID, AX.KEY, AM.VALUE
+    from jsonb_each(NEW.ATTRIBUTES) as AX
+      cross join jsonb_array_elements(AX.VALUE #> '{meta}') as AM
+    where jsonb_typeof(AX.VALUE #> '{meta}') = 'array'
+          and (CHANGED_ATTRIBUTE_NAMES is null or AX.KEY = any (CHANGED_ATTRIBUTE_NAMES));
+  return null;
+end;
+$$
+language plpgsql;
+
+/*
+  ############################# TRIGGERS #############################
+ */
+
+create trigger ASSET_ATTRIBUTE_META_INSERT
+  after insert on ASSET
+  for each row execute procedure UPDATE_ASSET_ATTRIBUTE_META();
+
+create trigger ASSET_ATTRIBUTE_META_UPDATE
+  after update of ATTRIBUTES on ASSET
+  for each row
+  when (OLD.ATTRIBUTES is distinct from NEW.ATTRIBUTES)
+  execute procedure UPDATE_ASSET_ATTRIBUTE_META();
+
+insert into ASSET_ATTRIBUTE_META (ASSET_ID, ATTRIBUTE_NAME, VALUE)
+  select A.ID, AX.KEY, AM.VALUE
+  from ASSET A
+    cross join jsonb_each(A.ATTRIBUTES) as AX
+    cross join jsonb_array_elements(AX.VALUE #> '{meta}') as AM
+  where jsonb_typeof(AX.VALUE #> '{meta}') = 'array';
+
+/*
+  ############################# CONSTRAINTS #############################
+ */
+
+alter table ASSET_ATTRIBUTE_META
+  add foreign key (ASSET_ID) references ASSET (ID) on delete cascade;
+
+/*
+  ############################# INDICES #############################
+ */
+
+create index ASSET_ATTRIBUTE_META_ASSET_ID_IDX on ASSET_ATTRIBUTE_META (ASSET_ID, ATTRIBUTE_NAME);
+create index ASSET_ATTRIBUTE_META_ITEM_IDX on ASSET_ATTRIBUTE_META ((VALUE #>> '{name}'), (VALUE #> '{value}'));
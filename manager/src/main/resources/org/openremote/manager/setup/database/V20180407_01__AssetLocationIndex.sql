@@ -0,0 +1,5 @@
+/*
+  ############################# INDICES #############################
+ */
+
+create index ASSET_LOCATION_IDX on ASSET using gist (LOCATION);
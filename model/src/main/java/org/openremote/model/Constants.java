@@ -41,5 +41,6 @@ public interface Constants {
     String DEFAULT_DATETIME_FORMAT_MILLIS ="dd. MMM yyyy HH:mm:ss:SSS zzz";
     String DEFAULT_DATE_FORMAT ="dd. MMM yyyy";
     String DEFAULT_TIME_FORMAT ="HH:mm:ss";
+    String RESPONSE_HEADER_NEXT_PAGE_TOKEN = "Next-Page-Token";
 
 }
@@ -20,7 +20,6 @@
 package org.openremote.model.asset;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import org.hibernate.annotations.Formula;
 import org.openremote.model.IdentifiableEntity;
 import org.openremote.model.attribute.Attribute;
 import org.openremote.model.geo.GeoJSON;
@@ -274,9 +273,10 @@ public class Asset implements IdentifiableEntity {
     @JsonIgnore
     protected ObservableList<AssetAttribute> attributeList;
 
-    // The following are expensive to query, so if they are null, they might not have been loaded
+    // The following are not always queried, so if they are null, they might not have been loaded
 
-    @Formula("get_asset_tree_path(ID)")
+    // The path is materialized by the database when the asset is inserted or moved
+    @Column(name = "PATH", columnDefinition = "text[]", insertable = false, updatable = false)
     @org.hibernate.annotations.Type(type = "org.openremote.container.persistence.ArrayUserType")
     protected String[] path;
 
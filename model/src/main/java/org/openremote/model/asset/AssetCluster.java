@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.asset;
+
+/**
+ * Assets of a map query aggregated in a grid cell, with the number of assets, their centroid and bounding box. If
+ * the cluster contains only one asset, its identifier is included.
+ */
+public class AssetCluster {
+
+    protected long count;
+    protected double lat;
+    protected double lng;
+    protected double latMin;
+    protected double lngMin;
+    protected double latMax;
+    protected double lngMax;
+    protected String assetId;
+
+    protected AssetCluster() {
+    }
+
+    public AssetCluster(long count, double lat, double lng,
+                        double latMin, double lngMin, double latMax, double lngMax,
+                        String assetId) {
+        this.count = count;
+        this.lat = lat;
+        this.lng = lng;
+        this.latMin = latMin;
+        this.lngMin = lngMin;
+        this.latMax = latMax;
+        this.lngMax = lngMax;
+        this.assetId = assetId;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLng() {
+        return lng;
+    }
+
+    public double getLatMin() {
+        return latMin;
+    }
+
+    public double getLngMin() {
+        return lngMin;
+    }
+
+    public double getLatMax() {
+        return latMax;
+    }
+
+    public double getLngMax() {
+        return lngMax;
+    }
+
+    /**
+     * @return The identifier of the only asset in this cluster, or <code>null</code> if there are more assets.
+     */
+    public String getAssetId() {
+        return assetId;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "count=" + count +
+            ", lat=" + lat +
+            ", lng=" + lng +
+            ", latMin=" + latMin +
+            ", lngMin=" + lngMin +
+            ", latMax=" + latMax +
+            ", lngMax=" + lngMax +
+            ", assetId='" + assetId + '\'' +
+            '}';
+    }
+}
@@ -33,6 +33,8 @@ import java.util.function.Function;
 import static org.openremote.model.Constants.ASSET_META_NAMESPACE;
 import static org.openremote.model.attribute.MetaItem.MetaItemFailureReason.META_ITEM_VALUE_MISMATCH;
 import static org.openremote.model.attribute.MetaItemDescriptor.Access.ACCESS_PRIVATE;
+import static org.openremote.model.util.TextUtil.REGEXP_PATTERN_DAYS_HOURS_MINS_SECONDS;
+import static org.openremote.model.util.TextUtil.REGEXP_PATTERN_DAYS_HOURS_MINS_SECONDS_POSITIVE;
 import static org.openremote.model.util.TextUtil.REGEXP_PATTERN_DOUBLE;
 
 /**
@@ -288,6 +290,44 @@ public enum AssetMeta implements MetaItemDescriptor {
         Values.create(true),
         true),
 
+    /**
+     * Maximum age of stored datapoints, for example "7d". Older datapoints are deleted in the background, charts
+     * are still aggregated from the datapoint rollups as long as those are kept. Datapoints are only deleted once
+     * the rollups have been backfilled, if rollups are disabled charts lose the history of deleted datapoints.
+     */
+    DATA_POINTS_MAX_AGE(
+        ASSET_META_NAMESPACE + ":dataPointsMaxAge",
+        new Access(true, false, true),
+        ValueType.STRING,
+        REGEXP_PATTERN_DAYS_HOURS_MINS_SECONDS_POSITIVE,
+        PatternFailure.DAYS_HOURS_MINS_SECONDS.name(),
+        null,
+        false),
+
+    /**
+     * Maximum age of the per-minute datapoint rollups, for example "30d". These are used for hourly charts.
+     */
+    DATA_POINTS_MINUTE_ROLLUP_MAX_AGE(
+        ASSET_META_NAMESPACE + ":dataPointsMinuteRollupMaxAge",
+        new Access(true, false, true),
+        ValueType.STRING,
+        REGEXP_PATTERN_DAYS_HOURS_MINS_SECONDS_POSITIVE,
+        PatternFailure.DAYS_HOURS_MINS_SECONDS.name(),
+        null,
+        false),
+
+    /**
+     * Maximum age of the per-hour datapoint rollups, for example "365d". These are used for daily charts.
+     */
+    DATA_POINTS_HOUR_ROLLUP_MAX_AGE(
+        ASSET_META_NAMESPACE + ":dataPointsHourRollupMaxAge",
+        new Access(true, false, true),
+        ValueType.STRING,
+        REGEXP_PATTERN_DAYS_HOURS_MINS_SECONDS_POSITIVE,
+        PatternFailure.DAYS_HOURS_MINS_SECONDS.name(),
+        null,
+        false),
+
     /**
      * Should attribute writes be processed by the rules engines as {@link AssetState} facts,
      * with a lifecycle that reflects the state of the asset attribute. Each attribute will have one
@@ -333,7 +373,7 @@ public enum AssetMeta implements MetaItemDescriptor {
         ASSET_META_NAMESPACE + ":ruleEventExpires",
         new Access(true, false, true),
         ValueType.STRING,
-        "^([+-])?((\\d+)[Dd])?\\s*((\\d+)[Hh])?\\s*((\\d+)[Mm])?\\s*((\\d+)[Ss])?\\s*((\\d+)([Mm][Ss])?)?$", // See TimeUtil
+        REGEXP_PATTERN_DAYS_HOURS_MINS_SECONDS,
         PatternFailure.DAYS_HOURS_MINS_SECONDS.name(),
         null,
         false),
@@ -20,6 +20,8 @@
 package org.openremote.model.asset;
 
 import jsinterop.annotations.JsType;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeWriteResult;
 import org.openremote.model.http.RequestParams;
 import org.openremote.model.http.SuccessStatusCode;
 
@@ -53,6 +55,7 @@ import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
  *     <li>{@link #get}</li>
  *     <li>{@link #update}</li>
  *     <li>{@link #writeAttributeValue}</li>
+ *     <li>{@link #writeAttributeEvents}</li>
  * </ul>
  */
 @Path("asset")
@@ -187,6 +190,24 @@ public interface AssetResource {
     @SuppressWarnings("unusable-by-js")
     void writeAttributeValue(@BeanParam RequestParams requestParams, @PathParam("assetId") String assetId, @PathParam("attributeName") String attributeName, String rawJson);
 
+    /**
+     * Updates several attributes of one or many assets, with the same access rules as {@link #writeAttributeValue}.
+     * Events without timestamp are assigned the current server time. Events are authorized once per asset and events
+     * of the same asset are applied in order in a single transaction.
+     * <p>
+     * Returns one {@link AttributeWriteResult} per event, in the order of the given events. An event that could not
+     * be applied does not fail the other events, the result contains the reason of the failure. A 400 status is
+     * returned if no events are provided.
+     */
+    @PUT
+    @Path("attributes")
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @SuccessStatusCode(200)
+    @RolesAllowed({"write:assets"})
+    @SuppressWarnings("unusable-by-js")
+    AttributeWriteResult[] writeAttributeEvents(@BeanParam RequestParams requestParams, AttributeEvent[] events);
+
     /**
      * Creates an asset. The identifier value of the asset can be provided, it should be a globally unique string value,
      * and must be 22 characters long. If no identifier value is provided, a unique value will be generated by
@@ -225,6 +246,10 @@ public interface AssetResource {
      * assets must be linked to the user. An empty result is returned if the user does not have access to the assets.
      * What is populated on the returned assets is determined by the
      * {@link AssetQuery#select} value.
+     * <p>
+     * If the query has a {@link AssetQuery#limit}, or the server limits the number of results, and there are more
+     * results, the {@link org.openremote.model.Constants#RESPONSE_HEADER_NEXT_PAGE_TOKEN} response header contains
+     * the {@link AssetQuery#pageToken} of the next page.
      */
     @POST
     @Path("query")
@@ -235,10 +260,26 @@ public interface AssetResource {
     @SuppressWarnings("unusable-by-js")
     Asset[] queryAssets(@BeanParam RequestParams requestParams, AssetQuery query);
 
+    /**
+     * Retrieve clusters of located assets using an {@link AssetQuery}, for displaying many assets on a map. The
+     * assets are aggregated in grid cells sized for the map zoom level, each cluster has the number of assets, their
+     * centroid and bounding box. The query should have a {@link AssetQuery#location} predicate for the visible area
+     * of the map. Access to assets is restricted like in {@link #queryAssets}.
+     */
+    @POST
+    @Path("query/cluster/{zoom}")
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @SuccessStatusCode(200)
+    @RolesAllowed({"read:assets"})
+    @SuppressWarnings("unusable-by-js")
+    AssetCluster[] queryAssetClusters(@BeanParam RequestParams requestParams, @PathParam("zoom") int zoom, AssetQuery query);
+
     /**
      * Retrieve public assets using an {@link AssetQuery}.
      * <p>
-     * Allows un-authenticated 'public' users to query public assets for a realm.
+     * Allows un-authenticated 'public' users to query public assets for a realm. Results are paged like the
+     * results of {@link #queryAssets}.
      */
     @POST
     @Path("public/query")
@@ -1010,6 +1010,10 @@ public class BaseAssetQuery<CHILD extends BaseAssetQuery<CHILD>> {
     // Ordering
     public OrderBy orderBy;
 
+    // Keyset pagination, the maximum number of results and the page token of the previous page
+    public int limit;
+    public String pageToken;
+
     protected BaseAssetQuery() {
     }
 
@@ -1155,6 +1159,23 @@ public class BaseAssetQuery<CHILD extends BaseAssetQuery<CHILD>> {
         return (CHILD) this;
     }
 
+    /**
+     * Return at most this number of results, ordered by {@link #orderBy} and asset ID. If there are more results,
+     * a page token is returned with the results, set it with {@link #pageToken} to query the next page.
+     */
+    public CHILD limit(int limit) {
+        this.limit = limit;
+        return (CHILD) this;
+    }
+
+    /**
+     * Continue after the last result of the previous page, the query must have the same restrictions and ordering.
+     */
+    public CHILD pageToken(String pageToken) {
+        this.pageToken = pageToken;
+        return (CHILD) this;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
@@ -1169,6 +1190,8 @@ public class BaseAssetQuery<CHILD extends BaseAssetQuery<CHILD>> {
             ", attribute=" + Arrays.toString(attribute) +
             ", attributeMeta=" + Arrays.toString(attributeMeta) +
             ", orderBy=" + orderBy +
+            ", limit=" + limit +
+            ", pageToken='" + pageToken + '\'' +
             '}';
     }
 }
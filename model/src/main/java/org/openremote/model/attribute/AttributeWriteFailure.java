@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.attribute;
+
+/**
+ * The reason why an {@link AttributeEvent} written by a client was not applied, the same reasons as
+ * reported by asset processing on the server.
+ */
+public enum AttributeWriteFailure {
+
+    MISSING_SOURCE,
+    ILLEGAL_SOURCE,
+    ASSET_NOT_FOUND,
+    ATTRIBUTE_NOT_FOUND,
+    INVALID_AGENT_LINK,
+    INVALID_ATTRIBUTE_LINK,
+    LINKED_ATTRIBUTE_CONVERSION_FAILURE,
+    ILLEGAL_AGENT_UPDATE,
+    INVALID_ATTRIBUTE_EXECUTE_STATUS,
+    NO_AUTH_CONTEXT,
+    INSUFFICIENT_ACCESS,
+    EVENT_IN_FUTURE,
+    EVENT_OUTDATED,
+    ATTRIBUTE_VALIDATION_FAILURE,
+    PROCESSOR_FAILURE,
+    STATE_STORAGE_FAILED
+}
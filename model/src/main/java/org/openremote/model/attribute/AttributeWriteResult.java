@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.attribute;
+
+/**
+ * The outcome of writing an {@link AttributeEvent} in a batch, the server returns one result per event
+ * in the order of the written events.
+ */
+public class AttributeWriteResult {
+
+    public static final String MESSAGE_PREFIX = "WRITE_RESULTS";
+
+    protected AttributeRef ref;
+    protected AttributeWriteFailure failure;
+
+    protected AttributeWriteResult() {
+    }
+
+    public AttributeWriteResult(AttributeRef ref, AttributeWriteFailure failure) {
+        this.ref = ref;
+        this.failure = failure;
+    }
+
+    public AttributeRef getRef() {
+        return ref;
+    }
+
+    /**
+     * @return <code>null</code> if the event was applied.
+     */
+    public AttributeWriteFailure getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "ref=" + ref +
+            ", failure=" + failure +
+            '}';
+    }
+}
@@ -85,6 +85,10 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
             throw new UnsupportedOperationException("Sorting with 'orderBy' not supported in rules matching");
         }
 
+        if (query.limit > 0 || query.pageToken != null) {
+            throw new UnsupportedOperationException("Pagination with 'limit' not supported in rules matching");
+        }
+
         return true;
     }
 
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.rules;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of recorded values, each bucket counts the values less than or equal to its upper bound and greater
+ * than the bound of the previous bucket. The last bucket counts all values greater than the last bound.
+ */
+public class RuleHistogram {
+
+    protected long[] bounds;
+    protected long[] counts;
+    protected long count;
+    protected long sum;
+    protected long max;
+
+    protected RuleHistogram() {
+    }
+
+    public RuleHistogram(long[] bounds, long[] counts, long count, long sum, long max) {
+        this.bounds = bounds;
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long[] getBounds() {
+        return bounds;
+    }
+
+    public long[] getCounts() {
+        return counts;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "count=" + count +
+            ", sum=" + sum +
+            ", max=" + max +
+            ", bounds=" + Arrays.toString(bounds) +
+            ", counts=" + Arrays.toString(counts) +
+            '}';
+    }
+}
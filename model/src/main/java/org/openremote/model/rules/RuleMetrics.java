@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.rules;
+
+/**
+ * Execution metrics of a rule of a deployed {@link Ruleset}, since the ruleset was deployed or the metrics
+ * were reset.
+ * <p>
+ * Condition and action times are in microseconds. The scanned facts are the facts offered to the match
+ * predicates in a single condition evaluation. The loop iterations are the number of times the action of the rule
+ * was executed in a single firing of the rules engine, a high value shows which rule keeps the engine looping.
+ */
+public class RuleMetrics {
+
+    protected String engineId;
+    protected Long rulesetId;
+    protected String rulesetName;
+    protected String ruleName;
+    protected long evaluations;
+    protected long executions;
+    protected long failures;
+    protected RuleHistogram conditionTime;
+    protected RuleHistogram actionTime;
+    protected RuleHistogram factsScanned;
+    protected RuleHistogram loopIterations;
+
+    protected RuleMetrics() {
+    }
+
+    public RuleMetrics(String engineId,
+                       Long rulesetId,
+                       String rulesetName,
+                       String ruleName,
+                       long evaluations,
+                       long executions,
+                       long failures,
+                       RuleHistogram conditionTime,
+                       RuleHistogram actionTime,
+                       RuleHistogram factsScanned,
+                       RuleHistogram loopIterations) {
+        this.engineId = engineId;
+        this.rulesetId = rulesetId;
+        this.rulesetName = rulesetName;
+        this.ruleName = ruleName;
+        this.evaluations = evaluations;
+        this.executions = executions;
+        this.failures = failures;
+        this.conditionTime = conditionTime;
+        this.actionTime = actionTime;
+        this.factsScanned = factsScanned;
+        this.loopIterations = loopIterations;
+    }
+
+    public String getEngineId() {
+        return engineId;
+    }
+
+    public Long getRulesetId() {
+        return rulesetId;
+    }
+
+    public String getRulesetName() {
+        return rulesetName;
+    }
+
+    public String getRuleName() {
+        return ruleName;
+    }
+
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    public long getExecutions() {
+        return executions;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public RuleHistogram getConditionTime() {
+        return conditionTime;
+    }
+
+    public RuleHistogram getActionTime() {
+        return actionTime;
+    }
+
+    public RuleHistogram getFactsScanned() {
+        return factsScanned;
+    }
+
+    public RuleHistogram getLoopIterations() {
+        return loopIterations;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "engineId='" + engineId + '\'' +
+            ", rulesetId=" + rulesetId +
+            ", rulesetName='" + rulesetName + '\'' +
+            ", ruleName='" + ruleName + '\'' +
+            ", evaluations=" + evaluations +
+            ", executions=" + executions +
+            ", failures=" + failures +
+            ", conditionTime=" + conditionTime +
+            ", actionTime=" + actionTime +
+            ", factsScanned=" + factsScanned +
+            ", loopIterations=" + loopIterations +
+            '}';
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.rules;
+
+import jsinterop.annotations.JsType;
+import org.openremote.model.http.RequestParams;
+import org.openremote.model.http.SuccessStatusCode;
+
+import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.*;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+
+@Path("rules/metrics")
+@JsType(isNative = true)
+public interface RuleMetricsResource {
+
+    /**
+     * Retrieve the execution metrics of all rules of all running rules engines. Only the superuser can perform
+     * this operation, a 403 status is returned if a regular user tries to access rule metrics.
+     */
+    @GET
+    @Produces(APPLICATION_JSON)
+    @SuccessStatusCode(200)
+    @RolesAllowed({"read:rules"})
+    @SuppressWarnings("unusable-by-js")
+    RuleMetrics[] getRuleMetrics(@BeanParam RequestParams requestParams);
+
+    /**
+     * Reset the execution metrics of all rules. Only the superuser can perform this operation, a 403 status is
+     * returned if a regular user tries to reset rule metrics.
+     */
+    @DELETE
+    @SuccessStatusCode(204)
+    @RolesAllowed({"write:rules"})
+    @SuppressWarnings("unusable-by-js")
+    void resetRuleMetrics(@BeanParam RequestParams requestParams);
+}
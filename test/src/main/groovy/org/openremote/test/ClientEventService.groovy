@@ -22,10 +22,12 @@ package org.openremote.test
 import com.fasterxml.jackson.databind.ObjectMapper
 import org.openremote.app.client.event.SubscriptionFailureEvent
 import org.openremote.app.client.event.EventService
+import org.openremote.model.attribute.AttributeWriteResult
 import org.openremote.model.event.bus.EventBus
 import org.openremote.model.event.shared.*
 
 import javax.websocket.*
+import java.util.concurrent.CopyOnWriteArrayList
 
 /**
  * Does the same job as {@link org.openremote.app.client.event.EventServiceImpl}.
@@ -35,6 +37,8 @@ class ClientEventService implements EventService {
     final protected EventBus eventBus
     final protected ObjectMapper objectMapper
     final protected EventBusWebsocketEndpoint endpoint
+    // The results of sent batches of events, in the order they were received
+    final List<AttributeWriteResult[]> writeResults = new CopyOnWriteArrayList<>()
 
     class EventBusWebsocketEndpoint extends Endpoint {
 
@@ -53,6 +57,9 @@ class ClientEventService implements EventService {
                             data = data.substring(UnauthorizedEventSubscription.MESSAGE_PREFIX.length())
                             UnauthorizedEventSubscription failure = objectMapper.readValue(data, UnauthorizedEventSubscription.class)
                             eventBus.dispatch(new SubscriptionFailureEvent(failure.getEventType()))
+                        } else if (data.startsWith(AttributeWriteResult.MESSAGE_PREFIX)) {
+                            data = data.substring(AttributeWriteResult.MESSAGE_PREFIX.length())
+                            writeResults.add(objectMapper.readValue(data, AttributeWriteResult[].class))
                         } else if (data.startsWith(SharedEvent.MESSAGE_PREFIX)) {
                             data = data.substring(SharedEvent.MESSAGE_PREFIX.length())
                             if (data.startsWith("[")) {
@@ -86,6 +93,12 @@ class ClientEventService implements EventService {
             session.basicRemote.sendText(SharedEvent.MESSAGE_PREFIX + objectMapper.writeValueAsString(sharedEvent))
         }
 
+        void send(SharedEvent[] sharedEvents) {
+            if (session == null || !session.isOpen())
+                throw new IllegalStateException("Session not open")
+            session.basicRemote.sendText(SharedEvent.MESSAGE_PREFIX + objectMapper.writeValueAsString(sharedEvents))
+        }
+
         void sendSubscription(EventSubscription subscription) {
             if (session == null || !session.isOpen())
                 throw new IllegalStateException("Session not open")
@@ -138,6 +151,13 @@ class ClientEventService implements EventService {
         endpoint.send(sharedEvent)
     }
 
+    /**
+     * Send a batch of events, the server replies with the results in {@link #writeResults}.
+     */
+    void dispatch(SharedEvent[] sharedEvents) {
+        endpoint.send(sharedEvents)
+    }
+
     @Override
     void stop() {
         close()
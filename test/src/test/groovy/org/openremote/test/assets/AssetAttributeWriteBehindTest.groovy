@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.assets
+
+import org.openremote.container.persistence.PersistenceService
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.setup.SetupService
+import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.value.Values
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+
+import static org.openremote.manager.asset.AssetStorageService.ASSET_STATE_WRITE_BEHIND
+import static org.openremote.manager.asset.AssetStorageService.ASSET_STATE_WRITE_BEHIND_INTERVAL_MILLIS
+
+class AssetAttributeWriteBehindTest extends Specification implements ManagerContainerTrait {
+
+    def "Queue attribute values only when the transaction commits"() {
+
+        given: "the server container is started with write-behind and a long flush interval"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort) << [
+            (ASSET_STATE_WRITE_BEHIND): "true",
+            (ASSET_STATE_WRITE_BEHIND_INTERVAL_MILLIS): "3600000"
+        ], defaultServices())
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def persistenceService = container.getService(PersistenceService.class)
+        def writeBehind = assetStorageService.getWriteBehind()
+
+        and: "a way to read the stored value"
+        def readStoredValue = {
+            persistenceService.doReturningTransaction({ em ->
+                em.createNativeQuery(
+                    "select ATTRIBUTES #>> '{light1PowerConsumption,value}' from ASSET where ID = ?1"
+                ).setParameter(1, managerDemoSetup.thingId).getSingleResult()
+            })
+        }
+
+        expect: "nothing to be pending"
+        writeBehind.getPendingCount() == 0
+        Double.valueOf(readStoredValue()) == 12.345d
+
+        when: "a value is stored in a transaction which rolls back"
+        persistenceService.doTransaction({ em ->
+            assert assetStorageService.storeAttributeValue(
+                em, managerDemoSetup.thingId, "light1PowerConsumption", Values.create(1d), Long.toString(getClockTimeOf(container))
+            )
+            throw new IllegalStateException("Rollback")
+        })
+
+        then: "the value should not be queued"
+        thrown(IllegalStateException)
+        writeBehind.getPendingCount() == 0
+
+        when: "a value is stored in a transaction which commits"
+        persistenceService.doTransaction({ em ->
+            assert assetStorageService.storeAttributeValue(
+                em, managerDemoSetup.thingId, "light1PowerConsumption", Values.create(2d), Long.toString(getClockTimeOf(container))
+            )
+        })
+
+        then: "the value should be queued but not stored"
+        writeBehind.getPendingCount() == 1
+        Double.valueOf(readStoredValue()) == 12.345d
+
+        when: "the pending values are flushed in a transaction which rolls back"
+        persistenceService.doTransaction({ em ->
+            writeBehind.flush(em, managerDemoSetup.thingId)
+            throw new IllegalStateException("Rollback")
+        })
+
+        then: "the value should still be pending and not stored"
+        thrown(IllegalStateException)
+        writeBehind.getPendingCount() == 1
+        Double.valueOf(readStoredValue()) == 12.345d
+
+        when: "the pending values are flushed in a transaction which commits"
+        writeBehind.flush()
+
+        then: "the value should be stored and no longer pending"
+        writeBehind.getPendingCount() == 0
+        Double.valueOf(readStoredValue()) == 2d
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
+}
@@ -1,11 +1,17 @@
 package org.openremote.test.assets
 
 import org.openremote.agent.protocol.simulator.SimulatorProtocol
+import org.openremote.container.persistence.PersistenceService
 import org.openremote.manager.asset.AssetStorageService
 import org.openremote.manager.datapoint.AssetDatapointService
+import org.openremote.manager.datapoint.DatapointRetention
+import org.openremote.manager.datapoint.DatapointRollups
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.asset.AssetMeta
 import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.attribute.MetaItem
+import org.openremote.model.datapoint.AssetDatapoint
 import org.openremote.model.datapoint.DatapointInterval
 import org.openremote.model.value.Values
 import org.openremote.test.ManagerContainerTrait
@@ -13,6 +19,7 @@ import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
 import static java.util.concurrent.TimeUnit.SECONDS
+import static org.openremote.manager.datapoint.AssetDatapointService.DATAPOINT_RETENTION_INTERVAL_MILLIS
 
 class AssetDatapointTest extends Specification implements ManagerContainerTrait {
 
@@ -103,6 +110,21 @@ class AssetDatapointTest extends Specification implements ManagerContainerTrait
             assert aggregatedDatapoints.size() == 61
         }
 
+        and: "the aggregated datapoints should be read from the rollups once they have been backfilled"
+        conditions.eventually {
+            assert assetDatapointService.rollups.backfillCompleted
+            def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+            def aggregatedDatapoints = assetDatapointService.aggregateDatapoints(
+                    thing.getAttribute("light1PowerConsumption").orElseThrow({ new RuntimeException("Missing attribute")}),
+                    DatapointInterval.HOUR,
+                    getClockTimeOf(container)
+            )
+            assert aggregatedDatapoints.size() == 61
+            def values = aggregatedDatapoints.findAll { it.number != null }.collect { it.number.doubleValue() }
+            assert values.size() > 0
+            assert values.every { it >= 12.345d && it <= 15.5d }
+        }
+
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
@@ -185,4 +207,121 @@ class AssetDatapointTest extends Specification implements ManagerContainerTrait
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
+
+    def "Expire datapoints and rollups older than their maximum age"() {
+
+        given: "the server container is started without scheduled retention"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort) << [
+            (DATAPOINT_RETENTION_INTERVAL_MILLIS): "0"
+        ], defaultServices())
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetDatapointService = container.getService(AssetDatapointService.class)
+        def persistenceService = container.getService(PersistenceService.class)
+        def dimmerRef = new AttributeRef(managerDemoSetup.thingId, "light1Dimmer")
+        def toggleRef = new AttributeRef(managerDemoSetup.thingId, "light1Toggle")
+        def now = getClockTimeOf(container)
+
+        and: "a way to count stored rows"
+        def countRows = { String sql, AttributeRef attributeRef, Object... parameters ->
+            persistenceService.doReturningTransaction({ em ->
+                def query = em.createNativeQuery(sql)
+                    .setParameter(1, attributeRef.entityId)
+                    .setParameter(2, attributeRef.attributeName)
+                parameters.eachWithIndex { parameter, i -> query.setParameter(i + 3, parameter) }
+                ((Number) query.getSingleResult()).intValue()
+            })
+        }
+        def countDatapoints = { AttributeRef attributeRef, long before ->
+            countRows(
+                "select count(*) from ASSET_DATAPOINT where ENTITY_ID = ?1 and ATTRIBUTE_NAME = ?2 and TIMESTAMP < ?3",
+                attributeRef, before
+            )
+        }
+        def countRollups = { AttributeRef attributeRef, DatapointRollups.Tier tier, long before ->
+            countRows(
+                "select count(*) from ASSET_DATAPOINT_ROLLUP where ENTITY_ID = ?1 and ATTRIBUTE_NAME = ?2 and TIER = ?3 and BUCKET_START < ?4",
+                attributeRef, tier.name(), before
+            )
+        }
+
+        and: "the rollups have been backfilled"
+        conditions.eventually {
+            assert assetDatapointService.rollups.backfillCompleted
+        }
+
+        when: "maximum ages are configured on the attributes"
+        def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+        thing.replaceAttribute(thing.getAttribute("light1Dimmer").get().addMeta(
+            new MetaItem(AssetMeta.DATA_POINTS_MAX_AGE, Values.create("1h")),
+            new MetaItem(AssetMeta.DATA_POINTS_MINUTE_ROLLUP_MAX_AGE, Values.create("2h")),
+            new MetaItem(AssetMeta.DATA_POINTS_HOUR_ROLLUP_MAX_AGE, Values.create("1d"))
+        ))
+        thing.replaceAttribute(thing.getAttribute("light1Toggle").get().addMeta(
+            new MetaItem(AssetMeta.DATA_POINTS_MAX_AGE, Values.create("1h"))
+        ))
+        assetStorageService.merge(thing)
+
+        and: "old and recent datapoints are stored"
+        def hour = 60 * 60 * 1000L
+        persistenceService.doTransaction({ em ->
+            [now - 72 * hour, now - 3 * hour, now - 90 * 60 * 1000L, now - 30 * 60 * 1000L].eachWithIndex { timestamp, i ->
+                assetDatapointService.datapointStore.storeDatapoint(em, new AssetDatapoint(dimmerRef, Values.create(i * 10d), timestamp))
+                assetDatapointService.rollups.add(em, dimmerRef, timestamp, i * 10d)
+            }
+            [now - 3 * hour, now - 2 * hour].each { timestamp ->
+                assetDatapointService.datapointStore.storeDatapoint(em, new AssetDatapoint(toggleRef, Values.create(true), timestamp))
+            }
+        })
+        assetDatapointService.rollups.flush()
+
+        then: "the datapoints and rollups should be stored"
+        countDatapoints(dimmerRef, now - hour) == 3
+        countDatapoints(toggleRef, now - hour) == 2
+        countRollups(dimmerRef, DatapointRollups.Tier.MINUTE, now) == 4
+
+        and: "signed maximum ages should be rejected"
+        !new MetaItem(AssetMeta.DATA_POINTS_MAX_AGE, Values.create("-1h"))
+            .getValidationFailures(Optional.of(AssetMeta.DATA_POINTS_MAX_AGE)).isEmpty()
+        !new MetaItem(AssetMeta.DATA_POINTS_HOUR_ROLLUP_MAX_AGE, Values.create("+1d"))
+            .getValidationFailures(Optional.of(AssetMeta.DATA_POINTS_HOUR_ROLLUP_MAX_AGE)).isEmpty()
+        new MetaItem(AssetMeta.DATA_POINTS_MAX_AGE, Values.create("1h"))
+            .getValidationFailures(Optional.of(AssetMeta.DATA_POINTS_MAX_AGE)).isEmpty()
+
+        when: "retention runs twice, each run may only delete one row"
+        def retention = new DatapointRetention(
+            persistenceService, assetDatapointService.datapointStore, assetDatapointService.rollups, 1, 1
+        )
+        retention.run(now)
+        retention.run(now)
+
+        then: "each run should have started with another attribute"
+        countDatapoints(dimmerRef, now - hour) == 2
+        countDatapoints(toggleRef, now - hour) == 1
+
+        when: "retention runs without a row limit"
+        retention = new DatapointRetention(
+            persistenceService, assetDatapointService.datapointStore, assetDatapointService.rollups, 1, 1000
+        )
+        retention.run(now)
+
+        then: "datapoints older than their maximum age should be deleted"
+        countDatapoints(dimmerRef, now - hour) == 0
+        countDatapoints(dimmerRef, now) == 1
+        countDatapoints(toggleRef, now - hour) == 0
+
+        and: "rollups older than the maximum age of their tier should be deleted"
+        countRollups(dimmerRef, DatapointRollups.Tier.MINUTE, now - 2 * hour) == 0
+        countRollups(dimmerRef, DatapointRollups.Tier.MINUTE, now) == 2
+        countRollups(dimmerRef, DatapointRollups.Tier.HOUR, now - 24 * hour) == 0
+        countRollups(dimmerRef, DatapointRollups.Tier.HOUR, now) >= 2
+
+        and: "day rollups should be kept"
+        countRollups(dimmerRef, DatapointRollups.Tier.DAY, now - 48 * hour) == 1
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
 }
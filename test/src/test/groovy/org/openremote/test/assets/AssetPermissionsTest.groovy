@@ -8,7 +8,9 @@ import org.openremote.model.asset.Asset
 import org.openremote.model.asset.AssetAttribute
 import org.openremote.model.asset.AssetQuery
 import org.openremote.model.asset.AssetType
+import org.openremote.model.attribute.AttributeEvent
 import org.openremote.model.attribute.AttributeType
+import org.openremote.model.attribute.AttributeWriteFailure
 import org.openremote.model.attribute.Meta
 import org.openremote.model.attribute.MetaItem
 import org.openremote.model.value.Values
@@ -226,6 +228,23 @@ class AssetPermissionsTest extends Specification implements ManagerContainerTrai
             assert asset.getAttribute("geoStreet").get().getValue().get().toJson() == Values.create("Teststreet 456").toJson()
         }
 
+        when: "several asset attributes are written in a batch"
+        def results = assetResource.writeAttributeEvents(null, [
+                new AttributeEvent(managerDemoSetup.smartOfficeId, "geoStreet", Values.create("Teststreet 789")),
+                new AttributeEvent(managerDemoSetup.smartOfficeId, "doesnotexist", Values.create("Teststreet 789")),
+                new AttributeEvent("doesnotexist", "geoStreet", Values.create("Teststreet 789")),
+                new AttributeEvent(managerDemoSetup.smartHomeId, "geoStreet", Values.create("Teststreet 789"))
+        ] as AttributeEvent[])
+
+        then: "there should be a result for each event"
+        results.length == 4
+        results[0].failure == null
+        results[1].failure == AttributeWriteFailure.ATTRIBUTE_NOT_FOUND
+        results[2].failure == AttributeWriteFailure.ASSET_NOT_FOUND
+        results[3].failure == null
+        assetResource.get(null, managerDemoSetup.smartOfficeId).getAttribute("geoStreet").get().getValue().get().toJson() == Values.create("Teststreet 789").toJson()
+        assetResource.get(null, managerDemoSetup.smartHomeId).getAttribute("geoStreet").get().getValue().get().toJson() == Values.create("Teststreet 789").toJson()
+
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
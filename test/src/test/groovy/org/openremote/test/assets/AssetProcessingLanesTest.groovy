@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.assets
+
+import org.openremote.manager.asset.AssetProcessingLanes
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+
+class AssetProcessingLanesTest extends Specification {
+
+    def "Check ordered processing per partition key"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+
+        and: "processing lanes"
+        def lanes = new AssetProcessingLanes("Test", 4, 10)
+        Map<String, List<Integer>> processed = new ConcurrentHashMap<>()
+        Set<String> laneThreads = ConcurrentHashMap.newKeySet()
+
+        when: "tasks for several assets are submitted, more than a lane can queue"
+        def assetIds = (0..<8).collect { "asset" + it }
+        for (int i = 0; i < 100; i++) {
+            assetIds.each { assetId ->
+                def sequence = i
+                lanes.submit(assetId, {
+                    laneThreads.add(Thread.currentThread().getName())
+                    processed.computeIfAbsent(assetId, { new CopyOnWriteArrayList<>() }).add(sequence)
+                    return null
+                })
+            }
+        }
+
+        then: "all tasks should have been processed in order of submission per asset"
+        conditions.eventually {
+            assert processed.size() == 8
+            assetIds.each { assetId ->
+                assert processed.get(assetId) == (0..<100).toList()
+            }
+            assert lanes.getCompletedCounts().sum() == 800
+            assert lanes.getQueueDepths().sum() == 0
+        }
+
+        and: "the same asset should always be assigned to the same lane"
+        def otherLanes = new AssetProcessingLanes("Other", 4, 10)
+        assetIds.every { lanes.getLane(it) == otherLanes.getLane(it) }
+        assetIds.collect { lanes.getLane(it) }.unique().size() > 1
+        laneThreads.size() > 1
+
+        cleanup: "the lanes are shut down"
+        lanes.shutdown()
+        otherLanes?.shutdown()
+    }
+
+    def "Complete queued work on shutdown and reject new work"() {
+
+        given: "processing lanes with queued work"
+        def lanes = new AssetProcessingLanes("Test", 1, 100)
+        def processed = new CopyOnWriteArrayList<Integer>()
+        def latch = new CountDownLatch(1)
+        lanes.submit("asset", { latch.await(); return null })
+        def futures = (0..<50).collect { i -> lanes.submit("asset", { processed.add(i); return null }) }
+
+        when: "the lanes are shut down while work is queued"
+        def shutdown = Thread.start { lanes.shutdown() }
+        latch.countDown()
+        shutdown.join(10000)
+
+        then: "the queued work should have been completed"
+        processed == (0..<50).toList()
+        futures.every { it.isDone() && !it.isCancelled() }
+
+        when: "work is submitted after shutdown"
+        lanes.submit("asset", { return null })
+
+        then: "the work should be rejected"
+        thrown(RejectedExecutionException)
+    }
+}
@@ -10,12 +10,15 @@ import org.openremote.manager.asset.ServerAsset
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.KeycloakDemoSetup
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.asset.AssetAttribute
 import org.openremote.model.asset.AssetMeta
 import org.openremote.model.asset.AssetQuery
 import org.openremote.model.asset.AssetType
 import org.openremote.model.asset.CalendarEventConfiguration
+import org.openremote.model.attribute.MetaItem
 import org.openremote.model.calendar.CalendarEvent
 import org.openremote.model.calendar.RecurrenceRule
+import org.openremote.model.value.Values
 import org.openremote.test.ManagerContainerTrait
 import spock.lang.Shared
 import spock.lang.Specification
@@ -30,6 +33,7 @@ import static org.openremote.model.asset.BaseAssetQuery.Access.RESTRICTED_READ
 import static org.openremote.model.asset.BaseAssetQuery.OrderBy.Property.CREATED_ON
 import static org.openremote.model.asset.BaseAssetQuery.OrderBy.Property.NAME
 import static org.openremote.model.asset.AssetType.THING
+import static org.openremote.model.attribute.AttributeType.NUMBER
 
 class AssetQueryTest extends Specification implements ManagerContainerTrait {
 
@@ -651,6 +655,184 @@ class AssetQueryTest extends Specification implements ManagerContainerTrait {
 
     }
 
+    def "Query assets by identifier with query templates"() {
+
+        when: "assets are queried by identifier"
+        def hits = assetStorageService.queryTemplateHits
+        def apartment1 = assetStorageService.find(new AssetQuery().select(new Select(Include.ALL_EXCEPT_PATH_AND_ATTRIBUTES, PRIVATE_READ)).id(managerDemoSetup.apartment1Id))
+        def apartment2 = assetStorageService.find(new AssetQuery().select(new Select(Include.ALL_EXCEPT_PATH_AND_ATTRIBUTES, PRIVATE_READ)).id(managerDemoSetup.apartment2Id))
+
+        then: "the query template should be reused with the identifier of each query"
+        assetStorageService.queryTemplateHits > hits
+        assetStorageService.queryTemplateHitRate > 0
+        apartment1.id == managerDemoSetup.apartment1Id
+        apartment1.name == "Apartment 1"
+        apartment2.id == managerDemoSetup.apartment2Id
+        apartment2.name == "Apartment 2"
+    }
+
+    def "Query assets in pages"() {
+
+        when: "the first page of the apartments is queried"
+        def page = []
+        def nextPageToken = assetStorageService.findAll(
+                new AssetQuery()
+                        .parent(new ParentPredicate(managerDemoSetup.smartHomeId))
+                        .orderBy(new OrderBy(NAME, true))
+                        .limit(2),
+                { page.add(it) }
+        )
+
+        then: "the first two apartments and a page token should be returned"
+        page.size() == 2
+        page[0].id == managerDemoSetup.apartment3Id
+        page[1].id == managerDemoSetup.apartment2Id
+        nextPageToken != null
+
+        when: "the next page is queried"
+        page = []
+        nextPageToken = assetStorageService.findAll(
+                new AssetQuery()
+                        .parent(new ParentPredicate(managerDemoSetup.smartHomeId))
+                        .orderBy(new OrderBy(NAME, true))
+                        .limit(2)
+                        .pageToken(nextPageToken),
+                { page.add(it) }
+        )
+
+        then: "the last apartment and no page token should be returned"
+        page.size() == 1
+        page[0].id == managerDemoSetup.apartment1Id
+        nextPageToken == null
+
+        when: "a page token is used with a different ordering"
+        assetStorageService.findAll(
+                new AssetQuery()
+                        .parent(new ParentPredicate(managerDemoSetup.smartHomeId))
+                        .orderBy(new OrderBy(CREATED_ON))
+                        .limit(2)
+                        .pageToken(assetStorageService.findAll(
+                                new AssetQuery().parent(new ParentPredicate(managerDemoSetup.smartHomeId)).orderBy(new OrderBy(NAME)).limit(1),
+                                { }
+                        )),
+                { }
+        )
+
+        then: "the query should be rejected"
+        thrown(IllegalStateException)
+    }
+
+    def "Query assets after moving a subtree"() {
+
+        when: "a room with a child is stored in apartment 1"
+        def room = assetStorageService.merge(new ServerAsset("Moved room", AssetType.ROOM, assetStorageService.find(managerDemoSetup.apartment1Id)))
+        def thing = assetStorageService.merge(new ServerAsset("Moved thing", THING, room))
+        thing = assetStorageService.find(thing.id, true)
+
+        then: "the path of the child should be materialized"
+        thing.path.length == 4
+        thing.path[0] == thing.id
+        thing.path[1] == room.id
+        thing.path[2] == managerDemoSetup.apartment1Id
+        thing.path[3] == managerDemoSetup.smartHomeId
+
+        when: "the room is moved to apartment 2"
+        room = assetStorageService.find(room.id, true)
+        room.setParentId(managerDemoSetup.apartment2Id)
+        assetStorageService.merge(room)
+        thing = assetStorageService.find(thing.id, true)
+
+        then: "the path of the child should be updated"
+        thing.path.length == 4
+        thing.path[1] == room.id
+        thing.path[2] == managerDemoSetup.apartment2Id
+
+        when: "a path query is executed for apartment 2"
+        def assets = assetStorageService.findAll(
+                new AssetQuery().path(new PathPredicate([managerDemoSetup.apartment2Id] as String[]))
+        )
+
+        then: "the moved room and its child should be included"
+        assets.any { it.id == room.id }
+        assets.any { it.id == thing.id }
+
+        when: "a recursive query is executed for apartment 1"
+        assets = assetStorageService.findAll(
+                new AssetQuery().select(new Select(Include.ONLY_ID_AND_NAME, true)).id(managerDemoSetup.apartment1Id)
+        )
+
+        then: "the moved room and its child should not be included"
+        assets.size() > 1
+        !assets.any { it.id == room.id || it.id == thing.id }
+
+        when: "a recursive query is executed for apartment 2"
+        assets = assetStorageService.findAll(
+                new AssetQuery().select(new Select(Include.ONLY_ID_AND_NAME, true)).id(managerDemoSetup.apartment2Id)
+        )
+
+        then: "the moved room and its child should be included"
+        assets.any { it.id == room.id }
+        assets.any { it.id == thing.id }
+
+        cleanup: "the moved assets should be removed"
+        if (thing != null)
+            assetStorageService.delete(thing.id)
+        if (room != null)
+            assetStorageService.delete(room.id)
+    }
+
+    def "Query assets after changing attribute meta"() {
+
+        when: "an asset with a labeled attribute is stored"
+        def thing = new ServerAsset("Labeled thing", THING, assetStorageService.find(managerDemoSetup.apartment1Id))
+        thing.setAttributes(
+                new AssetAttribute("labeledNumber", NUMBER, Values.create(123)).addMeta(
+                        new MetaItem(AssetMeta.LABEL, Values.create("Some unique label"))
+                )
+        )
+        thing = assetStorageService.merge(thing)
+        def assets = assetStorageService.findAll(
+                new AssetQuery().attributeMeta(new AttributeMetaPredicate(AssetMeta.LABEL, new StringPredicate("Some unique label")))
+        )
+
+        then: "the asset should be found by its attribute meta"
+        assets.size() == 1
+        assets[0].id == thing.id
+
+        when: "only the attribute value is changed"
+        thing = assetStorageService.find(thing.id, true)
+        thing.getAttribute("labeledNumber").get().setValue(Values.create(456))
+        thing = assetStorageService.merge(thing)
+        assets = assetStorageService.findAll(
+                new AssetQuery().attributeMeta(new AttributeMetaPredicate(AssetMeta.LABEL, new StringPredicate("Some unique label")))
+        )
+
+        then: "the asset should still be found by its attribute meta"
+        assets.size() == 1
+        assets[0].id == thing.id
+
+        when: "the attribute meta is changed"
+        thing = assetStorageService.find(thing.id, true)
+        thing.replaceAttribute(
+                new AssetAttribute("labeledNumber", NUMBER, Values.create(456)).addMeta(
+                        new MetaItem(AssetMeta.LABEL, Values.create("Another unique label"))
+                )
+        )
+        thing = assetStorageService.merge(thing)
+
+        then: "the asset should only be found by the new attribute meta"
+        assetStorageService.findAll(
+                new AssetQuery().attributeMeta(new AttributeMetaPredicate(AssetMeta.LABEL, new StringPredicate("Some unique label")))
+        ).isEmpty()
+        assetStorageService.findAll(
+                new AssetQuery().attributeMeta(new AttributeMetaPredicate(AssetMeta.LABEL, new StringPredicate("Another unique label")))
+        ).size() == 1
+
+        cleanup: "the asset should be removed"
+        if (thing != null)
+            assetStorageService.delete(thing.id)
+    }
+
     def "Location queries"() {
 
         given: "polling conditions"
@@ -756,6 +938,34 @@ class AssetQueryTest extends Specification implements ManagerContainerTrait {
         assets[3].name == "Lobby"
         assets[4].id == managerDemoSetup.smartOfficeId
         assets[4].name == "Smart Office"
+
+        when: "the assets in the rectangular region are clustered at a low zoom level"
+        def clusters = assetStorageService.findClusters(
+            new AssetQuery()
+                .location(new RectangularLocationPredicate(51.44540d,  5.46031d, 51.44594d, 5.46110d))
+                .tenant(new TenantPredicate(keycloakDemoSetup.masterTenant.id)),
+            2
+        )
+
+        then: "all assets should be in one cluster"
+        clusters.length == 1
+        clusters[0].count == 5
+        clusters[0].assetId == null
+        clusters[0].latMin >= 51.44540d
+        clusters[0].latMax <= 51.44594d
+
+        when: "the assets in the rectangular region are clustered at a high zoom level"
+        clusters = assetStorageService.findClusters(
+            new AssetQuery()
+                .location(new RectangularLocationPredicate(51.44540d,  5.46031d, 51.44594d, 5.46110d))
+                .tenant(new TenantPredicate(keycloakDemoSetup.masterTenant.id)),
+            20
+        )
+
+        then: "the moved asset should be in its own cluster"
+        clusters.length > 1
+        clusters.collect { it.count }.sum() == 5
+        clusters.any { it.count == 1 && it.assetId == managerDemoSetup.lobbyId }
     }
 
     def "Calendar queries"() {
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.assets
+
+import org.openremote.manager.datapoint.DatapointChunkCodec
+import spock.lang.Specification
+
+class DatapointChunkCodecTest extends Specification {
+
+    def "Encode and decode datapoint chunk"() {
+
+        given: "an hour of irregularly sampled datapoints"
+        def random = new Random(1234)
+        List<Long> timestamps = []
+        List<Double> values = []
+        long timestamp = 1522540800000L
+        double value = 21.5
+        3600.times {
+            timestamp += it % 100 == 0 ? random.nextInt(100000) : 1000 + random.nextInt(3)
+            value = it % 10 == 0 ? value + random.nextGaussian() : value
+            timestamps.add(timestamp)
+            values.add(value)
+        }
+        timestamps.add(timestamp)
+        values.add(Double.NaN)
+
+        when: "the datapoints are encoded"
+        def encoder = new DatapointChunkCodec.Encoder()
+        for (int i = 0; i < timestamps.size(); i++) {
+            encoder.append(timestamps[i], values[i])
+        }
+        def data = encoder.toByteArray()
+
+        then: "the chunk should be compressed"
+        encoder.count == timestamps.size()
+        encoder.lastTimestamp == timestamp
+        data.length < timestamps.size() * 4
+
+        when: "the chunk is decoded"
+        List<Long> decodedTimestamps = []
+        List<Double> decodedValues = []
+        DatapointChunkCodec.decode(data, encoder.count, { long ts, double v ->
+            decodedTimestamps.add(ts)
+            decodedValues.add(v)
+        } as DatapointChunkCodec.DatapointConsumer)
+
+        then: "all datapoints should be restored"
+        decodedTimestamps == timestamps
+        decodedValues.subList(0, 3600) == values.subList(0, 3600)
+        Double.isNaN(decodedValues.last())
+
+        when: "a datapoint older than the last datapoint is appended"
+        encoder.append(timestamp - 1, 0)
+
+        then: "it should be rejected"
+        thrown(IllegalArgumentException)
+    }
+}
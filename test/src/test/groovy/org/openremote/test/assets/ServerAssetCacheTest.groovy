@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.assets
+
+import org.openremote.manager.asset.ServerAsset
+import org.openremote.manager.asset.ServerAssetCache
+import spock.lang.Specification
+
+import java.sql.Array
+
+import static org.openremote.model.asset.AssetType.THING
+
+class ServerAssetCacheTest extends Specification {
+
+    static ServerAsset createAsset(String... path) {
+        def pathArray = [getArray: { -> path }] as Array
+        new ServerAsset(
+            path[0], 0L, new Date(), "Asset " + path[0], THING.value, false,
+            path.length > 1 ? path[1] : null, null, null,
+            "test", null, null,
+            null,
+            pathArray, null
+        )
+    }
+
+    def "Cache loaded assets and hand out copies"() {
+
+        given: "an asset cache and a loader"
+        def cache = new ServerAssetCache(100)
+        def loadCount = 0
+        def loader = { String id -> loadCount++; createAsset(id) }
+
+        when: "an asset is requested twice"
+        def first = cache.get("a", loader)
+        def second = cache.get("a", loader)
+
+        then: "it should have been loaded once"
+        loadCount == 1
+        cache.size() == 1
+        cache.getStats().missCount() == 1
+        cache.getStats().hitCount() == 1
+
+        and: "callers should receive copies"
+        first.id == "a"
+        second.id == "a"
+        !first.is(second)
+
+        when: "the asset is invalidated and requested again"
+        cache.invalidate("a")
+        cache.get("a", loader)
+
+        then: "it should have been loaded again"
+        loadCount == 2
+    }
+
+    def "Invalidate cached descendants of a modified asset"() {
+
+        given: "an asset cache with a tree of assets"
+        def cache = new ServerAssetCache(100)
+        def loaded = []
+        def paths = [
+            root      : ["root"],
+            parent    : ["parent", "root"],
+            child     : ["child", "parent", "root"],
+            grandchild: ["grandchild", "child", "parent", "root"],
+            other     : ["other", "root"]
+        ]
+        def loader = { String id -> loaded << id; createAsset(paths[id] as String[]) }
+        paths.keySet().each { cache.get(it, loader) }
+        loaded.clear()
+
+        when: "the child is moved to another parent"
+        cache.invalidate("child")
+        paths.child = ["child", "other", "root"]
+        paths.grandchild = ["grandchild", "child", "other", "root"]
+        paths.keySet().each { cache.get(it, loader) }
+
+        then: "the child and its descendants should have been reloaded"
+        loaded.sort() == ["child", "grandchild"]
+
+        when: "the new parent is modified"
+        loaded.clear()
+        cache.invalidate("other")
+        paths.keySet().each { cache.get(it, loader) }
+
+        then: "the moved assets should have been reloaded with it"
+        loaded.sort() == ["child", "grandchild", "other"]
+
+        when: "the old parent is modified"
+        loaded.clear()
+        cache.invalidate("parent")
+        paths.keySet().each { cache.get(it, loader) }
+
+        then: "only the old parent should have been reloaded"
+        loaded == ["parent"]
+
+        when: "all assets are evicted and the root is modified"
+        cache.invalidateAll()
+        cache.invalidate("root")
+
+        then: "the cache should be empty"
+        cache.size() == 0
+    }
+
+    def "Do not cache an asset loaded concurrently with an invalidation"() {
+
+        given: "an asset cache"
+        def cache = new ServerAssetCache(100)
+        def loadCount = 0
+
+        when: "the parent is invalidated while the asset is being loaded"
+        def asset = cache.get("child", { String id ->
+            loadCount++
+            cache.invalidate("parent")
+            createAsset("child", "parent")
+        })
+
+        then: "the loaded asset should be returned but not cached"
+        asset.id == "child"
+        cache.size() == 0
+
+        when: "the asset is requested again"
+        cache.get("child", { String id -> loadCount++; createAsset("child", "parent") })
+
+        then: "it should have been loaded again and cached"
+        loadCount == 2
+        cache.size() == 1
+    }
+}
@@ -21,18 +21,30 @@ package org.openremote.test.event
 
 import com.vividsolutions.jts.geom.Coordinate
 import com.vividsolutions.jts.geom.GeometryFactory
+import org.apache.camel.impl.DefaultExchange
+import org.openremote.container.message.MessageBrokerSetupService
+import org.openremote.container.web.socket.WebsocketConstants
 import org.openremote.manager.agent.AgentService
 import org.openremote.manager.asset.AssetProcessingService
 import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.asset.ServerAsset
+import org.openremote.manager.datapoint.AssetDatapointService
+import org.openremote.manager.rules.RulesService
 import org.openremote.manager.setup.SetupService
+import org.openremote.manager.setup.builtin.KeycloakDemoSetup
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.asset.AssetAttribute
 import org.openremote.model.asset.AssetMeta
+import org.openremote.model.asset.AssetType
 import org.openremote.model.asset.LocationEvent
 import org.openremote.model.asset.agent.AgentStatusEvent
 import org.openremote.model.asset.agent.ConnectionStatus
 import org.openremote.model.attribute.AttributeEvent
 import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.attribute.AttributeType
+import org.openremote.model.attribute.AttributeWriteFailure
 import org.openremote.model.attribute.MetaItem
+import org.openremote.model.event.shared.CancelEventSubscription
 import org.openremote.model.event.shared.EventSubscription
 import org.openremote.model.event.shared.SharedEvent
 import org.openremote.model.value.Values
@@ -44,6 +56,7 @@ import spock.util.concurrent.PollingConditions
 
 import static org.openremote.container.util.MapAccess.getString
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_QUEUE
+import static org.openremote.manager.event.ClientEventService.HEADER_ACCESS_RESTRICTED
 import static org.openremote.manager.event.ClientEventService.WEBSOCKET_EVENTS
 import static org.openremote.manager.setup.AbstractKeycloakSetup.SETUP_ADMIN_PASSWORD
 import static org.openremote.manager.setup.AbstractKeycloakSetup.SETUP_ADMIN_PASSWORD_DEFAULT
@@ -234,4 +247,158 @@ class ClientEventTest extends Specification implements ManagerContainerTrait, Gw
         and: "the server should be stopped"
         stopContainer(container)
     }
-}
\ No newline at end of file
+
+    def "Write a batch of attribute events"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+
+        and: "the container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetDatapointService = container.getService(AssetDatapointService.class)
+        def rulesService = container.getService(RulesService.class)
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+
+        and: "an asset with an attribute storing datapoints and rule state"
+        def asset = new ServerAsset("Batch Test", AssetType.THING, null, keycloakDemoSetup.masterTenant.id)
+        asset.setAttributes(
+            new AssetAttribute("counter", AttributeType.NUMBER)
+                .addMeta(new MetaItem(AssetMeta.STORE_DATA_POINTS, Values.create(true)))
+                .addMeta(new MetaItem(AssetMeta.RULE_STATE, Values.create(true)))
+        )
+        asset = assetStorageService.merge(asset)
+        def counterRef = new AttributeRef(asset.id, "counter")
+
+        and: "a client websocket connection"
+        def accessToken = authenticate(
+            container,
+            MASTER_REALM,
+            KEYCLOAK_CLIENT_ID,
+            MASTER_REALM_ADMIN_USER,
+            getString(container.getConfig(), SETUP_ADMIN_PASSWORD, SETUP_ADMIN_PASSWORD_DEFAULT)
+        ).token
+        def clientEventService = new ClientEventService(createEventBus([]), container.JSON)
+        connect(createWebsocketClient(), clientEventService.endpoint, serverUri(serverPort), WEBSOCKET_EVENTS, MASTER_REALM, accessToken)
+
+        when: "a batch is written in which the last event has the same timestamp as the one before"
+        def now = getClockTimeOf(container)
+        clientEventService.dispatch([
+            new AttributeEvent(counterRef, Values.create(1d), now - 2000),
+            new AttributeEvent(counterRef, Values.create(2d), now - 1000),
+            new AttributeEvent(counterRef, Values.create(3d), now - 1000)
+        ] as SharedEvent[])
+
+        then: "the results should report the failure of the last event only"
+        conditions.eventually {
+            assert clientEventService.writeResults.size() == 1
+            def results = clientEventService.writeResults[0]
+            assert results.length == 3
+            assert results[0].success
+            assert results[1].success
+            assert results[2].failure == AttributeWriteFailure.STATE_STORAGE_FAILED
+        }
+
+        and: "the value and datapoint of the failed event should not have been stored"
+        def counter = assetStorageService.find(asset.id, true).getAttribute("counter").get()
+        counter.getValueAsNumber().orElse(null) == 2d
+        counter.getValueTimestamp().orElse(null) == now - 1000
+        def datapoints = assetDatapointService.getDatapoints(counterRef)
+        datapoints.size() == 2
+        Values.getNumber(datapoints[0].value).orElse(null) == 2d
+        datapoints[0].timestamp == now - 1000
+        Values.getNumber(datapoints[1].value).orElse(null) == 1d
+        datapoints[1].timestamp == now - 2000
+
+        and: "the rules engines should only have seen the state of the last successful event"
+        def counterState = rulesService.assetStates.get(asset.id, "counter").orElse(null)
+        counterState != null
+        counterState.valueAsNumber.orElse(null) == 2d
+        counterState.timestamp == now - 1000
+
+        cleanup: "the client should be stopped"
+        if (clientEventService != null) clientEventService.close()
+
+        and: "the server should be stopped"
+        stopContainer(container)
+    }
+
+    def "Match, cancel and close event subscriptions"() {
+
+        given: "the container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def eventSubscriptions = container.getService(org.openremote.manager.event.ClientEventService.class).getEventSubscriptions()
+        def camelContext = container.getService(MessageBrokerSetupService.class).context
+
+        and: "a way to find the subscribed test sessions receiving an event"
+        def testSessions = ["sessionA", "sessionB", "sessionRestricted", "sessionLocation"]
+        def recipients = { SharedEvent event, boolean accessibleForRestrictedUsers ->
+            def exchange = new DefaultExchange(camelContext)
+            exchange.in.body = event
+            exchange.in.setHeader(HEADER_ACCESS_RESTRICTED, accessibleForRestrictedUsers)
+            eventSubscriptions.splitForSubscribers(exchange)
+                .collect { it.getHeader(WebsocketConstants.SESSION_KEY) as String }
+                .findAll { testSessions.contains(it) }
+                .toSet()
+        }
+        def asset1Event = new AttributeEvent("asset1", "attribute", Values.create(1d))
+        def asset2Event = new AttributeEvent("asset2", "attribute", Values.create(2d))
+
+        when: "sessions subscribe with and without filters"
+        eventSubscriptions.update("sessionA", false, new EventSubscription(AttributeEvent.class, new AttributeEvent.EntityIdFilter("asset1")))
+        eventSubscriptions.update("sessionB", false, new EventSubscription(AttributeEvent.class))
+        eventSubscriptions.update("sessionRestricted", true, new EventSubscription(AttributeEvent.class))
+        eventSubscriptions.update("sessionLocation", false, new EventSubscription(LocationEvent.class))
+
+        then: "events should only be sent to the sessions with matching subscriptions"
+        recipients(asset1Event, false) == ["sessionA", "sessionB"] as Set
+        recipients(asset2Event, false) == ["sessionB"] as Set
+
+        and: "restricted users should only receive events accessible for them"
+        recipients(asset1Event, true) == ["sessionA", "sessionB", "sessionRestricted"] as Set
+
+        when: "a session changes the filter of its subscription"
+        eventSubscriptions.update("sessionA", false, new EventSubscription(AttributeEvent.class, new AttributeEvent.EntityIdFilter("asset2")))
+
+        then: "the session should only receive events matching the new filter"
+        recipients(asset1Event, false) == ["sessionB"] as Set
+        recipients(asset2Event, false) == ["sessionA", "sessionB"] as Set
+
+        when: "a session cancels its subscription"
+        eventSubscriptions.cancel("sessionA", new CancelEventSubscription(AttributeEvent.class))
+
+        then: "the session should no longer receive events"
+        recipients(asset2Event, false) == ["sessionB"] as Set
+
+        when: "a session is closed"
+        eventSubscriptions.cancelAll("sessionB")
+
+        then: "the session should no longer receive events"
+        recipients(asset1Event, true) == ["sessionRestricted"] as Set
+
+        and: "subscriptions to other event types should not be affected"
+        recipients(new LocationEvent("asset1", null, 0), false) == ["sessionLocation"] as Set
+
+        when: "an internal subscription with a filter is made"
+        List<AttributeEvent> internalReceivedEvents = []
+        eventSubscriptions.update("internalSubscriber", false, new EventSubscription<>(
+            AttributeEvent.class,
+            new AttributeEvent.EntityIdFilter("asset2"),
+            { internalReceivedEvents.add(it as AttributeEvent) }
+        ))
+
+        then: "matching events should be passed to the consumer instead of a session"
+        recipients(asset1Event, false).isEmpty()
+        internalReceivedEvents.isEmpty()
+        recipients(asset2Event, false).isEmpty()
+        internalReceivedEvents == [asset2Event]
+
+        cleanup: "the subscriptions should be removed"
+        (testSessions + "internalSubscriber").each { eventSubscriptions?.cancelAll(it) }
+
+        and: "the server should be stopped"
+        stopContainer(container)
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.event
+
+import org.openremote.container.web.socket.WebsocketSessionSender
+import spock.lang.Specification
+
+import javax.websocket.CloseReason
+import javax.websocket.RemoteEndpoint
+import javax.websocket.SendHandler
+import javax.websocket.SendResult
+import javax.websocket.Session
+
+class WebsocketSessionSenderTest extends Specification {
+
+    def "Coalesce pending messages of a slow session and close it when lagging"() {
+
+        given: "a slow session which only completes a send when told to"
+        List<String> sentMessages = []
+        List<SendHandler> inFlight = []
+        List<CloseReason> closeReasons = []
+        def remote = Stub(RemoteEndpoint.Async) {
+            sendText(_ as String, _ as SendHandler) >> { String text, SendHandler handler ->
+                sentMessages.add(text)
+                inFlight.add(handler)
+            }
+        }
+        def session = Stub(Session) {
+            getId() >> "slowSession"
+            getAsyncRemote() >> remote
+            close(_ as CloseReason) >> { CloseReason reason -> closeReasons.add(reason) }
+        }
+        def completeInFlight = {
+            def handler = inFlight.remove(0)
+            handler.onResult(new SendResult())
+        }
+
+        and: "a sender with a small pending queue and a long lag time"
+        def sender = new WebsocketSessionSender(session, 3, 60000)
+
+        when: "messages are sent while the first message is in flight"
+        sender.send("A1", "attributeA")
+        sender.send("A2", "attributeA")
+        sender.send("B1", "attributeB")
+        sender.send("A3", "attributeA")
+        sender.send("X", null)
+
+        then: "only the first message should be in flight"
+        sentMessages == ["A1"]
+
+        and: "pending messages with the same key should be coalesced to the latest"
+        sender.getPendingCount() == 3
+
+        when: "the slow session completes the sends"
+        completeInFlight()
+        completeInFlight()
+        completeInFlight()
+        completeInFlight()
+
+        then: "the latest message of each key should be sent in order of first arrival"
+        sentMessages == ["A1", "A3", "B1", "X"]
+        sender.getPendingCount() == 0
+        inFlight.isEmpty()
+        closeReasons.isEmpty()
+
+        when: "more messages without a coalescing key are sent than can be pending"
+        sender.send("Y1", null)
+        sender.send("Y2", null)
+        sender.send("Y3", null)
+        sender.send("Y4", null)
+        sender.send("Y5", null)
+
+        then: "the lagging session should be closed and pending messages discarded"
+        closeReasons.size() == 1
+        closeReasons[0].closeCode == CloseReason.CloseCodes.TRY_AGAIN_LATER
+        sender.getPendingCount() == 0
+
+        when: "the message in flight completes and more messages are sent"
+        completeInFlight()
+        sender.send("Z", null)
+
+        then: "nothing more should be sent to the closed session"
+        sentMessages == ["A1", "A3", "B1", "X", "Y1"]
+        inFlight.isEmpty()
+    }
+
+    def "Close a session when the message in flight is not sent within the maximum lag time"() {
+
+        given: "a session which never completes a send"
+        List<String> sentMessages = []
+        List<CloseReason> closeReasons = []
+        List<Long> sendTimeouts = []
+        def remote = Stub(RemoteEndpoint.Async) {
+            sendText(_ as String, _ as SendHandler) >> { String text, SendHandler handler ->
+                sentMessages.add(text)
+            }
+            setSendTimeout(_ as Long) >> { long timeout -> sendTimeouts.add(timeout) }
+        }
+        def session = Stub(Session) {
+            getId() >> "stuckSession"
+            getAsyncRemote() >> remote
+            close(_ as CloseReason) >> { CloseReason reason -> closeReasons.add(reason) }
+        }
+
+        and: "a sender with a short lag time"
+        def sender = new WebsocketSessionSender(session, 100, 50)
+
+        expect: "the lag time to be the send timeout of the session"
+        sendTimeouts == [50L]
+
+        when: "a message is sent and another one is sent before the lag time passed"
+        sender.send("M1", "attribute")
+        sender.send("M2", "attribute")
+
+        then: "the second message should be pending"
+        sentMessages == ["M1"]
+        sender.getPendingCount() == 1
+        closeReasons.isEmpty()
+
+        when: "the lag time passed and another message is sent"
+        Thread.sleep(100)
+        sender.send("M3", "attribute")
+
+        then: "the session should be closed and pending messages discarded"
+        closeReasons.size() == 1
+        sender.getPendingCount() == 0
+        sentMessages == ["M1"]
+    }
+
+    def "Close a session when sending fails"() {
+
+        given: "a session which fails a send when told to"
+        List<String> sentMessages = []
+        List<SendHandler> inFlight = []
+        List<CloseReason> closeReasons = []
+        def remote = Stub(RemoteEndpoint.Async) {
+            sendText(_ as String, _ as SendHandler) >> { String text, SendHandler handler ->
+                sentMessages.add(text)
+                inFlight.add(handler)
+            }
+        }
+        def session = Stub(Session) {
+            getId() >> "failingSession"
+            getAsyncRemote() >> remote
+            close(_ as CloseReason) >> { CloseReason reason -> closeReasons.add(reason) }
+        }
+        def sender = new WebsocketSessionSender(session, 100, 60000)
+
+        when: "a message is in flight and another message is pending"
+        sender.send("M1", null)
+        sender.send("M2", null)
+
+        then: "the second message should be pending"
+        sentMessages == ["M1"]
+        sender.getPendingCount() == 1
+
+        when: "the send of the message in flight fails"
+        inFlight.remove(0).onResult(new SendResult(new IOException("Broken pipe")))
+
+        then: "the session should be closed and pending messages discarded"
+        closeReasons.size() == 1
+        closeReasons[0].closeCode == CloseReason.CloseCodes.UNEXPECTED_CONDITION
+        sender.getPendingCount() == 0
+
+        when: "another message is sent"
+        sender.send("M3", null)
+
+        then: "nothing more should be sent to the closed session"
+        sentMessages == ["M1"]
+        inFlight.isEmpty()
+        closeReasons.size() == 1
+    }
+}
@@ -23,6 +23,7 @@ import org.openremote.agent.protocol.AbstractProtocol
 import org.openremote.agent.protocol.Protocol
 import org.openremote.agent.protocol.filter.RegexFilter
 import org.openremote.agent.protocol.filter.SubStringFilter
+import org.openremote.container.concurrent.GlobalLock
 import org.openremote.manager.agent.AgentService
 import org.openremote.manager.asset.AssetProcessingService
 import org.openremote.manager.asset.AssetStorageService
@@ -39,6 +40,8 @@ import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
+import java.util.concurrent.CountDownLatch
+
 import static org.openremote.model.Constants.MASTER_REALM
 
 /**
@@ -505,6 +508,32 @@ class BasicProtocolTest extends Specification implements ManagerContainerTrait,
             assert !mockThing.getAttribute("filterRegexSubstring").get().getValueAsNumber().isPresent()
         }
 
+        when: "another thread holds the global lock"
+        def lockAcquired = new CountDownLatch(1)
+        def lockRelease = new CountDownLatch(1)
+        def lockHolder = Thread.start {
+            GlobalLock.withLock("BasicProtocolTest") {
+                lockAcquired.countDown()
+                lockRelease.await()
+            }
+        }
+        lockAcquired.await()
+
+        and: "a sensor value is received"
+        def startTime = System.currentTimeMillis()
+        state = new AttributeState(mockThing.id, "filterSubstring", Values.create("Substring test value"))
+        mockProtocol.updateReceived(state)
+        def updateMillis = System.currentTimeMillis() - startTime
+        lockRelease.countDown()
+        lockHolder.join()
+
+        then: "the sensor value should have been sent without waiting for the lock"
+        updateMillis < GlobalLock.getLockTimeoutMillis()
+        conditions.eventually {
+            mockThing = assetStorageService.find(mockThing.getId(), true)
+            assert mockThing.getAttribute("filterSubstring").get().getValueAsString().orElse(null) == "te"
+        }
+
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
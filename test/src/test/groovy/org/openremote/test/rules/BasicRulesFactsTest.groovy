@@ -3,12 +3,28 @@ package org.openremote.test.rules
 import groovy.transform.EqualsAndHashCode
 import groovy.transform.ToString
 import org.openremote.container.Container
+import org.openremote.manager.rules.ProfiledRule
+import org.openremote.manager.rules.RulesBuilder
 import org.openremote.manager.rules.RulesClock
 import org.openremote.manager.rules.RulesEngine
 import org.openremote.manager.rules.RulesFacts
+import org.openremote.manager.rules.RulesProfiler
+import org.openremote.manager.rules.RulesWriteLimiter
+import org.openremote.manager.rules.RulesetDeployment
+import org.openremote.manager.rules.TrackedRule
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.asset.AssetQuery
+import org.openremote.model.asset.AssetType
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeType
+import org.openremote.model.rules.AssetState
 import org.openremote.model.rules.Assets
+import org.openremote.model.value.Values
 import spock.lang.Specification
 
+import javax.management.openmbean.CompositeData
+import java.lang.management.ManagementFactory
 import java.util.stream.Collectors
 
 class BasicRulesFactsTest extends Specification {
@@ -393,4 +409,325 @@ class BasicRulesFactsTest extends Specification {
         assert !rulesFacts.hasTemporaryFacts()
         assert rulesFacts.match(AnonFact).count() == 0
     }
+
+    def "Evaluate tracked rules only when matched asset states change"() {
+
+        given: "asset states of two assets"
+        def asset1 = new Asset("Asset 1", AssetType.THING)
+        asset1.setId("asset1")
+        def asset2 = new Asset("Asset 2", AssetType.THING)
+        asset2.setId("asset2")
+        def temperatureState = { Asset asset, double value ->
+            new AssetState(asset, new AssetAttribute("temperature", AttributeType.NUMBER, Values.create(value)), AttributeEvent.Source.SENSOR)
+        }
+        rulesFacts.putAssetState(temperatureState(asset1, 20d))
+        rulesFacts.putAssetState(temperatureState(asset2, 20d))
+
+        and: "a rule matching asset states by query and a rule matching a named fact"
+        def trackedEvaluations = 0
+        def untrackedEvaluations = 0
+        def rulesBuilder = new RulesBuilder()
+        rulesBuilder.add().name("Asset 1 is hot").when({ facts ->
+            trackedEvaluations++
+            facts.matchAssetState(new AssetQuery().id("asset1")).anyMatch { it.valueAsNumber.orElse(0d) > 25 }
+        })
+        rulesBuilder.add().name("Foo is present").when({ facts ->
+            untrackedEvaluations++
+            facts.matchFirst("foo").isPresent()
+        })
+        List<TrackedRule> rules = rulesBuilder.build().collect { new TrackedRule(it) }
+        rulesFacts.setAssetChangeListener([
+            onAssetStateChanged: { assetState -> rules.each { it.onAssetStateChanged(assetState) } },
+            onAssetEventChanged: { assetState -> rules.each { it.onAssetEventChanged(assetState) } }
+        ] as RulesFacts.AssetChangeListener)
+
+        when: "the rules are evaluated"
+        def results = rules.collect { it.evaluate(rulesFacts) }
+
+        then: "both conditions should have been evaluated"
+        results == [false, false]
+        trackedEvaluations == 1
+        untrackedEvaluations == 1
+        !rules[0].untracked
+        rules[1].untracked
+
+        when: "the rules are evaluated again without any changes"
+        results = rules.collect { it.evaluate(rulesFacts) }
+
+        then: "only the untracked condition should have been evaluated"
+        results == [false, false]
+        trackedEvaluations == 1
+        untrackedEvaluations == 2
+        rules[0].skippedCount == 1
+
+        when: "an asset state not matched by the query changes"
+        rulesFacts.putAssetState(temperatureState(asset2, 30d))
+        results = rules.collect { it.evaluate(rulesFacts) }
+
+        then: "the tracked condition should still be skipped"
+        results == [false, false]
+        trackedEvaluations == 1
+        untrackedEvaluations == 3
+
+        when: "an asset state matched by the query changes"
+        rulesFacts.putAssetState(temperatureState(asset1, 30d))
+        results = rules.collect { it.evaluate(rulesFacts) }
+
+        then: "the tracked condition should have been evaluated"
+        results == [true, false]
+        trackedEvaluations == 2
+
+        when: "the rules are evaluated again without any changes"
+        results = rules.collect { it.evaluate(rulesFacts) }
+
+        then: "the tracked condition should be evaluated again, as it was true"
+        results == [true, false]
+        trackedEvaluations == 3
+
+        when: "the matched asset state is removed"
+        rulesFacts.removeAssetState(temperatureState(asset1, 30d))
+        results = rules.collect { it.evaluate(rulesFacts) }
+
+        then: "the tracked condition should have been evaluated"
+        results == [false, false]
+        trackedEvaluations == 4
+    }
+
+    def "Match asset states on the most selective index"() {
+
+        given: "asset states of a building with two rooms"
+        def building = new Asset("Building", AssetType.BUILDING)
+        building.setId("building")
+        def room1 = new Asset("Room 1", AssetType.ROOM, building)
+        room1.setId("room1")
+        def room2 = new Asset("Room 2", AssetType.ROOM, building)
+        room2.setId("room2")
+        def state = { Asset asset, String attributeName, double value ->
+            new AssetState(asset, new AssetAttribute(attributeName, AttributeType.NUMBER, Values.create(value)), AttributeEvent.Source.SENSOR)
+        }
+        rulesFacts.putAssetState(state(building, "energy", 100d))
+        [room1, room2].each {
+            rulesFacts.putAssetState(state(it, "temperature", 20d))
+            rulesFacts.putAssetState(state(it, "humidity", 40d))
+        }
+
+        expect: "queries to use the smallest index"
+        rulesFacts.assetStateStore.getCandidates(new AssetQuery()).size() == 5
+        rulesFacts.assetStateStore.getCandidates(new AssetQuery().id("room1")).size() == 2
+        rulesFacts.assetStateStore.getCandidates(new AssetQuery().type(AssetType.ROOM)).size() == 4
+        rulesFacts.assetStateStore.getCandidates(new AssetQuery().type(AssetType.ROOM).attributeName("energy")).size() == 1
+        rulesFacts.assetStateStore.getCandidates(new AssetQuery().parent("building").id("room2")).size() == 2
+        rulesFacts.assetStateStore.getCandidates(new AssetQuery().id("unknown")).size() == 0
+
+        and: "matching to return the same asset states as a full scan"
+        rulesFacts.matchAssetState(new AssetQuery().type(AssetType.ROOM).attributeName("temperature")).count() == 2
+        rulesFacts.matchAssetState(new AssetQuery().parent("building").attributeName("humidity")).count() == 2
+        rulesFacts.matchAssetState(new AssetQuery().type(AssetType.ROOM).attributeName("energy")).count() == 0
+        rulesFacts.matchAssetState(new AssetQuery().id("unknown")).count() == 0
+
+        when: "an asset state is updated and another is removed"
+        rulesFacts.putAssetState(state(room1, "temperature", 25d))
+        rulesFacts.removeAssetState(state(room2, "humidity", 40d))
+
+        then: "the indexes should be updated"
+        rulesFacts.assetStates.size() == 4
+        rulesFacts.matchFirstAssetState(new AssetQuery().id("room1").attributeName("temperature")).get().valueAsNumber.get() == 25d
+        rulesFacts.matchAssetState(new AssetQuery().parent("building").attributeName("humidity")).count() == 1
+        rulesFacts.assetStateStore.getCandidates(new AssetQuery().id("room2")).size() == 1
+    }
+
+    def "Profile rule conditions and actions"() {
+
+        given: "asset states of two assets"
+        def asset1 = new Asset("Asset 1", AssetType.THING)
+        asset1.setId("asset1")
+        def asset2 = new Asset("Asset 2", AssetType.THING)
+        asset2.setId("asset2")
+        [asset1, asset2].each {
+            rulesFacts.putAssetState(new AssetState(it, new AssetAttribute("temperature", AttributeType.NUMBER, Values.create(20d)), AttributeEvent.Source.SENSOR))
+        }
+
+        and: "a profiled rule matching asset states of one asset"
+        def profiler = new RulesProfiler("test")
+        def rulesBuilder = new RulesBuilder()
+        rulesBuilder.add().name("Asset 1 is warm")
+            .when({ facts -> facts.matchAssetState(new AssetQuery().id("asset1")).anyMatch { it.valueAsNumber.orElse(0d) > 15 } })
+            .then({ facts -> })
+        def rule = new ProfiledRule(rulesBuilder.build().first(), profiler)
+
+        when: "the rule is evaluated and executed twice in a firing"
+        profiler.startFiring(new RulesetDeployment(1, "Test rules", 1))
+        2.times {
+            assert rule.evaluate(rulesFacts)
+            profiler.beforeExecute(rule, rulesFacts)
+            rule.execute(rulesFacts)
+            profiler.onSuccess(rule, rulesFacts)
+        }
+        profiler.stopFiring()
+
+        then: "the metrics should be recorded"
+        def metrics = profiler.getRuleMetrics()
+        metrics.size() == 1
+        metrics[0].rulesetId == 1
+        metrics[0].ruleName == "Asset 1 is warm"
+        metrics[0].evaluations == 2
+        metrics[0].executions == 2
+        metrics[0].conditionTime.count == 2
+        metrics[0].actionTime.count == 2
+        metrics[0].factsScanned.sum == 2
+        metrics[0].loopIterations.count == 1
+        metrics[0].loopIterations.sum == 2
+
+        when: "the profiler is registered as an MXBean"
+        def mBeanServer = ManagementFactory.getPlatformMBeanServer()
+        profiler.registerMBean()
+        def metricsData = mBeanServer.getAttribute(profiler.getObjectName(), "RuleMetrics") as CompositeData[]
+
+        then: "the metrics should be readable with JMX"
+        metricsData.length == 1
+        metricsData[0].get("ruleName") == "Asset 1 is warm"
+        metricsData[0].get("executions") == 2L
+        (metricsData[0].get("loopIterations") as CompositeData).get("sum") == 2L
+
+        when: "the profiler is unregistered"
+        profiler.unregisterMBean()
+
+        then: "the MXBean should be gone"
+        !mBeanServer.isRegistered(profiler.getObjectName())
+
+        when: "the metrics of the ruleset are removed"
+        profiler.remove(1L)
+
+        then: "no metrics should be left"
+        profiler.getRuleMetrics().isEmpty()
+    }
+
+    def "Aggregate asset events in sliding and tumbling windows"() {
+
+        given: "an asset with temperature and motion attributes"
+        def asset = new Asset("Room", AssetType.ROOM)
+        asset.setId("room1")
+        def temperatureEvent = { long timestamp, double value ->
+            new AssetState(asset, new AssetAttribute("temperature", AttributeType.NUMBER, Values.create(value), timestamp), AttributeEvent.Source.SENSOR)
+        }
+        def motionEvent = { long timestamp ->
+            new AssetState(asset, new AssetAttribute("motion", AttributeType.BOOLEAN, Values.create(true), timestamp), AttributeEvent.Source.SENSOR)
+        }
+
+        and: "windows declared by a ruleset"
+        def rulesBuilder = new RulesBuilder()
+        rulesBuilder.window("temperature10s").matching(new AssetQuery().attributeName("temperature")).sliding("10s")
+        rulesBuilder.window("motionPerHour").matching(new AssetQuery().attributeName("motion")).tumbling("1h")
+        rulesBuilder.buildWindows().each { rulesFacts.putWindow(it) }
+
+        when: "asset events are inserted"
+        rulesFacts.insertAssetEvent("1h", temperatureEvent(1000, 20))
+        rulesFacts.insertAssetEvent("1h", temperatureEvent(3000, 24))
+        rulesFacts.insertAssetEvent("1h", motionEvent(4000))
+        rulesFacts.insertAssetEvent("1h", motionEvent(5000))
+        rulesFacts.insertAssetEvent("1h", temperatureEvent(8000, 22))
+        rulesFacts.setClock(new RulesClock(9000))
+
+        then: "the windows should aggregate the matching asset events"
+        def temperature = rulesFacts.getWindow("temperature10s", "room1", "temperature").get()
+        temperature.count == 3
+        temperature.sum == 66d
+        temperature.average.asDouble == 22d
+        temperature.min.asDouble == 20d
+        temperature.max.asDouble == 24d
+        Values.getNumber(temperature.last.get()).get() == 22d
+        def motion = rulesFacts.getWindow("motionPerHour", "room1", "motion").get()
+        motion.count == 2
+        !motion.average.isPresent()
+        !rulesFacts.getWindow("temperature10s", "room1", "motion").isPresent()
+
+        when: "the clock is advanced past the first temperature event"
+        rulesFacts.setClock(new RulesClock(12000))
+
+        then: "the sliding window should no longer contain it"
+        rulesFacts.getWindow("temperature10s", "room1", "temperature").get().count == 2
+        rulesFacts.getWindow("temperature10s", "room1", "temperature").get().average.asDouble == 23d
+        rulesFacts.getWindow("temperature10s", "room1", "temperature").get().min.asDouble == 22d
+
+        when: "the clock is advanced past the maximum temperature event"
+        rulesFacts.setClock(new RulesClock(14000))
+
+        then: "the maximum should be the remaining event"
+        rulesFacts.getWindow("temperature10s", "room1", "temperature").get().max.asDouble == 22d
+
+        when: "the clock is advanced to the next hour"
+        rulesFacts.setClock(new RulesClock(3600000))
+
+        then: "the tumbling window should be empty"
+        rulesFacts.getWindow("motionPerHour", "room1", "motion").get().count == 0
+
+        when: "the window is declared again by a new deployment"
+        def redeployed = new RulesBuilder()
+        redeployed.window("temperature10s").matching(new AssetQuery().attributeName("temperature")).sliding("1h")
+        redeployed.buildWindows().each { rulesFacts.putWindow(it) }
+
+        then: "it should start with the asset events in the facts"
+        rulesFacts.getWindow("temperature10s", "room1", "temperature").get().count == 3
+    }
+
+    def "Coalesce and limit attribute writes of rules"() {
+
+        given: "a write limiter with a low attribute write rate"
+        def dispatched = []
+        def writeLimiter = new RulesWriteLimiter("test", { dispatched.add(it) }, new RulesWriteLimiter.Limits(1000, 2, 3))
+        def asset = new Asset("Room", AssetType.ROOM)
+        asset.setId("room1")
+        def assetState = new AssetState(asset, new AssetAttribute("light", AttributeType.BOOLEAN, Values.create(true)), AttributeEvent.Source.SENSOR)
+
+        when: "rules write the same attribute several times in a firing"
+        writeLimiter.startFiring()
+        writeLimiter.write(new AttributeEvent("room1", "light", Values.create(false)))
+        writeLimiter.write(new AttributeEvent("room1", "light", Values.create(true)))
+        writeLimiter.write(new AttributeEvent("room1", "temperature", Values.create(21)))
+        writeLimiter.stopFiring()
+
+        then: "only the last write of each attribute should be dispatched"
+        dispatched.size() == 2
+        Values.getBoolean(dispatched[0].value.get()).get()
+        writeLimiter.coalescedCount == 1
+
+        when: "rules write the same attribute in several firings"
+        3.times {
+            writeLimiter.startFiring()
+            writeLimiter.write(new AttributeEvent("room1", "temperature", Values.create(22)))
+            writeLimiter.stopFiring()
+        }
+
+        then: "writes exceeding the attribute rate limit should be deferred, keeping only the latest"
+        dispatched.size() == 3
+        writeLimiter.deferredCount == 1
+        writeLimiter.droppedCount == 1
+        writeLimiter.deferredDelayMillis > 0
+
+        when: "the attribute bucket has been refilled"
+        Thread.sleep(writeLimiter.deferredDelayMillis + 50)
+        writeLimiter.dispatchDeferred()
+
+        then: "the latest deferred write should be dispatched"
+        dispatched.size() == 4
+        dispatched[3].attributeName == "temperature"
+        writeLimiter.deferredCount == 0
+        writeLimiter.deferredDelayMillis == -1
+
+        when: "each firing is only triggered by the write of the previous firing"
+        writeLimiter = new RulesWriteLimiter("test", { dispatched.add(it) }, new RulesWriteLimiter.Limits(0, 0, 3))
+        dispatched.clear()
+        writeLimiter.onInput(assetState)
+        4.times {
+            writeLimiter.startFiring()
+            writeLimiter.write(new AttributeEvent("room1", "light", Values.create(it % 2 == 0)))
+            writeLimiter.stopFiring()
+            writeLimiter.onInput(assetState)
+        }
+
+        then: "the feedback loop should be detected and its writes dropped"
+        writeLimiter.loopCount == 1
+        writeLimiter.droppedCount == 1
+        dispatched.size() == 3
+    }
 }